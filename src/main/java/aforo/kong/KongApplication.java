@@ -5,11 +5,17 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.ComponentScan;
 import org.springframework.scheduling.annotation.EnableScheduling;
 
+import java.util.TimeZone;
+
 @SpringBootApplication
 @EnableScheduling
 @ComponentScan(basePackages = {"aforo.kong", "com.aforo.apigee"})  // Still need apigee services temporarily
 public class KongApplication {
     public static void main(String[] args) {
+        // The JDBC driver writes TIMESTAMP columns (kong_usage_record.ts, rollup buckets) in the JVM's zone
+        // and sets the session zone from it, which is where date_trunc cuts usage_record's TIMESTAMPTZ.
+        // Both must be UTC for SQL buckets to fall on the UTC boundaries Java splits periods at.
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
         SpringApplication.run(KongApplication.class, args);
     }
 }
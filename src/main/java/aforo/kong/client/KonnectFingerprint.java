@@ -0,0 +1,83 @@
+package aforo.kong.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content hashes of parsed Konnect services and routes, as stored in the map tables'
+ * content_hash column, so a sync can tell an unchanged entity without comparing its fields.
+ * <p>
+ * The hash is SHA-256 over a canonical form of exactly the fields the mappings store: fields in
+ * a fixed order, each value length-prefixed so no value can run into the next, list fields
+ * sorted, and a missing list equal to an empty one. Reordering the tags or methods of a route
+ * therefore does not count as a change. Bump {@link #VERSION} whenever the canonical form
+ * changes, so stored hashes stop matching and every mapping is rewritten once.
+ */
+public final class KonnectFingerprint {
+
+    private static final String VERSION = "1";
+
+    private KonnectFingerprint() {
+    }
+
+    public static String service(Map<String, Object> service) {
+        StringBuilder canonical = new StringBuilder("service:").append(VERSION);
+        field(canonical, service.get("name"));
+        field(canonical, service.get("host"));
+        field(canonical, service.get("port"));
+        field(canonical, service.get("path"));
+        field(canonical, service.get("protocol"));
+        list(canonical, service.get("tags"));
+        return sha256(canonical);
+    }
+
+    public static String route(Map<String, Object> route) {
+        StringBuilder canonical = new StringBuilder("route:").append(VERSION);
+        field(canonical, route.get("service_id"));
+        field(canonical, route.get("name"));
+        list(canonical, route.get("methods"));
+        list(canonical, route.get("paths"));
+        list(canonical, route.get("hosts"));
+        list(canonical, route.get("protocols"));
+        list(canonical, route.get("tags"));
+        return sha256(canonical);
+    }
+
+    private static void field(StringBuilder canonical, Object value) {
+        if (value == null) {
+            canonical.append("|-");
+            return;
+        }
+        String text = value.toString();
+        canonical.append('|').append(text.length()).append(':').append(text);
+    }
+
+    private static void list(StringBuilder canonical, Object value) {
+        List<String> items = new ArrayList<>();
+        if (value instanceof Collection<?> values) {
+            for (Object item : values) {
+                items.add(String.valueOf(item));
+            }
+        }
+        items.sort(null);
+        canonical.append("|[").append(items.size());
+        for (String item : items) {
+            field(canonical, item);
+        }
+    }
+
+    private static String sha256(CharSequence canonical) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return HexFormat.of().formatHex(digest.digest(canonical.toString().getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
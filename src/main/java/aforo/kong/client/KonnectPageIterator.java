@@ -0,0 +1,91 @@
+package aforo.kong.client;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Walks every page of a Konnect list endpoint, one page of entities per {@link #next()}.
+ * <p>
+ * The following page is requested on a virtual thread as soon as the current one arrives,
+ * so fetching overlaps with whatever the caller does with the page, and at most two pages
+ * are held at a time. A failed request is rethrown from {@link #hasNext()} instead of
+ * ending the walk, so callers never mistake a partial listing for the full one.
+ */
+public final class KonnectPageIterator implements Iterator<List<Map<String, Object>>>, AutoCloseable {
+
+    private static final ExecutorService PREFETCH = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * Fetches the page at the offset; a null offset is the first page.
+     */
+    @FunctionalInterface
+    public interface PageFetcher {
+        KonnectWebClient.EntityPage fetch(String offset);
+    }
+
+    private final PageFetcher fetcher;
+    private CompletableFuture<KonnectWebClient.EntityPage> pending;
+    private KonnectWebClient.EntityPage ready;
+    private int pages;
+
+    KonnectPageIterator(PageFetcher fetcher) {
+        this.fetcher = fetcher;
+        this.pending = fetchAsync(null);
+    }
+
+    @Override
+    public boolean hasNext() {
+        while ((ready == null || ready.data().isEmpty()) && pending != null) {
+            ready = await(pending);
+            pages++;
+            pending = ready.nextOffset() != null ? fetchAsync(ready.nextOffset()) : null;
+        }
+        return ready != null && !ready.data().isEmpty();
+    }
+
+    @Override
+    public List<Map<String, Object>> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        List<Map<String, Object>> data = ready.data();
+        ready = null;
+        return data;
+    }
+
+    /**
+     * Pages received so far.
+     */
+    public int pages() {
+        return pages;
+    }
+
+    @Override
+    public void close() {
+        if (pending != null) {
+            pending.cancel(true);
+            pending = null;
+        }
+    }
+
+    private CompletableFuture<KonnectWebClient.EntityPage> fetchAsync(String offset) {
+        return CompletableFuture.supplyAsync(() -> fetcher.fetch(offset), PREFETCH);
+    }
+
+    private static KonnectWebClient.EntityPage await(CompletableFuture<KonnectWebClient.EntityPage> page) {
+        try {
+            return page.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
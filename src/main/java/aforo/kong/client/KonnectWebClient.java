@@ -1,17 +1,25 @@
 package aforo.kong.client;
 
+import aforo.kong.config.KonnectSyncProperties;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.http.*;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.UriComponentsBuilder;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 @Component
 public class KonnectWebClient {
@@ -21,6 +29,17 @@ public class KonnectWebClient {
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
 
+    /**
+     * Konnect gets its own RestTemplate, with the connect and read timeouts of the sync settings.
+     */
+    @Autowired
+    public KonnectWebClient(RestTemplateBuilder builder, ObjectMapper objectMapper, KonnectSyncProperties syncProperties) {
+        this(builder
+                .setConnectTimeout(Duration.ofMillis(syncProperties.getConnectTimeoutMs()))
+                .setReadTimeout(Duration.ofMillis(syncProperties.getReadTimeoutMs()))
+                .build(), objectMapper);
+    }
+
     public KonnectWebClient(RestTemplate restTemplate, ObjectMapper objectMapper) {
         this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
@@ -191,25 +210,7 @@ public class KonnectWebClient {
                 
                 if (root.has("data")) {
                     for (JsonNode node : root.get("data")) {
-                        Map<String, Object> service = new HashMap<>();
-                        service.put("id", node.has("id") ? node.get("id").asText() : null);
-                        service.put("name", node.has("name") ? node.get("name").asText() : null);
-                        service.put("host", node.has("host") ? node.get("host").asText() : null);
-                        service.put("port", node.has("port") ? node.get("port").asInt() : null);
-                        service.put("path", node.has("path") ? node.get("path").asText() : null);
-                        service.put("protocol", node.has("protocol") ? node.get("protocol").asText() : null);
-                        
-                        if (node.has("tags")) {
-                            List<String> tags = new ArrayList<>();
-                            for (JsonNode tag : node.get("tags")) {
-                                tags.add(tag.asText());
-                            }
-                            service.put("tags", tags);
-                        }
-                        
-                        service.put("created_at", node.has("created_at") ? node.get("created_at").asLong() : null);
-                        service.put("updated_at", node.has("updated_at") ? node.get("updated_at").asLong() : null);
-                        services.add(service);
+                        services.add(parseService(node));
                     }
                 }
                 return services;
@@ -245,27 +246,7 @@ public class KonnectWebClient {
                 
                 if (root.has("data")) {
                     for (JsonNode node : root.get("data")) {
-                        Map<String, Object> route = new HashMap<>();
-                        route.put("id", node.has("id") ? node.get("id").asText() : null);
-                        route.put("name", node.has("name") ? node.get("name").asText() : null);
-                        
-                        // Service reference
-                        if (node.has("service") && node.get("service").has("id")) {
-                            route.put("service_id", node.get("service").get("id").asText());
-                        }
-                        
-                        // Arrays
-                        route.put("protocols", extractStringArray(node, "protocols"));
-                        route.put("methods", extractStringArray(node, "methods"));
-                        route.put("hosts", extractStringArray(node, "hosts"));
-                        route.put("paths", extractStringArray(node, "paths"));
-                        route.put("tags", extractStringArray(node, "tags"));
-                        
-                        route.put("strip_path", node.has("strip_path") ? node.get("strip_path").asBoolean() : null);
-                        route.put("preserve_host", node.has("preserve_host") ? node.get("preserve_host").asBoolean() : null);
-                        route.put("created_at", node.has("created_at") ? node.get("created_at").asLong() : null);
-                        route.put("updated_at", node.has("updated_at") ? node.get("updated_at").asLong() : null);
-                        routes.add(route);
+                        routes.add(parseRoute(node));
                     }
                 }
                 return routes;
@@ -278,6 +259,166 @@ public class KonnectWebClient {
         }
     }
 
+    /**
+     * Every service of the control plane, {@code pageSize} per page; failures are thrown, not
+     * swallowed.
+     */
+    public KonnectPageIterator streamServices(String baseUrl, String controlPlaneId, String authToken, int pageSize) {
+        return streamServices(baseUrl, controlPlaneId, authToken, pageSize, false);
+    }
+
+    /**
+     * Every service of the control plane, most recently updated first if {@code newestFirst}.
+     * Konnect may ignore the sort; callers relying on it must check the order they get.
+     */
+    public KonnectPageIterator streamServices(String baseUrl, String controlPlaneId, String authToken, int pageSize,
+                                              boolean newestFirst) {
+        String url = baseUrl + "/v2/control-planes/" + controlPlaneId + "/core-entities/services";
+        return new KonnectPageIterator(offset -> fetchPage(url, authToken, pageSize, offset, newestFirst,
+                this::parseService));
+    }
+
+    /**
+     * Every route of the control plane, {@code pageSize} per page; failures are thrown, not
+     * swallowed.
+     */
+    public KonnectPageIterator streamRoutes(String baseUrl, String controlPlaneId, String authToken, int pageSize) {
+        return streamRoutes(baseUrl, controlPlaneId, authToken, pageSize, false);
+    }
+
+    /**
+     * Every route of the control plane, most recently updated first if {@code newestFirst}.
+     * Konnect may ignore the sort; callers relying on it must check the order they get.
+     */
+    public KonnectPageIterator streamRoutes(String baseUrl, String controlPlaneId, String authToken, int pageSize,
+                                            boolean newestFirst) {
+        String url = baseUrl + "/v2/control-planes/" + controlPlaneId + "/core-entities/routes";
+        return new KonnectPageIterator(offset -> fetchPage(url, authToken, pageSize, offset, newestFirst,
+                this::parseRoute));
+    }
+
+    /**
+     * The API product list, unless it still matches {@code etag}. A list without an ETag is
+     * always returned in full.
+     */
+    public ConditionalList listApiProductsIfModified(String baseUrl, String authToken, String etag) {
+        HttpHeaders headers = createHeaders(authToken);
+        if (etag != null) {
+            headers.setIfNoneMatch(etag);
+        }
+        ResponseEntity<String> response = restTemplate.exchange(
+            baseUrl + "/v2/api-products",
+            HttpMethod.GET,
+            new HttpEntity<>(headers),
+            String.class
+        );
+        if (response.getStatusCode().value() == HttpStatus.NOT_MODIFIED.value()) {
+            return new ConditionalList(List.of(), etag, false);
+        }
+        if (!response.getStatusCode().is2xxSuccessful()) {
+            throw new IllegalStateException("Konnect API product list failed with status " + response.getStatusCode());
+        }
+        try {
+            List<Map<String, Object>> products = new ArrayList<>();
+            for (JsonNode node : objectMapper.readTree(response.getBody()).path("data")) {
+                products.add(parseApiProduct(node));
+            }
+            return new ConditionalList(products, response.getHeaders().getETag(), true);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unreadable Konnect API product list from " + baseUrl, e);
+        }
+    }
+
+    /**
+     * A list fetched with a conditional request; {@code data} is empty when not {@code modified}.
+     */
+    public record ConditionalList(List<Map<String, Object>> data, String etag, boolean modified) {
+    }
+
+    /**
+     * One page of a core-entity list; {@code nextOffset} is null on the last page.
+     */
+    public record EntityPage(List<Map<String, Object>> data, String nextOffset) {
+    }
+
+    private EntityPage fetchPage(String url, String authToken, int size, String offset, boolean newestFirst,
+                                 Function<JsonNode, Map<String, Object>> parser) {
+        // Offsets are opaque tokens; as template variables they are fully encoded, '+' and '/' included
+        UriComponentsBuilder uri = UriComponentsBuilder.fromUriString(url).queryParam("size", size);
+        if (newestFirst) {
+            uri.queryParam("sort_by", "updated_at").queryParam("sort_desc", true);
+        }
+        if (offset != null) {
+            uri.queryParam("offset", "{offset}");
+        }
+        ResponseEntity<String> response = restTemplate.exchange(
+            uri.encode().buildAndExpand(offset != null ? Map.of("offset", offset) : Map.of()).toUri(),
+            HttpMethod.GET,
+            new HttpEntity<>(createHeaders(authToken)),
+            String.class
+        );
+        if (!response.getStatusCode().is2xxSuccessful()) {
+            throw new IllegalStateException("Konnect list " + url + " failed with status " + response.getStatusCode());
+        }
+        try {
+            JsonNode root = objectMapper.readTree(response.getBody());
+            List<Map<String, Object>> data = new ArrayList<>();
+            for (JsonNode node : root.path("data")) {
+                data.add(parser.apply(node));
+            }
+            String next = root.path("offset").asText(null);
+            return new EntityPage(data, next != null && !next.isEmpty() && !data.isEmpty() ? next : null);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unreadable Konnect list response from " + url, e);
+        }
+    }
+
+    private Map<String, Object> parseService(JsonNode node) {
+        Map<String, Object> service = new HashMap<>();
+        service.put("id", node.has("id") ? node.get("id").asText() : null);
+        service.put("name", node.has("name") ? node.get("name").asText() : null);
+        service.put("host", node.has("host") ? node.get("host").asText() : null);
+        service.put("port", node.has("port") ? node.get("port").asInt() : null);
+        service.put("path", node.has("path") ? node.get("path").asText() : null);
+        service.put("protocol", node.has("protocol") ? node.get("protocol").asText() : null);
+        
+        if (node.has("tags")) {
+            List<String> tags = new ArrayList<>();
+            for (JsonNode tag : node.get("tags")) {
+                tags.add(tag.asText());
+            }
+            service.put("tags", tags);
+        }
+        
+        service.put("created_at", node.has("created_at") ? node.get("created_at").asLong() : null);
+        service.put("updated_at", node.has("updated_at") ? node.get("updated_at").asLong() : null);
+        return service;
+    }
+
+    private Map<String, Object> parseRoute(JsonNode node) {
+        Map<String, Object> route = new HashMap<>();
+        route.put("id", node.has("id") ? node.get("id").asText() : null);
+        route.put("name", node.has("name") ? node.get("name").asText() : null);
+        
+        // Service reference
+        if (node.has("service") && node.get("service").has("id")) {
+            route.put("service_id", node.get("service").get("id").asText());
+        }
+        
+        // Arrays
+        route.put("protocols", extractStringArray(node, "protocols"));
+        route.put("methods", extractStringArray(node, "methods"));
+        route.put("hosts", extractStringArray(node, "hosts"));
+        route.put("paths", extractStringArray(node, "paths"));
+        route.put("tags", extractStringArray(node, "tags"));
+        
+        route.put("strip_path", node.has("strip_path") ? node.get("strip_path").asBoolean() : null);
+        route.put("preserve_host", node.has("preserve_host") ? node.get("preserve_host").asBoolean() : null);
+        route.put("created_at", node.has("created_at") ? node.get("created_at").asLong() : null);
+        route.put("updated_at", node.has("updated_at") ? node.get("updated_at").asLong() : null);
+        return route;
+    }
+
     public List<Map<String, Object>> listConsumers(String baseUrl, String controlPlaneId, String authToken, Integer page, Integer size) {
         try {
             String url = baseUrl + "/v2/control-planes/" + controlPlaneId + "/core-entities/consumers";
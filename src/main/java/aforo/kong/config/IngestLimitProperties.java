@@ -0,0 +1,57 @@
+package aforo.kong.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Per-organization admission limits for the usage ingest endpoints.
+ * Reads from application.yml under kong.integration.ingest-limits prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.integration.ingest-limits")
+public class IngestLimitProperties {
+
+    /**
+     * Answer 429 to organizations that exceed their ingest rate
+     */
+    private boolean enabled = true;
+
+    /**
+     * Upper bound on token bucket stripes per organization; more stripes means less CAS
+     * contention between request threads of one busy organization
+     */
+    private int stripes = 8;
+
+    /**
+     * Limit for organizations without an entry in {@link #organizations}
+     */
+    private Limit defaults = new Limit();
+
+    /**
+     * Per-organization overrides, keyed by organization ID
+     */
+    private Map<Long, Limit> organizations = new HashMap<>();
+
+    @Data
+    public static class Limit {
+
+        /**
+         * Sustained ingest requests per second
+         */
+        private double requestsPerSecond = 50;
+
+        /**
+         * Requests accepted at once after an idle period
+         */
+        private int burst = 100;
+    }
+
+    public Limit limitFor(Long orgId) {
+        return organizations.getOrDefault(orgId, defaults);
+    }
+}
@@ -0,0 +1,220 @@
+package aforo.kong.config;
+
+import aforo.kong.util.CorrelationIdGenerator;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration for the Kong usage ingest pipeline.
+ * Reads from application.yml under kong.ingest prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.ingest")
+public class KongIngestProperties {
+
+    /**
+     * Organization charged for runtime ingest requests that carry no X-Organization-Id header
+     */
+    private long defaultOrganizationId = 27L;
+
+    /**
+     * How accepted payloads reach the database:
+     * SYNC writes on the request thread, ASYNC hands records to the in-memory queue,
+     * SPOOL appends them to the durable local spool and replays them from there.
+     */
+    private Mode mode = Mode.SYNC;
+
+    /**
+     * Rows per set-based INSERT into kong_usage_record
+     */
+    private int batchSize = 1000;
+
+    /**
+     * Bind request/response headers and querystring when parsing http-log events.
+     * They are always kept in the stored raw payload; binding them only costs memory.
+     */
+    private boolean bindHeaders = false;
+
+    /**
+     * Hash used for correlation IDs. MURMUR3_128 is much cheaper than SHA256 but yields
+     * different IDs, so events already stored under SHA256 IDs would not be deduplicated.
+     */
+    private CorrelationIdGenerator.Algorithm correlationIdHash = CorrelationIdGenerator.Algorithm.SHA256;
+
+    /**
+     * How long a cached service/route/consumer mapping index is used before it is reloaded.
+     * Runtime syncs refresh it immediately.
+     */
+    private long mappingTtlSeconds = 300;
+
+    private Queue queue = new Queue();
+
+    private Dedupe dedupe = new Dedupe();
+
+    private Spool spool = new Spool();
+
+    private Partitions partitions = new Partitions();
+
+    private Bulk bulk = new Bulk();
+
+    public enum Mode {
+        SYNC,
+        ASYNC,
+        SPOOL
+    }
+
+    public enum FsyncPolicy {
+        /** Flush before acknowledging each batch */
+        BATCH,
+        /** Flush in the background every fsync-interval-ms; a crash can lose that much */
+        INTERVAL
+    }
+
+    @Data
+    public static class Queue {
+
+        /**
+         * Maximum number of events buffered in memory before ingest answers 429
+         */
+        private int capacity = 100_000;
+
+        /**
+         * Number of writer threads draining the queue
+         */
+        private int workers = 4;
+
+        /**
+         * How long a writer waits for more events before flushing a partial batch
+         */
+        private long flushIntervalMs = 200;
+
+        /**
+         * Retry-After value (seconds) sent with 429 responses
+         */
+        private int retryAfterSeconds = 5;
+
+        /**
+         * Attempts per batch before the writer gives up and drops it
+         */
+        private int maxFlushAttempts = 3;
+
+        /**
+         * How long shutdown waits for the queue to drain
+         */
+        private long shutdownTimeoutSeconds = 30;
+    }
+
+    @Data
+    public static class Dedupe {
+
+        /**
+         * Answer "definitely new" for correlation IDs from memory instead of querying usage_record
+         */
+        private boolean enabled = true;
+
+        /**
+         * How far back (by event timestamp) the filter covers; older events always hit the database
+         */
+        private int windowHours = 24;
+
+        /**
+         * Width of one time bucket; each bucket has its own Bloom filter per organization
+         */
+        private int bucketMinutes = 60;
+
+        /**
+         * Expected events per organization per bucket, used to size each Bloom filter
+         */
+        private long expectedPerBucket = 100_000;
+
+        /**
+         * Target false-positive probability of each bucket at the expected load
+         */
+        private double fpp = 0.01;
+    }
+
+    @Data
+    public static class Spool {
+
+        /**
+         * Directory holding the segment files; must survive restarts
+         */
+        private String directory = "data/kong-spool";
+
+        /**
+         * Size of each memory-mapped segment file
+         */
+        private int segmentSizeMb = 64;
+
+        /**
+         * When appended frames are flushed to disk
+         */
+        private FsyncPolicy fsync = FsyncPolicy.BATCH;
+
+        /**
+         * Flush period for the INTERVAL policy
+         */
+        private long fsyncIntervalMs = 1000;
+
+        /**
+         * Total spool size after which ingest answers 429
+         */
+        private long maxSizeMb = 4096;
+
+        /**
+         * Replay rate limit in events per second, 0 for unlimited
+         */
+        private int replayMaxEventsPerSecond = 0;
+
+        /**
+         * Replayer poll interval once it has caught up with the writer
+         */
+        private long replayIdleMs = 200;
+
+        /**
+         * Upper bound of the replay backoff while the database is failing
+         */
+        private long replayMaxBackoffMs = 30_000;
+    }
+
+    @Data
+    public static class Partitions {
+
+        /**
+         * Create upcoming monthly partitions of usage_record and kong_usage_record and drop expired ones
+         */
+        private boolean enabled = true;
+
+        /**
+         * Months ahead of the current one that always have a partition
+         */
+        private int monthsAhead = 3;
+
+        /**
+         * Months kept before the current one; older partitions are dropped. 0 keeps everything.
+         */
+        private int retentionMonths = 0;
+
+        /**
+         * Extra months an expired partition is kept while it still has unbilled or unprocessed
+         * rows. Past that it is dropped regardless, so retention always ends; 0 drops at the horizon.
+         */
+        private int pendingGraceMonths = 3;
+
+        /**
+         * Hash sub-partitions by organization for newly created months; 1 for none
+         */
+        private int orgHashPartitions = 1;
+    }
+
+    @Data
+    public static class Bulk {
+
+        /**
+         * Failed or skipped NDJSON lines listed in the bulk ingest response; the rest are only counted
+         */
+        private int maxReportedErrors = 100;
+    }
+}
@@ -0,0 +1,65 @@
+package aforo.kong.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration for syncing Konnect runtime entities (services, routes) into the map tables.
+ * Reads from application.yml under kong.konnect.sync prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.konnect.sync")
+public class KonnectSyncProperties {
+
+    /**
+     * Entities requested per Konnect page and written per chunk; Konnect allows up to 1000
+     */
+    private int pageSize = 1000;
+
+    /**
+     * Whether auto-refresh fetches only what changed since the last sync, by updated_at watermark
+     * and API product ETag; false makes every run a full sync
+     */
+    private boolean incremental = true;
+
+    /**
+     * Interval between full syncs, the only ones that catch entities deleted in Konnect
+     */
+    private long fullSyncIntervalMs = 3600000;
+
+    /**
+     * Time to open a connection to Konnect before the request fails
+     */
+    private long connectTimeoutMs = 5000;
+
+    /**
+     * Time Konnect may go silent during a response before the request fails; bounds how far a
+     * refresh can overrun its org timeout while waiting on one page
+     */
+    private long readTimeoutMs = 10000;
+
+    private AutoRefresh autoRefresh = new AutoRefresh();
+
+    @Data
+    public static class AutoRefresh {
+
+        /**
+         * Organizations refreshed at the same time
+         */
+        private int concurrency = 8;
+
+        /**
+         * Time one organization's refresh may take; it is checked between Konnect pages and write
+         * chunks, and the refresh's transaction in progress is rolled back once it has passed
+         */
+        private long orgTimeoutMs = 300000;
+
+        /**
+         * Upper bound of the random delay before each organization's refresh, so a cycle does
+         * not hit Konnect with every organization at once
+         */
+        private long maxJitterMs = 2000;
+    }
+}
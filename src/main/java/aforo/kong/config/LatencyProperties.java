@@ -0,0 +1,25 @@
+package aforo.kong.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration for the latency histograms.
+ * Reads from application.yml under kong.analytics.latency prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.analytics.latency")
+public class LatencyProperties {
+
+    /**
+     * Milliseconds between merges of this node's histograms into the stored ones
+     */
+    private long flushIntervalMs = 10000;
+
+    /**
+     * Hours per-minute histograms are kept; older range edges are resolved to whole hours
+     */
+    private int minuteRetentionHours = 48;
+}
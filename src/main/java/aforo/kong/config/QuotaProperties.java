@@ -0,0 +1,26 @@
+package aforo.kong.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration for the in-memory sliding-window quota counters.
+ * Reads from application.yml under kong.quota prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.quota")
+public class QuotaProperties {
+
+    /**
+     * Milliseconds between snapshots of changed counters to usage_quota_bucket
+     */
+    private long snapshotIntervalMs = 30000;
+
+    /**
+     * On startup, usage_record is recounted from this many minutes before the last snapshot,
+     * to pick up events ingested late with older timestamps (at most 60)
+     */
+    private int catchUpMinutes = 15;
+}
@@ -0,0 +1,146 @@
+package aforo.kong.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration for rating usage records against pricing plans.
+ * Reads from application.yml under kong.rating prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.rating")
+public class RatingProperties {
+
+    private PlanCache planCache = new PlanCache();
+
+    private Engine engine = new Engine();
+
+    private Period period = new Period();
+
+    private Wallet wallet = new Wallet();
+
+    private Invoice invoice = new Invoice();
+
+    private Rerate rerate = new Rerate();
+
+    @Data
+    public static class PlanCache {
+
+        /**
+         * Seconds between checks of an organization's plan and consumer versions; changed
+         * plans are recompiled, unchanged ones are kept
+         */
+        private int revalidateSeconds = 30;
+
+        /**
+         * Consumer-to-plan assignments are reloaded at least this often, even when the
+         * consumer count and last update time look unchanged
+         */
+        private int assignmentMaxAgeSeconds = 300;
+    }
+
+    @Data
+    public static class Engine {
+
+        /**
+         * Rate unprocessed usage records in the background
+         */
+        private boolean enabled = true;
+
+        /**
+         * Delay between the end of one rating cycle and the start of the next
+         */
+        private long intervalMs = 5000;
+
+        /**
+         * Rows fetched per organization per keyset page
+         */
+        private int pageSize = 5000;
+
+        /**
+         * Parallel rating lanes; a consumer always maps to the same lane, so its wallet
+         * deductions are applied in record order
+         */
+        private int lanes = 4;
+    }
+
+    @Data
+    public static class Period {
+
+        /**
+         * Rate tiered, volume and stairstep charges from the running period totals
+         */
+        private boolean enabled = true;
+
+        /**
+         * Delay between period rating runs
+         */
+        private long intervalMs = 60000;
+
+        /**
+         * Days into a new month during which the previous month is still treated as open
+         * and re-rated on plan changes
+         */
+        private int graceDays = 3;
+    }
+
+    @Data
+    public static class Wallet {
+
+        /**
+         * Longest time a wallet debit stays in memory before it is written
+         */
+        private long flushIntervalMs = 1000;
+
+        /**
+         * Flush early once this many consumer wallets have unwritten debits
+         */
+        private int flushThreshold = 1000;
+
+        /**
+         * Idle wallets are re-read from the database after this long, to pick up changes
+         * made outside the ledger
+         */
+        private int resyncSeconds = 300;
+    }
+
+    @Data
+    public static class Invoice {
+
+        /**
+         * Close the previous month's invoices in the background once its grace period is over
+         */
+        private boolean enabled = false;
+
+        /**
+         * Delay between invoice close runs
+         */
+        private long intervalMs = 3600000;
+
+        /**
+         * Rows marked billed per transaction
+         */
+        private int chunkSize = 10000;
+
+        /**
+         * Billed rows fetched from the database at a time while a chunk is aggregated
+         */
+        private int fetchSize = 1000;
+    }
+
+    @Data
+    public static class Rerate {
+
+        /**
+         * Partitions (one consumer's usage in one month) re-rated at the same time
+         */
+        private int parallelism = 8;
+
+        /**
+         * Rows re-priced and written per transaction
+         */
+        private int pageSize = 5000;
+    }
+}
@@ -0,0 +1,31 @@
+package aforo.kong.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Configuration for the top consumer / service sketches.
+ * Reads from application.yml under kong.analytics.top-k prefix.
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "kong.analytics.top-k")
+public class TopKProperties {
+
+    /**
+     * Counters per daily sketch; a count is overestimated by at most the day's requests
+     * divided by this
+     */
+    private int capacity = 512;
+
+    /**
+     * Milliseconds between merges of this node's additions into the stored sketches
+     */
+    private long flushIntervalMs = 10000;
+
+    /**
+     * Ranges up to this many hours are counted exactly from the usage rollups
+     */
+    private int exactMaxHours = 48;
+}
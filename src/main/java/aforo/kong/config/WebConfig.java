@@ -1,7 +1,9 @@
 package aforo.kong.config;
 
+import aforo.kong.ingest.IngestAdmissionInterceptor;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
 import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 import org.springframework.lang.NonNull;
@@ -9,6 +11,24 @@ import org.springframework.lang.NonNull;
 @Configuration
 public class WebConfig implements WebMvcConfigurer {
 
+    private final IngestAdmissionInterceptor ingestAdmissionInterceptor;
+
+    public WebConfig(IngestAdmissionInterceptor ingestAdmissionInterceptor) {
+        this.ingestAdmissionInterceptor = ingestAdmissionInterceptor;
+    }
+
+    @Override
+    public void addInterceptors(@NonNull InterceptorRegistry registry) {
+        // Per-organization rate limit on the usage ingest endpoints
+        registry.addInterceptor(ingestAdmissionInterceptor)
+                .addPathPatterns(
+                        "/api/integrations/kong/ingest",
+                        "/api/integrations/kong/ingest/bulk",
+                        "/integrations/kong/ingest",
+                        "/api/integrations/apigee/webhooks/usage",
+                        "/integrations/apigee/ingest");
+    }
+
     @Override
     public void addResourceHandlers(ResourceHandlerRegistry registry) {
         // Let SpringDoc handle its own resources
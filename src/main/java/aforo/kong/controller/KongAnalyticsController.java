@@ -1,6 +1,22 @@
 package aforo.kong.controller;
 
+import aforo.kong.latency.LatencyTracker;
+import aforo.kong.quota.QuotaCounters;
+import aforo.kong.rating.InvoiceCloseService;
+import aforo.kong.rating.PeriodRatingService;
+import aforo.kong.rating.PricingPlanCache;
+import aforo.kong.rating.RatingEngine;
+import aforo.kong.rating.RerateService;
+import aforo.kong.repository.InvoiceRepository;
+import aforo.kong.repository.InvoiceRepository.InvoiceState;
+import aforo.kong.repository.RerateRepository;
+import aforo.kong.repository.RerateRepository.RerateJob;
+import aforo.kong.repository.RerateRepository.ReratePartition;
+import aforo.kong.repository.UsagePeriodRepository;
 import aforo.kong.service.UsageProcessingService;
+import aforo.kong.tenant.TenantContext;
+import aforo.kong.topk.TopKTracker;
+import aforo.kong.wallet.WalletLedger;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.Parameter;
 import io.swagger.v3.oas.annotations.security.SecurityRequirement;
@@ -10,6 +26,8 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.Map;
 import java.util.List;
@@ -21,9 +39,45 @@ import java.util.List;
 public class KongAnalyticsController {
     
     private final UsageProcessingService usageProcessingService;
+    private final PricingPlanCache pricingPlanCache;
+    private final RatingEngine ratingEngine;
+    private final PeriodRatingService periodRatingService;
+    private final UsagePeriodRepository usagePeriodRepository;
+    private final WalletLedger walletLedger;
+    private final QuotaCounters quotaCounters;
+    private final TopKTracker topKTracker;
+    private final LatencyTracker latencyTracker;
+    private final InvoiceCloseService invoiceCloseService;
+    private final InvoiceRepository invoiceRepository;
+    private final RerateService rerateService;
+    private final RerateRepository rerateRepository;
     
-    public KongAnalyticsController(UsageProcessingService usageProcessingService) {
+    public KongAnalyticsController(UsageProcessingService usageProcessingService,
+                                   PricingPlanCache pricingPlanCache,
+                                   RatingEngine ratingEngine,
+                                   PeriodRatingService periodRatingService,
+                                   UsagePeriodRepository usagePeriodRepository,
+                                   WalletLedger walletLedger,
+                                   QuotaCounters quotaCounters,
+                                   TopKTracker topKTracker,
+                                   LatencyTracker latencyTracker,
+                                   InvoiceCloseService invoiceCloseService,
+                                   InvoiceRepository invoiceRepository,
+                                   RerateService rerateService,
+                                   RerateRepository rerateRepository) {
         this.usageProcessingService = usageProcessingService;
+        this.pricingPlanCache = pricingPlanCache;
+        this.ratingEngine = ratingEngine;
+        this.periodRatingService = periodRatingService;
+        this.usagePeriodRepository = usagePeriodRepository;
+        this.walletLedger = walletLedger;
+        this.quotaCounters = quotaCounters;
+        this.topKTracker = topKTracker;
+        this.latencyTracker = latencyTracker;
+        this.invoiceCloseService = invoiceCloseService;
+        this.invoiceRepository = invoiceRepository;
+        this.rerateService = rerateService;
+        this.rerateRepository = rerateRepository;
     }
     
     /**
@@ -122,6 +176,31 @@ public class KongAnalyticsController {
         return ResponseEntity.ok(topServices);
     }
     
+    /**
+     * Get latency percentiles
+     */
+    @GetMapping("/latency")
+    @Operation(summary = "Get latency percentiles",
+               description = "Returns p50/p95/p99 of response, kong and upstream latency, optionally for one service, route or consumer")
+    public ResponseEntity<Map<String, Object>> getLatencyPercentiles(
+            @Parameter(description = "Service ID") @RequestParam(required = false) String serviceId,
+            @Parameter(description = "Route ID") @RequestParam(required = false) String routeId,
+            @Parameter(description = "Consumer ID") @RequestParam(required = false) String consumerId,
+            @Parameter(description = "Start time") @RequestParam(required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant startTime,
+            @Parameter(description = "End time") @RequestParam(required = false)
+            @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant endTime) {
+        
+        if (startTime == null) {
+            startTime = Instant.now().minus(1, ChronoUnit.DAYS);
+        }
+        if (endTime == null) {
+            endTime = Instant.now();
+        }
+        
+        return ResponseEntity.ok(usageProcessingService.getLatencyPercentiles(serviceId, routeId, consumerId, startTime, endTime));
+    }
+    
     /**
      * Check if consumer is approaching quota
      */
@@ -141,6 +220,36 @@ public class KongAnalyticsController {
         ));
     }
     
+    /**
+     * Quota counter statistics
+     */
+    @GetMapping("/quota/counters/stats")
+    @Operation(summary = "Quota counter statistics",
+               description = "Consumers tracked by the in-memory quota counters, quota checks served, snapshots and rebuild time")
+    public ResponseEntity<Map<String, Object>> getQuotaCounterStats() {
+        return ResponseEntity.ok(quotaCounters.getStats());
+    }
+    
+    /**
+     * Top-K sketch statistics
+     */
+    @GetMapping("/top-k/stats")
+    @Operation(summary = "Top-K sketch statistics",
+               description = "Sketch capacity, tracking start, pending sketches, flushes and sketch vs exact top consumer/service queries")
+    public ResponseEntity<Map<String, Object>> getTopKStats() {
+        return ResponseEntity.ok(topKTracker.getStats());
+    }
+    
+    /**
+     * Latency histogram statistics
+     */
+    @GetMapping("/latency/stats")
+    @Operation(summary = "Latency histogram statistics",
+               description = "Recording start, pending series, flushes and histogram vs raw latency queries")
+    public ResponseEntity<Map<String, Object>> getLatencyStats() {
+        return ResponseEntity.ok(latencyTracker.getStats());
+    }
+    
     /**
      * Top up consumer wallet
      */
@@ -159,9 +268,197 @@ public class KongAnalyticsController {
         ));
     }
     
+    /**
+     * Compiled pricing-plan cache statistics
+     */
+    @GetMapping("/rating/plan-cache/stats")
+    @Operation(summary = "Pricing plan cache statistics",
+               description = "Cached organizations, compiled plans and consumer assignments, hits and reloads")
+    public ResponseEntity<Map<String, Object>> getPlanCacheStats() {
+        return ResponseEntity.ok(pricingPlanCache.getStats());
+    }
+    
+    /**
+     * Rating engine throughput, checkpoints and lag
+     */
+    @GetMapping("/rating/stats")
+    @Operation(summary = "Rating engine statistics",
+               description = "Records rated per cycle, per-organization checkpoints and how far rating lags behind real time")
+    public ResponseEntity<Map<String, Object>> getRatingStats() {
+        return ResponseEntity.ok(ratingEngine.getStats());
+    }
+    
+    /**
+     * Period rating run statistics
+     */
+    @GetMapping("/rating/period/stats")
+    @Operation(summary = "Period rating statistics",
+               description = "Runs and charges written by the tiered / volume / stairstep period rating")
+    public ResponseEntity<Map<String, Object>> getPeriodRatingStats() {
+        return ResponseEntity.ok(periodRatingService.getStats());
+    }
+    
+    /**
+     * Period charges of a consumer
+     */
+    @GetMapping("/charges/{consumerId}")
+    @Operation(summary = "Get period charges",
+               description = "Per-metric quantity and charge of a consumer for a billing month (default: current month)")
+    public ResponseEntity<List<Map<String, Object>>> getPeriodCharges(
+            @Parameter(description = "Consumer ID") @PathVariable String consumerId,
+            @Parameter(description = "Billing month, e.g. 2026-10") @RequestParam(required = false) YearMonth period) {
+        
+        Instant periodStart = period != null
+            ? period.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant()
+            : PeriodRatingService.periodStart(Instant.now());
+        return ResponseEntity.ok(usagePeriodRepository.findCharges(TenantContext.require(), consumerId, periodStart));
+    }
+    
+    /**
+     * Close the invoice of a billing month
+     */
+    @PostMapping("/billing/invoices/close")
+    @Operation(summary = "Close invoice",
+               description = "Marks the month's rated usage billed in resumable chunks and sums it into line items; "
+                           + "stays CLOSING while the month has unrated usage")
+    public ResponseEntity<Map<String, Object>> closeInvoice(
+            @Parameter(description = "Billing month, e.g. 2026-09") @RequestParam YearMonth period) {
+        
+        try {
+            InvoiceState invoice = invoiceCloseService.close(TenantContext.require(), period);
+            return ResponseEntity.ok(Map.of(
+                "invoice", invoice,
+                "lines", invoiceRepository.findLines(invoice.invoiceId())
+            ));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Get an invoice with its line items
+     */
+    @GetMapping("/billing/invoices/{invoiceId}")
+    @Operation(summary = "Get invoice",
+               description = "Invoice totals, close progress and line items per consumer, metric and unit price")
+    public ResponseEntity<Map<String, Object>> getInvoice(
+            @Parameter(description = "Invoice ID") @PathVariable String invoiceId) {
+        
+        InvoiceState invoice = invoiceRepository.findInvoice(invoiceId);
+        if (invoice == null || !invoice.organizationId().equals(TenantContext.require())) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(Map.of(
+            "invoice", invoice,
+            "lines", invoiceRepository.findLines(invoiceId)
+        ));
+    }
+    
+    /**
+     * Invoice close statistics
+     */
+    @GetMapping("/billing/invoices/stats")
+    @Operation(summary = "Invoice close statistics",
+               description = "Invoices closed, chunks and rows billed, and closes waiting for the rating engine")
+    public ResponseEntity<Map<String, Object>> getInvoiceStats() {
+        return ResponseEntity.ok(invoiceCloseService.getStats());
+    }
+    
+    /**
+     * Start a re-rating job
+     */
+    @PostMapping("/rating/rerate")
+    @Operation(summary = "Re-rate usage",
+               description = "Re-prices processed, unbilled usage of a range against the current pricing plans, "
+                           + "per consumer and month in parallel; a dry run (the default) only reports the diff")
+    public ResponseEntity<Map<String, Object>> startRerate(@RequestBody RerateJobRequest request) {
+        try {
+            RerateJob job = rerateService.start(TenantContext.require(), new RerateService.RerateRequest(
+                request.getStartTime(), request.getEndTime(), request.getConsumerIds(), request.getPlanNames(),
+                request.isDryRun(), request.isAdjustWallets()));
+            return ResponseEntity.accepted().body(Map.of("job", job));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        }
+    }
+    
+    /**
+     * Get a re-rating job with its progress and diff report
+     */
+    @GetMapping("/rating/rerate/{jobId}")
+    @Operation(summary = "Get re-rate job",
+               description = "Job status, partition progress and the diff per consumer, metric and old/new unit price")
+    public ResponseEntity<Map<String, Object>> getRerate(
+            @Parameter(description = "Job ID") @PathVariable long jobId) {
+        
+        RerateJob job = rerateRepository.findJob(jobId);
+        if (job == null || !job.organizationId().equals(TenantContext.require())) {
+            return ResponseEntity.notFound().build();
+        }
+        List<ReratePartition> partitions = rerateRepository.findPartitions(jobId);
+        return ResponseEntity.ok(Map.of(
+            "job", job,
+            "running", rerateService.isRunning(jobId),
+            "progress", Map.of(
+                "partitions", partitions.size(),
+                "partitionsDone", partitions.stream().filter(p -> RerateRepository.STATUS_DONE.equals(p.status())).count(),
+                "rowsScanned", partitions.stream().mapToLong(ReratePartition::rowsScanned).sum(),
+                "rowsChanged", partitions.stream().mapToLong(ReratePartition::rowsChanged).sum(),
+                "costDelta", partitions.stream().mapToDouble(ReratePartition::costDelta).sum()
+            ),
+            "diff", rerateRepository.findDiff(jobId)
+        ));
+    }
+    
+    /**
+     * Resume an interrupted or failed re-rating job
+     */
+    @PostMapping("/rating/rerate/{jobId}/resume")
+    @Operation(summary = "Resume re-rate job",
+               description = "Continues every unfinished partition from its last committed page")
+    public ResponseEntity<Map<String, Object>> resumeRerate(
+            @Parameter(description = "Job ID") @PathVariable long jobId) {
+        
+        RerateJob job = rerateService.resume(TenantContext.require(), jobId);
+        if (job == null) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.accepted().body(Map.of("job", job));
+    }
+    
+    /**
+     * Re-rating statistics
+     */
+    @GetMapping("/rating/rerate/stats")
+    @Operation(summary = "Re-rate statistics",
+               description = "Running and finished re-rate jobs, pages, and rows scanned and changed")
+    public ResponseEntity<Map<String, Object>> getRerateStats() {
+        return ResponseEntity.ok(rerateService.getStats());
+    }
+    
+    /**
+     * Wallet ledger write-behind statistics
+     */
+    @GetMapping("/wallet/ledger/stats")
+    @Operation(summary = "Wallet ledger statistics",
+               description = "In-memory wallet accounts, pending debits, batched flushes and suspensions")
+    public ResponseEntity<Map<String, Object>> getWalletLedgerStats() {
+        return ResponseEntity.ok(walletLedger.getStats());
+    }
+    
     @lombok.Data
     public static class TopUpRequest {
         private String consumerId;
         private double amount;
     }
+    
+    @lombok.Data
+    public static class RerateJobRequest {
+        private Instant startTime;
+        private Instant endTime;
+        private List<String> consumerIds;
+        private List<String> planNames;
+        private boolean dryRun = true;
+        private boolean adjustWallets;
+    }
 }
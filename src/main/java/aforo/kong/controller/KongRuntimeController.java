@@ -1,19 +1,31 @@
 package aforo.kong.controller;
 
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.dto.kong.KongIngestResultDTO;
 import aforo.kong.dto.konnect.KonnectRuntimeSyncPreviewDTO;
 import aforo.kong.dto.konnect.KonnectServiceDTO;
 import aforo.kong.dto.konnect.KonnectRouteDTO;
+import aforo.kong.ingest.CorrelationIdFilter;
+import aforo.kong.ingest.IngestAdmissionControl;
+import aforo.kong.ingest.KongUsageIngestQueue;
+import aforo.kong.ingest.KongUsageSpool;
 import aforo.kong.service.KongRuntimeService;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.tags.Tag;
+import jakarta.servlet.http.HttpServletRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPInputStream;
 
 @RestController
 @RequestMapping("/api/integrations")
@@ -23,6 +35,21 @@ public class KongRuntimeController {
     @Autowired
     private KongRuntimeService kongRuntimeService;
     
+    @Autowired
+    private KongUsageIngestQueue usageIngestQueue;
+    
+    @Autowired
+    private CorrelationIdFilter correlationIdFilter;
+    
+    @Autowired
+    private KongUsageSpool usageSpool;
+    
+    @Autowired
+    private IngestAdmissionControl admissionControl;
+    
+    @Autowired
+    private KongIngestProperties ingestProperties;
+    
     @Value("${kong.ingest.secret}")
     private String kongIngestSecret;
     
@@ -104,10 +131,10 @@ public class KongRuntimeController {
     // Usage Ingestion
     @PostMapping("/kong/ingest")
     @Operation(summary = "Ingest usage data from Kong HTTP Log plugin")
-    public ResponseEntity<Map<String, String>> ingestUsage(
+    public ResponseEntity<Map<String, Object>> ingestUsage(
             @RequestHeader(value = "X-Organization-Id", required = false) Long orgId,
             @RequestHeader(value = "X-Integration-Secret", required = false) String integrationSecret,
-            @RequestBody Object payload) {
+            HttpServletRequest request) throws IOException {
         
         // Validate integration secret (machine-to-machine auth)
         if (integrationSecret == null || !integrationSecret.equals(kongIngestSecret)) {
@@ -116,15 +143,99 @@ public class KongRuntimeController {
         }
 
         
-        // Determine org from payload or header
+        // Determine org from header, else the configured default
         if (orgId == null) {
-            // Extract from payload if not in header
-            orgId = 27L; // Default for now
+            orgId = ingestProperties.getDefaultOrganizationId();
         }
         
-        kongRuntimeService.ingestUsageData(orgId, payload);
+        // Body is streamed event by event instead of being bound up front
+        KongIngestResultDTO result = kongRuntimeService.ingestUsageData(orgId, request.getInputStream());
+        if (result.isRejected()) {
+            // Queue or spool is full - tell Kong's http-log plugin to back off and retry the batch
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(usageIngestQueue.getRetryAfterSeconds()))
+                    .body(Map.of("status", "rejected", "message", "Ingest buffer is full, retry later"));
+        }
         return ResponseEntity.status(HttpStatus.ACCEPTED)
-                .body(Map.of("status", "accepted", "message", "Usage data queued for processing"));
+                .body(Map.of(
+                        "status", "accepted",
+                        "message", "Usage data queued for processing",
+                        "received", result.getReceived(),
+                        "inserted", result.getInserted(),
+                        "duplicates", result.getDuplicates(),
+                        "skipped", result.getSkipped(),
+                        "queued", result.getQueued()));
+    }
+    
+    @PostMapping(value = "/kong/ingest/bulk", consumes = {"application/x-ndjson", "application/json"})
+    @Operation(summary = "Bulk ingest of Kong usage events as NDJSON, optionally gzip-compressed (Content-Encoding: gzip)")
+    public ResponseEntity<Map<String, Object>> ingestUsageBulk(
+            @RequestHeader(value = "X-Organization-Id") Long orgId,
+            @RequestHeader(value = "X-Integration-Secret", required = false) String integrationSecret,
+            @RequestHeader(value = HttpHeaders.CONTENT_ENCODING, required = false) String contentEncoding,
+            HttpServletRequest request) throws IOException {
+        
+        if (integrationSecret == null || !integrationSecret.equals(kongIngestSecret)) {
+            return ResponseEntity.status(HttpStatus.UNAUTHORIZED)
+                    .body(Map.of("status", "error", "message", "Invalid or missing integration secret"));
+        }
+        
+        InputStream body;
+        if (contentEncoding == null || contentEncoding.isBlank() || contentEncoding.equalsIgnoreCase("identity")) {
+            body = request.getInputStream();
+        } else if (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip")) {
+            // Decompressed while parsing, the body is never held in memory as a whole
+            body = new GZIPInputStream(request.getInputStream(), 64 * 1024);
+        } else {
+            return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE)
+                    .body(Map.of("status", "error", "message", "Unsupported Content-Encoding: " + contentEncoding));
+        }
+        
+        KongIngestResultDTO result;
+        try (InputStream in = body) {
+            result = kongRuntimeService.ingestUsageNdjson(orgId, in);
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("status", result.isRejected() ? "rejected" : "accepted");
+        response.put("received", result.getReceived());
+        response.put("inserted", result.getInserted());
+        response.put("duplicates", result.getDuplicates());
+        response.put("skipped", result.getSkipped());
+        response.put("failed", result.getFailed());
+        response.put("queued", result.getQueued());
+        response.put("errors", result.getErrors());
+        if (result.isRejected()) {
+            // Lines before the rejected chunk were accepted; a resend is deduplicated
+            response.put("message", "Ingest buffer is full, retry later");
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(usageIngestQueue.getRetryAfterSeconds()))
+                    .body(response);
+        }
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(response);
+    }
+    
+    @GetMapping("/kong/ingest/stats")
+    @Operation(summary = "Kong usage ingest queue statistics")
+    public ResponseEntity<Map<String, Object>> getIngestStats() {
+        return ResponseEntity.ok(usageIngestQueue.getStats());
+    }
+    
+    @GetMapping("/kong/ingest/spool/stats")
+    @Operation(summary = "Kong usage spool statistics (size, pending events, replay and fsync)")
+    public ResponseEntity<Map<String, Object>> getSpoolStats() {
+        return ResponseEntity.ok(usageSpool.getStats());
+    }
+    
+    @GetMapping("/kong/ingest/dedupe/stats")
+    @Operation(summary = "Correlation ID filter statistics (memory, false-positive rate)")
+    public ResponseEntity<Map<String, Object>> getDedupeStats() {
+        return ResponseEntity.ok(correlationIdFilter.getStats());
+    }
+    
+    @GetMapping("/kong/ingest/limits/stats")
+    @Operation(summary = "Per-organization ingest admission counters (accepted / rejected) and limits")
+    public ResponseEntity<Map<String, Object>> getIngestLimitStats() {
+        return ResponseEntity.ok(admissionControl.getStats());
     }
     
     // Enforcement
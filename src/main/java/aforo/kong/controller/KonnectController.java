@@ -6,6 +6,7 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/integrations/konnect")
@@ -67,4 +68,9 @@ public class KonnectController {
         KonnectImportResponseDTO response = konnectService.applySync(orgId);
         return ResponseEntity.ok(response);
     }
+
+    @GetMapping("/auto-refresh/stats")
+    public ResponseEntity<Map<String, Object>> getAutoRefreshStats() {
+        return ResponseEntity.ok(konnectService.getAutoRefreshStats());
+    }
 }
@@ -0,0 +1,50 @@
+package aforo.kong.dto.kong;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Outcome of ingesting one Kong http-log batch.
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class KongIngestResultDTO {
+    private int received;
+    private int inserted;
+    private int duplicates;
+    private int skipped;
+    private int queued;
+    private boolean rejected;
+    /** Bulk (NDJSON) ingest only: lines that were not valid JSON events */
+    private int failed;
+    /** Bulk (NDJSON) ingest only: the first failed or skipped lines, with the reason */
+    private List<LineError> errors;
+
+    @Data
+    @AllArgsConstructor
+    public static class LineError {
+        private long line;
+        private String message;
+    }
+
+    public static KongIngestResultDTO empty() {
+        return new KongIngestResultDTO(0, 0, 0, 0, 0, false, 0, null);
+    }
+
+    public KongIngestResultDTO add(KongIngestResultDTO other) {
+        received += other.received;
+        inserted += other.inserted;
+        duplicates += other.duplicates;
+        skipped += other.skipped;
+        queued += other.queued;
+        rejected |= other.rejected;
+        failed += other.failed;
+        return this;
+    }
+}
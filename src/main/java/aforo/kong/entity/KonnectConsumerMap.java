@@ -0,0 +1,60 @@
+package aforo.kong.entity;
+
+import jakarta.persistence.*;
+import lombok.Data;
+import java.time.Instant;
+
+@Entity
+@Table(name = "konnect_consumer_map")
+@Data
+public class KonnectConsumerMap {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "organization_id", nullable = false)
+    private Long organizationId;
+
+    @Column(name = "control_plane_id", nullable = false)
+    private String controlPlaneId;
+
+    @Column(name = "kong_consumer_id", nullable = false)
+    private String kongConsumerId;
+
+    @Column(name = "aforo_customer_id")
+    private Long aforoCustomerId;
+
+    @Column(name = "username_snapshot", length = 500)
+    private String usernameSnapshot;
+
+    @Column(name = "custom_id_snapshot", length = 500)
+    private String customIdSnapshot;
+
+    @Column(name = "tags", columnDefinition = "TEXT")
+    private String tags;
+
+    @Column(name = "status")
+    private String status = "ACTIVE";
+
+    @Column(name = "last_seen_at")
+    private Instant lastSeenAt;
+
+    @Column(name = "created_at")
+    private Instant createdAt;
+
+    @Column(name = "updated_at")
+    private Instant updatedAt;
+
+    @PrePersist
+    protected void onCreate() {
+        createdAt = Instant.now();
+        updatedAt = Instant.now();
+        lastSeenAt = Instant.now();
+    }
+
+    @PreUpdate
+    protected void onUpdate() {
+        updatedAt = Instant.now();
+        lastSeenAt = Instant.now();
+    }
+}
@@ -45,6 +45,9 @@ public class KonnectRouteMap {
     @Column(name = "tags", columnDefinition = "TEXT")
     private String tags;
 
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
     @Column(name = "status")
     private String status = "ACTIVE";
 
@@ -42,6 +42,9 @@ public class KonnectServiceMap {
     @Column(name = "protocol")
     private String protocol;
 
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+
     @Column(name = "status")
     private String status = "ACTIVE";
 
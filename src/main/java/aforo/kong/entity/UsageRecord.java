@@ -7,16 +7,11 @@ import java.time.Instant;
 @Entity
 @Table(name = "usage_record",
        indexes = {
-           @Index(name = "idx_usage_timestamp", columnList = "timestamp"),
-           @Index(name = "idx_usage_consumer", columnList = "consumer_id"),
-           @Index(name = "idx_usage_service", columnList = "service_id"),
-           @Index(name = "idx_usage_route", columnList = "route_id"),
-           @Index(name = "idx_usage_correlation", columnList = "correlation_id"),
-           @Index(name = "idx_usage_org_ts", columnList = "organization_id, timestamp")
-       },
-       uniqueConstraints = {
-           @UniqueConstraint(columnNames = {"correlation_id", "organization_id"})
+           @Index(name = "idx_usage_org_ts", columnList = "organization_id, timestamp"),
+           @Index(name = "idx_usage_org_consumer_ts", columnList = "organization_id, consumer_id, timestamp")
        })
+// Partitioned by range on timestamp (see 023-partition-usage-tables.yaml), so no unique key can cover the
+// correlation ID alone; an insert trigger claims it in usage_correlation (037-usage-correlation-dedupe.yaml)
 @Data
 public class UsageRecord {
     @Id
@@ -0,0 +1,227 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.util.BloomFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-organization Bloom filters over usage_record correlation IDs, one per time bucket of
+ * the event timestamp. When the filter says "definitely new" the duplicate lookup in
+ * {@link #isDuplicate} is skipped; anything else falls through to the database.
+ *
+ * The filter is only authoritative for event times inside the window and only once it has
+ * been rebuilt from usage_record after startup; until then every check falls through.
+ * Rows written by other instances are not seen, so the usage_correlation key stays the backstop.
+ *
+ * Each organization has its own ring of {@code windowHours * 60 / bucketMinutes} buckets; a
+ * slot is only reused by a later bucket once its own bucket has left the window.
+ */
+@Component
+public class CorrelationIdFilter {
+
+    private static final Logger logger = LoggerFactory.getLogger(CorrelationIdFilter.class);
+
+    private static final String REBUILD_SQL =
+            "SELECT organization_id, correlation_id, timestamp FROM usage_record "
+            + "WHERE timestamp >= ? AND correlation_id IS NOT NULL";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final KongIngestProperties.Dedupe config;
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final LongSupplier clock;
+
+    private final Map<Long, AtomicReferenceArray<Bucket>> filters = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong definitelyNew = new AtomicLong();
+    private final AtomicLong probableDuplicates = new AtomicLong();
+    private final AtomicLong confirmedDuplicates = new AtomicLong();
+    private final AtomicLong fellThrough = new AtomicLong();
+
+    private static final class Bucket {
+        final long epoch;
+        final BloomFilter filter;
+
+        Bucket(long epoch, BloomFilter filter) {
+            this.epoch = epoch;
+            this.filter = filter;
+        }
+    }
+
+    @Autowired
+    public CorrelationIdFilter(JdbcTemplate jdbcTemplate, KongIngestProperties properties) {
+        this(jdbcTemplate, properties, System::currentTimeMillis);
+    }
+
+    CorrelationIdFilter(JdbcTemplate jdbcTemplate, KongIngestProperties properties, LongSupplier clock) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.config = properties.getDedupe();
+        this.bucketMillis = Math.max(1, config.getBucketMinutes()) * 60_000L;
+        this.bucketCount = (int) Math.max(1, config.getWindowHours() * 3_600_000L / bucketMillis);
+        this.clock = clock;
+    }
+
+    /**
+     * Checks whether the correlation ID was already stored for the organization. The
+     * database {@code lookup} only runs when the filter cannot rule a duplicate out.
+     * A new ID is recorded in the filter straight away.
+     */
+    public boolean isDuplicate(Long orgId, String correlationId, Instant timestamp, BooleanSupplier lookup) {
+        Boolean seen = probe(orgId, correlationId, timestamp);
+        boolean duplicate = !Boolean.FALSE.equals(seen) && lookup.getAsBoolean();
+        if (duplicate) {
+            if (seen != null) {
+                confirmedDuplicates.incrementAndGet();
+            }
+        } else {
+            record(orgId, correlationId, timestamp);
+        }
+        return duplicate;
+    }
+
+    /**
+     * @return false if definitely new, true if possibly seen, null if the filter cannot tell
+     */
+    private Boolean probe(Long orgId, String correlationId, Instant timestamp) {
+        if (!config.isEnabled() || !ready || timestamp == null) {
+            fellThrough.incrementAndGet();
+            return null;
+        }
+        long epoch = Math.floorDiv(timestamp.toEpochMilli(), bucketMillis);
+        long current = Math.floorDiv(clock.getAsLong(), bucketMillis);
+        if (epoch > current || epoch <= current - bucketCount) {
+            fellThrough.incrementAndGet();
+            return null;
+        }
+        checks.incrementAndGet();
+        AtomicReferenceArray<Bucket> ring = filters.get(orgId);
+        Bucket bucket = ring != null ? ring.get(slot(epoch)) : null;
+        // A missing or stale slot means nothing was recorded for this bucket
+        if (bucket == null || bucket.epoch != epoch || !bucket.filter.mightContain(correlationId)) {
+            definitelyNew.incrementAndGet();
+            return false;
+        }
+        probableDuplicates.incrementAndGet();
+        return true;
+    }
+
+    void record(Long orgId, String correlationId, Instant timestamp) {
+        if (!config.isEnabled() || timestamp == null) {
+            return;
+        }
+        long epoch = Math.floorDiv(timestamp.toEpochMilli(), bucketMillis);
+        long current = Math.floorDiv(clock.getAsLong(), bucketMillis);
+        // Future buckets are never probed, and taking their slot would evict a bucket still in the window
+        if (epoch > current || epoch <= current - bucketCount) {
+            return;
+        }
+        AtomicReferenceArray<Bucket> ring = filters.computeIfAbsent(orgId, k -> new AtomicReferenceArray<>(bucketCount));
+        int slot = slot(epoch);
+        while (true) {
+            Bucket bucket = ring.get(slot);
+            if (bucket != null && bucket.epoch == epoch) {
+                bucket.filter.put(correlationId);
+                return;
+            }
+            if (bucket != null && bucket.epoch > epoch) {
+                // Older than the window kept in this slot
+                return;
+            }
+            Bucket fresh = new Bucket(epoch, BloomFilter.create(config.getExpectedPerBucket(), config.getFpp()));
+            ring.compareAndSet(slot, bucket, fresh);
+        }
+    }
+
+    /**
+     * Loads correlation IDs of the window from usage_record in the background.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void rebuildOnStartup() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        Thread loader = new Thread(this::rebuild, "correlation-id-filter-rebuild");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    void rebuild() {
+        long start = clock.getAsLong();
+        long current = Math.floorDiv(start, bucketMillis);
+        Instant from = Instant.ofEpochMilli((current - bucketCount + 1) * bucketMillis);
+        AtomicLong rows = new AtomicLong();
+        try {
+            jdbcTemplate.query(con -> {
+                var ps = con.prepareStatement(REBUILD_SQL);
+                ps.setFetchSize(10_000);
+                ps.setTimestamp(1, Timestamp.from(from));
+                return ps;
+            }, rs -> {
+                record(rs.getLong(1), rs.getString(2), rs.getTimestamp(3).toInstant());
+                rows.incrementAndGet();
+            });
+            ready = true;
+            logger.info("Correlation ID filter rebuilt from {} usage records since {} in {} ms",
+                    rows.get(), from, clock.getAsLong() - start);
+        } catch (Exception e) {
+            // Stay not-ready: every check keeps going to the database
+            logger.error("Failed to rebuild correlation ID filter, duplicate checks will use the database", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long buckets = 0;
+        long memory = 0;
+        double maxFpp = 0;
+        for (AtomicReferenceArray<Bucket> ring : filters.values()) {
+            for (int i = 0; i < ring.length(); i++) {
+                Bucket bucket = ring.get(i);
+                if (bucket != null) {
+                    buckets++;
+                    memory += bucket.filter.memoryBytes();
+                    maxFpp = Math.max(maxFpp, bucket.filter.expectedFpp());
+                }
+            }
+        }
+        long probable = probableDuplicates.get();
+        long falsePositives = Math.max(0, probable - confirmedDuplicates.get());
+        long checked = checks.get();
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        stats.put("ready", ready);
+        stats.put("organizations", filters.size());
+        stats.put("buckets", buckets);
+        stats.put("memoryBytes", memory);
+        stats.put("checks", checked);
+        stats.put("definitelyNew", definitelyNew.get());
+        stats.put("probableDuplicates", probable);
+        stats.put("confirmedDuplicates", confirmedDuplicates.get());
+        stats.put("fellThrough", fellThrough.get());
+        stats.put("observedFalsePositiveRate", checked == 0 ? 0.0 : (double) falsePositives / checked);
+        stats.put("maxExpectedFpp", maxFpp);
+        return stats;
+    }
+
+    private int slot(long epoch) {
+        return (int) Math.floorMod(epoch, (long) bucketCount);
+    }
+}
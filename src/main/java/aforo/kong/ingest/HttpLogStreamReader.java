@@ -0,0 +1,235 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.dto.kong.HttpLogPayload;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads a Kong http-log body (one event object or an array of them) with the streaming
+ * parser, one element at a time. Each element is located by token byte offsets, bound to
+ * {@link HttpLogPayload} straight from the recorded bytes and handed over together with
+ * its original JSON text, so nothing is re-serialized and memory does not grow with the
+ * size of the batch.
+ *
+ * NDJSON bodies (one event per line) are split on newlines with a plain byte buffer and each
+ * line is bound on its own, so a bad line only costs that line.
+ */
+@Component
+public class HttpLogStreamReader {
+
+    private static final Logger logger = LoggerFactory.getLogger(HttpLogStreamReader.class);
+
+    @FunctionalInterface
+    public interface EventHandler {
+        /**
+         * @param payload the bound event, or {@code null} if the element could not be bound
+         * @param rawJson the element exactly as received
+         * @return false to stop reading
+         */
+        boolean onEvent(HttpLogPayload payload, String rawJson);
+    }
+
+    public interface LineHandler {
+        /**
+         * @param line 1-based line number
+         * @return false to stop reading
+         */
+        boolean onEvent(long line, HttpLogPayload payload, String rawJson);
+
+        void onError(long line, String message);
+    }
+
+    /** Longest NDJSON line accepted; longer lines are reported and skipped */
+    static final int MAX_LINE_BYTES = 4 * 1024 * 1024;
+
+    private static final int READ_CHUNK_BYTES = 64 * 1024;
+
+    /**
+     * Headers and querystring are by far the largest part of an http-log event and are not
+     * used for billing; ignoring them lets Jackson skip the subtrees instead of building maps.
+     * Unknown subtrees such as {@code tries} are skipped already.
+     */
+    @JsonIgnoreProperties(value = {"headers", "querystring"}, ignoreUnknown = true)
+    private abstract static class WithoutHeaders {
+    }
+
+    private final ObjectMapper objectMapper;
+    private final ObjectReader payloadReader;
+
+    public HttpLogStreamReader(ObjectMapper objectMapper, KongIngestProperties properties) {
+        this.objectMapper = objectMapper;
+        ObjectMapper bindingMapper = properties.isBindHeaders() ? objectMapper : objectMapper.copy()
+                .addMixIn(HttpLogPayload.RequestInfo.class, WithoutHeaders.class)
+                .addMixIn(HttpLogPayload.ResponseInfo.class, WithoutHeaders.class);
+        this.payloadReader = bindingMapper.readerFor(HttpLogPayload.class);
+    }
+
+    /**
+     * Streams the body through the handler.
+     *
+     * @return number of elements read
+     */
+    public int read(InputStream body, EventHandler handler) throws IOException {
+        RecordingInputStream in = new RecordingInputStream(body);
+        int count = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(in)) {
+            JsonToken first = parser.nextToken();
+            if (first == null) {
+                return 0;
+            }
+            if (first != JsonToken.START_ARRAY) {
+                readElement(parser, in, handler);
+                return 1;
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                count++;
+                if (!readElement(parser, in, handler)) {
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Binds one element that is already held in memory, e.g. a line of an NDJSON body.
+     *
+     * @return the payload, or {@code null} if the bytes are not a valid http-log event
+     */
+    public HttpLogPayload bind(byte[] bytes, int offset, int length) {
+        try {
+            return payloadReader.readValue(bytes, offset, length);
+        } catch (IOException e) {
+            logger.warn("Skipping malformed Kong http-log event: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Streams an NDJSON body through the handler, one line at a time. Blank lines are ignored;
+     * lines that are not a JSON object bindable to {@link HttpLogPayload} go to
+     * {@link LineHandler#onError} and reading continues.
+     *
+     * @return number of non-blank lines read
+     */
+    public long readLines(InputStream body, LineHandler handler) throws IOException {
+        byte[] buffer = new byte[READ_CHUNK_BYTES];
+        int start = 0;
+        int end = 0;
+        int scanned = 0;
+        long lineNumber = 0;
+        long count = 0;
+        boolean overflow = false;
+        boolean eof = false;
+        while (true) {
+            int newline = -1;
+            for (int i = scanned; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    newline = i;
+                    break;
+                }
+            }
+            if (newline < 0 && !eof) {
+                scanned = end;
+                if (start > 0) {
+                    System.arraycopy(buffer, start, buffer, 0, end - start);
+                    end -= start;
+                    scanned -= start;
+                    start = 0;
+                }
+                if (end == buffer.length) {
+                    if (buffer.length >= MAX_LINE_BYTES) {
+                        // Keep discarding until the end of the oversized line
+                        overflow = true;
+                        end = 0;
+                        scanned = 0;
+                    } else {
+                        buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, MAX_LINE_BYTES));
+                    }
+                }
+                int n = body.read(buffer, end, buffer.length - end);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    end += n;
+                }
+                continue;
+            }
+
+            int lineEnd = newline >= 0 ? newline : end;
+            lineNumber++;
+            if (overflow) {
+                overflow = false;
+                count++;
+                handler.onError(lineNumber, "Line exceeds " + MAX_LINE_BYTES + " bytes");
+            } else {
+                int length = trimmedLength(buffer, start, lineEnd);
+                if (length > 0) {
+                    count++;
+                    if (!readLine(buffer, start, length, lineNumber, handler)) {
+                        break;
+                    }
+                }
+            }
+            if (newline < 0) {
+                break;
+            }
+            start = newline + 1;
+            scanned = start;
+        }
+        return count;
+    }
+
+    private boolean readLine(byte[] buffer, int offset, int length, long lineNumber, LineHandler handler) {
+        HttpLogPayload payload;
+        try {
+            payload = payloadReader.readValue(buffer, offset, length);
+        } catch (IOException e) {
+            String message = e instanceof JsonProcessingException jpe ? jpe.getOriginalMessage() : e.getMessage();
+            handler.onError(lineNumber, "Malformed event: " + message);
+            return true;
+        }
+        if (payload == null) {
+            handler.onError(lineNumber, "Not a JSON object");
+            return true;
+        }
+        return handler.onEvent(lineNumber, payload, new String(buffer, offset, length, StandardCharsets.UTF_8));
+    }
+
+    /** Length of the line without surrounding whitespace (including the CR of CRLF); leading whitespace is left to the parser */
+    private static int trimmedLength(byte[] buffer, int from, int to) {
+        int end = to;
+        while (end > from && (buffer[end - 1] == '\r' || buffer[end - 1] == ' ' || buffer[end - 1] == '\t')) {
+            end--;
+        }
+        return end - from;
+    }
+
+    private boolean readElement(JsonParser parser, RecordingInputStream in, EventHandler handler) throws IOException {
+        long start = parser.getTokenLocation().getByteOffset();
+        JsonToken token = parser.currentToken();
+        parser.skipChildren();
+        long end = parser.currentLocation().getByteOffset();
+
+        byte[] buffer = in.buffer();
+        int offset = in.indexOf(start);
+        int length = (int) (end - start);
+        String rawJson = new String(buffer, offset, length, StandardCharsets.UTF_8);
+        HttpLogPayload payload = token == JsonToken.START_OBJECT ? bind(buffer, offset, length) : null;
+        in.discardBefore(end);
+        return handler.onEvent(payload, rawJson);
+    }
+}
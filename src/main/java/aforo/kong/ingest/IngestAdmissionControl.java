@@ -0,0 +1,79 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.IngestLimitProperties;
+import aforo.kong.util.StripedTokenBucket;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-organization rate and burst limit in front of the usage ingest endpoints, so one noisy
+ * tenant cannot take all servlet threads and database connections. Each organization gets its
+ * own {@link StripedTokenBucket}; the admission check is a few CAS operations, no lock.
+ */
+@Component
+public class IngestAdmissionControl {
+
+    private final IngestLimitProperties properties;
+    private final Map<Long, Tenant> tenants = new ConcurrentHashMap<>();
+
+    private static final class Tenant {
+        private final StripedTokenBucket bucket;
+        private final IngestLimitProperties.Limit limit;
+        private final LongAdder accepted = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+
+        private Tenant(IngestLimitProperties.Limit limit, int maxStripes) {
+            this.limit = limit;
+            this.bucket = new StripedTokenBucket(limit.getRequestsPerSecond(), limit.getBurst(), maxStripes);
+        }
+    }
+
+    public IngestAdmissionControl(IngestLimitProperties properties) {
+        this.properties = properties;
+    }
+
+    public boolean isEnabled() {
+        return properties.isEnabled();
+    }
+
+    /**
+     * Admits one ingest request for the organization.
+     *
+     * @return 0 if admitted, otherwise the whole seconds the caller should wait before retrying
+     */
+    public long tryAdmit(long orgId) {
+        Tenant tenant = tenants.computeIfAbsent(orgId,
+                id -> new Tenant(properties.limitFor(id), properties.getStripes()));
+        long waitNanos = tenant.bucket.tryAcquire();
+        if (waitNanos == 0) {
+            tenant.accepted.increment();
+            return 0;
+        }
+        tenant.rejected.increment();
+        return Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999L));
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> byOrg = new TreeMap<>();
+        tenants.forEach((orgId, tenant) -> {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("accepted", tenant.accepted.sum());
+            stats.put("rejected", tenant.rejected.sum());
+            stats.put("requestsPerSecond", tenant.limit.getRequestsPerSecond());
+            stats.put("burst", tenant.limit.getBurst());
+            stats.put("stripes", tenant.bucket.stripes());
+            byOrg.put(String.valueOf(orgId), stats);
+        });
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", properties.isEnabled());
+        stats.put("organizations", byOrg);
+        return stats;
+    }
+}
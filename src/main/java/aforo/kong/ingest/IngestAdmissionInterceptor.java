@@ -0,0 +1,108 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.security.JwtTenantFilter;
+import aforo.kong.tenant.TenantContext;
+import com.aforo.apigee.security.HmacFilter;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.lang.NonNull;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Applies {@link IngestAdmissionControl} to the usage ingest endpoints before the body is read.
+ * <p>
+ * Only authenticated callers are charged, so an anonymous client cannot drain another tenant's
+ * bucket. Most ingest paths are permitAll in the security chain, so the caller is authenticated
+ * here, the same way its handler will authenticate it:
+ * <ul>
+ *   <li>Kong integration secret (X-Integration-Secret): the X-Organization-Id header, or the
+ *   default organization the runtime ingest endpoint falls back to</li>
+ *   <li>Bearer JWT: the organization in the token, not the header</li>
+ *   <li>Apigee webhook with a verified HMAC signature: the X-Organization-Id header, or the default
+ *   organization</li>
+ * </ul>
+ * Anything else passes through uncharged and is rejected by its handler.
+ */
+@Component
+public class IngestAdmissionInterceptor implements HandlerInterceptor {
+
+    private static final Logger logger = LoggerFactory.getLogger(IngestAdmissionInterceptor.class);
+
+    static final String INTEGRATION_SECRET_HEADER = "X-Integration-Secret";
+
+    private final IngestAdmissionControl admissionControl;
+    private final KongIngestProperties ingestProperties;
+    private final byte[] integrationSecret;
+
+    public IngestAdmissionInterceptor(IngestAdmissionControl admissionControl,
+                                      KongIngestProperties ingestProperties,
+                                      @Value("${kong.ingest.secret}") String integrationSecret) {
+        this.admissionControl = admissionControl;
+        this.ingestProperties = ingestProperties;
+        this.integrationSecret = integrationSecret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                             @NonNull Object handler) throws Exception {
+        if (!admissionControl.isEnabled() || !"POST".equals(request.getMethod())) {
+            return true;
+        }
+        Long orgId = authenticatedOrganization(request);
+        if (orgId == null) {
+            return true;
+        }
+        long retryAfterSeconds = admissionControl.tryAdmit(orgId);
+        if (retryAfterSeconds == 0) {
+            return true;
+        }
+        logger.debug("Ingest rate limit exceeded for org: {} on {}", orgId, request.getRequestURI());
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.getWriter().write(
+                "{\"status\":\"rejected\",\"message\":\"Ingest rate limit exceeded for organization, retry later\"}");
+        return false;
+    }
+
+    /**
+     * The organization to charge, or null if the caller is not authenticated.
+     */
+    Long authenticatedOrganization(HttpServletRequest request) {
+        String secret = request.getHeader(INTEGRATION_SECRET_HEADER);
+        if (secret != null) {
+            if (!MessageDigest.isEqual(integrationSecret, secret.getBytes(StandardCharsets.UTF_8))) {
+                return null;
+            }
+            return headerOrDefaultOrganization();
+        }
+        Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+        if (auth != null && auth.isAuthenticated() && auth.getPrincipal() instanceof Jwt jwt) {
+            return JwtTenantFilter.organizationFrom(jwt);
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(HmacFilter.VERIFIED_ATTRIBUTE))) {
+            return headerOrDefaultOrganization();
+        }
+        return null;
+    }
+
+    private Long headerOrDefaultOrganization() {
+        // Only set from a valid X-Organization-Id header here, since the caller has no JWT
+        Long orgId = TenantContext.get();
+        return orgId != null ? orgId : ingestProperties.getDefaultOrganizationId();
+    }
+}
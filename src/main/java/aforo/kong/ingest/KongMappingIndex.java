@@ -0,0 +1,138 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.repository.KonnectConsumerMapRepository;
+import aforo.kong.repository.KonnectRouteMapRepository;
+import aforo.kong.repository.KonnectServiceMapRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory, per-organization lookup from Kong service/route/consumer IDs to the Aforo
+ * product/endpoint/customer their ACTIVE mappings point to, used to enrich usage records before they
+ * are inserted. Each organization's mappings are loaded with three bulk queries into an
+ * immutable snapshot that is swapped in whole, so readers never see a half-built index.
+ *
+ * Kong entity IDs are UUIDs, so the control plane is not part of the key.
+ */
+@Component
+public class KongMappingIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(KongMappingIndex.class);
+
+    private final KonnectServiceMapRepository serviceMapRepository;
+    private final KonnectRouteMapRepository routeMapRepository;
+    private final KonnectConsumerMapRepository consumerMapRepository;
+    private final KongIngestProperties properties;
+
+    private final Map<Long, Mappings> byOrg = new ConcurrentHashMap<>();
+
+    /**
+     * One organization's mappings as of {@code loadedAt}.
+     */
+    public static final class Mappings {
+        private final Map<String, Long> productByService;
+        private final Map<String, Long> endpointByRoute;
+        private final Map<String, Long> customerByConsumer;
+        private final long loadedAt;
+
+        private Mappings(Map<String, Long> productByService, Map<String, Long> endpointByRoute,
+                         Map<String, Long> customerByConsumer, long loadedAt) {
+            this.productByService = productByService;
+            this.endpointByRoute = endpointByRoute;
+            this.customerByConsumer = customerByConsumer;
+            this.loadedAt = loadedAt;
+        }
+
+        public Long productFor(String kongServiceId) {
+            return kongServiceId != null ? productByService.get(kongServiceId) : null;
+        }
+
+        public Long endpointFor(String kongRouteId) {
+            return kongRouteId != null ? endpointByRoute.get(kongRouteId) : null;
+        }
+
+        public Long customerFor(String kongConsumerId) {
+            return kongConsumerId != null ? customerByConsumer.get(kongConsumerId) : null;
+        }
+    }
+
+    public KongMappingIndex(KonnectServiceMapRepository serviceMapRepository,
+                            KonnectRouteMapRepository routeMapRepository,
+                            KonnectConsumerMapRepository consumerMapRepository,
+                            KongIngestProperties properties) {
+        this.serviceMapRepository = serviceMapRepository;
+        this.routeMapRepository = routeMapRepository;
+        this.consumerMapRepository = consumerMapRepository;
+        this.properties = properties;
+    }
+
+    /**
+     * Returns the organization's mappings, loading them on first use or once the TTL expired.
+     */
+    public Mappings forOrganization(Long orgId) {
+        Mappings current = byOrg.get(orgId);
+        long ttlMillis = properties.getMappingTtlSeconds() * 1000L;
+        if (current != null && System.currentTimeMillis() - current.loadedAt < ttlMillis) {
+            return current;
+        }
+        // Concurrent callers may both load; the last snapshot wins, which is harmless
+        return refresh(orgId);
+    }
+
+    /**
+     * Reloads the organization's mappings now.
+     */
+    public Mappings refresh(Long orgId) {
+        long start = System.currentTimeMillis();
+        Mappings loaded = new Mappings(
+                toMap(serviceMapRepository.findProductMappings(orgId)),
+                toMap(routeMapRepository.findEndpointMappings(orgId)),
+                toMap(consumerMapRepository.findCustomerMappings(orgId)),
+                start);
+        byOrg.put(orgId, loaded);
+        logger.debug("Loaded mapping index for org: {} - services={}, routes={}, consumers={} in {} ms",
+                orgId, loaded.productByService.size(), loaded.endpointByRoute.size(),
+                loaded.customerByConsumer.size(), System.currentTimeMillis() - start);
+        return loaded;
+    }
+
+    /**
+     * Reloads once the surrounding transaction has committed, or right away if there is none,
+     * so the index never reflects mapping changes that could still roll back.
+     */
+    public void refreshAfterCommit(Long orgId) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            refresh(orgId);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                try {
+                    refresh(orgId);
+                } catch (Exception e) {
+                    // Drop the stale snapshot so the next lookup loads again
+                    byOrg.remove(orgId);
+                    logger.error("Failed to refresh mapping index for org: {}", orgId, e);
+                }
+            }
+        });
+    }
+
+    private static Map<String, Long> toMap(List<Object[]> rows) {
+        Map<String, Long> map = new HashMap<>(rows.size() * 2);
+        for (Object[] row : rows) {
+            map.put((String) row[0], (Long) row[1]);
+        }
+        return Map.copyOf(map);
+    }
+}
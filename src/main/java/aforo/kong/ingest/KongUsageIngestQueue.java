@@ -0,0 +1,265 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.entity.KongUsageRecord;
+import aforo.kong.service.impl.KongUsageIngestionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Bounded in-memory buffer between the Kong ingest endpoint and kong_usage_record.
+ *
+ * Capacity is counted in events and reserved up front for the whole payload, so a batch is
+ * either accepted completely or rejected completely (the caller answers 429 and Kong retries).
+ * A fixed pool of writers drains the queue in batches through
+ * {@link KongUsageIngestionService#writeBatch(List)}. On shutdown new payloads are refused and
+ * the writers keep going until the queue is empty or the shutdown timeout expires; then they
+ * are interrupted, and the batches in flight and the events still queued count as dropped. Offers hold
+ * the read side of {@code stateLock} and the running flag only flips under the write side, so
+ * every payload that was accepted is in the queue before the writers see it empty and stop.
+ */
+@Component
+public class KongUsageIngestQueue implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(KongUsageIngestQueue.class);
+
+    private final KongUsageIngestionService ingestionService;
+    private final KongIngestProperties properties;
+
+    private final LinkedBlockingQueue<KongUsageRecord> queue = new LinkedBlockingQueue<>();
+    // Events admitted but not yet flushed; this is what the capacity limit is checked against
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    private final AtomicLong acceptedEvents = new AtomicLong();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+    private final AtomicLong rejectedBatches = new AtomicLong();
+    private final AtomicLong flushedEvents = new AtomicLong();
+    private final AtomicLong insertedEvents = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final AtomicLong lastFlushNanos = new AtomicLong();
+
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private volatile boolean running;
+    private ExecutorService writers;
+
+    public KongUsageIngestQueue(KongUsageIngestionService ingestionService, KongIngestProperties properties) {
+        this.ingestionService = ingestionService;
+        this.properties = properties;
+    }
+
+    public boolean isEnabled() {
+        return properties.getMode() == KongIngestProperties.Mode.ASYNC;
+    }
+
+    /**
+     * Admits the records if there is room for all of them.
+     *
+     * @return false when the queue is full or shutting down; nothing was enqueued
+     */
+    public boolean offer(List<KongUsageRecord> records) {
+        int n = records.size();
+        if (n == 0) {
+            return true;
+        }
+        stateLock.readLock().lock();
+        try {
+            if (!running) {
+                rejectBatch(n);
+                return false;
+            }
+            int capacity = properties.getQueue().getCapacity();
+            while (true) {
+                int current = reserved.get();
+                if (current + n > capacity) {
+                    rejectBatch(n);
+                    return false;
+                }
+                if (reserved.compareAndSet(current, current + n)) {
+                    break;
+                }
+            }
+            queue.addAll(records);
+            acceptedEvents.addAndGet(n);
+            return true;
+        } finally {
+            stateLock.readLock().unlock();
+        }
+    }
+
+    public int getRetryAfterSeconds() {
+        return properties.getQueue().getRetryAfterSeconds();
+    }
+
+    public Map<String, Object> getStats() {
+        long flushes = flushCount.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", properties.getMode().name());
+        stats.put("running", running);
+        stats.put("capacity", properties.getQueue().getCapacity());
+        stats.put("depth", queue.size());
+        stats.put("inFlight", reserved.get());
+        stats.put("acceptedEvents", acceptedEvents.get());
+        stats.put("rejectedEvents", rejectedEvents.get());
+        stats.put("rejectedBatches", rejectedBatches.get());
+        stats.put("flushedEvents", flushedEvents.get());
+        stats.put("insertedEvents", insertedEvents.get());
+        stats.put("droppedEvents", droppedEvents.get());
+        stats.put("flushCount", flushes);
+        stats.put("flushFailures", flushFailures.get());
+        stats.put("lastFlushMs", nanosToMillis(lastFlushNanos.get()));
+        stats.put("avgFlushMs", flushes == 0 ? 0.0 : nanosToMillis(totalFlushNanos.get() / flushes));
+        stats.put("maxFlushMs", nanosToMillis(maxFlushNanos.get()));
+        return stats;
+    }
+
+    @Override
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        int workers = Math.max(1, properties.getQueue().getWorkers());
+        AtomicInteger threadIndex = new AtomicInteger();
+        writers = Executors.newFixedThreadPool(workers, r -> {
+            Thread t = new Thread(r, "kong-ingest-writer-" + threadIndex.incrementAndGet());
+            t.setDaemon(false);
+            return t;
+        });
+        setRunning(true);
+        for (int i = 0; i < workers; i++) {
+            writers.submit(this::drainLoop);
+        }
+        logger.info("Kong ingest queue started: capacity={}, workers={}", properties.getQueue().getCapacity(), workers);
+    }
+
+    @Override
+    public void stop() {
+        if (writers == null) {
+            return;
+        }
+        // Waits for in-progress offers; later ones are rejected
+        setRunning(false);
+        writers.shutdown();
+        long timeout = properties.getQueue().getShutdownTimeoutSeconds();
+        logger.info("Draining Kong ingest queue ({} events pending, timeout {}s)", reserved.get(), timeout);
+        try {
+            if (!writers.awaitTermination(timeout, TimeUnit.SECONDS)) {
+                logger.error("Kong ingest queue did not drain within {}s, {} events lost", timeout, reserved.get());
+                writers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writers.shutdownNow();
+        }
+        writers = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start before and stop after the embedded web server, so in-flight requests
+     * can still enqueue while the server shuts down and the drain sees all of them.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    private void setRunning(boolean value) {
+        stateLock.writeLock().lock();
+        try {
+            running = value;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    private void drainLoop() {
+        int batchSize = properties.getBatchSize();
+        long flushIntervalMs = properties.getQueue().getFlushIntervalMs();
+        List<KongUsageRecord> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                KongUsageRecord first = queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                flush(batch);
+            } catch (InterruptedException e) {
+                // Shutdown timed out: whatever this writer holds or is still queued will not be written
+                Thread.currentThread().interrupt();
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    droppedEvents.addAndGet(batch.size());
+                    logger.error("Dropping {} Kong usage records left when the writers were interrupted", batch.size());
+                }
+                return;
+            } catch (Exception e) {
+                logger.error("Unexpected error in Kong ingest writer", e);
+            } finally {
+                reserved.addAndGet(-batch.size());
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush(List<KongUsageRecord> batch) throws InterruptedException {
+        int attempts = Math.max(1, properties.getQueue().getMaxFlushAttempts());
+        for (int attempt = 1; attempt <= attempts; attempt++) {
+            long start = System.nanoTime();
+            try {
+                int inserted = ingestionService.writeBatch(batch).getInserted();
+                recordFlush(System.nanoTime() - start);
+                flushedEvents.addAndGet(batch.size());
+                insertedEvents.addAndGet(inserted);
+                return;
+            } catch (Exception e) {
+                flushFailures.incrementAndGet();
+                logger.warn("Failed to flush {} Kong usage records (attempt {}/{})", batch.size(), attempt, attempts, e);
+                if (attempt < attempts) {
+                    Thread.sleep(200L * attempt);
+                }
+            }
+        }
+        droppedEvents.addAndGet(batch.size());
+        logger.error("Dropping {} Kong usage records after {} failed flush attempts", batch.size(), attempts);
+    }
+
+    private void recordFlush(long nanos) {
+        flushCount.incrementAndGet();
+        totalFlushNanos.addAndGet(nanos);
+        lastFlushNanos.set(nanos);
+        maxFlushNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void rejectBatch(int events) {
+        rejectedBatches.incrementAndGet();
+        rejectedEvents.addAndGet(events);
+    }
+
+    private static double nanosToMillis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
@@ -0,0 +1,139 @@
+package aforo.kong.ingest;
+
+import aforo.kong.entity.KongUsageRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary form of a batch of not yet persisted usage records, as stored in spool frames.
+ * Layout: version byte, record count, then each record's fields in declaration order.
+ * Aforo mapping IDs are not stored; they are resolved when the batch is replayed.
+ */
+final class KongUsageRecordCodec {
+
+    private static final byte VERSION = 1;
+
+    private KongUsageRecordCodec() {
+    }
+
+    static byte[] encode(List<KongUsageRecord> records) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(records.size() * 512);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            out.writeInt(records.size());
+            for (KongUsageRecord r : records) {
+                out.writeLong(r.getOrganizationId());
+                writeInstant(out, r.getTimestamp());
+                writeString(out, r.getKongRequestId());
+                writeString(out, r.getCorrelationId());
+                writeString(out, r.getKongServiceId());
+                writeString(out, r.getKongRouteId());
+                writeString(out, r.getKongConsumerId());
+                writeString(out, r.getHttpMethod());
+                writeString(out, r.getPath());
+                writeLong(out, r.getStatus() != null ? r.getStatus().longValue() : null);
+                writeLong(out, r.getLatencyMs() != null ? r.getLatencyMs().longValue() : null);
+                writeLong(out, r.getRequestSize());
+                writeLong(out, r.getResponseSize());
+                writeString(out, r.getRawPayload());
+                writeInstant(out, r.getCreatedAt());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Number of records in an encoded batch, without decoding it. */
+    static int count(ByteBuffer frame) {
+        return frame.getInt(frame.position() + 1);
+    }
+
+    static List<KongUsageRecord> decode(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION) {
+            throw new IllegalStateException("Unsupported spool frame version: " + version);
+        }
+        int n = in.getInt();
+        List<KongUsageRecord> records = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            KongUsageRecord r = new KongUsageRecord();
+            r.setOrganizationId(in.getLong());
+            r.setTimestamp(readInstant(in));
+            r.setKongRequestId(readString(in));
+            r.setCorrelationId(readString(in));
+            r.setKongServiceId(readString(in));
+            r.setKongRouteId(readString(in));
+            r.setKongConsumerId(readString(in));
+            r.setHttpMethod(readString(in));
+            r.setPath(readString(in));
+            Long status = readLong(in);
+            r.setStatus(status != null ? status.intValue() : null);
+            Long latency = readLong(in);
+            r.setLatencyMs(latency != null ? latency.intValue() : null);
+            r.setRequestSize(readLong(in));
+            r.setResponseSize(readLong(in));
+            r.setRawPayload(readString(in));
+            r.setCreatedAt(readInstant(in));
+            r.setProcessed(false);
+            records.add(r);
+        }
+        return records;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (!in.hasArray()) {
+            byte[] utf8 = new byte[length];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(ByteBuffer in) {
+        return in.get() != 0 ? in.getLong() : null;
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value.getEpochSecond());
+            out.writeInt(value.getNano());
+        }
+    }
+
+    private static Instant readInstant(ByteBuffer in) {
+        return in.get() != 0 ? Instant.ofEpochSecond(in.getLong(), in.getInt()) : null;
+    }
+}
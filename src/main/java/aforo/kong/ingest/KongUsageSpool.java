@@ -0,0 +1,361 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.entity.KongUsageRecord;
+import aforo.kong.service.impl.KongUsageIngestionService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Durable local write-ahead spool for Kong usage ingest.
+ *
+ * In SPOOL mode accepted records are appended to memory-mapped segment files (see
+ * {@link SpoolSegment}) and acknowledged once the append is flushed according to the fsync
+ * policy. A replayer thread reads the segments in order and writes the records through
+ * {@link KongUsageIngestionService#writeBatch(List)} in full batches, backing off while the
+ * database is failing. Fully replayed segments are deleted. Replay is at-least-once: after a
+ * crash the unfinished segment is replayed from its start and the unique key drops the repeats.
+ */
+@Component
+public class KongUsageSpool implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(KongUsageSpool.class);
+
+    private final KongUsageIngestionService ingestionService;
+    private final KongIngestProperties properties;
+    private final KongIngestProperties.Spool config;
+
+    // Oldest first; the last one is the segment being appended to
+    private final ConcurrentLinkedDeque<SpoolSegment> segments = new ConcurrentLinkedDeque<>();
+    private final Object appendLock = new Object();
+    private Path directory;
+    private long nextSequence;
+
+    private final AtomicLong spoolBytes = new AtomicLong();
+    private final AtomicLong pendingEvents = new AtomicLong();
+    private final AtomicLong appendedEvents = new AtomicLong();
+    private final AtomicLong appendedBatches = new AtomicLong();
+    private final AtomicLong rejectedBatches = new AtomicLong();
+    private final AtomicLong replayedEvents = new AtomicLong();
+    private final AtomicLong insertedEvents = new AtomicLong();
+    private final AtomicLong replayFailures = new AtomicLong();
+    private final AtomicLong fsyncCount = new AtomicLong();
+    private final AtomicLong fsyncNanos = new AtomicLong();
+    private volatile String lastReplayError;
+    private volatile double lastReplayEventsPerSecond;
+
+    private volatile boolean running;
+    private Thread replayer;
+    private Thread syncer;
+
+    public KongUsageSpool(KongUsageIngestionService ingestionService, KongIngestProperties properties) {
+        this.ingestionService = ingestionService;
+        this.properties = properties;
+        this.config = properties.getSpool();
+    }
+
+    public boolean isEnabled() {
+        return properties.getMode() == KongIngestProperties.Mode.SPOOL;
+    }
+
+    /**
+     * Appends the records as one frame.
+     *
+     * @return false when the spool is full or not running; nothing was written
+     */
+    public boolean append(List<KongUsageRecord> records) {
+        if (records.isEmpty()) {
+            return true;
+        }
+        byte[] frame = KongUsageRecordCodec.encode(records);
+        int frameBytes = SpoolSegment.HEADER_BYTES + frame.length;
+        SpoolSegment segment;
+        synchronized (appendLock) {
+            if (!running || spoolBytes.get() + frameBytes > config.getMaxSizeMb() * 1024L * 1024L) {
+                rejectedBatches.incrementAndGet();
+                return false;
+            }
+            segment = segments.peekLast();
+            if (segment == null || !segment.tryAppend(frame)) {
+                segment = rotate(frameBytes);
+                segment.tryAppend(frame);
+            }
+            spoolBytes.addAndGet(frameBytes);
+            pendingEvents.addAndGet(records.size());
+        }
+        if (config.getFsync() == KongIngestProperties.FsyncPolicy.BATCH) {
+            force(segment);
+        }
+        appendedEvents.addAndGet(records.size());
+        appendedBatches.incrementAndGet();
+        return true;
+    }
+
+    public Map<String, Object> getStats() {
+        long syncs = fsyncCount.get();
+        SpoolSegment oldest = segments.peekFirst();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("mode", properties.getMode().name());
+        stats.put("running", running);
+        stats.put("directory", String.valueOf(directory));
+        stats.put("segments", segments.size());
+        stats.put("oldestSegment", oldest != null ? oldest.sequence() : null);
+        stats.put("spoolBytes", spoolBytes.get());
+        stats.put("maxBytes", config.getMaxSizeMb() * 1024L * 1024L);
+        stats.put("pendingEvents", pendingEvents.get());
+        stats.put("appendedEvents", appendedEvents.get());
+        stats.put("appendedBatches", appendedBatches.get());
+        stats.put("rejectedBatches", rejectedBatches.get());
+        stats.put("replayedEvents", replayedEvents.get());
+        stats.put("insertedEvents", insertedEvents.get());
+        stats.put("replayFailures", replayFailures.get());
+        stats.put("lastReplayError", lastReplayError);
+        stats.put("lastReplayEventsPerSecond", lastReplayEventsPerSecond);
+        stats.put("fsyncPolicy", config.getFsync().name());
+        stats.put("fsyncCount", syncs);
+        stats.put("avgFsyncMs", syncs == 0 ? 0.0 : fsyncNanos.get() / syncs / 1_000_000.0);
+        return stats;
+    }
+
+    @Override
+    public void start() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            directory = Paths.get(config.getDirectory()).toAbsolutePath();
+            Files.createDirectories(directory);
+            recoverSegments();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open Kong usage spool in " + config.getDirectory(), e);
+        }
+        running = true;
+        replayer = new Thread(this::replayLoop, "kong-spool-replayer");
+        replayer.start();
+        if (config.getFsync() == KongIngestProperties.FsyncPolicy.INTERVAL) {
+            syncer = new Thread(this::syncLoop, "kong-spool-fsync");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+        logger.info("Kong usage spool started in {}: {} segments, {} bytes, {} events pending",
+                directory, segments.size(), spoolBytes.get(), pendingEvents.get());
+    }
+
+    @Override
+    public void stop() {
+        if (!running) {
+            return;
+        }
+        synchronized (appendLock) {
+            running = false;
+        }
+        // Whatever is not replayed yet stays on disk for the next start
+        joinQuietly(replayer);
+        joinQuietly(syncer);
+        for (SpoolSegment segment : segments) {
+            try {
+                segment.force();
+                segment.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close spool segment {}", segment.sequence(), e);
+            }
+        }
+        segments.clear();
+        logger.info("Kong usage spool stopped, {} events left for replay", pendingEvents.get());
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /** Same ordering as the ingest queue: up before the web server, down after it. */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+
+    private void recoverSegments() throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(directory)) {
+            files = listing.filter(SpoolSegment::isSegmentFile)
+                    .sorted(Comparator.comparingLong(SpoolSegment::sequenceOf))
+                    .toList();
+        }
+        for (Path file : files) {
+            SpoolSegment segment = SpoolSegment.recover(file);
+            segments.addLast(segment);
+            spoolBytes.addAndGet(segment.writePosition());
+            int position = 0;
+            ByteBuffer frame;
+            while ((frame = segment.frameAt(position, segment.writePosition())) != null) {
+                pendingEvents.addAndGet(KongUsageRecordCodec.count(frame));
+                position += SpoolSegment.HEADER_BYTES + frame.remaining();
+            }
+            nextSequence = segment.sequence() + 1;
+        }
+    }
+
+    /** Seals the active segment and starts a new one. Caller holds the append lock. */
+    private SpoolSegment rotate(int minCapacity) {
+        SpoolSegment previous = segments.peekLast();
+        if (previous != null) {
+            force(previous);
+            previous.seal();
+        }
+        int capacity = Math.max(config.getSegmentSizeMb() * 1024 * 1024, minCapacity);
+        try {
+            SpoolSegment segment = SpoolSegment.create(directory, nextSequence++, capacity);
+            segments.addLast(segment);
+            return segment;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create spool segment", e);
+        }
+    }
+
+    private void force(SpoolSegment segment) {
+        long start = System.nanoTime();
+        segment.force();
+        fsyncNanos.addAndGet(System.nanoTime() - start);
+        fsyncCount.incrementAndGet();
+    }
+
+    private void syncLoop() {
+        while (running) {
+            try {
+                Thread.sleep(config.getFsyncIntervalMs());
+            } catch (InterruptedException e) {
+                return;
+            }
+            SpoolSegment active = segments.peekLast();
+            if (active != null) {
+                force(active);
+            }
+        }
+    }
+
+    private void replayLoop() {
+        int batchSize = properties.getBatchSize();
+        List<KongUsageRecord> pending = new ArrayList<>(batchSize);
+        SpoolSegment segment = null;
+        int position = 0;
+        while (running) {
+            try {
+                if (segment == null) {
+                    segment = segments.peekFirst();
+                    position = 0;
+                    if (segment == null) {
+                        Thread.sleep(config.getReplayIdleMs());
+                        continue;
+                    }
+                }
+                // Read the seal flag before the position so no frame appended before sealing is missed
+                boolean sealed = segment.isSealed();
+                ByteBuffer frame = segment.frameAt(position, segment.writePosition());
+                if (frame != null) {
+                    pending.addAll(KongUsageRecordCodec.decode(frame.duplicate()));
+                    position += SpoolSegment.HEADER_BYTES + frame.remaining();
+                    if (pending.size() >= batchSize) {
+                        replay(pending);
+                    }
+                    continue;
+                }
+                replay(pending);
+                if (!pending.isEmpty()) {
+                    // Stopped before the database took them; they stay in the segment
+                    continue;
+                }
+                if (sealed) {
+                    segments.remove(segment);
+                    spoolBytes.addAndGet(-segment.writePosition());
+                    segment.delete();
+                    segment = null;
+                } else {
+                    // Caught up with the writer
+                    Thread.sleep(config.getReplayIdleMs());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                logger.error("Unexpected error in Kong spool replayer", e);
+                sleepQuietly(config.getReplayMaxBackoffMs());
+            }
+        }
+    }
+
+    /**
+     * Writes the pending records, retrying with backoff until the database accepts them.
+     */
+    private void replay(List<KongUsageRecord> pending) throws InterruptedException {
+        long backoff = 100;
+        while (!pending.isEmpty() && running) {
+            long start = System.nanoTime();
+            try {
+                int inserted = ingestionService.writeBatch(pending).getInserted();
+                long nanos = System.nanoTime() - start;
+                replayedEvents.addAndGet(pending.size());
+                insertedEvents.addAndGet(inserted);
+                pendingEvents.addAndGet(-pending.size());
+                lastReplayEventsPerSecond = pending.size() * 1_000_000_000.0 / Math.max(1, nanos);
+                lastReplayError = null;
+                throttle(pending.size(), nanos);
+                pending.clear();
+            } catch (Exception e) {
+                replayFailures.incrementAndGet();
+                lastReplayError = e.getMessage();
+                logger.warn("Spool replay of {} records failed, retrying in {} ms", pending.size(), backoff, e);
+                Thread.sleep(backoff);
+                backoff = Math.min(backoff * 2, config.getReplayMaxBackoffMs());
+            }
+        }
+    }
+
+    private void throttle(int events, long elapsedNanos) throws InterruptedException {
+        int maxPerSecond = config.getReplayMaxEventsPerSecond();
+        if (maxPerSecond <= 0) {
+            return;
+        }
+        long minNanos = events * 1_000_000_000L / maxPerSecond;
+        if (minNanos > elapsedNanos) {
+            Thread.sleep((minNanos - elapsedNanos) / 1_000_000);
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(10_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package aforo.kong.ingest;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Keeps a copy of the bytes read from the wrapped stream so a caller that knows absolute
+ * byte offsets (e.g. from a Jackson parser) can look at a slice of the input afterwards.
+ * Bytes before {@link #discardBefore(long)} are released, so the buffer only ever holds
+ * the element being parsed plus the parser's read-ahead.
+ */
+class RecordingInputStream extends FilterInputStream {
+
+    private byte[] buffer = new byte[16 * 1024];
+    // Absolute stream offset of buffer[0]
+    private long base;
+    private int length;
+
+    RecordingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            ensureCapacity(1);
+            buffer[length++] = (byte) b;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            ensureCapacity(n);
+            System.arraycopy(b, off, buffer, length, n);
+            length += n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Route through read() so skipped bytes are recorded too
+        byte[] scratch = new byte[(int) Math.min(n, 8192)];
+        int read = read(scratch, 0, scratch.length);
+        return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /** The backing array; valid until the next read. */
+    byte[] buffer() {
+        return buffer;
+    }
+
+    /** Index into {@link #buffer()} of the given absolute stream offset. */
+    int indexOf(long offset) {
+        if (offset < base || offset > base + length) {
+            throw new IllegalStateException("Offset " + offset + " is no longer recorded");
+        }
+        return (int) (offset - base);
+    }
+
+    /** Drops everything before the given absolute offset. */
+    void discardBefore(long offset) {
+        int drop = indexOf(offset);
+        if (drop == 0) {
+            return;
+        }
+        System.arraycopy(buffer, drop, buffer, 0, length - drop);
+        length -= drop;
+        base = offset;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package aforo.kong.ingest;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * One memory-mapped, append-only spool file. Frames are laid out back to back as
+ * {@code [int length][int crc32c][payload]}; a zero length marks the end of the data.
+ * A frame whose checksum does not match (torn write before a crash) also ends the segment.
+ *
+ * Appends are made by one writer at a time; readers only look below {@link #writePosition()},
+ * which is published after the frame is complete.
+ *
+ * A deleted segment is unmapped right away instead of when its buffer is collected, so replayed
+ * segments do not keep address space and page cache mapped. Where the JDK does not allow that,
+ * the mapping lives until GC: at most one segment size per replayed segment since the last
+ * collection.
+ */
+final class SpoolSegment {
+
+    static final int HEADER_BYTES = 8;
+
+    // sun.misc.Unsafe#invokeCleaner, or null if this JDK does not expose it
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final long sequence;
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private volatile int writePosition;
+    private volatile boolean sealed;
+    private boolean released;
+
+    private SpoolSegment(long sequence, Path path, FileChannel channel, MappedByteBuffer buffer) {
+        this.sequence = sequence;
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    static SpoolSegment create(Path directory, long sequence, int capacity) throws IOException {
+        Path path = directory.resolve(fileName(sequence));
+        FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new SpoolSegment(sequence, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+    }
+
+    /**
+     * Opens a segment left over from a previous run, sealed, with its valid frames readable.
+     */
+    static SpoolSegment recover(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        SpoolSegment segment = new SpoolSegment(sequenceOf(path), path, channel,
+                channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+        int position = 0;
+        ByteBuffer frame;
+        while ((frame = segment.frameAt(position, Integer.MAX_VALUE)) != null) {
+            position += HEADER_BYTES + frame.remaining();
+        }
+        segment.writePosition = position;
+        segment.sealed = true;
+        return segment;
+    }
+
+    /**
+     * Appends one frame if it fits.
+     *
+     * @return false when the segment has no room left for it
+     */
+    boolean tryAppend(byte[] payload) {
+        int position = writePosition;
+        if (sealed || payload.length > buffer.capacity() - position - HEADER_BYTES) {
+            return false;
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        buffer.put(position + HEADER_BYTES, payload);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        buffer.putInt(position, payload.length);
+        writePosition = position + HEADER_BYTES + payload.length;
+        return true;
+    }
+
+    /**
+     * Returns the payload of the frame at {@code position} as a read-only view, or null if
+     * there is no complete, intact frame there. A torn or garbage header is the end of the
+     * valid frames, whatever length it claims.
+     */
+    ByteBuffer frameAt(int position, int limit) {
+        int end = Math.min(limit, buffer.capacity());
+        if (position < 0 || position > end - HEADER_BYTES) {
+            return null;
+        }
+        int length = buffer.getInt(position);
+        // Compared by subtraction: a length near Integer.MAX_VALUE must not overflow past the check
+        if (length <= 0 || length > end - position - HEADER_BYTES) {
+            return null;
+        }
+        ByteBuffer payload = buffer.slice(position + HEADER_BYTES, length).asReadOnlyBuffer();
+        CRC32C crc = new CRC32C();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            return null;
+        }
+        return payload;
+    }
+
+    /** Flushes written frames to the storage device; a no-op once deleted. */
+    synchronized void force() {
+        if (!released) {
+            buffer.force();
+        }
+    }
+
+    void seal() {
+        sealed = true;
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    int writePosition() {
+        return writePosition;
+    }
+
+    long sequence() {
+        return sequence;
+    }
+
+    /**
+     * Deletes the file and unmaps it. No frame of this segment may be read afterwards.
+     */
+    synchronized void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+        released = true;
+        unmap(buffer);
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException e) {
+            // Left to the garbage collector
+        }
+    }
+
+    static String fileName(long sequence) {
+        return String.format("spool-%020d.seg", sequence);
+    }
+
+    static boolean isSegmentFile(Path path) {
+        String name = path.getFileName().toString();
+        return name.startsWith("spool-") && name.endsWith(".seg");
+    }
+
+    static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring("spool-".length(), name.length() - ".seg".length()));
+    }
+}
@@ -0,0 +1,187 @@
+package aforo.kong.latency;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Log-linear latency histogram in milliseconds, in the style of HdrHistogram.
+ * <p>
+ * Values below 128 ms have a bucket each; above that every power of two is split into 64
+ * buckets, so a reported percentile is within 1/128 (under 0.8%) of a recorded value. Bucket
+ * counts simply add up, which makes histograms of any minutes, hours or days mergeable.
+ * Serialized form keeps only non-empty buckets, as varints. Not thread-safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final int LINEAR_BUCKETS = 128;
+    private static final int SUB_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 6;
+
+    private long[] counts = new long[LINEAR_BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    public void record(long value) {
+        record(value, 1);
+    }
+
+    public void record(long value, long times) {
+        if (value < 0 || times <= 0) {
+            return;
+        }
+        int index = index(value);
+        if (index >= counts.length) {
+            counts = Arrays.copyOf(counts, Math.max(index + 1, counts.length * 2));
+        }
+        counts[index] += times;
+        count += times;
+        sum += value * times;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    public void merge(LatencyHistogram other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int i = 0; i < other.counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * Value at the percentile (0-100], or 0 when nothing was recorded.
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, midpoint(i)));
+            }
+        }
+        return max;
+    }
+
+    public long count() {
+        return count;
+    }
+
+    public double mean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            writeVarLong(out, count);
+            if (count > 0) {
+                writeVarLong(out, sum);
+                writeVarLong(out, min);
+                writeVarLong(out, max);
+                int previous = -1;
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] != 0) {
+                        writeVarLong(out, i - previous);
+                        writeVarLong(out, counts[i]);
+                        previous = i;
+                    }
+                }
+                writeVarLong(out, 0);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static LatencyHistogram fromBytes(byte[] data) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        if (data == null) {
+            return histogram;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown histogram format " + version);
+            }
+            histogram.count = readVarLong(in);
+            if (histogram.count == 0) {
+                return histogram;
+            }
+            histogram.sum = readVarLong(in);
+            histogram.min = readVarLong(in);
+            histogram.max = readVarLong(in);
+            histogram.counts = new long[Math.max(LINEAR_BUCKETS, index(histogram.max) + 1)];
+            int index = -1;
+            for (long delta = readVarLong(in); delta != 0; delta = readVarLong(in)) {
+                index += (int) delta;
+                histogram.counts[index] = readVarLong(in);
+            }
+            return histogram;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static int index(long value) {
+        if (value < LINEAR_BUCKETS) {
+            return (int) value;
+        }
+        // value >> shift falls in [64, 128)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    static long midpoint(int index) {
+        if (index < LINEAR_BUCKETS) {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long lowest = (long) ((index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) - 1) / 2;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package aforo.kong.latency;
+
+import aforo.kong.config.LatencyProperties;
+import aforo.kong.entity.UsageRecord;
+import aforo.kong.repository.LatencyHistogramRepository;
+import aforo.kong.repository.LatencyHistogramRepository.Granularity;
+import aforo.kong.repository.LatencyHistogramRepository.SeriesFilter;
+import aforo.kong.repository.LatencyHistogramRepository.SeriesKey;
+import aforo.kong.repository.LatencyHistogramRepository.StoredHistograms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Response, kong and upstream latency histograms per organization, service, route, consumer
+ * and minute, recorded at ingest and merged at query time.
+ * <p>
+ * Each node records committed usage into in-memory {@link LatencyHistogram}s per minute and
+ * every {@code flushIntervalMs} merges them into the minute, hourly and daily tables. A range
+ * is answered from whole days, whole hours and the minutes at its edges, widened to whole
+ * minutes; edges older than {@code minuteRetentionHours} are widened to whole hours. Usage
+ * from before recording started is read raw. Histograms not flushed when a node crashes are
+ * lost.
+ */
+@Component
+public class LatencyTracker implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(LatencyTracker.class);
+
+    private static final Comparator<SeriesKey> KEY_ORDER = Comparator.comparing(SeriesKey::bucketStart)
+            .thenComparing(SeriesKey::serviceId)
+            .thenComparing(SeriesKey::routeId)
+            .thenComparing(SeriesKey::consumerId);
+
+    private final LatencyHistogramRepository histogramRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final LatencyProperties properties;
+
+    private final Map<PendingKey, Latencies> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong histogramQueries = new AtomicLong();
+    private final AtomicLong rawQueries = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong minutesDeleted = new AtomicLong();
+    private volatile Instant trackingSince;
+    private volatile Instant lastCleanup = Instant.EPOCH;
+    private volatile boolean running;
+
+    private record PendingKey(Long organizationId, SeriesKey series) {
+    }
+
+    /**
+     * Response, kong and upstream latency histograms of one series or range.
+     */
+    public record Latencies(LatencyHistogram response, LatencyHistogram kong, LatencyHistogram upstream) {
+
+        public static Latencies empty() {
+            return new Latencies(new LatencyHistogram(), new LatencyHistogram(), new LatencyHistogram());
+        }
+
+        static Latencies fromRow(StoredHistograms row) {
+            return new Latencies(LatencyHistogram.fromBytes(row.response()), LatencyHistogram.fromBytes(row.kong()),
+                    LatencyHistogram.fromBytes(row.upstream()));
+        }
+
+        void merge(Latencies other) {
+            response.merge(other.response);
+            kong.merge(other.kong);
+            upstream.merge(other.upstream);
+        }
+
+        StoredHistograms toRow(SeriesKey key) {
+            return new StoredHistograms(key, response.toBytes(), kong.toBytes(), upstream.toBytes());
+        }
+
+        private LatencyHistogram column(int column) {
+            return column == 0 ? response : column == 1 ? kong : upstream;
+        }
+    }
+
+    public LatencyTracker(LatencyHistogramRepository histogramRepository,
+                          TransactionTemplate transactionTemplate,
+                          LatencyProperties properties) {
+        this.histogramRepository = histogramRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.properties = properties;
+    }
+
+    /**
+     * Records the latencies of the records once the current transaction commits.
+     */
+    public void recordAfterCommit(List<UsageRecord> records) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            records.forEach(this::record);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                records.forEach(LatencyTracker.this::record);
+            }
+        });
+    }
+
+    private void record(UsageRecord record) {
+        Instant since = trackingSince;
+        // Usage from before recording started is read raw; recording it too would count it twice
+        if (since == null || record.getTimestamp().isBefore(since)) {
+            return;
+        }
+        SeriesKey series = new SeriesKey(record.getTimestamp().truncatedTo(ChronoUnit.MINUTES),
+                Objects.toString(record.getServiceId(), ""), Objects.toString(record.getRouteId(), ""),
+                Objects.toString(record.getConsumerId(), ""));
+        // Inside compute, so a flush cannot take the histograms away mid-update
+        pending.compute(new PendingKey(record.getOrganizationId(), series), (k, latencies) -> {
+            Latencies target = latencies != null ? latencies : Latencies.empty();
+            if (record.getResponseLatency() != null) {
+                target.response().record(record.getResponseLatency());
+            }
+            if (record.getKongLatency() != null) {
+                target.kong().record(record.getKongLatency());
+            }
+            if (record.getUpstreamLatency() != null) {
+                target.upstream().record(record.getUpstreamLatency());
+            }
+            return target;
+        });
+    }
+
+    /**
+     * Latency histograms of the organization's usage in [start, end) matching the filter.
+     */
+    public Latencies latencies(Long organizationId, SeriesFilter filter, Instant start, Instant end) {
+        Latencies result = Latencies.empty();
+        Instant since = trackingSince;
+        Instant rawEnd = since == null || end.isBefore(since) ? end : since;
+        if (start.isBefore(rawEnd)) {
+            rawQueries.incrementAndGet();
+            histogramRepository.forEachRawLatency(organizationId, filter, start, rawEnd,
+                    (column, latency, count) -> result.column(column).record(latency, count));
+        }
+        if (since == null || !since.isBefore(end)) {
+            return result;
+        }
+
+        histogramQueries.incrementAndGet();
+        Instant from = (start.isAfter(since) ? start : since).truncatedTo(ChronoUnit.MINUTES);
+        Instant to = ceil(end, ChronoUnit.MINUTES);
+        Instant minuteCutoff = Instant.now().minus(Duration.ofHours(properties.getMinuteRetentionHours()));
+        if (from.isBefore(minuteCutoff)) {
+            from = from.truncatedTo(ChronoUnit.HOURS);
+        }
+        if (to.truncatedTo(ChronoUnit.HOURS).isBefore(minuteCutoff)) {
+            to = ceil(to, ChronoUnit.HOURS);
+        }
+
+        Instant hourStart = ceil(from, ChronoUnit.HOURS);
+        Instant hourEnd = to.truncatedTo(ChronoUnit.HOURS);
+        if (!hourStart.isBefore(hourEnd)) {
+            addStored(result, Granularity.MINUTE, organizationId, filter, from, to);
+        } else {
+            Instant dayStart = ceil(hourStart, ChronoUnit.DAYS);
+            Instant dayEnd = hourEnd.truncatedTo(ChronoUnit.DAYS);
+            addStored(result, Granularity.MINUTE, organizationId, filter, from, hourStart);
+            addStored(result, Granularity.MINUTE, organizationId, filter, hourEnd, to);
+            if (dayStart.isBefore(dayEnd)) {
+                addStored(result, Granularity.HOUR, organizationId, filter, hourStart, dayStart);
+                addStored(result, Granularity.HOUR, organizationId, filter, dayEnd, hourEnd);
+                addStored(result, Granularity.DAY, organizationId, filter, dayStart, dayEnd);
+            } else {
+                addStored(result, Granularity.HOUR, organizationId, filter, hourStart, hourEnd);
+            }
+        }
+
+        // What this node has not flushed yet
+        for (PendingKey key : pending.keySet()) {
+            SeriesKey series = key.series();
+            if (key.organizationId().equals(organizationId) && !series.bucketStart().isBefore(from)
+                    && series.bucketStart().isBefore(to) && matches(filter, series)) {
+                pending.computeIfPresent(key, (k, latencies) -> {
+                    result.merge(latencies);
+                    return latencies;
+                });
+            }
+        }
+        return result;
+    }
+
+    private void addStored(Latencies result, Granularity granularity, Long organizationId, SeriesFilter filter,
+                           Instant from, Instant to) {
+        if (from.isBefore(to)) {
+            for (StoredHistograms row : histogramRepository.findHistograms(granularity, organizationId, filter, from, to)) {
+                result.merge(Latencies.fromRow(row));
+            }
+        }
+    }
+
+    private static boolean matches(SeriesFilter filter, SeriesKey series) {
+        return (filter.serviceId() == null || filter.serviceId().equals(series.serviceId()))
+                && (filter.routeId() == null || filter.routeId().equals(series.routeId()))
+                && (filter.consumerId() == null || filter.consumerId().equals(series.consumerId()));
+    }
+
+    @Scheduled(fixedDelayString = "${kong.analytics.latency.flush-interval-ms:10000}")
+    public void scheduledFlush() {
+        if (running) {
+            flush();
+        }
+    }
+
+    /**
+     * Merges this node's pending histograms into the minute, hourly and daily tables, one
+     * transaction per organization.
+     */
+    public synchronized void flush() {
+        Map<Long, Map<SeriesKey, Latencies>> drained = new HashMap<>();
+        for (PendingKey key : new ArrayList<>(pending.keySet())) {
+            Latencies latencies = pending.remove(key);
+            if (latencies != null) {
+                drained.computeIfAbsent(key.organizationId(), org -> new HashMap<>()).put(key.series(), latencies);
+            }
+        }
+        drained.forEach((organizationId, minutes) -> {
+            try {
+                int rows = transactionTemplate.execute(status -> {
+                    int written = 0;
+                    for (Granularity granularity : Granularity.values()) {
+                        written += mergeInto(granularity, organizationId, minutes);
+                    }
+                    return written;
+                });
+                flushes.incrementAndGet();
+                flushedRows.addAndGet(rows);
+            } catch (RuntimeException e) {
+                // Put the histograms back for the next flush
+                minutes.forEach((series, latencies) -> pending.merge(new PendingKey(organizationId, series), latencies,
+                        (current, failed) -> {
+                            current.merge(failed);
+                            return current;
+                        }));
+                flushFailures.incrementAndGet();
+                logger.error("Latency histogram flush failed for org {}", organizationId, e);
+            }
+        });
+        deleteExpiredMinutes();
+    }
+
+    private int mergeInto(Granularity granularity, Long organizationId, Map<SeriesKey, Latencies> minutes) {
+        Map<SeriesKey, Latencies> buckets = new TreeMap<>(KEY_ORDER);
+        minutes.forEach((series, latencies) -> buckets.computeIfAbsent(
+                new SeriesKey(granularity.truncate(series.bucketStart()), series.serviceId(), series.routeId(),
+                        series.consumerId()),
+                k -> Latencies.empty()).merge(latencies));
+
+        List<StoredHistograms> merged = new ArrayList<>(buckets.size());
+        for (StoredHistograms row : histogramRepository.lockHistograms(granularity, organizationId,
+                new ArrayList<>(buckets.keySet()))) {
+            Latencies stored = Latencies.fromRow(row);
+            stored.merge(buckets.get(row.key()));
+            merged.add(stored.toRow(row.key()));
+        }
+        histogramRepository.saveHistograms(granularity, organizationId, merged);
+        return merged.size();
+    }
+
+    private void deleteExpiredMinutes() {
+        Instant now = Instant.now();
+        if (lastCleanup.isAfter(now.minus(Duration.ofHours(1)))) {
+            return;
+        }
+        try {
+            minutesDeleted.addAndGet(histogramRepository.deleteMinutesBefore(
+                    now.minus(Duration.ofHours(properties.getMinuteRetentionHours())).truncatedTo(ChronoUnit.HOURS)));
+            lastCleanup = now;
+        } catch (RuntimeException e) {
+            logger.warn("Deleting expired minute latency histograms failed", e);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("trackingSince", trackingSince);
+        stats.put("pendingSeries", pending.size());
+        stats.put("histogramQueries", histogramQueries.get());
+        stats.put("rawQueries", rawQueries.get());
+        stats.put("flushes", flushes.get());
+        stats.put("flushedRows", flushedRows.get());
+        stats.put("flushFailures", flushFailures.get());
+        stats.put("minutesDeleted", minutesDeleted.get());
+        return stats;
+    }
+
+    private static Instant ceil(Instant instant, ChronoUnit unit) {
+        Instant truncated = instant.truncatedTo(unit);
+        return truncated.equals(instant) ? truncated : truncated.plus(unit.getDuration());
+    }
+
+    @Override
+    public void start() {
+        try {
+            // Whole minutes only, so no minute histogram is partly read raw
+            trackingSince = ceil(histogramRepository.findOrStartTracking(Instant.now()), ChronoUnit.MINUTES);
+        } catch (RuntimeException e) {
+            logger.error("Could not read latency tracking start; latencies are read raw", e);
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        flush();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start before the web server accepts ingest traffic, and flush after it stopped.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
@@ -0,0 +1,295 @@
+package aforo.kong.quota;
+
+import aforo.kong.config.QuotaProperties;
+import aforo.kong.entity.UsageRecord;
+import aforo.kong.quota.SlidingWindowCounter.Granularity;
+import aforo.kong.rating.CompiledPricingPlan;
+import aforo.kong.repository.QuotaCounterRepository;
+import aforo.kong.repository.QuotaCounterRepository.QuotaBucket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-consumer request counters for quota checks, kept in memory and updated at ingest time,
+ * so a check reads a few dozen buckets instead of counting usage_record rows.
+ * <p>
+ * Changed counters are written to usage_quota_bucket every {@code snapshotIntervalMs}, together
+ * with the snapshot time. On startup the counters are loaded from the snapshot and corrected by
+ * recounting usage_record from shortly before that time; without a snapshot the last 31 days are
+ * counted once. Counts are per instance: events ingested by another instance are only seen after
+ * a restart.
+ */
+@Component
+public class QuotaCounters implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(QuotaCounters.class);
+
+    private static final int MAX_CATCH_UP_MINUTES = 60;
+
+    private final QuotaCounterRepository repository;
+    private final TransactionTemplate transactionTemplate;
+    private final QuotaProperties properties;
+
+    private final Map<CounterKey, SlidingWindowCounter> counters = new ConcurrentHashMap<>();
+    private final Set<CounterKey> dirty = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong snapshots = new AtomicLong();
+    private final AtomicLong snapshotFailures = new AtomicLong();
+    private volatile long lastSnapshotMillis;
+    private volatile long rebuildMillis;
+
+    private volatile boolean running;
+
+    private record CounterKey(Long organizationId, String consumerId) {
+    }
+
+    private record BucketKey(CounterKey counter, String granularity, Instant bucketStart) {
+    }
+
+    public QuotaCounters(QuotaCounterRepository repository,
+                         TransactionTemplate transactionTemplate,
+                         QuotaProperties properties) {
+        this.repository = repository;
+        this.transactionTemplate = transactionTemplate;
+        this.properties = properties;
+    }
+
+    /**
+     * Counts one request of the consumer at the event's time.
+     */
+    public void record(Long organizationId, String consumerId, Instant timestamp) {
+        if (consumerId == null) {
+            return;
+        }
+        CounterKey key = new CounterKey(organizationId, consumerId);
+        // Inside compute, so an idle counter cannot be evicted between lookup and add
+        counters.compute(key, (k, counter) -> {
+            SlidingWindowCounter target = counter != null ? counter : new SlidingWindowCounter();
+            target.add(timestamp.getEpochSecond(), 1);
+            return target;
+        });
+        dirty.add(key);
+        recorded.incrementAndGet();
+    }
+
+    /**
+     * Counts the records once the current transaction commits, so rolled-back inserts are
+     * never counted.
+     */
+    public void recordAfterCommit(List<UsageRecord> records) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            records.forEach(r -> record(r.getOrganizationId(), r.getConsumerId(), r.getTimestamp()));
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                records.forEach(r -> record(r.getOrganizationId(), r.getConsumerId(), r.getTimestamp()));
+            }
+        });
+    }
+
+    /**
+     * Estimated requests of the consumer in the window ending now.
+     */
+    public long count(Long organizationId, String consumerId, QuotaWindow window) {
+        SlidingWindowCounter counter = counters.get(new CounterKey(organizationId, consumerId));
+        return counter != null ? Math.round(counter.estimate(window, System.currentTimeMillis())) : 0;
+    }
+
+    /**
+     * Highest usage of the consumer across the plan's quota windows, in percent of the limit;
+     * 0 when the plan has no limits.
+     */
+    public double usagePercent(Long organizationId, String consumerId, CompiledPricingPlan plan) {
+        checks.incrementAndGet();
+        SlidingWindowCounter counter = counters.get(new CounterKey(organizationId, consumerId));
+        if (counter == null) {
+            return 0.0;
+        }
+        long now = System.currentTimeMillis();
+        double highest = 0.0;
+        for (QuotaWindow window : QuotaWindow.values()) {
+            long limit = plan.quotaLimit(window);
+            if (limit > 0) {
+                highest = Math.max(highest, counter.estimate(window, now) / limit * 100);
+            }
+        }
+        return highest;
+    }
+
+    @Scheduled(fixedDelayString = "${kong.quota.snapshot-interval-ms:30000}")
+    public void scheduledSnapshot() {
+        if (running) {
+            snapshot();
+        }
+    }
+
+    /**
+     * Writes the buckets of all counters changed since the last snapshot, drops expired
+     * buckets and forgets counters that have been idle for the whole month window.
+     *
+     * @return the number of buckets written
+     */
+    public synchronized int snapshot() {
+        Instant now = Instant.now();
+        long nowSecond = now.getEpochSecond();
+        List<CounterKey> keys = new ArrayList<>(dirty);
+        dirty.removeAll(keys);
+        List<QuotaBucket> buckets = new ArrayList<>();
+        for (CounterKey key : keys) {
+            SlidingWindowCounter counter = counters.get(key);
+            if (counter != null) {
+                counter.forEachBucket(nowSecond, (granularity, start, count) -> buckets.add(new QuotaBucket(
+                        key.organizationId(), key.consumerId(), granularity.key(), Instant.ofEpochSecond(start), count)));
+            }
+        }
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                repository.upsertBuckets(buckets);
+                repository.deleteExpired(now.minus(Duration.ofHours(2)), now.minus(Duration.ofDays(2)),
+                        now.minus(Duration.ofDays(32)));
+                repository.saveWatermark(now);
+            });
+        } catch (RuntimeException e) {
+            dirty.addAll(keys);
+            snapshotFailures.incrementAndGet();
+            logger.error("Quota counter snapshot of {} consumers failed", keys.size(), e);
+            return 0;
+        }
+        counters.forEach((key, counter) -> {
+            if (!dirty.contains(key) && !counter.forEachBucket(nowSecond, (g, start, count) -> { })) {
+                counters.remove(key, counter);
+            }
+        });
+        snapshots.incrementAndGet();
+        lastSnapshotMillis = Duration.between(now, Instant.now()).toMillis();
+        return buckets.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("consumers", counters.size());
+        stats.put("dirtyConsumers", dirty.size());
+        stats.put("recorded", recorded.get());
+        stats.put("checks", checks.get());
+        stats.put("snapshots", snapshots.get());
+        stats.put("snapshotFailures", snapshotFailures.get());
+        stats.put("lastSnapshotMs", lastSnapshotMillis);
+        stats.put("rebuildMs", rebuildMillis);
+        return stats;
+    }
+
+    /**
+     * Loads the snapshot, then recounts usage_record from shortly before it. Each recounted
+     * bucket replaces the snapshot's value for that bucket by adding the difference, which
+     * also corrects the coarser buckets containing it.
+     */
+    private void rebuild() {
+        long started = System.currentTimeMillis();
+        Instant now = Instant.now();
+        Instant minutesFrom = now.truncatedTo(ChronoUnit.HOURS).minus(Duration.ofHours(1));
+        Instant hoursFrom = now.truncatedTo(ChronoUnit.DAYS).minus(Duration.ofDays(1));
+        Instant watermark = repository.findWatermark();
+        Instant from = watermark != null
+                ? watermark.minus(Duration.ofMinutes(Math.min(properties.getCatchUpMinutes(), MAX_CATCH_UP_MINUTES)))
+                : now.truncatedTo(ChronoUnit.DAYS).minus(Duration.ofDays(31));
+        // Start the recount on a whole bucket of the granularity it is counted in
+        Instant recountFrom = from.isBefore(hoursFrom) ? from.truncatedTo(ChronoUnit.DAYS)
+                : from.isBefore(minutesFrom) ? from.truncatedTo(ChronoUnit.HOURS)
+                : from.truncatedTo(ChronoUnit.MINUTES);
+
+        Map<BucketKey, Long> snapshotCounts = new HashMap<>();
+        repository.forEachBucket(bucket -> {
+            Granularity granularity = Granularity.fromKey(bucket.granularity());
+            if (granularity == null) {
+                return;
+            }
+            CounterKey key = new CounterKey(bucket.organizationId(), bucket.consumerId());
+            counters.computeIfAbsent(key, k -> new SlidingWindowCounter())
+                    .set(granularity, bucket.bucketStart().getEpochSecond(), bucket.count());
+            if (!bucket.bucketStart().isBefore(recountFrom)
+                    && bucket.granularity().equals(granularityAt(bucket.bucketStart(), minutesFrom, hoursFrom))) {
+                snapshotCounts.put(new BucketKey(key, bucket.granularity(), bucket.bucketStart()), bucket.count());
+            }
+        });
+        AtomicLong recounted = new AtomicLong();
+        repository.recount(recountFrom, minutesFrom, hoursFrom, bucket -> {
+            CounterKey key = new CounterKey(bucket.organizationId(), bucket.consumerId());
+            Long previous = snapshotCounts.remove(new BucketKey(key, bucket.granularity(), bucket.bucketStart()));
+            long delta = bucket.count() - (previous != null ? previous : 0);
+            if (delta != 0) {
+                counters.computeIfAbsent(key, k -> new SlidingWindowCounter())
+                        .add(bucket.bucketStart().getEpochSecond(), delta);
+                dirty.add(key);
+            }
+            recounted.incrementAndGet();
+        });
+        // Buckets the snapshot has but usage_record no longer does
+        snapshotCounts.forEach((bucket, count) -> {
+            counters.get(bucket.counter()).add(bucket.bucketStart().getEpochSecond(), -count);
+            dirty.add(bucket.counter());
+        });
+        rebuildMillis = System.currentTimeMillis() - started;
+        logger.info("Quota counters rebuilt for {} consumers from snapshot {} and {} recounted buckets in {} ms",
+                counters.size(), watermark, recounted.get(), rebuildMillis);
+    }
+
+    private static String granularityAt(Instant bucketStart, Instant minutesFrom, Instant hoursFrom) {
+        return !bucketStart.isBefore(minutesFrom) ? Granularity.MINUTE.key()
+                : !bucketStart.isBefore(hoursFrom) ? Granularity.HOUR.key()
+                : Granularity.DAY.key();
+    }
+
+    @Override
+    public void start() {
+        try {
+            rebuild();
+        } catch (RuntimeException e) {
+            counters.clear();
+            dirty.clear();
+            logger.error("Quota counter rebuild failed; counting from now on", e);
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        snapshot();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Rebuild before the web server accepts ingest traffic, and take the last snapshot after it stopped.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
@@ -0,0 +1,47 @@
+package aforo.kong.quota;
+
+/**
+ * Quota windows of a pricing plan, named as in {@code PricingPlan.quotaLimits}. Each window is
+ * {@code buckets} buckets of the given granularity; "month" is a rolling 30 days.
+ */
+public enum QuotaWindow {
+
+    MINUTE("minute", SlidingWindowCounter.Granularity.MINUTE, 1),
+    HOUR("hour", SlidingWindowCounter.Granularity.MINUTE, 60),
+    DAY("day", SlidingWindowCounter.Granularity.HOUR, 24),
+    MONTH("month", SlidingWindowCounter.Granularity.DAY, 30);
+
+    private final String key;
+    private final SlidingWindowCounter.Granularity granularity;
+    private final int buckets;
+
+    QuotaWindow(String key, SlidingWindowCounter.Granularity granularity, int buckets) {
+        this.key = key;
+        this.granularity = granularity;
+        this.buckets = buckets;
+    }
+
+    public String key() {
+        return key;
+    }
+
+    SlidingWindowCounter.Granularity granularity() {
+        return granularity;
+    }
+
+    int buckets() {
+        return buckets;
+    }
+
+    /**
+     * Window with the given quotaLimits key, or null for keys that are not counted (e.g. "second").
+     */
+    public static QuotaWindow fromKey(String key) {
+        for (QuotaWindow window : values()) {
+            if (window.key.equals(key)) {
+                return window;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,134 @@
+package aforo.kong.quota;
+
+import java.util.Arrays;
+
+/**
+ * Request counts of one consumer in three rings of time buckets: minutes (the last hour),
+ * hours (the last day) and days (the last 30 days). Each ring keeps one bucket more than its
+ * longest window, and a window is estimated as its full buckets plus the part of the oldest
+ * bucket that still overlaps it, so reading any window touches at most 61 buckets.
+ * <p>
+ * A ring slot remembers which bucket it holds; an event older than the slot's bucket is too
+ * old for that ring and only lands in the coarser ones.
+ */
+final class SlidingWindowCounter {
+
+    enum Granularity {
+        MINUTE("minute", 60, 61),
+        HOUR("hour", 3600, 25),
+        DAY("day", 86400, 31);
+
+        private final String key;
+        private final long seconds;
+        private final int slots;
+
+        Granularity(String key, long seconds, int slots) {
+            this.key = key;
+            this.seconds = seconds;
+            this.slots = slots;
+        }
+
+        String key() {
+            return key;
+        }
+
+        long seconds() {
+            return seconds;
+        }
+
+        static Granularity fromKey(String key) {
+            for (Granularity granularity : values()) {
+                if (granularity.key.equals(key)) {
+                    return granularity;
+                }
+            }
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    interface BucketVisitor {
+        void visit(Granularity granularity, long bucketStartSecond, long count);
+    }
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final long[][] buckets = new long[Granularity.values().length][];
+    private final long[][] counts = new long[Granularity.values().length][];
+
+    SlidingWindowCounter() {
+        for (Granularity g : Granularity.values()) {
+            buckets[g.ordinal()] = new long[g.slots];
+            counts[g.ordinal()] = new long[g.slots];
+            Arrays.fill(buckets[g.ordinal()], EMPTY);
+        }
+    }
+
+    /**
+     * Adds {@code n} (which may be negative during a rebuild) at the given time to every ring.
+     */
+    synchronized void add(long epochSecond, long n) {
+        for (Granularity g : Granularity.values()) {
+            put(g, Math.floorDiv(epochSecond, g.seconds), n, false);
+        }
+    }
+
+    /**
+     * Sets one bucket of one ring, as read back from a snapshot.
+     */
+    synchronized void set(Granularity g, long bucketStartSecond, long count) {
+        put(g, Math.floorDiv(bucketStartSecond, g.seconds), count, true);
+    }
+
+    /**
+     * Estimated count of the window ending at {@code nowMillis}.
+     */
+    synchronized double estimate(QuotaWindow window, long nowMillis) {
+        Granularity g = window.granularity();
+        long bucketMillis = g.seconds * 1000;
+        long current = Math.floorDiv(nowMillis, bucketMillis);
+        double elapsed = (double) (nowMillis - current * bucketMillis) / bucketMillis;
+        double total = count(g, current - window.buckets()) * (1.0 - elapsed);
+        for (long bucket = current - window.buckets() + 1; bucket <= current; bucket++) {
+            total += count(g, bucket);
+        }
+        return total;
+    }
+
+    /**
+     * Visits every non-empty bucket still inside its ring at {@code nowSecond}.
+     *
+     * @return false if there is none, i.e. the counter is idle
+     */
+    synchronized boolean forEachBucket(long nowSecond, BucketVisitor visitor) {
+        boolean any = false;
+        for (Granularity g : Granularity.values()) {
+            long oldest = Math.floorDiv(nowSecond, g.seconds) - g.slots + 1;
+            long[] ring = buckets[g.ordinal()];
+            long[] ringCounts = counts[g.ordinal()];
+            for (int slot = 0; slot < g.slots; slot++) {
+                if (ring[slot] != EMPTY && ring[slot] >= oldest && ringCounts[slot] != 0) {
+                    visitor.visit(g, ring[slot] * g.seconds, ringCounts[slot]);
+                    any = true;
+                }
+            }
+        }
+        return any;
+    }
+
+    private void put(Granularity g, long bucket, long n, boolean replace) {
+        long[] ring = buckets[g.ordinal()];
+        int slot = (int) Math.floorMod(bucket, (long) g.slots);
+        if (ring[slot] == bucket) {
+            counts[g.ordinal()][slot] = replace ? n : counts[g.ordinal()][slot] + n;
+        } else if (ring[slot] == EMPTY || ring[slot] < bucket) {
+            ring[slot] = bucket;
+            counts[g.ordinal()][slot] = n;
+        }
+    }
+
+    private long count(Granularity g, long bucket) {
+        int slot = (int) Math.floorMod(bucket, (long) g.slots);
+        return buckets[g.ordinal()][slot] == bucket ? counts[g.ordinal()][slot] : 0;
+    }
+}
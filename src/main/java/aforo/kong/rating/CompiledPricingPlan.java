@@ -0,0 +1,247 @@
+package aforo.kong.rating;
+
+import aforo.kong.entity.PricingPlan;
+import aforo.kong.quota.QuotaWindow;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, pre-parsed form of a {@link PricingPlan}: the metrics JSON is read once and each
+ * metric type becomes a {@link MetricRate} backed by primitive arrays, so pricing a record is a
+ * map lookup and a few array reads.
+ */
+public final class CompiledPricingPlan {
+
+    private final Long planId;
+    private final String planName;
+    private final Instant updatedAt;
+    private final String currency;
+    private final String pricingModel;
+    private final double minimumFee;
+    private final boolean prepaid;
+    private final boolean valid;
+    private final Map<String, MetricRate> metrics;
+    private final long[] quotaLimits;
+
+    /**
+     * Price table of one metric type. Tiers are sorted by their lower bound; an open upper
+     * bound is {@link Long#MAX_VALUE} and a tier without a price has {@code NaN}.
+     */
+    public static final class MetricRate {
+        private final double unitPrice;
+        private final long[] tierFrom;
+        private final long[] tierTo;
+        private final double[] tierPrice;
+
+        private MetricRate(double unitPrice, long[] tierFrom, long[] tierTo, double[] tierPrice) {
+            this.unitPrice = unitPrice;
+            this.tierFrom = tierFrom;
+            this.tierTo = tierTo;
+            this.tierPrice = tierPrice;
+        }
+
+        /**
+         * Price applied to a single record: the flat price, or for tiered metrics the first
+         * tier (in plan order) that has a price.
+         */
+        public double unitPrice() {
+            return unitPrice;
+        }
+
+        public boolean isTiered() {
+            return tierFrom.length > 0;
+        }
+
+        public int tierCount() {
+            return tierFrom.length;
+        }
+
+        public long tierFrom(int tier) {
+            return tierFrom[tier];
+        }
+
+        public long tierTo(int tier) {
+            return tierTo[tier];
+        }
+
+        public double tierPrice(int tier) {
+            return tierPrice[tier];
+        }
+
+        /**
+         * Index of the tier whose range contains {@code units}, or -1 if none does.
+         */
+        public int tierIndex(long units) {
+            int i = Arrays.binarySearch(tierFrom, units);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return i >= 0 && units <= tierTo[i] ? i : -1;
+        }
+    }
+
+    private CompiledPricingPlan(PricingPlan plan, boolean valid, Map<String, MetricRate> metrics,
+                                long[] quotaLimits) {
+        this.planId = plan.getPlanId();
+        this.planName = plan.getPlanName();
+        this.updatedAt = plan.getUpdatedAt();
+        this.currency = plan.getCurrency();
+        this.pricingModel = plan.getPricingModel();
+        this.minimumFee = plan.getMinimumFee() != null ? plan.getMinimumFee() : Double.NaN;
+        this.prepaid = Boolean.TRUE.equals(plan.getPrepaidCreditsEnabled());
+        this.valid = valid;
+        this.metrics = metrics;
+        this.quotaLimits = quotaLimits;
+    }
+
+    /**
+     * Compiles the plan. A plan whose metrics JSON cannot be read compiles to an invalid plan
+     * rather than failing, so the caller can report it without re-parsing on every record.
+     */
+    public static CompiledPricingPlan compile(PricingPlan plan, ObjectMapper objectMapper) {
+        long[] quotaLimits = compileQuotaLimits(plan, objectMapper);
+        if (plan.getMetrics() == null) {
+            return new CompiledPricingPlan(plan, true, Map.of(), quotaLimits);
+        }
+        try {
+            Map<String, MetricRate> metrics = new HashMap<>();
+            for (JsonNode metric : objectMapper.readTree(plan.getMetrics())) {
+                String type = metric.path("type").asText(null);
+                if (type != null && !metrics.containsKey(type)) {
+                    metrics.put(type, compileMetric(metric));
+                }
+            }
+            return new CompiledPricingPlan(plan, true, Map.copyOf(metrics), quotaLimits);
+        } catch (Exception e) {
+            return new CompiledPricingPlan(plan, false, Map.of(), quotaLimits);
+        }
+    }
+
+    /**
+     * Limits per {@link QuotaWindow}, 0 for none. maxRequestsPerMonth caps the month window; an
+     * unreadable quotaLimits JSON leaves only that cap, since it does not affect pricing.
+     */
+    private static long[] compileQuotaLimits(PricingPlan plan, ObjectMapper objectMapper) {
+        long[] limits = new long[QuotaWindow.values().length];
+        if (plan.getQuotaLimits() != null) {
+            try {
+                objectMapper.readTree(plan.getQuotaLimits()).fields().forEachRemaining(field -> {
+                    QuotaWindow window = QuotaWindow.fromKey(field.getKey());
+                    if (window != null && field.getValue().isNumber() && field.getValue().asLong() > 0) {
+                        limits[window.ordinal()] = field.getValue().asLong();
+                    }
+                });
+            } catch (Exception e) {
+                Arrays.fill(limits, 0L);
+            }
+        }
+        Long monthly = plan.getMaxRequestsPerMonth();
+        int month = QuotaWindow.MONTH.ordinal();
+        if (monthly != null && monthly > 0 && (limits[month] == 0 || monthly < limits[month])) {
+            limits[month] = monthly;
+        }
+        return limits;
+    }
+
+    private static MetricRate compileMetric(JsonNode metric) {
+        double flatPrice = metric.path("price").isNumber() ? metric.path("price").asDouble() : 0.0;
+        JsonNode tiers = metric.path("tiers");
+        if (!tiers.isArray()) {
+            return new MetricRate(flatPrice, new long[0], new long[0], new double[0]);
+        }
+
+        // The per-record price follows plan order: first tier that has a price
+        double unitPrice = Double.NaN;
+        List<JsonNode> ordered = new ArrayList<>(tiers.size());
+        for (JsonNode tier : tiers) {
+            if (Double.isNaN(unitPrice) && tier.path("price").isNumber()) {
+                unitPrice = tier.path("price").asDouble();
+            }
+            ordered.add(tier);
+        }
+        if (Double.isNaN(unitPrice)) {
+            unitPrice = flatPrice;
+        }
+
+        ordered.sort(Comparator.comparingLong(tier -> tier.path("from").asLong(0L)));
+        int n = ordered.size();
+        long[] tierFrom = new long[n];
+        long[] tierTo = new long[n];
+        double[] tierPrice = new double[n];
+        for (int i = 0; i < n; i++) {
+            JsonNode tier = ordered.get(i);
+            tierFrom[i] = tier.path("from").asLong(0L);
+            tierTo[i] = tier.path("to").isNumber() ? tier.path("to").asLong() : Long.MAX_VALUE;
+            tierPrice[i] = tier.path("price").isNumber() ? tier.path("price").asDouble() : Double.NaN;
+        }
+        return new MetricRate(unitPrice, tierFrom, tierTo, tierPrice);
+    }
+
+    /**
+     * Rate table of the metric type, or null if the plan does not price it.
+     */
+    public MetricRate metric(String metricType) {
+        return metrics.get(metricType);
+    }
+
+    /**
+     * Per-record unit price of the metric type; 0 when the plan does not price it.
+     */
+    public double unitPrice(String metricType) {
+        MetricRate rate = metrics.get(metricType);
+        return rate != null ? rate.unitPrice : 0.0;
+    }
+
+    /**
+     * Raises a cost to the plan's minimum fee, if it has one.
+     */
+    public double applyMinimumFee(double cost) {
+        return !Double.isNaN(minimumFee) && cost < minimumFee ? minimumFee : cost;
+    }
+
+    /**
+     * Request limit of the quota window, or 0 if the plan sets none.
+     */
+    public long quotaLimit(QuotaWindow window) {
+        return quotaLimits[window.ordinal()];
+    }
+
+    public Long getPlanId() {
+        return planId;
+    }
+
+    public String getPlanName() {
+        return planName;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public String getPricingModel() {
+        return pricingModel;
+    }
+
+    public boolean isPrepaid() {
+        return prepaid;
+    }
+
+    /**
+     * False when the plan's metrics JSON could not be parsed.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+}
@@ -0,0 +1,213 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.InvoiceRepository;
+import aforo.kong.repository.InvoiceRepository.InvoiceLine;
+import aforo.kong.repository.InvoiceRepository.InvoiceState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Closes monthly invoices: marks an organization's rated usage of a billing period billed and
+ * sums it into line items per consumer, metric, unit price and currency.
+ * <p>
+ * Rows are billed in chunks of {@code chunkSize}, each in its own transaction together with
+ * its line totals and the invoice's keyset cursor, so a close interrupted by a crash resumes
+ * after the last committed chunk and never bills a row twice. A period is only closed once
+ * the rating engine has priced all of its rows; rows that arrive after the close stay unbilled.
+ * <p>
+ * Per-record sums are what per-unit and flat plans owe. For tiered, volume and stairstep plans
+ * the period charge is authoritative (see {@link PeriodRatingService}): the close waits until
+ * those charges are rated from the final totals, and the transaction that closes the invoice
+ * adds a period adjustment line per consumer and metric for the charge minus its per-record sum.
+ */
+@Component
+public class InvoiceCloseService {
+
+    private static final Logger logger = LoggerFactory.getLogger(InvoiceCloseService.class);
+
+    private final InvoiceRepository invoiceRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final RatingProperties.Invoice config;
+    private final int graceDays;
+
+    private final AtomicLong invoicesClosed = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong rowsBilled = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private volatile long lastChunkMillis;
+
+    private record LineKey(String consumerId, String metricType, double unitPrice, String currency) {
+    }
+
+    private static final class LineTotals {
+        private long requestCount;
+        private double quantity;
+        private double amount;
+    }
+
+    public InvoiceCloseService(InvoiceRepository invoiceRepository,
+                               TransactionTemplate transactionTemplate,
+                               RatingProperties properties) {
+        this.invoiceRepository = invoiceRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.config = properties.getInvoice();
+        this.graceDays = properties.getPeriod().getGraceDays();
+    }
+
+    public static String invoiceId(Long organizationId, YearMonth period) {
+        return String.format("INV-%d-%04d%02d", organizationId, period.getYear(), period.getMonthValue());
+    }
+
+    @Scheduled(fixedDelayString = "${kong.rating.invoice.interval-ms:3600000}")
+    public void scheduledRun() {
+        if (config.isEnabled()) {
+            closeDue();
+        }
+    }
+
+    /**
+     * Resumes interrupted closes, then closes the previous month for every organization once
+     * its grace period is over.
+     */
+    public void closeDue() {
+        for (InvoiceState invoice : invoiceRepository.findClosing()) {
+            try {
+                close(invoice.organizationId(), YearMonth.from(invoice.periodStart().atZone(ZoneOffset.UTC)));
+            } catch (Exception e) {
+                logger.error("Resuming invoice {} failed", invoice.invoiceId(), e);
+            }
+        }
+        Instant now = Instant.now();
+        YearMonth previous = YearMonth.from(now.atZone(ZoneOffset.UTC)).minusMonths(1);
+        Instant current = start(previous.plusMonths(1));
+        if (now.isBefore(current.plus(Duration.ofDays(graceDays)))) {
+            return;
+        }
+        for (Long organizationId : invoiceRepository.findOrganizationsWithUsage(start(previous))) {
+            try {
+                close(organizationId, previous);
+            } catch (Exception e) {
+                logger.error("Closing invoice of {} failed for org: {}", previous, organizationId, e);
+            }
+        }
+    }
+
+    /**
+     * Closes, or resumes closing, the organization's invoice of the period.
+     *
+     * @return the invoice; still CLOSING if the period has unrated rows or out-of-date period charges
+     * @throws IllegalArgumentException if the period has not ended yet
+     */
+    public InvoiceState close(Long organizationId, YearMonth period) {
+        Instant periodStart = start(period);
+        Instant periodEnd = start(period.plusMonths(1));
+        if (periodEnd.isAfter(Instant.now())) {
+            throw new IllegalArgumentException("Billing period " + period + " has not ended yet");
+        }
+        String invoiceId = invoiceId(organizationId, period);
+        InvoiceState existing = invoiceRepository.findInvoice(invoiceId);
+        if (existing != null && InvoiceRepository.STATUS_CLOSED.equals(existing.status())) {
+            return existing;
+        }
+        if (invoiceRepository.hasUnrated(organizationId, periodStart, periodEnd)
+                || invoiceRepository.hasStaleCharges(organizationId, periodStart)) {
+            deferred.incrementAndGet();
+            logger.info("Invoice {} waits for usage and period charges to be rated", invoiceId);
+            return existing != null ? existing : new InvoiceState(invoiceId, organizationId, periodStart, periodEnd,
+                    InvoiceRepository.STATUS_CLOSING, null, null, 0, 0, null);
+        }
+        invoiceRepository.createInvoice(invoiceId, organizationId, periodStart, periodEnd);
+
+        long started = System.currentTimeMillis();
+        while (Boolean.TRUE.equals(transactionTemplate.execute(status -> billChunk(invoiceId)))) {
+            // Each chunk commits on its own
+        }
+        InvoiceState closed = invoiceRepository.findInvoice(invoiceId);
+        logger.info("Closed invoice {}: {} rows, amount {} in {} ms", invoiceId, closed.rowsBilled(),
+                closed.totalAmount(), System.currentTimeMillis() - started);
+        return closed;
+    }
+
+    /**
+     * Bills the next chunk of the invoice, or closes it when nothing is left.
+     *
+     * @return whether another chunk may follow
+     */
+    private boolean billChunk(String invoiceId) {
+        long started = System.currentTimeMillis();
+        InvoiceState invoice = invoiceRepository.lockInvoice(invoiceId);
+        if (!InvoiceRepository.STATUS_CLOSING.equals(invoice.status())) {
+            return false;
+        }
+        Instant afterTimestamp = invoice.cursorTimestamp() != null ? invoice.cursorTimestamp() : invoice.periodStart();
+        long afterUsageId = invoice.cursorUsageId() != null ? invoice.cursorUsageId() : -1;
+
+        Map<LineKey, LineTotals> lines = new HashMap<>();
+        Instant[] lastTimestamp = {null};
+        long[] lastUsageId = {0};
+        long[] rows = {0};
+        double[] amount = {0};
+        invoiceRepository.billChunk(invoice, afterTimestamp, afterUsageId, config.getChunkSize(), config.getFetchSize(),
+                (consumerId, metricType, unitPrice, currency, billableUnits, totalCost, timestamp, usageId) -> {
+                    LineTotals line = lines.computeIfAbsent(
+                            new LineKey(consumerId, metricType, unitPrice, currency), k -> new LineTotals());
+                    line.requestCount++;
+                    line.quantity += billableUnits;
+                    line.amount += totalCost;
+                    rows[0]++;
+                    amount[0] += totalCost;
+                    // RETURNING order is unspecified; the cursor is the largest key billed
+                    int order = lastTimestamp[0] == null ? 1 : timestamp.compareTo(lastTimestamp[0]);
+                    if (order > 0 || (order == 0 && usageId > lastUsageId[0])) {
+                        lastTimestamp[0] = timestamp;
+                        lastUsageId[0] = usageId;
+                    }
+                });
+
+        if (rows[0] == 0) {
+            invoiceRepository.close(invoiceId, invoiceRepository.addPeriodAdjustments(invoice));
+            invoicesClosed.incrementAndGet();
+            return false;
+        }
+        List<InvoiceLine> totals = new ArrayList<>(lines.size());
+        lines.forEach((key, line) -> totals.add(new InvoiceLine(InvoiceRepository.LINE_USAGE, key.consumerId(),
+                key.metricType(), key.unitPrice(), key.currency(), line.requestCount, line.quantity, line.amount)));
+        invoiceRepository.addLines(invoiceId, totals);
+        invoiceRepository.advance(invoiceId, lastTimestamp[0], lastUsageId[0], rows[0], amount[0]);
+
+        chunks.incrementAndGet();
+        rowsBilled.addAndGet(rows[0]);
+        lastChunkMillis = System.currentTimeMillis() - started;
+        return true;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        stats.put("invoicesClosed", invoicesClosed.get());
+        stats.put("chunks", chunks.get());
+        stats.put("rowsBilled", rowsBilled.get());
+        stats.put("deferred", deferred.get());
+        stats.put("lastChunkMs", lastChunkMillis);
+        return stats;
+    }
+
+    private static Instant start(YearMonth period) {
+        return period.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+}
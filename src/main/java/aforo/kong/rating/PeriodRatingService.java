@@ -0,0 +1,197 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.UsagePeriodRepository;
+import aforo.kong.repository.UsagePeriodRepository.PeriodCharge;
+import aforo.kong.repository.UsagePeriodRepository.PeriodTotal;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.wallet.WalletLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rates whole billing periods (calendar months, UTC) from the running totals the
+ * {@link RatingEngine} keeps per consumer and metric, so tiered, volume and stairstep
+ * charges see the cumulative quantity rather than one record at a time.
+ * <p>
+ * A run reads one row per consumer and metric, never the usage records themselves. Open
+ * periods (the current month, and the previous one during the grace period) are re-rated
+ * when their total, the consumer's plan or the plan itself changed; a closed period is
+ * re-rated only when a late event moved its total.
+ * <p>
+ * For tiered, volume and stairstep plans the period charge is authoritative: the rating
+ * engine debits prepaid wallets per record at the first tier's price, and every re-rating
+ * posts the difference between the period charge and the per-record cost of the same usage
+ * as a wallet true-up (a debit, or a credit when the tiers come out cheaper). Only the change
+ * since the previous true-up is posted, in the transaction that stores the charge, and a
+ * per-organization lock keeps overlapping runs from posting it twice. Invoices bill the
+ * period charge the same way (see {@link InvoiceCloseService}). The plan's minimum fee raises
+ * each period charge of a metric the plan prices. Per-unit and flat plans are billed and
+ * debited per record only.
+ */
+@Component
+public class PeriodRatingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PeriodRatingService.class);
+
+    private final UsagePeriodRepository periodRepository;
+    private final PricingPlanCache pricingPlanCache;
+    private final WalletLedgerRepository walletLedgerRepository;
+    private final WalletLedger walletLedger;
+    private final TransactionTemplate transactionTemplate;
+    private final RatingProperties.Period config;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong chargesWritten = new AtomicLong();
+    private final AtomicLong walletTrueUps = new AtomicLong();
+    private volatile long lastRunMillis;
+
+    public PeriodRatingService(UsagePeriodRepository periodRepository,
+                               PricingPlanCache pricingPlanCache,
+                               WalletLedgerRepository walletLedgerRepository,
+                               WalletLedger walletLedger,
+                               TransactionTemplate transactionTemplate,
+                               RatingProperties properties) {
+        this.periodRepository = periodRepository;
+        this.pricingPlanCache = pricingPlanCache;
+        this.walletLedgerRepository = walletLedgerRepository;
+        this.walletLedger = walletLedger;
+        this.transactionTemplate = transactionTemplate;
+        this.config = properties.getPeriod();
+    }
+
+    /**
+     * Start of the billing period containing the instant.
+     */
+    public static Instant periodStart(Instant instant) {
+        return YearMonth.from(instant.atZone(ZoneOffset.UTC)).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+    }
+
+    @Scheduled(fixedDelayString = "${kong.rating.period.interval-ms:60000}")
+    public void scheduledRun() {
+        if (config.isEnabled()) {
+            rateAll();
+        }
+    }
+
+    /**
+     * Re-rates every organization's changed period totals.
+     *
+     * @return the number of charges written
+     */
+    public int rateAll() {
+        long started = System.currentTimeMillis();
+        Instant openFrom = openFrom(Instant.now());
+        int written = 0;
+        for (Long organizationId : periodRepository.findOrganizations()) {
+            try {
+                written += rateOrganization(organizationId, openFrom);
+            } catch (Exception e) {
+                logger.error("Period rating failed for org: {}", organizationId, e);
+            }
+        }
+        runs.incrementAndGet();
+        chargesWritten.addAndGet(written);
+        lastRunMillis = System.currentTimeMillis() - started;
+        if (written > 0) {
+            logger.info("Rated {} period charges in {} ms", written, lastRunMillis);
+        }
+        return written;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        stats.put("runs", runs.get());
+        stats.put("chargesWritten", chargesWritten.get());
+        stats.put("walletTrueUps", walletTrueUps.get());
+        stats.put("lastRunMs", lastRunMillis);
+        stats.put("openFrom", openFrom(Instant.now()));
+        return stats;
+    }
+
+    int rateOrganization(Long organizationId, Instant openFrom) {
+        Map<String, Double> trueUps = new LinkedHashMap<>();
+        Integer written = transactionTemplate.execute(status -> {
+            periodRepository.lockOrganization(organizationId);
+            List<PeriodCharge> charges = new ArrayList<>();
+            for (PeriodTotal total : periodRepository.findTotalsToRate(organizationId, openFrom)) {
+                PeriodCharge charge = rate(organizationId, total);
+                if (charge == null) {
+                    continue;
+                }
+                double trueUp = charge.walletSettled() - total.walletSettled();
+                if (trueUp != 0) {
+                    trueUps.merge(total.consumerId(), trueUp, Double::sum);
+                }
+                charges.add(charge);
+            }
+            walletLedgerRepository.journalDebits(organizationId, trueUps);
+            return periodRepository.saveCharges(organizationId, charges);
+        });
+        trueUps.forEach((consumerId, amount) -> walletLedger.applyCommitted(organizationId, consumerId, -amount));
+        walletTrueUps.addAndGet(trueUps.size());
+        return written != null ? written : 0;
+    }
+
+    /**
+     * The total's new charge, or null if it has none or its charge is up to date.
+     */
+    private PeriodCharge rate(Long organizationId, PeriodTotal total) {
+        PricingPlanCache.ConsumerPlan consumer = pricingPlanCache.getConsumerPlan(organizationId, total.consumerId());
+        if (consumer == null) {
+            return null;
+        }
+        CompiledPricingPlan plan = consumer.planName() != null
+                ? pricingPlanCache.getPlan(organizationId, consumer.planName()) : null;
+        if (plan != null && !plan.isValid()) {
+            return null;
+        }
+        Instant planUpdatedAt = plan != null ? plan.getUpdatedAt() : null;
+        boolean unchanged = total.updatedAt().equals(total.chargedSourceUpdatedAt())
+                && Objects.equals(consumer.planName(), total.chargedPlanName())
+                && Objects.equals(planUpdatedAt, total.chargedPlanUpdatedAt());
+        if (unchanged) {
+            return null;
+        }
+
+        double amount = 0.0;
+        if (plan != null) {
+            CompiledPricingPlan.MetricRate rate = plan.metric(total.metricType());
+            amount = TierPricing.charge(plan.getPricingModel(), rate, total.quantity());
+            // The period charge is what these models bill, so the minimum fee applies to it
+            if (rate != null && TierPricing.isPeriodPriced(plan.getPricingModel())) {
+                amount = plan.applyMinimumFee(amount);
+            }
+        }
+        // Wallet-funded period-priced usage owes the charge; the records already paid recordCost of it
+        boolean settles = plan != null && plan.isPrepaid() && consumer.hasWallet()
+                && TierPricing.isPeriodPriced(plan.getPricingModel());
+        double walletSettled = settles ? amount - total.recordCost() : 0.0;
+        return new PeriodCharge(total.periodStart(), total.consumerId(), total.metricType(),
+                consumer.planName(), plan != null ? plan.getPricingModel() : null, total.quantity(), amount,
+                plan != null ? plan.getCurrency() : null, planUpdatedAt, total.updatedAt(), total.recordCost(),
+                walletSettled);
+    }
+
+    private Instant openFrom(Instant now) {
+        Instant current = periodStart(now);
+        Instant previous = periodStart(current.minusSeconds(1));
+        boolean inGrace = now.isBefore(current.plus(Duration.ofDays(config.getGraceDays())));
+        return inGrace ? previous : current;
+    }
+}
@@ -0,0 +1,207 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.entity.PricingPlan;
+import aforo.kong.repository.KongConsumerRepository;
+import aforo.kong.repository.PricingPlanRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-organization cache of {@link CompiledPricingPlan}s and consumer-to-plan assignments, so
+ * rating a usage record needs no query and no JSON parsing.
+ * <p>
+ * Entries are revalidated rather than expired: every few seconds one cheap query per
+ * organization reads plan names and update times, and only plans whose {@code updatedAt}
+ * changed are recompiled. Assignments are reloaded when the consumer count or latest
+ * consumer update changes, and at least every {@code assignmentMaxAgeSeconds}.
+ */
+@Component
+public class PricingPlanCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(PricingPlanCache.class);
+
+    private final PricingPlanRepository pricingPlanRepository;
+    private final KongConsumerRepository consumerRepository;
+    private final ObjectMapper objectMapper;
+    private final RatingProperties properties;
+
+    private final Map<Long, OrgEntry> organizations = new ConcurrentHashMap<>();
+
+    private final LongAdder planHits = new LongAdder();
+    private final LongAdder planCompiles = new LongAdder();
+    private final LongAdder assignmentHits = new LongAdder();
+    private final LongAdder assignmentLoads = new LongAdder();
+
+    /**
+     * Plan assignment of one consumer; {@code planName} is null when the consumer has no plan.
+     */
+    public record ConsumerPlan(String planName, boolean hasWallet) {
+    }
+
+    /** Negative entry for a consumer ID the organization does not have; gone with the next reload */
+    private static final ConsumerPlan UNKNOWN_CONSUMER = new ConsumerPlan(null, false);
+
+    private static final class OrgEntry {
+        private final Map<String, CompiledPricingPlan> plans = new ConcurrentHashMap<>();
+        private volatile Map<String, ConsumerPlan> consumers = new ConcurrentHashMap<>();
+        private volatile long plansCheckedAt;
+        private volatile long consumersCheckedAt;
+        private volatile long consumersLoadedAt;
+        private volatile List<Object> consumerVersion;
+    }
+
+    public PricingPlanCache(PricingPlanRepository pricingPlanRepository,
+                            KongConsumerRepository consumerRepository,
+                            ObjectMapper objectMapper,
+                            RatingProperties properties) {
+        this.pricingPlanRepository = pricingPlanRepository;
+        this.consumerRepository = consumerRepository;
+        this.objectMapper = objectMapper;
+        this.properties = properties;
+    }
+
+    /**
+     * Compiled plan by name, or null if the organization has no such plan.
+     */
+    public CompiledPricingPlan getPlan(Long organizationId, String planName) {
+        OrgEntry entry = entry(organizationId);
+        long now = System.nanoTime();
+        if (now - entry.plansCheckedAt > revalidateNanos()) {
+            revalidatePlans(organizationId, entry, now);
+        }
+
+        CompiledPricingPlan plan = entry.plans.get(planName);
+        if (plan != null) {
+            planHits.increment();
+            return plan;
+        }
+        return pricingPlanRepository.findByPlanNameAndOrganizationId(planName, organizationId)
+                .map(found -> {
+                    CompiledPricingPlan compiled = compile(found);
+                    entry.plans.put(planName, compiled);
+                    return compiled;
+                })
+                .orElse(null);
+    }
+
+    /**
+     * Plan assignment of the consumer, or null if the organization has no such consumer.
+     */
+    public ConsumerPlan getConsumerPlan(Long organizationId, String consumerId) {
+        OrgEntry entry = entry(organizationId);
+        long now = System.nanoTime();
+        if (now - entry.consumersCheckedAt > revalidateNanos()) {
+            revalidateConsumers(organizationId, entry, now);
+        }
+
+        ConsumerPlan assignment = entry.consumers.get(consumerId);
+        if (assignment != null) {
+            assignmentHits.increment();
+            return assignment == UNKNOWN_CONSUMER ? null : assignment;
+        }
+        // Consumer created since the last reload
+        ConsumerPlan loaded = consumerRepository.findByIdAndOrganizationId(consumerId, organizationId)
+                .map(consumer -> new ConsumerPlan(consumer.getPlanId(), consumer.getWalletBalance() != null))
+                .orElse(UNKNOWN_CONSUMER);
+        entry.consumers.put(consumerId, loaded);
+        return loaded == UNKNOWN_CONSUMER ? null : loaded;
+    }
+
+    /**
+     * Drops everything cached for the organization.
+     */
+    public void invalidate(Long organizationId) {
+        organizations.remove(organizationId);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("organizations", organizations.size());
+        stats.put("plans", organizations.values().stream().mapToInt(e -> e.plans.size()).sum());
+        stats.put("consumers", organizations.values().stream().mapToInt(e -> e.consumers.size()).sum());
+        stats.put("planHits", planHits.sum());
+        stats.put("planCompiles", planCompiles.sum());
+        stats.put("assignmentHits", assignmentHits.sum());
+        stats.put("assignmentLoads", assignmentLoads.sum());
+        return stats;
+    }
+
+    private OrgEntry entry(Long organizationId) {
+        return organizations.computeIfAbsent(organizationId, id -> {
+            OrgEntry entry = new OrgEntry();
+            // Force a first check on the initial lookup
+            entry.plansCheckedAt = System.nanoTime() - revalidateNanos() - 1;
+            entry.consumersCheckedAt = entry.plansCheckedAt;
+            return entry;
+        });
+    }
+
+    private void revalidatePlans(Long organizationId, OrgEntry entry, long now) {
+        synchronized (entry.plans) {
+            if (now - entry.plansCheckedAt <= revalidateNanos()) {
+                return;
+            }
+            Map<String, Instant> versions = new HashMap<>();
+            for (Object[] row : pricingPlanRepository.findPlanVersions(organizationId)) {
+                versions.put((String) row[0], (Instant) row[1]);
+            }
+            // Stale or deleted plans are dropped and recompiled on their next lookup
+            entry.plans.entrySet().removeIf(cached -> {
+                Instant current = versions.get(cached.getKey());
+                return current == null || !current.equals(cached.getValue().getUpdatedAt());
+            });
+            entry.plansCheckedAt = now;
+        }
+    }
+
+    private void revalidateConsumers(Long organizationId, OrgEntry entry, long now) {
+        synchronized (entry) {
+            if (now - entry.consumersCheckedAt <= revalidateNanos()) {
+                return;
+            }
+            List<Object[]> rows = consumerRepository.findAssignmentVersion(organizationId);
+            List<Object> version = rows.isEmpty() ? List.of() : Arrays.asList(rows.get(0));
+            boolean expired = now - entry.consumersLoadedAt
+                    > TimeUnit.SECONDS.toNanos(properties.getPlanCache().getAssignmentMaxAgeSeconds());
+            if (expired || entry.consumerVersion == null || !Objects.equals(version, entry.consumerVersion)) {
+                Map<String, ConsumerPlan> consumers = new ConcurrentHashMap<>();
+                for (Object[] row : consumerRepository.findPlanAssignments(organizationId)) {
+                    consumers.put((String) row[0], new ConsumerPlan((String) row[1], Boolean.TRUE.equals(row[2])));
+                }
+                entry.consumers = consumers;
+                entry.consumerVersion = version;
+                entry.consumersLoadedAt = now;
+                assignmentLoads.increment();
+                logger.debug("Loaded {} consumer plan assignments for org: {}", consumers.size(), organizationId);
+            }
+            entry.consumersCheckedAt = now;
+        }
+    }
+
+    private CompiledPricingPlan compile(PricingPlan plan) {
+        CompiledPricingPlan compiled = CompiledPricingPlan.compile(plan, objectMapper);
+        planCompiles.increment();
+        if (!compiled.isValid()) {
+            logger.error("Pricing plan {} of org {} has unreadable metrics", plan.getPlanName(), plan.getOrganizationId());
+        }
+        return compiled;
+    }
+
+    private long revalidateNanos() {
+        return TimeUnit.SECONDS.toNanos(properties.getPlanCache().getRevalidateSeconds());
+    }
+}
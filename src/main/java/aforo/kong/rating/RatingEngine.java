@@ -0,0 +1,384 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.UsagePeriodRepository;
+import aforo.kong.repository.UsagePeriodRepository.PeriodQuantity;
+import aforo.kong.repository.UsageRatingRepository;
+import aforo.kong.repository.UsageRatingRepository.RatedUsage;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.UsageRatingRepository.UnratedUsage;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.tenant.TenantContext;
+import aforo.kong.wallet.WalletLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rates unprocessed usage records of every organization in the background.
+ * <p>
+ * A cycle finds the organizations with unrated rows and pages each one by keyset on
+ * (timestamp, usage_id), oldest first. Pages are taken in rounds, one page per organization
+ * per round, so a large backlog in one organization does not hold up the others. Each page
+ * is split into lanes by consumer and the lanes run in parallel; one consumer always lands
+ * in the same lane and an organization's next page is only read once its current page is
+ * written, so wallet deductions stay in record order. A lane prices its rows (the same way as
+ * UsageProcessingService.calculateCost; rows that cannot be priced are still marked processed)
+ * and claims them with one batched UPDATE that only matches rows still unprocessed, so when
+ * runners overlap each row is counted by exactly one of them. From the claimed rows alone it
+ * writes its wallet debits to the journal of the {@link WalletLedger}, its additions to the
+ * running period totals (see {@link PeriodRatingService}) and to the hourly / daily usage
+ * rollups with one statement each, in the same transaction as the claim.
+ * <p>
+ * Progress is kept per organization in usage_rating_checkpoint. Paging always restarts
+ * from the oldest unrated row, so late-arriving records are picked up; the checkpoint shows
+ * how far rating has got and how far behind real time it is.
+ */
+@Component
+public class RatingEngine implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(RatingEngine.class);
+
+    private final UsageRatingRepository ratingRepository;
+    private final UsagePeriodRepository periodRepository;
+    private final UsageRollupRepository rollupRepository;
+    private final WalletLedgerRepository walletLedgerRepository;
+    private final WalletLedger walletLedger;
+    private final UsagePricer usagePricer;
+    private final TransactionTemplate transactionTemplate;
+    private final RatingProperties.Engine config;
+
+    private final AtomicBoolean cycleRunning = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile ExecutorService lanes;
+
+    private final AtomicLong cycles = new AtomicLong();
+    private final AtomicLong ratedTotal = new AtomicLong();
+    private final AtomicLong unratedTotal = new AtomicLong();
+    private final AtomicLong failedTotal = new AtomicLong();
+    private final AtomicLong walletDeductions = new AtomicLong();
+    private volatile Instant lastCycleStartedAt;
+    private volatile long lastCycleMillis;
+    private volatile long lastCycleRecords;
+    private final Map<Long, OrgProgress> progress = new ConcurrentHashMap<>();
+
+    private static final class OrgProgress {
+        private volatile Instant lastTimestamp;
+        private volatile long lastUsageId;
+        private volatile long lagSeconds;
+        private final AtomicLong rated = new AtomicLong();
+    }
+
+    /** Keyset cursor of one organization within a cycle */
+    private static final class Cursor {
+        private final Long organizationId;
+        private Instant timestamp = Instant.EPOCH;
+        private long usageId = -1;
+        private List<UnratedUsage> page;
+        private List<Future<Integer>> lanes;
+
+        private Cursor(Long organizationId) {
+            this.organizationId = organizationId;
+        }
+    }
+
+    public RatingEngine(UsageRatingRepository ratingRepository,
+                        UsagePeriodRepository periodRepository,
+                        UsageRollupRepository rollupRepository,
+                        WalletLedgerRepository walletLedgerRepository,
+                        WalletLedger walletLedger,
+                        UsagePricer usagePricer,
+                        TransactionTemplate transactionTemplate,
+                        RatingProperties properties) {
+        this.ratingRepository = ratingRepository;
+        this.periodRepository = periodRepository;
+        this.rollupRepository = rollupRepository;
+        this.walletLedgerRepository = walletLedgerRepository;
+        this.walletLedger = walletLedger;
+        this.usagePricer = usagePricer;
+        this.transactionTemplate = transactionTemplate;
+        this.config = properties.getEngine();
+    }
+
+    @Scheduled(fixedDelayString = "${kong.rating.engine.interval-ms:5000}")
+    public void scheduledCycle() {
+        if (config.isEnabled()) {
+            runCycle();
+        }
+    }
+
+    /**
+     * Rates everything unrated up to now. Returns immediately if a cycle is already running.
+     *
+     * @return the number of records written in this cycle
+     */
+    public long runCycle() {
+        ExecutorService executor = lanes;
+        if (!running || executor == null || !cycleRunning.compareAndSet(false, true)) {
+            return 0;
+        }
+        long started = System.nanoTime();
+        Instant upTo = Instant.now();
+        long written = 0;
+        try {
+            List<Cursor> active = new ArrayList<>();
+            for (Long organizationId : ratingRepository.findOrganizationsWithUnrated()) {
+                active.add(new Cursor(organizationId));
+            }
+            while (!active.isEmpty() && running) {
+                for (Cursor cursor : active) {
+                    cursor.page = ratingRepository.findUnratedPage(cursor.organizationId,
+                            cursor.timestamp, cursor.usageId, upTo, config.getPageSize());
+                    cursor.lanes = submitLanes(executor, cursor.organizationId, cursor.page);
+                }
+                List<Cursor> next = new ArrayList<>(active.size());
+                for (Cursor cursor : active) {
+                    written += finishPage(cursor);
+                    if (cursor.page.size() == config.getPageSize()) {
+                        next.add(cursor);
+                    }
+                }
+                active = next;
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug("Rating cycle interrupted by shutdown");
+        } catch (Exception e) {
+            logger.error("Rating cycle failed", e);
+        } finally {
+            lastCycleStartedAt = upTo;
+            lastCycleMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            lastCycleRecords = written;
+            cycles.incrementAndGet();
+            cycleRunning.set(false);
+        }
+        if (written > 0) {
+            logger.info("Rated {} usage records in {} ms", written, lastCycleMillis);
+        }
+        return written;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> byOrg = new TreeMap<>();
+        progress.forEach((orgId, p) -> {
+            Map<String, Object> org = new LinkedHashMap<>();
+            org.put("rated", p.rated.get());
+            org.put("lastTimestamp", p.lastTimestamp);
+            org.put("lastUsageId", p.lastUsageId);
+            org.put("lagSeconds", p.lagSeconds);
+            byOrg.put(String.valueOf(orgId), org);
+        });
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", config.isEnabled());
+        stats.put("running", cycleRunning.get());
+        stats.put("lanes", config.getLanes());
+        stats.put("cycles", cycles.get());
+        stats.put("ratedTotal", ratedTotal.get());
+        stats.put("unratedTotal", unratedTotal.get());
+        stats.put("failedTotal", failedTotal.get());
+        stats.put("walletDeductions", walletDeductions.get());
+        stats.put("lastCycleStartedAt", lastCycleStartedAt);
+        stats.put("lastCycleMs", lastCycleMillis);
+        stats.put("lastCycleRecords", lastCycleRecords);
+        stats.put("lastCycleRecordsPerSecond",
+                lastCycleMillis == 0 ? 0.0 : lastCycleRecords * 1000.0 / lastCycleMillis);
+        stats.put("maxLagSeconds", progress.values().stream().mapToLong(p -> p.lagSeconds).max().orElse(0));
+        stats.put("organizations", byOrg);
+        stats.put("checkpoints", ratingRepository.findCheckpoints());
+        return stats;
+    }
+
+    private List<Future<Integer>> submitLanes(ExecutorService executor, Long organizationId, List<UnratedUsage> page) {
+        if (page.isEmpty()) {
+            return List.of();
+        }
+        int laneCount = Math.max(1, config.getLanes());
+        List<List<UnratedUsage>> split = new ArrayList<>(laneCount);
+        for (int i = 0; i < laneCount; i++) {
+            split.add(new ArrayList<>());
+        }
+        for (UnratedUsage usage : page) {
+            int lane = usage.consumerId() == null ? 0 : (usage.consumerId().hashCode() & 0x7fffffff) % laneCount;
+            split.get(lane).add(usage);
+        }
+        List<Future<Integer>> futures = new ArrayList<>(laneCount);
+        for (List<UnratedUsage> laneRows : split) {
+            if (!laneRows.isEmpty()) {
+                futures.add(executor.submit(() -> rateLane(organizationId, laneRows)));
+            }
+        }
+        return futures;
+    }
+
+    private long finishPage(Cursor cursor) {
+        long written = 0;
+        for (Future<Integer> lane : cursor.lanes) {
+            try {
+                written += lane.get();
+            } catch (ExecutionException e) {
+                // The lane's rows stay unprocessed and are retried next cycle
+                logger.error("Rating lane failed for org: {}", cursor.organizationId, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return written;
+            }
+        }
+
+        OrgProgress p = progress.computeIfAbsent(cursor.organizationId, id -> new OrgProgress());
+        Instant lastTimestamp = null;
+        Long lastUsageId = null;
+        if (!cursor.page.isEmpty()) {
+            UnratedUsage last = cursor.page.get(cursor.page.size() - 1);
+            cursor.timestamp = last.timestamp();
+            cursor.usageId = last.usageId();
+            lastTimestamp = last.timestamp();
+            lastUsageId = last.usageId();
+            p.lastTimestamp = lastTimestamp;
+            p.lastUsageId = lastUsageId;
+        }
+        boolean drained = cursor.page.size() < config.getPageSize();
+        p.lagSeconds = drained || lastTimestamp == null
+                ? 0 : Math.max(0, Duration.between(lastTimestamp, Instant.now()).getSeconds());
+        p.rated.addAndGet(written);
+        ratingRepository.saveCheckpoint(cursor.organizationId, lastTimestamp, lastUsageId, written, p.lagSeconds);
+        return written;
+    }
+
+    private int rateLane(Long organizationId, List<UnratedUsage> rows) {
+        TenantContext.set(organizationId);
+        try {
+            List<RatedUsage> ratings = new ArrayList<>(rows.size());
+            List<UsagePricer.Price> prices = new ArrayList<>(rows.size());
+            for (UnratedUsage usage : rows) {
+                UsagePricer.Price price = usagePricer.price(organizationId, usage.consumerId(), usage.metricType(),
+                        usage.billableUnits());
+                prices.add(price);
+                ratings.add(new RatedUsage(usage.usageId(), usage.timestamp(),
+                        price.unitPrice(), price.totalCost(), price.currency()));
+            }
+
+            // Totals, rollups and debits only count the rows this lane claimed; rows another
+            // runner rated in the meantime are left to that runner
+            Map<String, Double> deductions = new LinkedHashMap<>();
+            int[] unpriced = new int[1];
+            Integer written = transactionTemplate.execute(status -> {
+                Set<Long> claimed = ratingRepository.claimRatings(organizationId, ratings);
+                List<UnratedUsage> claimedRows = new ArrayList<>(claimed.size());
+                List<RatedUsage> claimedRatings = new ArrayList<>(claimed.size());
+                for (int i = 0; i < rows.size(); i++) {
+                    UnratedUsage usage = rows.get(i);
+                    if (!claimed.contains(usage.usageId())) {
+                        continue;
+                    }
+                    UsagePricer.Price price = prices.get(i);
+                    claimedRows.add(usage);
+                    claimedRatings.add(ratings.get(i));
+                    if (price.totalCost() == null) {
+                        unpriced[0]++;
+                    } else if (price.fromWallet() && price.totalCost() != 0) {
+                        deductions.merge(usage.consumerId(), price.totalCost(), Double::sum);
+                    }
+                }
+                periodRepository.addTotals(organizationId, periodQuantities(claimedRows));
+                rollupRepository.addRated(organizationId, claimedRatings);
+                walletLedgerRepository.journalDebits(organizationId, deductions);
+                return claimedRows.size();
+            });
+            deductions.forEach((consumerId, amount) -> walletLedger.applyCommitted(organizationId, consumerId, -amount));
+            walletDeductions.addAndGet(deductions.size());
+            if (unpriced[0] > 0) {
+                logger.warn("{} usage records of org {} left unpriced: no consumer, pricing plan or readable metrics",
+                        unpriced[0], organizationId);
+                unratedTotal.addAndGet(unpriced[0]);
+            }
+            ratedTotal.addAndGet(written != null ? written : 0);
+            return written != null ? written : 0;
+        } catch (RuntimeException e) {
+            failedTotal.addAndGet(rows.size());
+            throw e;
+        } finally {
+            TenantContext.clear();
+        }
+    }
+
+    /**
+     * Lane rows summed per consumer, metric and billing period, for the running totals that
+     * {@link PeriodRatingService} rates from. Rows are added once, in the transaction that
+     * claims them.
+     */
+    private static List<PeriodQuantity> periodQuantities(List<UnratedUsage> rows) {
+        Map<PeriodQuantity, Double> sums = new LinkedHashMap<>();
+        for (UnratedUsage usage : rows) {
+            if (usage.consumerId() == null) {
+                continue;
+            }
+            PeriodQuantity key = new PeriodQuantity(PeriodRatingService.periodStart(usage.timestamp()),
+                    usage.consumerId(), usage.metricType() != null ? usage.metricType() : UsagePricer.DEFAULT_METRIC, 0);
+            sums.merge(key, usage.billableUnits() != null ? usage.billableUnits() : 1.0, Double::sum);
+        }
+        List<PeriodQuantity> quantities = new ArrayList<>(sums.size());
+        sums.forEach((key, quantity) ->
+                quantities.add(new PeriodQuantity(key.periodStart(), key.consumerId(), key.metricType(), quantity)));
+        return quantities;
+    }
+
+    @Override
+    public void start() {
+        int laneCount = Math.max(1, config.getLanes());
+        AtomicInteger threadIndex = new AtomicInteger();
+        lanes = Executors.newFixedThreadPool(laneCount, r -> {
+            Thread t = new Thread(r, "usage-rating-lane-" + threadIndex.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        logger.info("Usage rating engine started: lanes={}, pageSize={}, enabled={}",
+                laneCount, config.getPageSize(), config.isEnabled());
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (lanes == null) {
+            return;
+        }
+        // Let the current page finish; its lanes commit independently
+        lanes.shutdown();
+        try {
+            if (!lanes.awaitTermination(30, TimeUnit.SECONDS)) {
+                lanes.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lanes.shutdownNow();
+        }
+        lanes = null;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+}
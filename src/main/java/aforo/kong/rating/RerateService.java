@@ -0,0 +1,390 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.KongConsumerRepository;
+import aforo.kong.repository.RerateRepository;
+import aforo.kong.repository.RerateRepository.DiffLine;
+import aforo.kong.repository.RerateRepository.RatedRow;
+import aforo.kong.repository.RerateRepository.RerateJob;
+import aforo.kong.repository.RerateRepository.ReratePartition;
+import aforo.kong.repository.UsageRatingRepository;
+import aforo.kong.repository.UsageRatingRepository.RatedUsage;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.tenant.TenantContext;
+import aforo.kong.wallet.WalletLedger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-rates processed usage of an organization against its current pricing plans, after a plan
+ * was edited or a consumer moved to another plan.
+ * <p>
+ * A job is split into partitions of one consumer's usage in one month, which run on virtual
+ * threads, {@code parallelism} at a time. A partition is re-priced a page at a time with the
+ * same rules as the rating engine; each page writes the changed rows, the rollup cost deltas,
+ * the job's diff report and the partition's cursor in one transaction, so an interrupted job
+ * resumes after its last committed page. A dry run only writes the diff report and cursors.
+ * Billed rows and rows that cannot be priced now are left as they are.
+ */
+@Component
+public class RerateService {
+
+    private static final Logger logger = LoggerFactory.getLogger(RerateService.class);
+
+    private static final double EPSILON = 1e-9;
+
+    private final RerateRepository rerateRepository;
+    private final UsageRatingRepository ratingRepository;
+    private final UsageRollupRepository rollupRepository;
+    private final WalletLedgerRepository walletLedgerRepository;
+    private final WalletLedger walletLedger;
+    private final KongConsumerRepository consumerRepository;
+    private final PricingPlanCache pricingPlanCache;
+    private final UsagePricer usagePricer;
+    private final TransactionTemplate transactionTemplate;
+    private final RatingProperties.Rerate config;
+
+    private final Set<Long> runningJobs = ConcurrentHashMap.newKeySet();
+    private final AtomicLong jobsStarted = new AtomicLong();
+    private final AtomicLong jobsCompleted = new AtomicLong();
+    private final AtomicLong jobsFailed = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong rowsScanned = new AtomicLong();
+    private final AtomicLong rowsChanged = new AtomicLong();
+    private volatile long lastPageMillis;
+
+    /**
+     * What to re-rate: usage in [startTime, endTime) of the given consumers and of consumers
+     * currently on the given plans; neither means every consumer of the organization.
+     */
+    public record RerateRequest(Instant startTime, Instant endTime, List<String> consumerIds,
+                                List<String> planNames, boolean dryRun, boolean adjustWallets) {
+    }
+
+    private record DiffKey(String metricType, double oldUnitPrice, double newUnitPrice, String currency) {
+    }
+
+    private static final class DiffTotals {
+        private long requestCount;
+        private double oldCost;
+        private double newCost;
+    }
+
+    /**
+     * Outcome of one page; {@code walletDelta} is what was journaled against the wallet.
+     */
+    private record PageResult(boolean more, double walletDelta) {
+    }
+
+    public RerateService(RerateRepository rerateRepository,
+                         UsageRatingRepository ratingRepository,
+                         UsageRollupRepository rollupRepository,
+                         WalletLedgerRepository walletLedgerRepository,
+                         WalletLedger walletLedger,
+                         KongConsumerRepository consumerRepository,
+                         PricingPlanCache pricingPlanCache,
+                         UsagePricer usagePricer,
+                         TransactionTemplate transactionTemplate,
+                         RatingProperties properties) {
+        this.rerateRepository = rerateRepository;
+        this.ratingRepository = ratingRepository;
+        this.rollupRepository = rollupRepository;
+        this.walletLedgerRepository = walletLedgerRepository;
+        this.walletLedger = walletLedger;
+        this.consumerRepository = consumerRepository;
+        this.pricingPlanCache = pricingPlanCache;
+        this.usagePricer = usagePricer;
+        this.transactionTemplate = transactionTemplate;
+        this.config = properties.getRerate();
+    }
+
+    /**
+     * Creates a job with its partitions and starts it in the background.
+     *
+     * @throws IllegalArgumentException if the range is empty or no consumer matches
+     */
+    public RerateJob start(Long organizationId, RerateRequest request) {
+        if (request.startTime() == null || request.endTime() == null || !request.startTime().isBefore(request.endTime())) {
+            throw new IllegalArgumentException("startTime must be before endTime");
+        }
+        List<String> consumers = resolveConsumers(organizationId, request);
+        if (consumers.isEmpty()) {
+            throw new IllegalArgumentException("No consumers match the request");
+        }
+        List<ReratePartition> partitions = new ArrayList<>();
+        for (String consumerId : consumers) {
+            for (Instant[] slice : monthSlices(request.startTime(), request.endTime())) {
+                partitions.add(new ReratePartition(consumerId, slice[0], slice[1], RerateRepository.STATUS_RUNNING,
+                        null, null, 0, 0, 0));
+            }
+        }
+        Long jobId = transactionTemplate.execute(status -> {
+            long id = rerateRepository.createJob(organizationId, request.startTime(), request.endTime(),
+                    request.dryRun(), request.adjustWallets());
+            rerateRepository.addPartitions(id, partitions);
+            return id;
+        });
+        logger.info("Re-rate job {} of org {}: {} consumers, {} partitions, dry run: {}", jobId, organizationId,
+                consumers.size(), partitions.size(), request.dryRun());
+        // Plans may have been edited a moment ago; price against what is stored now
+        pricingPlanCache.invalidate(organizationId);
+        launch(rerateRepository.findJob(jobId));
+        return rerateRepository.findJob(jobId);
+    }
+
+    /**
+     * Continues an unfinished or failed job from its partitions' cursors.
+     *
+     * @return the job, or null if the organization has no such job
+     */
+    public RerateJob resume(Long organizationId, long jobId) {
+        RerateJob job = rerateRepository.findJob(jobId);
+        if (job == null || !job.organizationId().equals(organizationId)) {
+            return null;
+        }
+        if (RerateRepository.STATUS_COMPLETED.equals(job.status())) {
+            return job;
+        }
+        if (RerateRepository.STATUS_FAILED.equals(job.status())) {
+            rerateRepository.reopenJob(jobId);
+        }
+        launch(rerateRepository.findJob(jobId));
+        return rerateRepository.findJob(jobId);
+    }
+
+    /**
+     * Resumes jobs that were running when the application stopped.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeRunning() {
+        for (RerateJob job : rerateRepository.findRunningJobs()) {
+            logger.info("Resuming re-rate job {} of org {}", job.jobId(), job.organizationId());
+            launch(job);
+        }
+    }
+
+    public boolean isRunning(long jobId) {
+        return runningJobs.contains(jobId);
+    }
+
+    private void launch(RerateJob job) {
+        if (!runningJobs.add(job.jobId())) {
+            return;
+        }
+        jobsStarted.incrementAndGet();
+        Thread.ofVirtual().name("rerate-" + job.jobId()).start(() -> {
+            try {
+                run(job);
+            } finally {
+                runningJobs.remove(job.jobId());
+            }
+        });
+    }
+
+    private void run(RerateJob job) {
+        long started = System.currentTimeMillis();
+        List<ReratePartition> pending = rerateRepository.findPartitions(job.jobId()).stream()
+                .filter(p -> RerateRepository.STATUS_RUNNING.equals(p.status()))
+                .toList();
+        Semaphore permits = new Semaphore(Math.max(1, config.getParallelism()));
+        String error = null;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>(pending.size());
+            for (ReratePartition partition : pending) {
+                futures.add(executor.submit(() -> {
+                    permits.acquire();
+                    try {
+                        ratePartition(job, partition);
+                    } finally {
+                        permits.release();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    logger.error("Re-rate job {} partition failed", job.jobId(), e.getCause());
+                    if (error == null) {
+                        error = String.valueOf(e.getCause().getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = "Interrupted";
+                    break;
+                }
+            }
+        }
+        if (error == null) {
+            rerateRepository.finishJob(job.jobId(), RerateRepository.STATUS_COMPLETED, null);
+            jobsCompleted.incrementAndGet();
+            logger.info("Re-rate job {} completed in {} ms", job.jobId(), System.currentTimeMillis() - started);
+        } else {
+            rerateRepository.finishJob(job.jobId(), RerateRepository.STATUS_FAILED,
+                    error.length() > 1000 ? error.substring(0, 1000) : error);
+            jobsFailed.incrementAndGet();
+        }
+    }
+
+    private void ratePartition(RerateJob job, ReratePartition partition) {
+        TenantContext.set(job.organizationId());
+        try {
+            PageResult result;
+            do {
+                result = transactionTemplate.execute(status -> ratePage(job, partition));
+                if (result.walletDelta() != 0) {
+                    walletLedger.applyCommitted(job.organizationId(), partition.consumerId(), -result.walletDelta());
+                }
+            } while (result.more());
+        } finally {
+            TenantContext.clear();
+        }
+    }
+
+    /**
+     * Re-prices the partition's next page under its row lock.
+     */
+    private PageResult ratePage(RerateJob job, ReratePartition slice) {
+        long started = System.currentTimeMillis();
+        Long organizationId = job.organizationId();
+        ReratePartition partition = rerateRepository.lockPartition(job.jobId(), slice.consumerId(), slice.sliceStart());
+        if (!RerateRepository.STATUS_RUNNING.equals(partition.status())) {
+            return new PageResult(false, 0);
+        }
+        Instant afterTimestamp = partition.cursorTimestamp() != null ? partition.cursorTimestamp() : partition.sliceStart();
+        long afterUsageId = partition.cursorUsageId() != null ? partition.cursorUsageId() : -1;
+        List<RatedRow> rows = rerateRepository.findPage(organizationId, partition.consumerId(), afterTimestamp,
+                afterUsageId, partition.sliceEnd(), config.getPageSize(), !job.dryRun());
+
+        List<RatedUsage> changed = new ArrayList<>();
+        Map<DiffKey, DiffTotals> diff = new HashMap<>();
+        double costDelta = 0;
+        double walletDelta = 0;
+        for (RatedRow row : rows) {
+            UsagePricer.Price price = usagePricer.price(organizationId, partition.consumerId(), row.metricType(),
+                    row.billableUnits());
+            if (price.totalCost() == null || unchanged(row, price)) {
+                continue;
+            }
+            changed.add(new RatedUsage(row.usageId(), row.timestamp(), price.unitPrice(), price.totalCost(),
+                    price.currency()));
+            double oldCost = row.totalCost() != null ? row.totalCost() : 0;
+            DiffTotals totals = diff.computeIfAbsent(new DiffKey(
+                    row.metricType() != null ? row.metricType() : UsagePricer.DEFAULT_METRIC,
+                    row.unitPrice() != null ? row.unitPrice() : 0, price.unitPrice(),
+                    price.currency() != null ? price.currency() : ""), k -> new DiffTotals());
+            totals.requestCount++;
+            totals.oldCost += oldCost;
+            totals.newCost += price.totalCost();
+            costDelta += price.totalCost() - oldCost;
+            if (job.adjustWallets() && price.fromWallet()) {
+                walletDelta += price.totalCost() - oldCost;
+            }
+        }
+
+        if (!job.dryRun() && !changed.isEmpty()) {
+            rollupRepository.reprice(organizationId, changed);
+            ratingRepository.repriceRatings(organizationId, changed);
+            if (walletDelta != 0) {
+                walletLedgerRepository.journalDebits(organizationId, Map.of(partition.consumerId(), walletDelta));
+            }
+        }
+        rerateRepository.addDiff(job.jobId(), diffLines(partition.consumerId(), diff));
+        RatedRow last = rows.isEmpty() ? null : rows.get(rows.size() - 1);
+        boolean done = rows.size() < config.getPageSize();
+        rerateRepository.advance(job.jobId(), partition,
+                last != null ? last.timestamp() : partition.cursorTimestamp(),
+                last != null ? last.usageId() : afterUsageId,
+                rows.size(), changed.size(), costDelta, done);
+
+        pages.incrementAndGet();
+        rowsScanned.addAndGet(rows.size());
+        rowsChanged.addAndGet(changed.size());
+        lastPageMillis = System.currentTimeMillis() - started;
+        return new PageResult(!done, job.dryRun() ? 0 : walletDelta);
+    }
+
+    // A null currency (consumer without a plan) keeps the stored one, so it is no change
+    private static boolean unchanged(RatedRow row, UsagePricer.Price price) {
+        return row.unitPrice() != null && row.totalCost() != null
+                && Math.abs(row.unitPrice() - price.unitPrice()) < EPSILON
+                && Math.abs(row.totalCost() - price.totalCost()) < EPSILON
+                && (price.currency() == null || Objects.equals(row.currency(), price.currency()));
+    }
+
+    private static List<DiffLine> diffLines(String consumerId, Map<DiffKey, DiffTotals> diff) {
+        List<DiffLine> lines = new ArrayList<>(diff.size());
+        diff.forEach((key, totals) -> lines.add(new DiffLine(consumerId, key.metricType(), key.oldUnitPrice(),
+                key.newUnitPrice(), key.currency(), totals.requestCount, totals.oldCost, totals.newCost)));
+        return lines;
+    }
+
+    private List<String> resolveConsumers(Long organizationId, RerateRequest request) {
+        Collection<String> consumerIds = request.consumerIds() != null ? request.consumerIds() : List.of();
+        Collection<String> planNames = request.planNames() != null ? request.planNames() : List.of();
+        List<String> consumers = new ArrayList<>();
+        for (Object[] row : consumerRepository.findPlanAssignments(organizationId)) {
+            String consumerId = (String) row[0];
+            boolean all = consumerIds.isEmpty() && planNames.isEmpty();
+            if (all || consumerIds.contains(consumerId) || (row[1] != null && planNames.contains((String) row[1]))) {
+                consumers.add(consumerId);
+            }
+        }
+        return consumers;
+    }
+
+    /**
+     * Splits [start, end) at calendar month boundaries (UTC).
+     */
+    static List<Instant[]> monthSlices(Instant start, Instant end) {
+        List<Instant[]> slices = new ArrayList<>();
+        Instant sliceStart = start;
+        while (sliceStart.isBefore(end)) {
+            Instant nextMonth = YearMonth.from(sliceStart.atZone(ZoneOffset.UTC)).plusMonths(1)
+                    .atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant();
+            Instant sliceEnd = nextMonth.isBefore(end) ? nextMonth : end;
+            slices.add(new Instant[]{sliceStart, sliceEnd});
+            sliceStart = sliceEnd;
+        }
+        return slices;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runningJobs", runningJobs.size());
+        stats.put("jobsStarted", jobsStarted.get());
+        stats.put("jobsCompleted", jobsCompleted.get());
+        stats.put("jobsFailed", jobsFailed.get());
+        stats.put("pages", pages.get());
+        stats.put("rowsScanned", rowsScanned.get());
+        stats.put("rowsChanged", rowsChanged.get());
+        stats.put("lastPageMs", lastPageMillis);
+        stats.put("parallelism", config.getParallelism());
+        return stats;
+    }
+}
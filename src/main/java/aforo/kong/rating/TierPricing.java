@@ -0,0 +1,91 @@
+package aforo.kong.rating;
+
+import java.util.Locale;
+
+/**
+ * Charge for a whole period's quantity of one metric under a plan's pricing model.
+ * <p>
+ * A tier's {@code to} is its inclusive upper bound on the cumulative quantity and the
+ * tier starts where the previous one ended, so {@code [0-1000], [1001-]} prices the first
+ * 1000 units in the first tier and the rest in the second, for whole and fractional units
+ * alike. A tier without a price counts as free.
+ */
+public final class TierPricing {
+
+    public static final String TIERED = "tiered";
+    public static final String VOLUME = "volume";
+    public static final String STAIRSTEP = "stairstep";
+
+    private TierPricing() {
+    }
+
+    /**
+     * Whether the model prices a period's cumulative quantity, so that the period charge and
+     * not the sum of per-record costs is what the consumer owes.
+     */
+    public static boolean isPeriodPriced(String pricingModel) {
+        if (pricingModel == null) {
+            return false;
+        }
+        String model = pricingModel.toLowerCase(Locale.ROOT);
+        return TIERED.equals(model) || VOLUME.equals(model) || STAIRSTEP.equals(model);
+    }
+
+    /**
+     * Charge for {@code quantity} units. Models other than tiered, volume and stairstep
+     * (per_unit, prepaid) and metrics without tiers are charged per unit.
+     */
+    public static double charge(String pricingModel, CompiledPricingPlan.MetricRate rate, double quantity) {
+        if (rate == null || quantity <= 0) {
+            return 0.0;
+        }
+        if (!rate.isTiered()) {
+            return quantity * rate.unitPrice();
+        }
+        String model = pricingModel != null ? pricingModel.toLowerCase(Locale.ROOT) : "";
+        return switch (model) {
+            case TIERED -> graduated(rate, quantity);
+            case VOLUME -> quantity * price(rate, tierFor(rate, quantity));
+            case STAIRSTEP -> price(rate, tierFor(rate, quantity));
+            default -> quantity * rate.unitPrice();
+        };
+    }
+
+    /**
+     * Each tier prices the part of the quantity that falls inside it.
+     */
+    static double graduated(CompiledPricingPlan.MetricRate rate, double quantity) {
+        double charge = 0.0;
+        double floor = 0.0;
+        for (int i = 0; i < rate.tierCount() && quantity > floor; i++) {
+            double ceiling = upperBound(rate, i);
+            if (ceiling > floor) {
+                charge += (Math.min(quantity, ceiling) - floor) * price(rate, i);
+                floor = ceiling;
+            }
+        }
+        return charge;
+    }
+
+    /**
+     * Tier whose range contains the quantity; quantities past the last bound use the last tier.
+     */
+    static int tierFor(CompiledPricingPlan.MetricRate rate, double quantity) {
+        for (int i = 0; i < rate.tierCount(); i++) {
+            if (quantity <= upperBound(rate, i)) {
+                return i;
+            }
+        }
+        return rate.tierCount() - 1;
+    }
+
+    private static double upperBound(CompiledPricingPlan.MetricRate rate, int tier) {
+        long to = rate.tierTo(tier);
+        return to == Long.MAX_VALUE ? Double.POSITIVE_INFINITY : to;
+    }
+
+    private static double price(CompiledPricingPlan.MetricRate rate, int tier) {
+        double price = rate.tierPrice(tier);
+        return Double.isNaN(price) ? 0.0 : price;
+    }
+}
@@ -0,0 +1,51 @@
+package aforo.kong.rating;
+
+import org.springframework.stereotype.Component;
+
+/**
+ * Prices one usage row against the consumer's current plan, for the {@link RatingEngine} and
+ * for re-rating with the same rules.
+ */
+@Component
+public class UsagePricer {
+
+    static final String DEFAULT_METRIC = "calls";
+
+    private static final Price UNPRICED = new Price(null, null, null, false);
+    private static final Price NO_PLAN = new Price(0.0, 0.0, null, false);
+
+    private final PricingPlanCache pricingPlanCache;
+
+    /**
+     * Price of one row; null price and cost mean it cannot be priced (no consumer, plan or
+     * readable metrics). {@code fromWallet} is set when the consumer's prepaid wallet pays for it.
+     */
+    public record Price(Double unitPrice, Double totalCost, String currency, boolean fromWallet) {
+    }
+
+    public UsagePricer(PricingPlanCache pricingPlanCache) {
+        this.pricingPlanCache = pricingPlanCache;
+    }
+
+    public Price price(Long organizationId, String consumerId, String metricType, Double billableUnits) {
+        if (consumerId == null) {
+            return UNPRICED;
+        }
+        PricingPlanCache.ConsumerPlan consumer = pricingPlanCache.getConsumerPlan(organizationId, consumerId);
+        if (consumer == null) {
+            return UNPRICED;
+        }
+        if (consumer.planName() == null) {
+            return NO_PLAN;
+        }
+        CompiledPricingPlan plan = pricingPlanCache.getPlan(organizationId, consumer.planName());
+        if (plan == null || !plan.isValid()) {
+            return UNPRICED;
+        }
+
+        double unitPrice = plan.unitPrice(metricType != null ? metricType : DEFAULT_METRIC);
+        double units = billableUnits != null ? billableUnits : 1.0;
+        double cost = plan.applyMinimumFee(units * unitPrice);
+        return new Price(unitPrice, cost, plan.getCurrency(), plan.isPrepaid() && consumer.hasWallet());
+    }
+}
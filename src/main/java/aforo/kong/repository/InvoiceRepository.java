@@ -0,0 +1,302 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Invoices (usage_invoice / usage_invoice_line) and the chunked billing of usage_record rows
+ * into them.
+ *
+ * A chunk is one keyset UPDATE over the next rated, unbilled rows after the invoice's cursor,
+ * through the partial index idx_usage_unbilled; the billed rows come back through a cursor
+ * with a fixed fetch size, so neither the JVM nor the statement ever holds a period's rows.
+ *
+ * Chunks write USAGE lines from per-record costs. Consumers on tiered, volume and stairstep
+ * plans owe their period charge (usage_period_charge) instead, so the close adds one
+ * PERIOD_ADJUSTMENT line per such consumer and metric for the difference.
+ */
+@Repository
+public class InvoiceRepository {
+
+    public static final String STATUS_CLOSING = "CLOSING";
+    public static final String STATUS_CLOSED = "CLOSED";
+
+    public static final String LINE_USAGE = "USAGE";
+    public static final String LINE_PERIOD_ADJUSTMENT = "PERIOD_ADJUSTMENT";
+
+    private static final String INVOICE_COLUMNS =
+            "invoice_id, organization_id, period_start, period_end, status, cursor_ts, cursor_usage_id, "
+            + "rows_billed, total_amount, closed_at";
+
+    // The row lock of the SELECT keeps a concurrent close of the same rows out
+    private static final String BILL_CHUNK_SQL =
+            "WITH chunk AS (SELECT usage_id, \"timestamp\" FROM usage_record "
+            + "WHERE organization_id = ? AND processed = true AND billed = false "
+            + "AND \"timestamp\" >= ? AND \"timestamp\" < ? AND (\"timestamp\", usage_id) > (?, ?) "
+            + "ORDER BY \"timestamp\", usage_id LIMIT ? FOR UPDATE) "
+            + "UPDATE usage_record u SET billed = true, invoice_id = ? FROM chunk c "
+            + "WHERE u.organization_id = ? AND u.usage_id = c.usage_id AND u.\"timestamp\" = c.\"timestamp\" "
+            + "RETURNING COALESCE(u.consumer_id, ''), COALESCE(u.metric_type, 'calls'), COALESCE(u.unit_price, 0), "
+            + "COALESCE(u.currency, ''), COALESCE(u.billable_units, 1), COALESCE(u.total_cost, 0), "
+            + "u.\"timestamp\", u.usage_id";
+
+    private static final String ADD_LINES_SQL =
+            "INSERT INTO usage_invoice_line AS l "
+            + "(invoice_id, line_type, consumer_id, metric_type, unit_price, currency, request_count, quantity, amount) "
+            + "SELECT ?, v.line_type, v.consumer_id, v.metric_type, v.unit_price, v.currency, v.request_count, "
+            + "v.quantity, v.amount "
+            + "FROM unnest(?::varchar[], ?::varchar[], ?::varchar[], ?::float8[], ?::varchar[], ?::bigint[], "
+            + "?::float8[], ?::float8[]) "
+            + "AS v(line_type, consumer_id, metric_type, unit_price, currency, request_count, quantity, amount) "
+            + "ON CONFLICT (invoice_id, line_type, consumer_id, metric_type, unit_price, currency) DO UPDATE SET "
+            + "request_count = l.request_count + EXCLUDED.request_count, "
+            + "quantity = l.quantity + EXCLUDED.quantity, amount = l.amount + EXCLUDED.amount";
+
+    // Period charge minus what the USAGE lines billed, per consumer and metric of a period-priced plan
+    private static final String PERIOD_ADJUSTMENTS_SQL =
+            "INSERT INTO usage_invoice_line "
+            + "(invoice_id, line_type, consumer_id, metric_type, unit_price, currency, request_count, quantity, amount) "
+            + "SELECT ?, '" + LINE_PERIOD_ADJUSTMENT + "', c.consumer_id, c.metric_type, 0, COALESCE(c.currency, ''), "
+            + "0, 0, c.amount - COALESCE(b.amount, 0) "
+            + "FROM usage_period_charge c LEFT JOIN (SELECT consumer_id, metric_type, SUM(amount) AS amount "
+            + "FROM usage_invoice_line WHERE invoice_id = ? AND line_type = '" + LINE_USAGE + "' "
+            + "GROUP BY consumer_id, metric_type) b ON b.consumer_id = c.consumer_id AND b.metric_type = c.metric_type "
+            + "WHERE c.organization_id = ? AND c.period_start = ? "
+            + "AND lower(c.pricing_model) IN ('tiered', 'volume', 'stairstep') AND c.amount <> COALESCE(b.amount, 0) "
+            + "RETURNING amount";
+
+    // A period-priced charge rated before the last change to its total
+    private static final String STALE_CHARGES_SQL =
+            "SELECT EXISTS (SELECT 1 FROM usage_period_total t JOIN usage_period_charge c "
+            + "ON c.organization_id = t.organization_id AND c.period_start = t.period_start "
+            + "AND c.consumer_id = t.consumer_id AND c.metric_type = t.metric_type "
+            + "WHERE t.organization_id = ? AND t.period_start = ? "
+            + "AND lower(c.pricing_model) IN ('tiered', 'volume', 'stairstep') AND t.updated_at > c.source_updated_at)";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * An invoice and how far its close job got; a null cursor means it has not billed anything.
+     */
+    public record InvoiceState(String invoiceId, Long organizationId, Instant periodStart, Instant periodEnd,
+                               String status, Instant cursorTimestamp, Long cursorUsageId, long rowsBilled,
+                               double totalAmount, Instant closedAt) {
+    }
+
+    /**
+     * One line item, or the part of it billed by one chunk.
+     */
+    public record InvoiceLine(String lineType, String consumerId, String metricType, double unitPrice,
+                              String currency, long requestCount, double quantity, double amount) {
+    }
+
+    /**
+     * Receives each row billed by a chunk.
+     */
+    @FunctionalInterface
+    public interface BilledRowHandler {
+        void billed(String consumerId, String metricType, double unitPrice, String currency,
+                    double billableUnits, double totalCost, Instant timestamp, long usageId);
+    }
+
+    public InvoiceRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Creates the invoice in CLOSING state unless it exists.
+     */
+    public void createInvoice(String invoiceId, Long organizationId, Instant periodStart, Instant periodEnd) {
+        jdbcTemplate.update("INSERT INTO usage_invoice (invoice_id, organization_id, period_start, period_end, "
+                + "status, created_at, updated_at) VALUES (?, ?, ?, ?, ?, now(), now()) ON CONFLICT DO NOTHING",
+                invoiceId, organizationId, Timestamp.from(periodStart), Timestamp.from(periodEnd), STATUS_CLOSING);
+    }
+
+    /**
+     * Locks the invoice so only one close job advances it. Must run in a transaction.
+     */
+    public InvoiceState lockInvoice(String invoiceId) {
+        return jdbcTemplate.queryForObject("SELECT " + INVOICE_COLUMNS + " FROM usage_invoice "
+                + "WHERE invoice_id = ? FOR UPDATE", (rs, rowNum) -> mapInvoice(rs), invoiceId);
+    }
+
+    public InvoiceState findInvoice(String invoiceId) {
+        List<InvoiceState> invoices = jdbcTemplate.query("SELECT " + INVOICE_COLUMNS + " FROM usage_invoice "
+                + "WHERE invoice_id = ?", (rs, rowNum) -> mapInvoice(rs), invoiceId);
+        return invoices.isEmpty() ? null : invoices.get(0);
+    }
+
+    public List<InvoiceState> findClosing() {
+        return jdbcTemplate.query("SELECT " + INVOICE_COLUMNS + " FROM usage_invoice WHERE status = ? "
+                + "ORDER BY period_start", (rs, rowNum) -> mapInvoice(rs), STATUS_CLOSING);
+    }
+
+    public List<InvoiceLine> findLines(String invoiceId) {
+        return jdbcTemplate.query("SELECT line_type, consumer_id, metric_type, unit_price, currency, request_count, "
+                + "quantity, amount FROM usage_invoice_line WHERE invoice_id = ? "
+                + "ORDER BY consumer_id, metric_type, line_type DESC, unit_price",
+                (rs, rowNum) -> new InvoiceLine(rs.getString(1), rs.getString(2), rs.getString(3), rs.getDouble(4),
+                        rs.getString(5), rs.getLong(6), rs.getDouble(7), rs.getDouble(8)),
+                invoiceId);
+    }
+
+    /**
+     * Organizations the rating engine recorded usage for in the period.
+     */
+    public List<Long> findOrganizationsWithUsage(Instant periodStart) {
+        return jdbcTemplate.queryForList("SELECT DISTINCT organization_id FROM usage_period_total "
+                + "WHERE period_start = ?", Long.class, Timestamp.from(periodStart));
+    }
+
+    /**
+     * Whether the period still has rows the rating engine has not priced.
+     */
+    public boolean hasUnrated(Long organizationId, Instant periodStart, Instant periodEnd) {
+        Boolean exists = jdbcTemplate.queryForObject("SELECT EXISTS (SELECT 1 FROM usage_record "
+                + "WHERE organization_id = ? AND processed = false AND \"timestamp\" >= ? AND \"timestamp\" < ?)",
+                Boolean.class, organizationId, Timestamp.from(periodStart), Timestamp.from(periodEnd));
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Whether a tiered, volume or stairstep charge of the period still waits for period rating
+     * to catch up with its total.
+     */
+    public boolean hasStaleCharges(Long organizationId, Instant periodStart) {
+        Boolean exists = jdbcTemplate.queryForObject(STALE_CHARGES_SQL, Boolean.class,
+                organizationId, Timestamp.from(periodStart));
+        return Boolean.TRUE.equals(exists);
+    }
+
+    /**
+     * Marks up to {@code limit} rows after the cursor billed to the invoice and streams them to
+     * the handler, {@code fetchSize} at a time. Must run in a transaction for the fetch size to
+     * take effect.
+     */
+    public void billChunk(InvoiceState invoice, Instant afterTimestamp, long afterUsageId, int limit, int fetchSize,
+                          BilledRowHandler handler) {
+        RowCallbackHandler rows = (ResultSet rs) -> handler.billed(rs.getString(1), rs.getString(2), rs.getDouble(3),
+                rs.getString(4), rs.getDouble(5), rs.getDouble(6), rs.getTimestamp(7).toInstant(), rs.getLong(8));
+        jdbcTemplate.query((Connection con) -> {
+            PreparedStatement ps = con.prepareStatement(BILL_CHUNK_SQL);
+            ps.setFetchSize(fetchSize);
+            ps.setLong(1, invoice.organizationId());
+            ps.setTimestamp(2, Timestamp.from(invoice.periodStart()));
+            ps.setTimestamp(3, Timestamp.from(invoice.periodEnd()));
+            ps.setTimestamp(4, Timestamp.from(afterTimestamp));
+            ps.setLong(5, afterUsageId);
+            ps.setInt(6, limit);
+            ps.setString(7, invoice.invoiceId());
+            ps.setLong(8, invoice.organizationId());
+            return ps;
+        }, rows);
+    }
+
+    /**
+     * Adds a chunk's line totals to the invoice's lines.
+     */
+    public void addLines(String invoiceId, Collection<InvoiceLine> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        int n = lines.size();
+        String[] lineTypes = new String[n];
+        String[] consumerIds = new String[n];
+        String[] metricTypes = new String[n];
+        Double[] unitPrices = new Double[n];
+        String[] currencies = new String[n];
+        Long[] requestCounts = new Long[n];
+        Double[] quantities = new Double[n];
+        Double[] amounts = new Double[n];
+        int i = 0;
+        for (InvoiceLine line : lines) {
+            lineTypes[i] = line.lineType();
+            consumerIds[i] = line.consumerId();
+            metricTypes[i] = line.metricType();
+            unitPrices[i] = line.unitPrice();
+            currencies[i] = line.currency();
+            requestCounts[i] = line.requestCount();
+            quantities[i] = line.quantity();
+            amounts[i] = line.amount();
+            i++;
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(ADD_LINES_SQL)) {
+                ps.setString(1, invoiceId);
+                ps.setArray(2, array(con, "varchar", lineTypes));
+                ps.setArray(3, array(con, "varchar", consumerIds));
+                ps.setArray(4, array(con, "varchar", metricTypes));
+                ps.setArray(5, array(con, "float8", unitPrices));
+                ps.setArray(6, array(con, "varchar", currencies));
+                ps.setArray(7, array(con, "bigint", requestCounts));
+                ps.setArray(8, array(con, "float8", quantities));
+                ps.setArray(9, array(con, "float8", amounts));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Moves the invoice's cursor past a billed chunk and adds the chunk to its totals.
+     */
+    public void advance(String invoiceId, Instant cursorTimestamp, long cursorUsageId, long rows, double amount) {
+        jdbcTemplate.update("UPDATE usage_invoice SET cursor_ts = ?, cursor_usage_id = ?, "
+                + "rows_billed = rows_billed + ?, total_amount = total_amount + ?, updated_at = now() "
+                + "WHERE invoice_id = ?",
+                Timestamp.from(cursorTimestamp), cursorUsageId, rows, amount, invoiceId);
+    }
+
+    /**
+     * Adds the period adjustment lines of a fully billed invoice. Must run in the transaction
+     * that closes it.
+     *
+     * @return the sum of the adjustments
+     */
+    public double addPeriodAdjustments(InvoiceState invoice) {
+        List<Double> amounts = jdbcTemplate.queryForList(PERIOD_ADJUSTMENTS_SQL, Double.class,
+                invoice.invoiceId(), invoice.invoiceId(), invoice.organizationId(),
+                Timestamp.from(invoice.periodStart()));
+        return amounts.stream().mapToDouble(Double::doubleValue).sum();
+    }
+
+    /**
+     * Closes the invoice, adding {@code adjustment} to its total.
+     */
+    public void close(String invoiceId, double adjustment) {
+        jdbcTemplate.update("UPDATE usage_invoice SET status = ?, total_amount = total_amount + ?, "
+                + "closed_at = now(), updated_at = now() WHERE invoice_id = ?", STATUS_CLOSED, adjustment, invoiceId);
+    }
+
+    private static InvoiceState mapInvoice(ResultSet rs) throws SQLException {
+        Timestamp cursor = rs.getTimestamp(6);
+        long cursorUsageId = rs.getLong(7);
+        boolean noCursorId = rs.wasNull();
+        Timestamp closedAt = rs.getTimestamp(10);
+        return new InvoiceState(
+                rs.getString(1),
+                rs.getLong(2),
+                rs.getTimestamp(3).toInstant(),
+                rs.getTimestamp(4).toInstant(),
+                rs.getString(5),
+                cursor != null ? cursor.toInstant() : null,
+                noCursorId ? null : cursorUsageId,
+                rs.getLong(8),
+                rs.getDouble(9),
+                closedAt != null ? closedAt.toInstant() : null);
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
@@ -52,4 +52,17 @@ public interface KongConsumerRepository extends JpaRepository<KongConsumer, Long
     @Transactional
     @Query("UPDATE KongConsumer c SET c.status = :status WHERE c.id = :consumerId AND c.organizationId = :organizationId")
     int updateStatus(@Param("consumerId") String consumerId, @Param("status") String status, @Param("organizationId") Long organizationId);
+    
+    /**
+     * Consumer ID, plan name and whether a wallet balance is set, for every consumer of the organization.
+     */
+    @Query("SELECT c.id, c.planId, CASE WHEN c.walletBalance IS NULL THEN false ELSE true END " +
+           "FROM KongConsumer c WHERE c.organizationId = :organizationId")
+    List<Object[]> findPlanAssignments(@Param("organizationId") Long organizationId);
+    
+    /**
+     * Consumer count and latest update time of the organization, as a single row.
+     */
+    @Query("SELECT COUNT(c), MAX(c.updatedAt) FROM KongConsumer c WHERE c.organizationId = :organizationId")
+    List<Object[]> findAssignmentVersion(@Param("organizationId") Long organizationId);
 }
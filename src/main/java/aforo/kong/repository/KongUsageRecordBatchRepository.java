@@ -0,0 +1,133 @@
+package aforo.kong.repository;
+
+import aforo.kong.entity.KongUsageRecord;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Set-based writer for {@link KongUsageRecord}.
+ *
+ * A whole chunk is shipped as one {@code INSERT ... SELECT FROM unnest(...)} statement, and the
+ * unique constraint on (organization_id, correlation_id, ts) does the deduplication, so a batch of
+ * Kong events costs one round trip instead of a lookup plus an insert per event. The key carries
+ * ts because the table is partitioned on it; a replayed event has the same ts, so it still conflicts.
+ */
+@Repository
+public class KongUsageRecordBatchRepository {
+
+    private static final String INSERT_IGNORE_DUPLICATES_SQL =
+            "INSERT INTO kong_usage_record (organization_id, ts, kong_request_id, correlation_id, "
+            + "kong_service_id, kong_route_id, kong_consumer_id, http_method, path, status, latency_ms, "
+            + "req_size, resp_size, aforo_product_id, aforo_endpoint_id, aforo_customer_id, raw_payload, "
+            + "processed, created_at) "
+            + "SELECT * FROM unnest(?::bigint[], ?::timestamp[], ?::varchar[], ?::varchar[], ?::varchar[], "
+            + "?::varchar[], ?::varchar[], ?::varchar[], ?::varchar[], ?::integer[], ?::integer[], "
+            + "?::bigint[], ?::bigint[], ?::bigint[], ?::bigint[], ?::bigint[], ?::text[], ?::boolean[], "
+            + "?::timestamp[]) "
+            + "ON CONFLICT (organization_id, correlation_id, ts) DO NOTHING";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public KongUsageRecordBatchRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Inserts the given records, silently skipping any whose (organization_id, correlation_id, ts)
+     * already exists.
+     *
+     * @return the number of rows actually inserted
+     */
+    public int insertIgnoringDuplicates(List<KongUsageRecord> records) {
+        if (records.isEmpty()) {
+            return 0;
+        }
+        Integer inserted = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(INSERT_IGNORE_DUPLICATES_SQL)) {
+                bindColumns(con, ps, records);
+                return ps.executeUpdate();
+            }
+        });
+        return inserted != null ? inserted : 0;
+    }
+
+    private void bindColumns(Connection con, PreparedStatement ps, List<KongUsageRecord> records) throws SQLException {
+        int n = records.size();
+        Long[] organizationIds = new Long[n];
+        Timestamp[] timestamps = new Timestamp[n];
+        String[] kongRequestIds = new String[n];
+        String[] correlationIds = new String[n];
+        String[] serviceIds = new String[n];
+        String[] routeIds = new String[n];
+        String[] consumerIds = new String[n];
+        String[] methods = new String[n];
+        String[] paths = new String[n];
+        Integer[] statuses = new Integer[n];
+        Integer[] latencies = new Integer[n];
+        Long[] requestSizes = new Long[n];
+        Long[] responseSizes = new Long[n];
+        Long[] productIds = new Long[n];
+        Long[] endpointIds = new Long[n];
+        Long[] customerIds = new Long[n];
+        String[] rawPayloads = new String[n];
+        Boolean[] processed = new Boolean[n];
+        Timestamp[] createdAt = new Timestamp[n];
+
+        Timestamp now = Timestamp.from(Instant.now());
+        for (int i = 0; i < n; i++) {
+            KongUsageRecord r = records.get(i);
+            organizationIds[i] = r.getOrganizationId();
+            timestamps[i] = Timestamp.from(r.getTimestamp());
+            kongRequestIds[i] = r.getKongRequestId();
+            correlationIds[i] = r.getCorrelationId();
+            serviceIds[i] = r.getKongServiceId();
+            routeIds[i] = r.getKongRouteId();
+            consumerIds[i] = r.getKongConsumerId();
+            methods[i] = r.getHttpMethod();
+            paths[i] = r.getPath();
+            statuses[i] = r.getStatus();
+            latencies[i] = r.getLatencyMs();
+            requestSizes[i] = r.getRequestSize();
+            responseSizes[i] = r.getResponseSize();
+            productIds[i] = r.getAforoProductId();
+            endpointIds[i] = r.getAforoEndpointId();
+            customerIds[i] = r.getAforoCustomerId();
+            rawPayloads[i] = r.getRawPayload();
+            processed[i] = r.getProcessed() != null ? r.getProcessed() : Boolean.FALSE;
+            createdAt[i] = r.getCreatedAt() != null ? Timestamp.from(r.getCreatedAt()) : now;
+        }
+
+        int idx = 1;
+        ps.setArray(idx++, array(con, "bigint", organizationIds));
+        ps.setArray(idx++, array(con, "timestamp", timestamps));
+        ps.setArray(idx++, array(con, "varchar", kongRequestIds));
+        ps.setArray(idx++, array(con, "varchar", correlationIds));
+        ps.setArray(idx++, array(con, "varchar", serviceIds));
+        ps.setArray(idx++, array(con, "varchar", routeIds));
+        ps.setArray(idx++, array(con, "varchar", consumerIds));
+        ps.setArray(idx++, array(con, "varchar", methods));
+        ps.setArray(idx++, array(con, "varchar", paths));
+        ps.setArray(idx++, array(con, "integer", statuses));
+        ps.setArray(idx++, array(con, "integer", latencies));
+        ps.setArray(idx++, array(con, "bigint", requestSizes));
+        ps.setArray(idx++, array(con, "bigint", responseSizes));
+        ps.setArray(idx++, array(con, "bigint", productIds));
+        ps.setArray(idx++, array(con, "bigint", endpointIds));
+        ps.setArray(idx++, array(con, "bigint", customerIds));
+        ps.setArray(idx++, array(con, "text", rawPayloads));
+        ps.setArray(idx++, array(con, "boolean", processed));
+        ps.setArray(idx, array(con, "timestamp", createdAt));
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
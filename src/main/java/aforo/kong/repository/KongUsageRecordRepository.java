@@ -14,7 +14,8 @@ public interface KongUsageRecordRepository extends JpaRepository<KongUsageRecord
     Optional<KongUsageRecord> findByOrganizationIdAndCorrelationId(
             Long organizationId, String correlationId);
     
-    List<KongUsageRecord> findByOrganizationIdAndProcessedFalse(Long organizationId);
+    List<KongUsageRecord> findByOrganizationIdAndProcessedFalseAndTimestampBetween(
+            Long organizationId, Instant start, Instant end);
     
     List<KongUsageRecord> findByOrganizationIdAndTimestampBetween(
             Long organizationId, Instant start, Instant end);
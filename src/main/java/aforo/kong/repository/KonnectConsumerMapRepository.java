@@ -0,0 +1,25 @@
+package aforo.kong.repository;
+
+import aforo.kong.entity.KonnectConsumerMap;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface KonnectConsumerMapRepository extends JpaRepository<KonnectConsumerMap, Long> {
+    
+    Optional<KonnectConsumerMap> findByOrganizationIdAndControlPlaneIdAndKongConsumerId(
+            Long organizationId, String controlPlaneId, String kongConsumerId);
+    
+    List<KonnectConsumerMap> findByOrganizationId(Long organizationId);
+    
+    /**
+     * (kong id, aforo id) pairs of all mapped, ACTIVE rows, for the usage mapping index.
+     */
+    @Query("SELECT m.kongConsumerId, m.aforoCustomerId FROM KonnectConsumerMap m WHERE m.organizationId = :orgId AND m.aforoCustomerId IS NOT NULL AND m.status = 'ACTIVE'")
+    List<Object[]> findCustomerMappings(@Param("orgId") Long organizationId);
+}
@@ -0,0 +1,378 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Set-based writer for the runtime sync of konnect_service_map and konnect_route_map.
+ *
+ * A sync loads a control plane's mappings once, diffs Konnect against them in memory by content
+ * hash and hands only the rows that differ back here: a page of new and changed rows is one
+ * {@code INSERT ... SELECT FROM unnest(...) ON CONFLICT DO UPDATE}, and the rows Konnect no
+ * longer lists are disabled by one UPDATE over their ids. Unchanged rows are not written at all;
+ * that they were seen is recorded once per sync in konnect_sync_state, so an ACTIVE mapping's
+ * last sighting is its control plane's last_full_sync_at. The same row keeps the watermarks
+ * incremental syncs resume from. Aforo's own columns (aforo_product_id,
+ * aforo_endpoint_id) are never touched.
+ */
+@Repository
+public class KonnectMapSyncRepository {
+
+    public static final String STATUS_ACTIVE = "ACTIVE";
+    public static final String STATUS_DISABLED = "DISABLED";
+
+    private static final String UPSERT_SERVICES_SQL =
+            "INSERT INTO konnect_service_map AS m (organization_id, control_plane_id, kong_service_id, "
+            + "name_snapshot, tags_snapshot, host, port, path, protocol, content_hash, status, last_seen_at, "
+            + "created_at, updated_at) "
+            + "SELECT ?, ?, v.kong_service_id, v.name_snapshot, v.tags_snapshot, v.host, v.port, v.path, v.protocol, "
+            + "v.content_hash, '" + STATUS_ACTIVE + "', ?, ?, ? "
+            + "FROM unnest(?::varchar[], ?::varchar[], ?::text[], ?::varchar[], ?::integer[], ?::varchar[], ?::varchar[], "
+            + "?::varchar[]) AS v(kong_service_id, name_snapshot, tags_snapshot, host, port, path, protocol, content_hash) "
+            + "ON CONFLICT (organization_id, control_plane_id, kong_service_id) DO UPDATE SET "
+            + "name_snapshot = EXCLUDED.name_snapshot, tags_snapshot = EXCLUDED.tags_snapshot, host = EXCLUDED.host, "
+            + "port = EXCLUDED.port, path = EXCLUDED.path, protocol = EXCLUDED.protocol, "
+            + "content_hash = EXCLUDED.content_hash, status = EXCLUDED.status, "
+            + "last_seen_at = EXCLUDED.last_seen_at, updated_at = EXCLUDED.updated_at";
+
+    private static final String UPSERT_ROUTES_SQL =
+            "INSERT INTO konnect_route_map AS m (organization_id, control_plane_id, kong_route_id, kong_service_id, "
+            + "name, methods, paths, hosts, protocols, tags, content_hash, status, last_seen_at, created_at, updated_at) "
+            + "SELECT ?, ?, v.kong_route_id, v.kong_service_id, v.name, v.methods, v.paths, v.hosts, v.protocols, "
+            + "v.tags, v.content_hash, '" + STATUS_ACTIVE + "', ?, ?, ? "
+            + "FROM unnest(?::varchar[], ?::varchar[], ?::varchar[], ?::text[], ?::text[], ?::text[], ?::text[], "
+            + "?::text[], ?::varchar[]) "
+            + "AS v(kong_route_id, kong_service_id, name, methods, paths, hosts, protocols, tags, content_hash) "
+            + "ON CONFLICT (organization_id, control_plane_id, kong_route_id) DO UPDATE SET "
+            + "kong_service_id = EXCLUDED.kong_service_id, name = EXCLUDED.name, methods = EXCLUDED.methods, "
+            + "paths = EXCLUDED.paths, hosts = EXCLUDED.hosts, protocols = EXCLUDED.protocols, tags = EXCLUDED.tags, "
+            + "content_hash = EXCLUDED.content_hash, status = EXCLUDED.status, last_seen_at = EXCLUDED.last_seen_at, "
+            + "updated_at = EXCLUDED.updated_at";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * What a sync compares a Konnect entity against.
+     */
+    public interface SyncedMapping {
+        String contentHash();
+
+        String status();
+    }
+
+    /**
+     * The synced columns of a konnect_service_map row; a null id is a row not stored yet.
+     */
+    public record ServiceMapping(Long id, String kongServiceId, String name, String tags, String host,
+                                 Integer port, String path, String protocol, String contentHash, String status)
+            implements SyncedMapping {
+    }
+
+    /**
+     * The synced columns of a konnect_route_map row; a null id is a row not stored yet.
+     */
+    public record RouteMapping(Long id, String kongRouteId, String kongServiceId, String name, String methods,
+                               String paths, String hosts, String protocols, String tags, String contentHash,
+                               String status) implements SyncedMapping {
+    }
+
+    /**
+     * How far syncs of a control plane got. A watermark is the newest Konnect updated_at
+     * (epoch seconds) applied; a null one forces the next sync of that kind to be full.
+     */
+    public record SyncState(Instant lastSyncedAt, Instant lastFullSyncAt, Long servicesWatermark,
+                            Long routesWatermark, String productsEtag) {
+    }
+
+    public KonnectMapSyncRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * All service mappings of the control plane, active or not, by Kong service id.
+     */
+    public Map<String, ServiceMapping> loadServices(Long organizationId, String controlPlaneId) {
+        return loadServices(organizationId, controlPlaneId, null);
+    }
+
+    /**
+     * The service mappings of the control plane with the given Kong service ids, or all of them
+     * if {@code kongServiceIds} is null.
+     */
+    public Map<String, ServiceMapping> loadServices(Long organizationId, String controlPlaneId,
+                                                    Collection<String> kongServiceIds) {
+        Map<String, ServiceMapping> index = new HashMap<>();
+        RowCallbackHandler rows = (ResultSet rs) -> {
+            int port = rs.getInt(6);
+            ServiceMapping mapping = new ServiceMapping(rs.getLong(1), rs.getString(2), rs.getString(3),
+                    rs.getString(4), rs.getString(5), rs.wasNull() ? null : port, rs.getString(7),
+                    rs.getString(8), rs.getString(9), rs.getString(10));
+            index.put(mapping.kongServiceId(), mapping);
+        };
+        jdbcTemplate.query(selectMappings("SELECT id, kong_service_id, name_snapshot, tags_snapshot, host, port, "
+                + "path, protocol, content_hash, status FROM konnect_service_map", "kong_service_id",
+                organizationId, controlPlaneId, kongServiceIds), rows);
+        return index;
+    }
+
+    /**
+     * All route mappings of the control plane, active or not, by Kong route id.
+     */
+    public Map<String, RouteMapping> loadRoutes(Long organizationId, String controlPlaneId) {
+        return loadRoutes(organizationId, controlPlaneId, null);
+    }
+
+    /**
+     * The route mappings of the control plane with the given Kong route ids, or all of them if
+     * {@code kongRouteIds} is null.
+     */
+    public Map<String, RouteMapping> loadRoutes(Long organizationId, String controlPlaneId,
+                                                Collection<String> kongRouteIds) {
+        Map<String, RouteMapping> index = new HashMap<>();
+        RowCallbackHandler rows = (ResultSet rs) -> {
+            RouteMapping mapping = new RouteMapping(rs.getLong(1), rs.getString(2), rs.getString(3),
+                    rs.getString(4), rs.getString(5), rs.getString(6), rs.getString(7), rs.getString(8),
+                    rs.getString(9), rs.getString(10), rs.getString(11));
+            index.put(mapping.kongRouteId(), mapping);
+        };
+        jdbcTemplate.query(selectMappings("SELECT id, kong_route_id, kong_service_id, name, methods, paths, hosts, "
+                + "protocols, tags, content_hash, status FROM konnect_route_map", "kong_route_id",
+                organizationId, controlPlaneId, kongRouteIds), rows);
+        return index;
+    }
+
+    private static PreparedStatementCreator selectMappings(String select, String kongIdColumn, Long organizationId,
+                                                           String controlPlaneId, Collection<String> kongIds) {
+        return (Connection con) -> {
+            PreparedStatement ps = con.prepareStatement(select + " WHERE organization_id = ? AND control_plane_id = ?"
+                    + (kongIds != null ? " AND " + kongIdColumn + " = ANY(?::varchar[])" : ""));
+            ps.setLong(1, organizationId);
+            ps.setString(2, controlPlaneId);
+            if (kongIds != null) {
+                ps.setArray(3, array(con, "varchar", kongIds.toArray(new String[0])));
+            }
+            return ps;
+        };
+    }
+
+    /**
+     * Inserts the services, or overwrites the synced columns of existing ones, as ACTIVE and
+     * seen at {@code syncedAt}. The ids must be distinct.
+     *
+     * @return the number of rows written
+     */
+    public int upsertServices(Long organizationId, String controlPlaneId, Collection<ServiceMapping> services,
+                              Instant syncedAt) {
+        if (services.isEmpty()) {
+            return 0;
+        }
+        int n = services.size();
+        String[] kongServiceIds = new String[n];
+        String[] names = new String[n];
+        String[] tags = new String[n];
+        String[] hosts = new String[n];
+        Integer[] ports = new Integer[n];
+        String[] paths = new String[n];
+        String[] protocols = new String[n];
+        String[] hashes = new String[n];
+        int i = 0;
+        for (ServiceMapping service : services) {
+            kongServiceIds[i] = service.kongServiceId();
+            names[i] = service.name();
+            tags[i] = service.tags();
+            hosts[i] = service.host();
+            ports[i] = service.port();
+            paths[i] = service.path();
+            protocols[i] = service.protocol();
+            hashes[i] = service.contentHash();
+            i++;
+        }
+        Timestamp timestamp = Timestamp.from(syncedAt);
+        Integer written = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(UPSERT_SERVICES_SQL)) {
+                ps.setLong(1, organizationId);
+                ps.setString(2, controlPlaneId);
+                ps.setTimestamp(3, timestamp);
+                ps.setTimestamp(4, timestamp);
+                ps.setTimestamp(5, timestamp);
+                ps.setArray(6, array(con, "varchar", kongServiceIds));
+                ps.setArray(7, array(con, "varchar", names));
+                ps.setArray(8, array(con, "text", tags));
+                ps.setArray(9, array(con, "varchar", hosts));
+                ps.setArray(10, array(con, "integer", ports));
+                ps.setArray(11, array(con, "varchar", paths));
+                ps.setArray(12, array(con, "varchar", protocols));
+                ps.setArray(13, array(con, "varchar", hashes));
+                return ps.executeUpdate();
+            }
+        });
+        return written != null ? written : 0;
+    }
+
+    /**
+     * Inserts the routes, or overwrites the synced columns of existing ones, as ACTIVE and
+     * seen at {@code syncedAt}. The ids must be distinct.
+     *
+     * @return the number of rows written
+     */
+    public int upsertRoutes(Long organizationId, String controlPlaneId, Collection<RouteMapping> routes,
+                            Instant syncedAt) {
+        if (routes.isEmpty()) {
+            return 0;
+        }
+        int n = routes.size();
+        String[] kongRouteIds = new String[n];
+        String[] kongServiceIds = new String[n];
+        String[] names = new String[n];
+        String[] methods = new String[n];
+        String[] paths = new String[n];
+        String[] hosts = new String[n];
+        String[] protocols = new String[n];
+        String[] tags = new String[n];
+        String[] hashes = new String[n];
+        int i = 0;
+        for (RouteMapping route : routes) {
+            kongRouteIds[i] = route.kongRouteId();
+            kongServiceIds[i] = route.kongServiceId();
+            names[i] = route.name();
+            methods[i] = route.methods();
+            paths[i] = route.paths();
+            hosts[i] = route.hosts();
+            protocols[i] = route.protocols();
+            tags[i] = route.tags();
+            hashes[i] = route.contentHash();
+            i++;
+        }
+        Timestamp timestamp = Timestamp.from(syncedAt);
+        Integer written = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(UPSERT_ROUTES_SQL)) {
+                ps.setLong(1, organizationId);
+                ps.setString(2, controlPlaneId);
+                ps.setTimestamp(3, timestamp);
+                ps.setTimestamp(4, timestamp);
+                ps.setTimestamp(5, timestamp);
+                ps.setArray(6, array(con, "varchar", kongRouteIds));
+                ps.setArray(7, array(con, "varchar", kongServiceIds));
+                ps.setArray(8, array(con, "varchar", names));
+                ps.setArray(9, array(con, "text", methods));
+                ps.setArray(10, array(con, "text", paths));
+                ps.setArray(11, array(con, "text", hosts));
+                ps.setArray(12, array(con, "text", protocols));
+                ps.setArray(13, array(con, "text", tags));
+                ps.setArray(14, array(con, "varchar", hashes));
+                return ps.executeUpdate();
+            }
+        });
+        return written != null ? written : 0;
+    }
+
+    /**
+     * Disables the service mappings with the given row ids.
+     */
+    public int disableServices(List<Long> ids, Instant disabledAt) {
+        return disable("konnect_service_map", ids, disabledAt);
+    }
+
+    /**
+     * Disables the route mappings with the given row ids.
+     */
+    public int disableRoutes(List<Long> ids, Instant disabledAt) {
+        return disable("konnect_route_map", ids, disabledAt);
+    }
+
+    /**
+     * How far syncs of the control plane got, or null if it was never synced.
+     */
+    public SyncState findSyncState(Long organizationId, String controlPlaneId) {
+        List<SyncState> states = jdbcTemplate.query("SELECT last_synced_at, last_full_sync_at, services_watermark, "
+                + "routes_watermark, products_etag FROM konnect_sync_state "
+                + "WHERE organization_id = ? AND control_plane_id = ?",
+                (rs, rowNum) -> {
+                    Timestamp lastFullSync = rs.getTimestamp(2);
+                    long servicesWatermark = rs.getLong(3);
+                    Long services = rs.wasNull() ? null : servicesWatermark;
+                    long routesWatermark = rs.getLong(4);
+                    Long routes = rs.wasNull() ? null : routesWatermark;
+                    return new SyncState(rs.getTimestamp(1).toInstant(),
+                            lastFullSync != null ? lastFullSync.toInstant() : null, services, routes, rs.getString(5));
+                },
+                organizationId, controlPlaneId);
+        return states.isEmpty() ? null : states.get(0);
+    }
+
+    /**
+     * Records a full sync of the control plane that finished at {@code syncedAt}, seeing the
+     * given number of services and routes. This one row is the bulk "last seen" of every
+     * ACTIVE mapping. The watermarks are the newest updated_at Konnect reported, or null if
+     * it reported none.
+     */
+    public void markFullSync(Long organizationId, String controlPlaneId, Instant syncedAt, int servicesSeen,
+                             int routesSeen, Long servicesWatermark, Long routesWatermark) {
+        Timestamp timestamp = Timestamp.from(syncedAt);
+        jdbcTemplate.update("INSERT INTO konnect_sync_state (organization_id, control_plane_id, last_synced_at, "
+                + "last_full_sync_at, services_seen, routes_seen, services_watermark, routes_watermark, updated_at) "
+                + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?) "
+                + "ON CONFLICT (organization_id, control_plane_id) DO UPDATE SET "
+                + "last_synced_at = EXCLUDED.last_synced_at, last_full_sync_at = EXCLUDED.last_full_sync_at, "
+                + "services_seen = EXCLUDED.services_seen, routes_seen = EXCLUDED.routes_seen, "
+                + "services_watermark = EXCLUDED.services_watermark, routes_watermark = EXCLUDED.routes_watermark, "
+                + "updated_at = EXCLUDED.updated_at",
+                organizationId, controlPlaneId, timestamp, timestamp, servicesSeen, routesSeen, servicesWatermark,
+                routesWatermark, timestamp);
+    }
+
+    /**
+     * Records an incremental sync of the control plane and moves its watermarks.
+     */
+    public void markIncrementalSync(Long organizationId, String controlPlaneId, Instant syncedAt,
+                                    Long servicesWatermark, Long routesWatermark) {
+        Timestamp timestamp = Timestamp.from(syncedAt);
+        jdbcTemplate.update("UPDATE konnect_sync_state SET last_synced_at = ?, services_watermark = ?, "
+                + "routes_watermark = ?, updated_at = ? WHERE organization_id = ? AND control_plane_id = ?",
+                timestamp, servicesWatermark, routesWatermark, timestamp, organizationId, controlPlaneId);
+    }
+
+    /**
+     * Remembers the ETag of the last API product list applied for the organization; a no-op
+     * until the control plane's runtime was synced once.
+     */
+    public void saveProductsEtag(Long organizationId, String controlPlaneId, String etag) {
+        jdbcTemplate.update("UPDATE konnect_sync_state SET products_etag = ?, updated_at = now() "
+                + "WHERE organization_id = ? AND control_plane_id = ?", etag, organizationId, controlPlaneId);
+    }
+
+    private int disable(String table, List<Long> ids, Instant disabledAt) {
+        if (ids.isEmpty()) {
+            return 0;
+        }
+        Long[] rowIds = ids.toArray(new Long[0]);
+        Integer disabled = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement("UPDATE " + table + " SET status = '"
+                    + STATUS_DISABLED + "', updated_at = ? WHERE id = ANY(?::bigint[]) AND status = '"
+                    + STATUS_ACTIVE + "'")) {
+                ps.setTimestamp(1, Timestamp.from(disabledAt));
+                ps.setArray(2, array(con, "bigint", rowIds));
+                return ps.executeUpdate();
+            }
+        });
+        return disabled != null ? disabled : 0;
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
@@ -2,6 +2,8 @@ package aforo.kong.repository;
 
 import aforo.kong.entity.KonnectRouteMap;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -23,4 +25,10 @@ public interface KonnectRouteMapRepository extends JpaRepository<KonnectRouteMap
             Long organizationId, String status);
     
     List<KonnectRouteMap> findByOrganizationId(Long organizationId);
+    
+    /**
+     * (kong id, aforo id) pairs of all mapped, ACTIVE rows, for the usage mapping index.
+     */
+    @Query("SELECT m.kongRouteId, m.aforoEndpointId FROM KonnectRouteMap m WHERE m.organizationId = :orgId AND m.aforoEndpointId IS NOT NULL AND m.status = 'ACTIVE'")
+    List<Object[]> findEndpointMappings(@Param("orgId") Long organizationId);
 }
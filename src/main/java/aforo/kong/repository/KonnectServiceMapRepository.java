@@ -2,6 +2,8 @@ package aforo.kong.repository;
 
 import aforo.kong.entity.KonnectServiceMap;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -20,4 +22,10 @@ public interface KonnectServiceMapRepository extends JpaRepository<KonnectServic
             Long organizationId, String status);
     
     List<KonnectServiceMap> findByOrganizationId(Long organizationId);
+    
+    /**
+     * (kong id, aforo id) pairs of all mapped, ACTIVE rows, for the usage mapping index.
+     */
+    @Query("SELECT m.kongServiceId, m.aforoProductId FROM KonnectServiceMap m WHERE m.organizationId = :orgId AND m.aforoProductId IS NOT NULL AND m.status = 'ACTIVE'")
+    List<Object[]> findProductMappings(@Param("orgId") Long organizationId);
 }
@@ -0,0 +1,256 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Serialized latency histograms per minute, hour and day (usage_latency_minute / _hourly /
+ * _daily), keyed by service, route and consumer; a missing id is stored as ''.
+ *
+ * Histograms are merged in Java, so a writer locks its rows with {@link #lockHistograms}
+ * and writes them back with {@link #saveHistograms} in the same transaction.
+ */
+@Repository
+public class LatencyHistogramRepository {
+
+    private static final String KEY_ARRAYS =
+            "unnest(?::timestamp[], ?::varchar[], ?::varchar[], ?::varchar[]) "
+            + "AS v(bucket_start, service_id, route_id, consumer_id)";
+
+    private static final String KEY_MATCH =
+            "t.organization_id = ? AND t.bucket_start = v.bucket_start AND t.service_id = v.service_id "
+            + "AND t.route_id = v.route_id AND t.consumer_id = v.consumer_id";
+
+    // One scan for all three latency columns; GROUPING() tells which column a row counts
+    private static final String RAW_LATENCY_SQL =
+            "SELECT GROUPING(response_latency), GROUPING(kong_latency), "
+            + "COALESCE(response_latency, kong_latency, upstream_latency), count(*) FROM ("
+            + "SELECT response_latency, kong_latency, upstream_latency FROM usage_record "
+            + "WHERE organization_id = ? AND \"timestamp\" >= ? AND \"timestamp\" < ?%s) r "
+            + "GROUP BY GROUPING SETS ((response_latency), (kong_latency), (upstream_latency))";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public enum Granularity {
+        MINUTE("usage_latency_minute", ChronoUnit.MINUTES),
+        HOUR("usage_latency_hourly", ChronoUnit.HOURS),
+        DAY("usage_latency_daily", ChronoUnit.DAYS);
+
+        private final String table;
+        private final ChronoUnit unit;
+
+        Granularity(String table, ChronoUnit unit) {
+            this.table = table;
+            this.unit = unit;
+        }
+
+        public Instant truncate(Instant instant) {
+            return instant.truncatedTo(unit);
+        }
+    }
+
+    /**
+     * One histogram row; ids are never null.
+     */
+    public record SeriesKey(Instant bucketStart, String serviceId, String routeId, String consumerId) {
+    }
+
+    /**
+     * Serialized response, kong and upstream histograms of one row; any may be null.
+     */
+    public record StoredHistograms(SeriesKey key, byte[] response, byte[] kong, byte[] upstream) {
+    }
+
+    /**
+     * Optional filters of a range query; null matches everything.
+     */
+    public record SeriesFilter(String serviceId, String routeId, String consumerId) {
+    }
+
+    /**
+     * Receives raw latencies: {@code column} 0 is response, 1 kong, 2 upstream.
+     */
+    @FunctionalInterface
+    public interface RawLatencyVisitor {
+        void visit(int column, long latency, long count);
+    }
+
+    public LatencyHistogramRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Creates missing rows and locks all of them for a read-merge-write. Keys should be sorted
+     * so that concurrent writers lock in the same order. Must run in a transaction.
+     */
+    public List<StoredHistograms> lockHistograms(Granularity granularity, Long organizationId, List<SeriesKey> keys) {
+        if (keys.isEmpty()) {
+            return List.of();
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement("INSERT INTO " + granularity.table
+                    + " (organization_id, bucket_start, service_id, route_id, consumer_id, updated_at) "
+                    + "SELECT ?, v.bucket_start, v.service_id, v.route_id, v.consumer_id, now() FROM " + KEY_ARRAYS
+                    + " ON CONFLICT DO NOTHING")) {
+                ps.setLong(1, organizationId);
+                setKeys(con, ps, 2, keys);
+                return ps.executeUpdate();
+            }
+        });
+        return jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement("SELECT t.bucket_start, t.service_id, t.route_id, "
+                    + "t.consumer_id, t.response_latency, t.kong_latency, t.upstream_latency FROM " + granularity.table
+                    + " t JOIN " + KEY_ARRAYS + " ON " + KEY_MATCH
+                    + " ORDER BY t.bucket_start, t.service_id, t.route_id, t.consumer_id FOR UPDATE OF t")) {
+                setKeys(con, ps, 1, keys);
+                ps.setLong(5, organizationId);
+                List<StoredHistograms> rows = new ArrayList<>(keys.size());
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        rows.add(mapRow(rs));
+                    }
+                }
+                return rows;
+            }
+        });
+    }
+
+    /**
+     * Writes back rows locked by {@link #lockHistograms}.
+     */
+    public void saveHistograms(Granularity granularity, Long organizationId, List<StoredHistograms> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        int n = rows.size();
+        List<SeriesKey> keys = new ArrayList<>(n);
+        byte[][] response = new byte[n][];
+        byte[][] kong = new byte[n][];
+        byte[][] upstream = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            StoredHistograms row = rows.get(i);
+            keys.add(row.key());
+            response[i] = row.response();
+            kong[i] = row.kong();
+            upstream[i] = row.upstream();
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement("UPDATE " + granularity.table + " t SET "
+                    + "response_latency = h.response_latency, kong_latency = h.kong_latency, "
+                    + "upstream_latency = h.upstream_latency, updated_at = now() FROM ("
+                    + "SELECT * FROM unnest(?::timestamp[], ?::varchar[], ?::varchar[], ?::varchar[], "
+                    + "?::bytea[], ?::bytea[], ?::bytea[])) "
+                    + "AS h(bucket_start, service_id, route_id, consumer_id, response_latency, kong_latency, upstream_latency) "
+                    + "WHERE t.organization_id = ? AND t.bucket_start = h.bucket_start AND t.service_id = h.service_id "
+                    + "AND t.route_id = h.route_id AND t.consumer_id = h.consumer_id")) {
+                setKeys(con, ps, 1, keys);
+                ps.setArray(5, con.createArrayOf("bytea", response));
+                ps.setArray(6, con.createArrayOf("bytea", kong));
+                ps.setArray(7, con.createArrayOf("bytea", upstream));
+                ps.setLong(8, organizationId);
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Rows with buckets starting in [from, to) that match the filter.
+     */
+    public List<StoredHistograms> findHistograms(Granularity granularity, Long organizationId, SeriesFilter filter,
+                                                 Instant from, Instant to) {
+        List<Object> args = new ArrayList<>(List.of(organizationId, Timestamp.from(from), Timestamp.from(to)));
+        String sql = "SELECT bucket_start, service_id, route_id, consumer_id, response_latency, kong_latency, "
+                + "upstream_latency FROM " + granularity.table
+                + " WHERE organization_id = ? AND bucket_start >= ? AND bucket_start < ?"
+                + filterSql(filter, args);
+        return jdbcTemplate.query(sql, (rs, rowNum) -> mapRow(rs), args.toArray());
+    }
+
+    /**
+     * Latency value counts of raw usage in [from, to), for ranges without histograms.
+     */
+    public void forEachRawLatency(Long organizationId, SeriesFilter filter, Instant from, Instant to,
+                                  RawLatencyVisitor visitor) {
+        List<Object> args = new ArrayList<>(List.of(organizationId, Timestamp.from(from), Timestamp.from(to)));
+        String sql = String.format(RAW_LATENCY_SQL, filterSql(filter, args));
+        jdbcTemplate.query(sql, (ResultSet rs) -> {
+            long latency = rs.getLong(3);
+            if (rs.wasNull()) {
+                return;
+            }
+            int column = rs.getInt(1) == 0 ? 0 : rs.getInt(2) == 0 ? 1 : 2;
+            visitor.visit(column, latency, rs.getLong(4));
+        }, args.toArray());
+    }
+
+    public int deleteMinutesBefore(Instant cutoff) {
+        return jdbcTemplate.update("DELETE FROM usage_latency_minute WHERE bucket_start < ?", Timestamp.from(cutoff));
+    }
+
+    /**
+     * Start of histogram recording. Set once, on first use.
+     */
+    public Instant findOrStartTracking(Instant now) {
+        jdbcTemplate.update("INSERT INTO usage_latency_tracking (id, tracking_since) VALUES (1, ?) ON CONFLICT DO NOTHING",
+                Timestamp.from(now));
+        return jdbcTemplate.queryForObject("SELECT tracking_since FROM usage_latency_tracking WHERE id = 1",
+                Timestamp.class).toInstant();
+    }
+
+    private static String filterSql(SeriesFilter filter, List<Object> args) {
+        StringBuilder sql = new StringBuilder();
+        if (filter.serviceId() != null) {
+            sql.append(" AND service_id = ?");
+            args.add(filter.serviceId());
+        }
+        if (filter.routeId() != null) {
+            sql.append(" AND route_id = ?");
+            args.add(filter.routeId());
+        }
+        if (filter.consumerId() != null) {
+            sql.append(" AND consumer_id = ?");
+            args.add(filter.consumerId());
+        }
+        return sql.toString();
+    }
+
+    private static StoredHistograms mapRow(ResultSet rs) throws SQLException {
+        return new StoredHistograms(
+                new SeriesKey(rs.getTimestamp(1).toInstant(), rs.getString(2), rs.getString(3), rs.getString(4)),
+                rs.getBytes(5), rs.getBytes(6), rs.getBytes(7));
+    }
+
+    private static void setKeys(Connection con, PreparedStatement ps, int first, List<SeriesKey> keys) throws SQLException {
+        int n = keys.size();
+        Timestamp[] buckets = new Timestamp[n];
+        String[] services = new String[n];
+        String[] routes = new String[n];
+        String[] consumers = new String[n];
+        for (int i = 0; i < n; i++) {
+            SeriesKey key = keys.get(i);
+            buckets[i] = Timestamp.from(key.bucketStart());
+            services[i] = key.serviceId();
+            routes[i] = key.routeId();
+            consumers[i] = key.consumerId();
+        }
+        ps.setArray(first, array(con, "timestamp", buckets));
+        ps.setArray(first + 1, array(con, "varchar", services));
+        ps.setArray(first + 2, array(con, "varchar", routes));
+        ps.setArray(first + 3, array(con, "varchar", consumers));
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
@@ -27,4 +27,10 @@ public interface PricingPlanRepository extends JpaRepository<PricingPlan, Long>
     
     @Query("SELECT p FROM PricingPlan p WHERE p.prepaidCreditsEnabled = true AND p.organizationId = :organizationId")
     List<PricingPlan> findPrepaidPlans(@Param("organizationId") Long organizationId);
+    
+    /**
+     * Name and last update of every plan of the organization; used to revalidate compiled plans.
+     */
+    @Query("SELECT p.planName, p.updatedAt FROM PricingPlan p WHERE p.organizationId = :organizationId")
+    List<Object[]> findPlanVersions(@Param("organizationId") Long organizationId);
 }
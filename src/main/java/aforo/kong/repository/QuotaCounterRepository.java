@@ -0,0 +1,132 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Snapshots of the in-memory quota counters in usage_quota_bucket, and the usage_record
+ * recount used to catch up on events ingested after the last snapshot.
+ */
+@Repository
+public class QuotaCounterRepository {
+
+    private static final String UPSERT_BUCKETS_SQL =
+            "INSERT INTO usage_quota_bucket (organization_id, consumer_id, granularity, bucket_start, request_count) "
+            + "SELECT * FROM unnest(?::bigint[], ?::varchar[], ?::varchar[], ?::timestamp[], ?::bigint[]) "
+            + "ON CONFLICT (organization_id, consumer_id, granularity, bucket_start) "
+            + "DO UPDATE SET request_count = EXCLUDED.request_count";
+
+    private static final String DELETE_EXPIRED_SQL =
+            "DELETE FROM usage_quota_bucket WHERE (granularity = 'minute' AND bucket_start < ?) "
+            + "OR (granularity = 'hour' AND bucket_start < ?) OR (granularity = 'day' AND bucket_start < ?)";
+
+    private static final String SAVE_WATERMARK_SQL =
+            "INSERT INTO usage_quota_snapshot (id, taken_at) VALUES (1, ?) "
+            + "ON CONFLICT (id) DO UPDATE SET taken_at = EXCLUDED.taken_at";
+
+    // Minute buckets for the last hours, hour buckets for the last day, day buckets before that
+    private static final String RECOUNT_SQL =
+            "SELECT organization_id, consumer_id, g.granularity, date_trunc(g.granularity, \"timestamp\"), count(*) "
+            + "FROM usage_record, LATERAL (SELECT CASE WHEN \"timestamp\" >= ? THEN 'minute' "
+            + "WHEN \"timestamp\" >= ? THEN 'hour' ELSE 'day' END AS granularity) g "
+            + "WHERE \"timestamp\" >= ? AND consumer_id IS NOT NULL "
+            + "GROUP BY 1, 2, 3, 4";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Request count of one consumer in one bucket; granularity is minute, hour or day.
+     */
+    public record QuotaBucket(Long organizationId, String consumerId, String granularity,
+                              Instant bucketStart, long count) {
+    }
+
+    public QuotaCounterRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Time of the last complete snapshot, or null if there is none.
+     */
+    public Instant findWatermark() {
+        List<Timestamp> rows = jdbcTemplate.queryForList(
+                "SELECT taken_at FROM usage_quota_snapshot WHERE id = 1", Timestamp.class);
+        return rows.isEmpty() ? null : rows.get(0).toInstant();
+    }
+
+    public void forEachBucket(Consumer<QuotaBucket> action) {
+        jdbcTemplate.query(
+                "SELECT organization_id, consumer_id, granularity, bucket_start, request_count FROM usage_quota_bucket",
+                (ResultSet rs) -> {
+                    action.accept(new QuotaBucket(rs.getLong(1), rs.getString(2), rs.getString(3),
+                            rs.getTimestamp(4).toInstant(), rs.getLong(5)));
+                });
+    }
+
+    /**
+     * Counts usage_record rows from {@code from} per consumer, in minute buckets from
+     * {@code minutesFrom}, hour buckets from {@code hoursFrom} and day buckets before that.
+     */
+    public void recount(Instant from, Instant minutesFrom, Instant hoursFrom, Consumer<QuotaBucket> action) {
+        jdbcTemplate.query(RECOUNT_SQL, (ResultSet rs) -> {
+            action.accept(new QuotaBucket(rs.getLong(1), rs.getString(2), rs.getString(3),
+                    rs.getTimestamp(4).toInstant(), rs.getLong(5)));
+        }, Timestamp.from(minutesFrom), Timestamp.from(hoursFrom), Timestamp.from(from));
+    }
+
+    public void upsertBuckets(List<QuotaBucket> buckets) {
+        if (buckets.isEmpty()) {
+            return;
+        }
+        int n = buckets.size();
+        Long[] organizationIds = new Long[n];
+        String[] consumerIds = new String[n];
+        String[] granularities = new String[n];
+        Timestamp[] bucketStarts = new Timestamp[n];
+        Long[] counts = new Long[n];
+        for (int i = 0; i < n; i++) {
+            QuotaBucket b = buckets.get(i);
+            organizationIds[i] = b.organizationId();
+            consumerIds[i] = b.consumerId();
+            granularities[i] = b.granularity();
+            bucketStarts[i] = Timestamp.from(b.bucketStart());
+            counts[i] = b.count();
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(UPSERT_BUCKETS_SQL)) {
+                ps.setArray(1, array(con, "bigint", organizationIds));
+                ps.setArray(2, array(con, "varchar", consumerIds));
+                ps.setArray(3, array(con, "varchar", granularities));
+                ps.setArray(4, array(con, "timestamp", bucketStarts));
+                ps.setArray(5, array(con, "bigint", counts));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Deletes buckets that start before the cutoff of their granularity.
+     */
+    public int deleteExpired(Instant minutesBefore, Instant hoursBefore, Instant daysBefore) {
+        return jdbcTemplate.update(DELETE_EXPIRED_SQL, Timestamp.from(minutesBefore),
+                Timestamp.from(hoursBefore), Timestamp.from(daysBefore));
+    }
+
+    public void saveWatermark(Instant takenAt) {
+        jdbcTemplate.update(SAVE_WATERMARK_SQL, Timestamp.from(takenAt));
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
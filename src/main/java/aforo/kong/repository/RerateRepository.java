@@ -0,0 +1,299 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Re-rating jobs (usage_rerate_job), their partitions (usage_rerate_partition) and diff
+ * reports (usage_rerate_diff), and the keyset paging of the usage rows they re-price.
+ *
+ * A partition is one consumer's usage in one month of the job's range. It is advanced by
+ * locking its row with {@link #lockPartition}, writing a page of results and moving its
+ * cursor with {@link #advance} in the same transaction, so a page is applied exactly once
+ * even when a resumed job and a stale runner race on the same partition.
+ */
+@Repository
+public class RerateRepository {
+
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+    public static final String STATUS_COMPLETED = "COMPLETED";
+    public static final String STATUS_FAILED = "FAILED";
+
+    private static final String JOB_COLUMNS =
+            "job_id, organization_id, range_start, range_end, dry_run, adjust_wallets, status, error, "
+            + "created_at, finished_at";
+
+    private static final String PARTITION_COLUMNS =
+            "consumer_id, slice_start, slice_end, status, cursor_ts, cursor_usage_id, rows_scanned, rows_changed, "
+            + "cost_delta";
+
+    // Billed rows are on an invoice and are never re-priced. Locking the page makes a
+    // concurrent invoice close wait, or drops rows it billed meanwhile.
+    private static final String PAGE_SQL =
+            "SELECT usage_id, \"timestamp\", metric_type, billable_units, unit_price, total_cost, currency "
+            + "FROM usage_record WHERE organization_id = ? AND consumer_id = ? AND processed = true AND billed = false "
+            + "AND \"timestamp\" < ? AND (\"timestamp\", usage_id) > (?, ?) "
+            + "ORDER BY \"timestamp\", usage_id LIMIT ?";
+
+    private static final String ADD_PARTITIONS_SQL =
+            "INSERT INTO usage_rerate_partition (job_id, consumer_id, slice_start, slice_end, status, updated_at) "
+            + "SELECT ?, v.consumer_id, v.slice_start, v.slice_end, ?, now() "
+            + "FROM unnest(?::varchar[], ?::timestamp[], ?::timestamp[]) AS v(consumer_id, slice_start, slice_end) "
+            + "ON CONFLICT DO NOTHING";
+
+    private static final String ADD_DIFF_SQL =
+            "INSERT INTO usage_rerate_diff AS d (job_id, consumer_id, metric_type, old_unit_price, new_unit_price, "
+            + "currency, request_count, old_cost, new_cost) "
+            + "SELECT ?, v.consumer_id, v.metric_type, v.old_unit_price, v.new_unit_price, v.currency, "
+            + "v.request_count, v.old_cost, v.new_cost "
+            + "FROM unnest(?::varchar[], ?::varchar[], ?::float8[], ?::float8[], ?::varchar[], ?::bigint[], "
+            + "?::float8[], ?::float8[]) "
+            + "AS v(consumer_id, metric_type, old_unit_price, new_unit_price, currency, request_count, old_cost, new_cost) "
+            + "ON CONFLICT (job_id, consumer_id, metric_type, old_unit_price, new_unit_price, currency) DO UPDATE SET "
+            + "request_count = d.request_count + EXCLUDED.request_count, "
+            + "old_cost = d.old_cost + EXCLUDED.old_cost, new_cost = d.new_cost + EXCLUDED.new_cost";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public record RerateJob(long jobId, Long organizationId, Instant rangeStart, Instant rangeEnd, boolean dryRun,
+                            boolean adjustWallets, String status, String error, Instant createdAt,
+                            Instant finishedAt) {
+    }
+
+    /**
+     * A partition and how far it got; a null cursor means it has not started.
+     */
+    public record ReratePartition(String consumerId, Instant sliceStart, Instant sliceEnd, String status,
+                                  Instant cursorTimestamp, Long cursorUsageId, long rowsScanned, long rowsChanged,
+                                  double costDelta) {
+    }
+
+    /**
+     * A processed usage row as it is priced now.
+     */
+    public record RatedRow(long usageId, Instant timestamp, String metricType, Double billableUnits,
+                           Double unitPrice, Double totalCost, String currency) {
+    }
+
+    /**
+     * Rows moved from one unit price to another; an unpriced row counts as price and cost 0.
+     */
+    public record DiffLine(String consumerId, String metricType, double oldUnitPrice, double newUnitPrice,
+                           String currency, long requestCount, double oldCost, double newCost) {
+    }
+
+    public RerateRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public long createJob(Long organizationId, Instant rangeStart, Instant rangeEnd, boolean dryRun,
+                          boolean adjustWallets) {
+        KeyHolder keys = new GeneratedKeyHolder();
+        jdbcTemplate.update((Connection con) -> {
+            PreparedStatement ps = con.prepareStatement("INSERT INTO usage_rerate_job (organization_id, range_start, "
+                    + "range_end, dry_run, adjust_wallets, status, created_at, updated_at) "
+                    + "VALUES (?, ?, ?, ?, ?, ?, now(), now())", new String[]{"job_id"});
+            ps.setLong(1, organizationId);
+            ps.setTimestamp(2, Timestamp.from(rangeStart));
+            ps.setTimestamp(3, Timestamp.from(rangeEnd));
+            ps.setBoolean(4, dryRun);
+            ps.setBoolean(5, adjustWallets);
+            ps.setString(6, STATUS_RUNNING);
+            return ps;
+        }, keys);
+        return keys.getKey().longValue();
+    }
+
+    public void addPartitions(long jobId, List<ReratePartition> partitions) {
+        if (partitions.isEmpty()) {
+            return;
+        }
+        int n = partitions.size();
+        String[] consumerIds = new String[n];
+        Timestamp[] starts = new Timestamp[n];
+        Timestamp[] ends = new Timestamp[n];
+        for (int i = 0; i < n; i++) {
+            consumerIds[i] = partitions.get(i).consumerId();
+            starts[i] = Timestamp.from(partitions.get(i).sliceStart());
+            ends[i] = Timestamp.from(partitions.get(i).sliceEnd());
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(ADD_PARTITIONS_SQL)) {
+                ps.setLong(1, jobId);
+                ps.setString(2, STATUS_RUNNING);
+                ps.setArray(3, array(con, "varchar", consumerIds));
+                ps.setArray(4, array(con, "timestamp", starts));
+                ps.setArray(5, array(con, "timestamp", ends));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    public RerateJob findJob(long jobId) {
+        List<RerateJob> jobs = jdbcTemplate.query("SELECT " + JOB_COLUMNS + " FROM usage_rerate_job WHERE job_id = ?",
+                (rs, rowNum) -> mapJob(rs), jobId);
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    public List<RerateJob> findRunningJobs() {
+        return jdbcTemplate.query("SELECT " + JOB_COLUMNS + " FROM usage_rerate_job WHERE status = ? ORDER BY job_id",
+                (rs, rowNum) -> mapJob(rs), STATUS_RUNNING);
+    }
+
+    public List<ReratePartition> findPartitions(long jobId) {
+        return jdbcTemplate.query("SELECT " + PARTITION_COLUMNS + " FROM usage_rerate_partition WHERE job_id = ? "
+                + "ORDER BY consumer_id, slice_start", (rs, rowNum) -> mapPartition(rs), jobId);
+    }
+
+    public List<DiffLine> findDiff(long jobId) {
+        return jdbcTemplate.query("SELECT consumer_id, metric_type, old_unit_price, new_unit_price, currency, "
+                + "request_count, old_cost, new_cost FROM usage_rerate_diff WHERE job_id = ? "
+                + "ORDER BY consumer_id, metric_type, old_unit_price, new_unit_price",
+                (rs, rowNum) -> new DiffLine(rs.getString(1), rs.getString(2), rs.getDouble(3), rs.getDouble(4),
+                        rs.getString(5), rs.getLong(6), rs.getDouble(7), rs.getDouble(8)),
+                jobId);
+    }
+
+    /**
+     * Locks the partition so only one runner advances it. Must run in a transaction.
+     */
+    public ReratePartition lockPartition(long jobId, String consumerId, Instant sliceStart) {
+        return jdbcTemplate.queryForObject("SELECT " + PARTITION_COLUMNS + " FROM usage_rerate_partition "
+                + "WHERE job_id = ? AND consumer_id = ? AND slice_start = ? FOR UPDATE",
+                (rs, rowNum) -> mapPartition(rs), jobId, consumerId, Timestamp.from(sliceStart));
+    }
+
+    /**
+     * Next page of the consumer's rated, unbilled rows after the (timestamp, usageId) cursor
+     * and before {@code before}; {@code lock} locks them for rewriting, in a transaction.
+     */
+    public List<RatedRow> findPage(Long organizationId, String consumerId, Instant afterTimestamp, long afterUsageId,
+                                   Instant before, int limit, boolean lock) {
+        return jdbcTemplate.query(lock ? PAGE_SQL + " FOR UPDATE" : PAGE_SQL, (rs, rowNum) -> new RatedRow(
+                rs.getLong(1),
+                rs.getTimestamp(2).toInstant(),
+                rs.getString(3),
+                nullableDouble(rs, 4),
+                nullableDouble(rs, 5),
+                nullableDouble(rs, 6),
+                rs.getString(7)),
+                organizationId, consumerId, Timestamp.from(before), Timestamp.from(afterTimestamp), afterUsageId, limit);
+    }
+
+    public void addDiff(long jobId, Collection<DiffLine> lines) {
+        if (lines.isEmpty()) {
+            return;
+        }
+        int n = lines.size();
+        String[] consumerIds = new String[n];
+        String[] metricTypes = new String[n];
+        Double[] oldUnitPrices = new Double[n];
+        Double[] newUnitPrices = new Double[n];
+        String[] currencies = new String[n];
+        Long[] requestCounts = new Long[n];
+        Double[] oldCosts = new Double[n];
+        Double[] newCosts = new Double[n];
+        int i = 0;
+        for (DiffLine line : lines) {
+            consumerIds[i] = line.consumerId();
+            metricTypes[i] = line.metricType();
+            oldUnitPrices[i] = line.oldUnitPrice();
+            newUnitPrices[i] = line.newUnitPrice();
+            currencies[i] = line.currency();
+            requestCounts[i] = line.requestCount();
+            oldCosts[i] = line.oldCost();
+            newCosts[i] = line.newCost();
+            i++;
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(ADD_DIFF_SQL)) {
+                ps.setLong(1, jobId);
+                ps.setArray(2, array(con, "varchar", consumerIds));
+                ps.setArray(3, array(con, "varchar", metricTypes));
+                ps.setArray(4, array(con, "float8", oldUnitPrices));
+                ps.setArray(5, array(con, "float8", newUnitPrices));
+                ps.setArray(6, array(con, "varchar", currencies));
+                ps.setArray(7, array(con, "bigint", requestCounts));
+                ps.setArray(8, array(con, "float8", oldCosts));
+                ps.setArray(9, array(con, "float8", newCosts));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Moves the partition's cursor past a page and adds the page to its counters.
+     */
+    public void advance(long jobId, ReratePartition partition, Instant cursorTimestamp, long cursorUsageId,
+                        long rowsScanned, long rowsChanged, double costDelta, boolean done) {
+        jdbcTemplate.update("UPDATE usage_rerate_partition SET cursor_ts = ?, cursor_usage_id = ?, "
+                + "rows_scanned = rows_scanned + ?, rows_changed = rows_changed + ?, cost_delta = cost_delta + ?, "
+                + "status = ?, updated_at = now() WHERE job_id = ? AND consumer_id = ? AND slice_start = ?",
+                cursorTimestamp != null ? Timestamp.from(cursorTimestamp) : null, cursorTimestamp != null ? cursorUsageId : null,
+                rowsScanned, rowsChanged, costDelta, done ? STATUS_DONE : STATUS_RUNNING,
+                jobId, partition.consumerId(), Timestamp.from(partition.sliceStart()));
+    }
+
+    public void finishJob(long jobId, String status, String error) {
+        jdbcTemplate.update("UPDATE usage_rerate_job SET status = ?, error = ?, finished_at = now(), updated_at = now() "
+                + "WHERE job_id = ?", status, error, jobId);
+    }
+
+    public void reopenJob(long jobId) {
+        jdbcTemplate.update("UPDATE usage_rerate_job SET status = ?, error = NULL, finished_at = NULL, "
+                + "updated_at = now() WHERE job_id = ?", STATUS_RUNNING, jobId);
+    }
+
+    private static RerateJob mapJob(ResultSet rs) throws SQLException {
+        Timestamp finishedAt = rs.getTimestamp(10);
+        return new RerateJob(
+                rs.getLong(1),
+                rs.getLong(2),
+                rs.getTimestamp(3).toInstant(),
+                rs.getTimestamp(4).toInstant(),
+                rs.getBoolean(5),
+                rs.getBoolean(6),
+                rs.getString(7),
+                rs.getString(8),
+                rs.getTimestamp(9).toInstant(),
+                finishedAt != null ? finishedAt.toInstant() : null);
+    }
+
+    private static ReratePartition mapPartition(ResultSet rs) throws SQLException {
+        Timestamp cursor = rs.getTimestamp(5);
+        long cursorUsageId = rs.getLong(6);
+        boolean noCursorId = rs.wasNull();
+        return new ReratePartition(
+                rs.getString(1),
+                rs.getTimestamp(2).toInstant(),
+                rs.getTimestamp(3).toInstant(),
+                rs.getString(4),
+                cursor != null ? cursor.toInstant() : null,
+                noCursorId ? null : cursorUsageId,
+                rs.getLong(7),
+                rs.getLong(8),
+                rs.getDouble(9));
+    }
+
+    private static Double nullableDouble(ResultSet rs, int column) throws SQLException {
+        double value = rs.getDouble(column);
+        return rs.wasNull() ? null : value;
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
@@ -0,0 +1,71 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * Daily Space-Saving sketches per organization and dimension in usage_topk_sketch.
+ * Every node merges its own additions into the stored sketch under a row lock, so the row is
+ * the merge of all nodes' traffic for that day.
+ */
+@Repository
+public class TopKSketchRepository {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Serialized sketch of one day.
+     */
+    public record StoredSketch(Instant bucketStart, byte[] sketch) {
+    }
+
+    public TopKSketchRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Locks the day's sketch for a read-merge-write, creating an empty row first if needed.
+     * Must run in a transaction.
+     *
+     * @return the stored sketch, or null if the row was just created
+     */
+    public byte[] lockSketch(Long organizationId, String dimension, Instant bucketStart) {
+        jdbcTemplate.update("INSERT INTO usage_topk_sketch (organization_id, dimension, bucket_start, sketch, updated_at) "
+                + "VALUES (?, ?, ?, NULL, now()) ON CONFLICT DO NOTHING",
+                organizationId, dimension, Timestamp.from(bucketStart));
+        return jdbcTemplate.queryForObject("SELECT sketch FROM usage_topk_sketch "
+                + "WHERE organization_id = ? AND dimension = ? AND bucket_start = ? FOR UPDATE",
+                byte[].class, organizationId, dimension, Timestamp.from(bucketStart));
+    }
+
+    public void saveSketch(Long organizationId, String dimension, Instant bucketStart, byte[] sketch) {
+        jdbcTemplate.update("UPDATE usage_topk_sketch SET sketch = ?, updated_at = now() "
+                + "WHERE organization_id = ? AND dimension = ? AND bucket_start = ?",
+                sketch, organizationId, dimension, Timestamp.from(bucketStart));
+    }
+
+    /**
+     * Sketches of the days starting in [from, to).
+     */
+    public List<StoredSketch> findSketches(Long organizationId, String dimension, Instant from, Instant to) {
+        return jdbcTemplate.query("SELECT bucket_start, sketch FROM usage_topk_sketch "
+                + "WHERE organization_id = ? AND dimension = ? AND bucket_start >= ? AND bucket_start < ? "
+                + "AND sketch IS NOT NULL",
+                (rs, rowNum) -> new StoredSketch(rs.getTimestamp(1).toInstant(), rs.getBytes(2)),
+                organizationId, dimension, Timestamp.from(from), Timestamp.from(to));
+    }
+
+    /**
+     * Start of sketch tracking; days before it have no complete sketch. Set once, on first use.
+     */
+    public Instant findOrStartTracking(Instant now) {
+        jdbcTemplate.update("INSERT INTO usage_topk_tracking (id, tracking_since) VALUES (1, ?) ON CONFLICT DO NOTHING",
+                Timestamp.from(now));
+        return jdbcTemplate.queryForObject("SELECT tracking_since FROM usage_topk_tracking WHERE id = 1",
+                Timestamp.class).toInstant();
+    }
+}
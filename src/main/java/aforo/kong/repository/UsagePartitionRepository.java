@@ -0,0 +1,126 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Partition management for the monthly range-partitioned usage tables created by
+ * 023-partition-usage-tables.yaml. Partitions are named {@code <table>_pYYYYMM}; the
+ * {@code <table>_default} partition catches anything outside the created months.
+ */
+@Repository
+public class UsagePartitionRepository {
+
+    private static final DateTimeFormatter MONTH_SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private static final int CLAIM_DELETE_BATCH = 10_000;
+
+    /**
+     * The partitioned usage tables, with the filter that marks rows not yet safe to drop and the
+     * table claiming their correlation IDs, if any.
+     */
+    public enum UsageTable {
+        USAGE_RECORD("usage_record", "timestamp", "billed = false", "usage_correlation"),
+        KONG_USAGE_RECORD("kong_usage_record", "ts", "processed = false", null);
+
+        private final String tableName;
+        private final String partitionColumn;
+        private final String pendingFilter;
+        private final String claimTable;
+        private final Pattern partitionName;
+
+        UsageTable(String tableName, String partitionColumn, String pendingFilter, String claimTable) {
+            this.tableName = tableName;
+            this.partitionColumn = partitionColumn;
+            this.pendingFilter = pendingFilter;
+            this.claimTable = claimTable;
+            this.partitionName = Pattern.compile(Pattern.quote(tableName) + "_p(\\d{6})");
+        }
+
+        public String getTableName() {
+            return tableName;
+        }
+
+        public String partitionFor(YearMonth month) {
+            return tableName + "_p" + month.format(MONTH_SUFFIX);
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public UsagePartitionRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Creates the partition for {@code month} (UTC) unless it exists, moving any rows for that
+     * month out of the default partition.
+     *
+     * @return true if the partition was created
+     */
+    public boolean createMonthlyPartition(UsageTable table, YearMonth month, int orgHashPartitions) {
+        Boolean created = jdbcTemplate.queryForObject(
+                "SELECT create_usage_partition(?, ?, ?, ?::timestamp, ?::timestamp, ?)", Boolean.class,
+                table.tableName, table.partitionColumn, table.partitionFor(month),
+                month.atDay(1).atStartOfDay().toString(),
+                month.plusMonths(1).atDay(1).atStartOfDay().toString(),
+                orgHashPartitions);
+        return Boolean.TRUE.equals(created);
+    }
+
+    /**
+     * Months that currently have a partition, oldest first.
+     */
+    public List<YearMonth> findPartitionMonths(UsageTable table) {
+        List<String> names = jdbcTemplate.queryForList(
+                "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid "
+                        + "WHERE i.inhparent = ?::regclass ORDER BY c.relname",
+                String.class, table.tableName);
+        List<YearMonth> months = new ArrayList<>(names.size());
+        for (String name : names) {
+            Matcher m = table.partitionName.matcher(name);
+            if (m.matches()) {
+                months.add(YearMonth.parse(m.group(1), MONTH_SUFFIX));
+            }
+        }
+        return months;
+    }
+
+    /**
+     * Whether the month's partition still holds rows that have not been billed/processed.
+     */
+    public boolean hasPendingRows(UsageTable table, YearMonth month) {
+        List<Integer> rows = jdbcTemplate.queryForList(
+                "SELECT 1 FROM " + table.partitionFor(month) + " WHERE " + table.pendingFilter + " LIMIT 1",
+                Integer.class);
+        return !rows.isEmpty();
+    }
+
+    /**
+     * Drops the month's partition with all its rows (and its hash sub-partitions, if any), then
+     * releases the month's correlation ID claims a batch per statement.
+     */
+    public void dropPartition(UsageTable table, YearMonth month) {
+        jdbcTemplate.execute("DROP TABLE IF EXISTS " + table.partitionFor(month));
+        if (table.claimTable == null) {
+            return;
+        }
+        Timestamp from = Timestamp.from(month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+        Timestamp to = Timestamp.from(month.plusMonths(1).atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant());
+        String delete = "DELETE FROM " + table.claimTable + " WHERE ctid = ANY(ARRAY(SELECT ctid FROM "
+                + table.claimTable + " WHERE \"timestamp\" >= ? AND \"timestamp\" < ? LIMIT " + CLAIM_DELETE_BATCH + "))";
+        int deleted;
+        do {
+            deleted = jdbcTemplate.update(delete, from, to);
+        } while (deleted > 0);
+    }
+}
@@ -0,0 +1,235 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Running per-period usage totals (usage_period_total) and the charges rated from them
+ * (usage_period_charge).
+ *
+ * Totals are keyed by the period the event belongs to, so an event that arrives late still
+ * lands in its own period. A charge remembers the {@code updated_at} of the total it was
+ * computed from; a total updated after that is due for re-rating.
+ *
+ * For tiered, volume and stairstep plans the charge, not the sum of per-record costs, is
+ * what the consumer owes for the period. A charge also keeps the per-record cost of the same
+ * usage (read from usage_rollup_daily) and the wallet true-up already posted for the
+ * difference, so a re-rating only posts what changed since.
+ */
+@Repository
+public class UsagePeriodRepository {
+
+    private static final String ADD_TOTALS_SQL =
+            "INSERT INTO usage_period_total AS t "
+            + "(organization_id, period_start, consumer_id, metric_type, quantity, updated_at) "
+            + "SELECT ?, v.period_start, v.consumer_id, v.metric_type, v.quantity, clock_timestamp() "
+            + "FROM unnest(?::timestamp[], ?::varchar[], ?::varchar[], ?::float8[]) "
+            + "AS v(period_start, consumer_id, metric_type, quantity) "
+            + "ON CONFLICT (organization_id, period_start, consumer_id, metric_type) DO UPDATE SET "
+            + "quantity = t.quantity + EXCLUDED.quantity, updated_at = clock_timestamp()";
+
+    // Totals of open periods, plus totals of any period that changed since they were last rated
+    private static final String TOTALS_TO_RATE_SQL =
+            "SELECT t.period_start, t.consumer_id, t.metric_type, t.quantity, t.updated_at, "
+            + "c.plan_name, c.plan_updated_at, c.source_updated_at, COALESCE(c.wallet_settled, 0), "
+            + "(SELECT COALESCE(SUM(d.total_cost), 0) FROM usage_rollup_daily d "
+            + "WHERE d.organization_id = t.organization_id AND d.consumer_id = t.consumer_id "
+            + "AND d.metric_type = t.metric_type AND d.bucket_start >= t.period_start "
+            + "AND d.bucket_start < t.period_start + interval '1 month') "
+            + "FROM usage_period_total t LEFT JOIN usage_period_charge c "
+            + "ON c.organization_id = t.organization_id AND c.period_start = t.period_start "
+            + "AND c.consumer_id = t.consumer_id AND c.metric_type = t.metric_type "
+            + "WHERE t.organization_id = ? "
+            + "AND (t.period_start >= ? OR c.source_updated_at IS NULL OR t.updated_at > c.source_updated_at)";
+
+    private static final String UPSERT_CHARGES_SQL =
+            "INSERT INTO usage_period_charge AS c "
+            + "(organization_id, period_start, consumer_id, metric_type, plan_name, pricing_model, quantity, "
+            + "amount, currency, plan_updated_at, source_updated_at, record_cost, wallet_settled, rated_at) "
+            + "SELECT ?, v.* , now() FROM unnest(?::timestamp[], ?::varchar[], ?::varchar[], ?::varchar[], "
+            + "?::varchar[], ?::float8[], ?::float8[], ?::varchar[], ?::timestamp[], ?::timestamp[], "
+            + "?::float8[], ?::float8[]) "
+            + "AS v(period_start, consumer_id, metric_type, plan_name, pricing_model, quantity, amount, currency, "
+            + "plan_updated_at, source_updated_at, record_cost, wallet_settled) "
+            + "ON CONFLICT (organization_id, period_start, consumer_id, metric_type) DO UPDATE SET "
+            + "plan_name = EXCLUDED.plan_name, pricing_model = EXCLUDED.pricing_model, "
+            + "quantity = EXCLUDED.quantity, amount = EXCLUDED.amount, currency = EXCLUDED.currency, "
+            + "plan_updated_at = EXCLUDED.plan_updated_at, source_updated_at = EXCLUDED.source_updated_at, "
+            + "record_cost = EXCLUDED.record_cost, wallet_settled = EXCLUDED.wallet_settled, rated_at = now()";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Usage of one consumer and metric within the period starting at {@code periodStart}.
+     */
+    public record PeriodQuantity(Instant periodStart, String consumerId, String metricType, double quantity) {
+    }
+
+    /**
+     * A running total together with what its current charge was computed from, if any, the
+     * wallet true-up posted for that charge and the current per-record cost of the same usage.
+     */
+    public record PeriodTotal(Instant periodStart, String consumerId, String metricType, double quantity,
+                              Instant updatedAt, String chargedPlanName, Instant chargedPlanUpdatedAt,
+                              Instant chargedSourceUpdatedAt, double walletSettled, double recordCost) {
+    }
+
+    /**
+     * A rated charge, ready to be stored; {@code walletSettled} is the true-up of
+     * {@code amount - recordCost} the wallet has been charged with once this is committed.
+     */
+    public record PeriodCharge(Instant periodStart, String consumerId, String metricType, String planName,
+                               String pricingModel, double quantity, double amount, String currency,
+                               Instant planUpdatedAt, Instant sourceUpdatedAt, double recordCost,
+                               double walletSettled) {
+    }
+
+    public UsagePeriodRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Adds the quantities to the running totals in one statement.
+     */
+    public void addTotals(Long organizationId, List<PeriodQuantity> quantities) {
+        if (quantities.isEmpty()) {
+            return;
+        }
+        int n = quantities.size();
+        Timestamp[] periods = new Timestamp[n];
+        String[] consumerIds = new String[n];
+        String[] metricTypes = new String[n];
+        Double[] values = new Double[n];
+        for (int i = 0; i < n; i++) {
+            PeriodQuantity q = quantities.get(i);
+            periods[i] = Timestamp.from(q.periodStart());
+            consumerIds[i] = q.consumerId();
+            metricTypes[i] = q.metricType();
+            values[i] = q.quantity();
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(ADD_TOTALS_SQL)) {
+                ps.setLong(1, organizationId);
+                ps.setArray(2, array(con, "timestamp", periods));
+                ps.setArray(3, array(con, "varchar", consumerIds));
+                ps.setArray(4, array(con, "varchar", metricTypes));
+                ps.setArray(5, array(con, "float8", values));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    public List<Long> findOrganizations() {
+        return jdbcTemplate.queryForList("SELECT DISTINCT organization_id FROM usage_period_total", Long.class);
+    }
+
+    /**
+     * Totals of the organization from {@code openFrom} on, and older totals whose charge is
+     * missing or out of date.
+     */
+    public List<PeriodTotal> findTotalsToRate(Long organizationId, Instant openFrom) {
+        return jdbcTemplate.query(TOTALS_TO_RATE_SQL, (rs, rowNum) -> new PeriodTotal(
+                rs.getTimestamp(1).toInstant(),
+                rs.getString(2),
+                rs.getString(3),
+                rs.getDouble(4),
+                rs.getTimestamp(5).toInstant(),
+                rs.getString(6),
+                toInstant(rs.getTimestamp(7)),
+                toInstant(rs.getTimestamp(8)),
+                rs.getDouble(9),
+                rs.getDouble(10)), organizationId, Timestamp.from(openFrom));
+    }
+
+    /**
+     * Serializes rating of the organization's period charges until the transaction ends, so two
+     * runners never post the same wallet true-up. Must run in a transaction.
+     */
+    public void lockOrganization(Long organizationId) {
+        jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(hashtext('usage_period_charge'), hashtext(?))",
+                String.valueOf(organizationId));
+    }
+
+    /**
+     * Stores the charges in one statement, replacing earlier ones for the same key.
+     */
+    public int saveCharges(Long organizationId, List<PeriodCharge> charges) {
+        if (charges.isEmpty()) {
+            return 0;
+        }
+        int n = charges.size();
+        Timestamp[] periods = new Timestamp[n];
+        String[] consumerIds = new String[n];
+        String[] metricTypes = new String[n];
+        String[] planNames = new String[n];
+        String[] models = new String[n];
+        Double[] quantities = new Double[n];
+        Double[] amounts = new Double[n];
+        String[] currencies = new String[n];
+        Timestamp[] planUpdatedAt = new Timestamp[n];
+        Timestamp[] sourceUpdatedAt = new Timestamp[n];
+        Double[] recordCosts = new Double[n];
+        Double[] walletSettled = new Double[n];
+        for (int i = 0; i < n; i++) {
+            PeriodCharge c = charges.get(i);
+            periods[i] = Timestamp.from(c.periodStart());
+            consumerIds[i] = c.consumerId();
+            metricTypes[i] = c.metricType();
+            planNames[i] = c.planName();
+            models[i] = c.pricingModel();
+            quantities[i] = c.quantity();
+            amounts[i] = c.amount();
+            currencies[i] = c.currency();
+            planUpdatedAt[i] = c.planUpdatedAt() != null ? Timestamp.from(c.planUpdatedAt()) : null;
+            sourceUpdatedAt[i] = Timestamp.from(c.sourceUpdatedAt());
+            recordCosts[i] = c.recordCost();
+            walletSettled[i] = c.walletSettled();
+        }
+        Integer saved = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(UPSERT_CHARGES_SQL)) {
+                int idx = 1;
+                ps.setLong(idx++, organizationId);
+                ps.setArray(idx++, array(con, "timestamp", periods));
+                ps.setArray(idx++, array(con, "varchar", consumerIds));
+                ps.setArray(idx++, array(con, "varchar", metricTypes));
+                ps.setArray(idx++, array(con, "varchar", planNames));
+                ps.setArray(idx++, array(con, "varchar", models));
+                ps.setArray(idx++, array(con, "float8", quantities));
+                ps.setArray(idx++, array(con, "float8", amounts));
+                ps.setArray(idx++, array(con, "varchar", currencies));
+                ps.setArray(idx++, array(con, "timestamp", planUpdatedAt));
+                ps.setArray(idx++, array(con, "timestamp", sourceUpdatedAt));
+                ps.setArray(idx++, array(con, "float8", recordCosts));
+                ps.setArray(idx++, array(con, "float8", walletSettled));
+                return ps.executeUpdate();
+            }
+        });
+        return saved != null ? saved : 0;
+    }
+
+    public List<Map<String, Object>> findCharges(Long organizationId, String consumerId, Instant periodStart) {
+        return jdbcTemplate.queryForList(
+                "SELECT metric_type, plan_name, pricing_model, quantity, amount, currency, record_cost, "
+                + "wallet_settled, rated_at "
+                + "FROM usage_period_charge WHERE organization_id = ? AND consumer_id = ? AND period_start = ? "
+                + "ORDER BY metric_type",
+                organizationId, consumerId, Timestamp.from(periodStart));
+    }
+
+    private static Instant toInstant(Timestamp timestamp) {
+        return timestamp != null ? timestamp.toInstant() : null;
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
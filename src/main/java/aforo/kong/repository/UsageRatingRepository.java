@@ -0,0 +1,204 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Set-based reads and writes of the rating engine on usage_record and usage_rating_checkpoint.
+ *
+ * Unrated rows are paged by keyset on (timestamp, usage_id) through the partial index
+ * idx_usage_unprocessed, and a page of results goes back as one {@code UPDATE ... FROM unnest(...)}
+ * instead of one entity save per row. That UPDATE only matches rows still unprocessed and returns
+ * the ones it claimed, so when two runners rate the same page only one of them counts each row.
+ */
+@Repository
+public class UsageRatingRepository {
+
+    // Loose index scan: one index probe per organization instead of reading every pending row
+    private static final String ORGANIZATIONS_WITH_UNRATED_SQL =
+            "WITH RECURSIVE orgs AS ("
+            + "SELECT min(organization_id) AS id FROM usage_record WHERE processed = false "
+            + "UNION ALL "
+            + "SELECT (SELECT min(organization_id) FROM usage_record "
+            + "WHERE processed = false AND organization_id > orgs.id) FROM orgs WHERE orgs.id IS NOT NULL) "
+            + "SELECT id FROM orgs WHERE id IS NOT NULL";
+
+    private static final String UNRATED_PAGE_SQL =
+            "SELECT usage_id, \"timestamp\", consumer_id, metric_type, billable_units FROM usage_record "
+            + "WHERE organization_id = ? AND processed = false "
+            + "AND (\"timestamp\", usage_id) > (?, ?) AND \"timestamp\" <= ? "
+            + "ORDER BY \"timestamp\", usage_id LIMIT ?";
+
+    // A null price or cost leaves the column untouched; the row is still marked processed.
+    // A row another runner marked processed first is re-checked under its row lock and skipped.
+    private static final String CLAIM_RATINGS_SQL =
+            "UPDATE usage_record u SET unit_price = COALESCE(v.unit_price, u.unit_price), "
+            + "total_cost = COALESCE(v.total_cost, u.total_cost), "
+            + "currency = COALESCE(v.currency, u.currency), processed = true "
+            + "FROM unnest(?::bigint[], ?::timestamp[], ?::float8[], ?::float8[], ?::varchar[]) "
+            + "AS v(usage_id, ts, unit_price, total_cost, currency) "
+            + "WHERE u.organization_id = ? AND u.usage_id = v.usage_id AND u.\"timestamp\" = v.ts "
+            + "AND u.processed = false "
+            + "RETURNING u.usage_id";
+
+    // Re-rating rewrites rows that are already processed, but never billed ones
+    private static final String REPRICE_RATINGS_SQL =
+            "UPDATE usage_record u SET unit_price = COALESCE(v.unit_price, u.unit_price), "
+            + "total_cost = COALESCE(v.total_cost, u.total_cost), "
+            + "currency = COALESCE(v.currency, u.currency) "
+            + "FROM unnest(?::bigint[], ?::timestamp[], ?::float8[], ?::float8[], ?::varchar[]) "
+            + "AS v(usage_id, ts, unit_price, total_cost, currency) "
+            + "WHERE u.organization_id = ? AND u.usage_id = v.usage_id AND u.\"timestamp\" = v.ts "
+            + "AND u.processed = true AND u.billed = false";
+
+    private static final String UPSERT_CHECKPOINT_SQL =
+            "INSERT INTO usage_rating_checkpoint "
+            + "(organization_id, last_ts, last_usage_id, rated_total, lag_seconds, updated_at) "
+            + "VALUES (?, ?, ?, ?, ?, now()) "
+            + "ON CONFLICT (organization_id) DO UPDATE SET "
+            + "last_ts = COALESCE(EXCLUDED.last_ts, usage_rating_checkpoint.last_ts), "
+            + "last_usage_id = COALESCE(EXCLUDED.last_usage_id, usage_rating_checkpoint.last_usage_id), "
+            + "rated_total = usage_rating_checkpoint.rated_total + EXCLUDED.rated_total, "
+            + "lag_seconds = EXCLUDED.lag_seconds, updated_at = now()";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Pricing input of one unrated usage row.
+     */
+    public record UnratedUsage(long usageId, Instant timestamp, String consumerId,
+                               String metricType, Double billableUnits) {
+    }
+
+    /**
+     * Rating result of one row; null price and cost mean the row could not be rated.
+     */
+    public record RatedUsage(long usageId, Instant timestamp, Double unitPrice,
+                             Double totalCost, String currency) {
+    }
+
+    public UsageRatingRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    public List<Long> findOrganizationsWithUnrated() {
+        return jdbcTemplate.queryForList(ORGANIZATIONS_WITH_UNRATED_SQL, Long.class);
+    }
+
+    /**
+     * Next page of unrated rows of the organization after the (timestamp, usageId) cursor,
+     * up to and including {@code upTo}.
+     */
+    public List<UnratedUsage> findUnratedPage(Long organizationId, Instant afterTimestamp, long afterUsageId,
+                                              Instant upTo, int limit) {
+        return jdbcTemplate.query(UNRATED_PAGE_SQL, (ResultSet rs, int rowNum) -> {
+            double units = rs.getDouble(5);
+            Double billableUnits = rs.wasNull() ? null : units;
+            return new UnratedUsage(
+                    rs.getLong(1),
+                    rs.getTimestamp(2).toInstant(),
+                    rs.getString(3),
+                    rs.getString(4),
+                    billableUnits);
+        }, organizationId, Timestamp.from(afterTimestamp), afterUsageId, Timestamp.from(upTo), limit);
+    }
+
+    /**
+     * Writes the ratings of rows that are still unprocessed and marks them processed.
+     *
+     * @return the usage IDs this call claimed; rows already processed by someone else are left out
+     */
+    public Set<Long> claimRatings(Long organizationId, List<RatedUsage> ratings) {
+        if (ratings.isEmpty()) {
+            return Set.of();
+        }
+        Set<Long> claimed = new HashSet<>(ratings.size() * 2);
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(CLAIM_RATINGS_SQL)) {
+                bindRatings(con, ps, organizationId, ratings);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        claimed.add(rs.getLong(1));
+                    }
+                }
+            }
+            return null;
+        });
+        return claimed;
+    }
+
+    /**
+     * Writes new prices of processed, unbilled rows, for re-rating.
+     *
+     * @return the number of rows updated
+     */
+    public int repriceRatings(Long organizationId, List<RatedUsage> ratings) {
+        if (ratings.isEmpty()) {
+            return 0;
+        }
+        Integer updated = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(REPRICE_RATINGS_SQL)) {
+                bindRatings(con, ps, organizationId, ratings);
+                return ps.executeUpdate();
+            }
+        });
+        return updated != null ? updated : 0;
+    }
+
+    private static void bindRatings(Connection con, PreparedStatement ps, Long organizationId,
+                                    List<RatedUsage> ratings) throws SQLException {
+        int n = ratings.size();
+        Long[] usageIds = new Long[n];
+        Timestamp[] timestamps = new Timestamp[n];
+        Double[] unitPrices = new Double[n];
+        Double[] totalCosts = new Double[n];
+        String[] currencies = new String[n];
+        for (int i = 0; i < n; i++) {
+            RatedUsage r = ratings.get(i);
+            usageIds[i] = r.usageId();
+            timestamps[i] = Timestamp.from(r.timestamp());
+            unitPrices[i] = r.unitPrice();
+            totalCosts[i] = r.totalCost();
+            currencies[i] = r.currency();
+        }
+        ps.setArray(1, array(con, "bigint", usageIds));
+        ps.setArray(2, array(con, "timestamp", timestamps));
+        ps.setArray(3, array(con, "float8", unitPrices));
+        ps.setArray(4, array(con, "float8", totalCosts));
+        ps.setArray(5, array(con, "varchar", currencies));
+        ps.setLong(6, organizationId);
+    }
+
+    /**
+     * Records progress of the organization; {@code ratedDelta} is added to the running total.
+     * A null cursor keeps the previous one.
+     */
+    public void saveCheckpoint(Long organizationId, Instant lastTimestamp, Long lastUsageId,
+                               long ratedDelta, long lagSeconds) {
+        jdbcTemplate.update(UPSERT_CHECKPOINT_SQL, organizationId,
+                lastTimestamp != null ? Timestamp.from(lastTimestamp) : null,
+                lastUsageId, ratedDelta, lagSeconds);
+    }
+
+    public List<Map<String, Object>> findCheckpoints() {
+        return jdbcTemplate.queryForList(
+                "SELECT organization_id, last_ts, last_usage_id, rated_total, lag_seconds, updated_at "
+                + "FROM usage_rating_checkpoint ORDER BY organization_id");
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
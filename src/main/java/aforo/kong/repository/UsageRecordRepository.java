@@ -21,6 +21,19 @@ public interface UsageRecordRepository extends JpaRepository<UsageRecord, Long>
     
     Page<UsageRecord> findByOrganizationId(Long organizationId, Pageable pageable);
     
+    // usage_record is partitioned by month on timestamp; queries that bound it only touch the matching partitions
+    @Query("SELECT u.consumerUsername, COUNT(u) FROM UsageRecord u WHERE u.organizationId = :organizationId AND u.timestamp >= :startTime AND u.timestamp < :endTime AND u.consumerUsername IS NOT NULL GROUP BY u.consumerUsername ORDER BY COUNT(u) DESC")
+    List<Object[]> countByConsumerUsernameInPeriod(@Param("organizationId") Long organizationId,
+                                                   @Param("startTime") Instant startTime,
+                                                   @Param("endTime") Instant endTime,
+                                                   Pageable pageable);
+    
+    @Query("SELECT u.serviceName, COUNT(u) FROM UsageRecord u WHERE u.organizationId = :organizationId AND u.timestamp >= :startTime AND u.timestamp < :endTime AND u.serviceName IS NOT NULL GROUP BY u.serviceName ORDER BY COUNT(u) DESC")
+    List<Object[]> countByServiceNameInPeriod(@Param("organizationId") Long organizationId,
+                                              @Param("startTime") Instant startTime,
+                                              @Param("endTime") Instant endTime,
+                                              Pageable pageable);
+    
     List<UsageRecord> findByConsumerIdAndOrganizationIdAndTimestampBetween(
             String consumerId, Long organizationId, Instant startTime, Instant endTime);
     
@@ -35,9 +48,6 @@ public interface UsageRecordRepository extends JpaRepository<UsageRecord, Long>
                                             @Param("startTime") Instant startTime, 
                                             @Param("endTime") Instant endTime);
     
-    @Query("SELECT u FROM UsageRecord u WHERE u.organizationId = :organizationId AND u.billed = false AND u.processed = true")
-    List<UsageRecord> findUnbilledRecords(@Param("organizationId") Long organizationId);
-    
     // Aggregate queries for analytics
     @Query("SELECT COUNT(u) FROM UsageRecord u WHERE u.consumerId = :consumerId AND u.organizationId = :organizationId AND u.timestamp >= :startTime AND u.timestamp < :endTime")
     Long countByConsumerInPeriod(@Param("consumerId") String consumerId, 
@@ -62,12 +72,10 @@ public interface UsageRecordRepository extends JpaRepository<UsageRecord, Long>
     @Query("UPDATE UsageRecord u SET u.processed = true WHERE u.usageId IN :ids")
     int markAsProcessed(@Param("ids") List<Long> usageIds);
     
-    @Modifying
-    @Transactional
-    @Query("UPDATE UsageRecord u SET u.billed = true, u.invoiceId = :invoiceId WHERE u.usageId IN :ids")
-    int markAsBilled(@Param("ids") List<Long> usageIds, @Param("invoiceId") String invoiceId);
-    
-    // Dedupe check
-    @Query("SELECT COUNT(u) > 0 FROM UsageRecord u WHERE u.correlationId = :correlationId AND u.organizationId = :organizationId")
-    boolean existsByCorrelationIdAndOrganizationId(@Param("correlationId") String correlationId, @Param("organizationId") Long organizationId);
+    // Dedupe check against the correlation IDs claimed by stored rows, one primary key probe
+    // whatever the event time (see 037-usage-correlation-dedupe.yaml)
+    @Query(value = "SELECT EXISTS (SELECT 1 FROM usage_correlation WHERE organization_id = :organizationId AND correlation_id = :correlationId)",
+           nativeQuery = true)
+    boolean existsByCorrelationId(@Param("correlationId") String correlationId,
+                                  @Param("organizationId") Long organizationId);
 }
@@ -0,0 +1,291 @@
+package aforo.kong.repository;
+
+import aforo.kong.repository.UsageRatingRepository.RatedUsage;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hourly and daily usage rollups (usage_rollup_hourly / usage_rollup_daily) per consumer,
+ * service, route, response status and metric, and the range queries served from them.
+ * <p>
+ * Rows are added to the rollups in the transaction that marks them processed, so every rated
+ * row is counted exactly once, late arrivals included. A range is answered from whole days
+ * of the daily rollup, whole hours of the hourly rollup and raw rows for the partial hours at
+ * its edges. Rows not rated yet are read raw as well: the oldest of them is the rollup
+ * watermark, and a range ending before it needs no raw read for its rolled-up part.
+ * <p>
+ * Buckets are cut with date_trunc on usage_record's TIMESTAMPTZ in the session zone and stored
+ * as TIMESTAMP. The application pins both to UTC (see KongApplication), so they line up with
+ * the UTC boundaries that range queries are split at.
+ */
+@Repository
+public class UsageRollupRepository {
+
+    private static final String ROLLUP_SQL =
+            "INSERT INTO %1$s AS r (organization_id, bucket_start, consumer_id, service_id, route_id, "
+            + "response_status, metric_type, consumer_username, service_name, request_count, billable_units, "
+            + "total_cost, bandwidth_bytes, latency_sum, latency_count, updated_at) "
+            + "SELECT u.organization_id, date_trunc('%2$s', u.\"timestamp\"), COALESCE(u.consumer_id, ''), "
+            + "COALESCE(u.service_id, ''), COALESCE(u.route_id, ''), COALESCE(u.response_status, 0), "
+            + "COALESCE(u.metric_type, 'calls'), max(u.consumer_username), max(u.service_name), count(*), "
+            + "SUM(COALESCE(u.billable_units, 1)), COALESCE(SUM(u.total_cost), 0), "
+            + "COALESCE(SUM(u.request_size + u.response_size), 0), COALESCE(SUM(u.response_latency), 0), "
+            + "count(u.response_latency), now() "
+            + "FROM unnest(?::bigint[], ?::timestamp[]) AS v(usage_id, ts) "
+            + "JOIN usage_record u ON u.organization_id = ? AND u.usage_id = v.usage_id AND u.\"timestamp\" = v.ts "
+            + "GROUP BY 1, 2, 3, 4, 5, 6, 7 "
+            + "ON CONFLICT (organization_id, bucket_start, consumer_id, service_id, route_id, response_status, metric_type) "
+            + "DO UPDATE SET consumer_username = COALESCE(EXCLUDED.consumer_username, r.consumer_username), "
+            + "service_name = COALESCE(EXCLUDED.service_name, r.service_name), "
+            + "request_count = r.request_count + EXCLUDED.request_count, "
+            + "billable_units = r.billable_units + EXCLUDED.billable_units, "
+            + "total_cost = r.total_cost + EXCLUDED.total_cost, "
+            + "bandwidth_bytes = r.bandwidth_bytes + EXCLUDED.bandwidth_bytes, "
+            + "latency_sum = r.latency_sum + EXCLUDED.latency_sum, "
+            + "latency_count = r.latency_count + EXCLUDED.latency_count, updated_at = now()";
+
+    private static final String HOURLY_ROLLUP_SQL = String.format(ROLLUP_SQL, "usage_rollup_hourly", "hour");
+    private static final String DAILY_ROLLUP_SQL = String.format(ROLLUP_SQL, "usage_rollup_daily", "day");
+
+    // Reads the cost being replaced from usage_record, so it must run before the new cost is written
+    private static final String REPRICE_SQL =
+            "UPDATE %1$s r SET total_cost = r.total_cost + d.delta, updated_at = now() FROM ("
+            + "SELECT date_trunc('%2$s', u.\"timestamp\") AS bucket_start, COALESCE(u.consumer_id, '') AS consumer_id, "
+            + "COALESCE(u.service_id, '') AS service_id, COALESCE(u.route_id, '') AS route_id, "
+            + "COALESCE(u.response_status, 0) AS response_status, COALESCE(u.metric_type, 'calls') AS metric_type, "
+            + "SUM(v.total_cost - COALESCE(u.total_cost, 0)) AS delta "
+            + "FROM unnest(?::bigint[], ?::timestamp[], ?::float8[]) AS v(usage_id, ts, total_cost) "
+            + "JOIN usage_record u ON u.organization_id = ? AND u.usage_id = v.usage_id AND u.\"timestamp\" = v.ts "
+            + "GROUP BY 1, 2, 3, 4, 5, 6) d "
+            + "WHERE r.organization_id = ? AND r.bucket_start = d.bucket_start AND r.consumer_id = d.consumer_id "
+            + "AND r.service_id = d.service_id AND r.route_id = d.route_id AND r.response_status = d.response_status "
+            + "AND r.metric_type = d.metric_type";
+
+    private static final String HOURLY_REPRICE_SQL = String.format(REPRICE_SQL, "usage_rollup_hourly", "hour");
+    private static final String DAILY_REPRICE_SQL = String.format(REPRICE_SQL, "usage_rollup_daily", "day");
+
+    private static final String ROLLUP_COLUMNS =
+            "consumer_username, service_name, response_status, request_count, total_cost, bandwidth_bytes, "
+            + "latency_sum, latency_count";
+
+    // Named like the rollup columns, for ranges read from raw rows only
+    private static final String RAW_COLUMNS =
+            "consumer_username, service_name, COALESCE(response_status, 0) AS response_status, 1 AS request_count, "
+            + "COALESCE(total_cost, 0) AS total_cost, COALESCE(request_size + response_size, 0) AS bandwidth_bytes, "
+            + "COALESCE(response_latency, 0) AS latency_sum, "
+            + "CASE WHEN response_latency IS NULL THEN 0 ELSE 1 END AS latency_count";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Totals of a range; average latency is over requests that reported one.
+     */
+    public record UsageTotals(long requests, double totalCost, long bandwidthBytes,
+                              long successfulRequests, double averageLatencyMs) {
+    }
+
+    /**
+     * Columns usage can be counted by; rows without a value are left out.
+     */
+    public enum Dimension {
+        CONSUMER_USERNAME("consumer_username", "consumer_username IS NOT NULL"),
+        SERVICE_NAME("service_name", "service_name IS NOT NULL"),
+        RESPONSE_STATUS("response_status", "response_status <> 0");
+
+        private final String column;
+        private final String filter;
+
+        Dimension(String column, String filter) {
+            this.column = column;
+            this.filter = filter;
+        }
+    }
+
+    public UsageRollupRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Adds freshly rated rows to both rollups; meant to run in the transaction that marks them
+     * processed.
+     */
+    public void addRated(Long organizationId, List<RatedUsage> rated) {
+        if (rated.isEmpty()) {
+            return;
+        }
+        Long[] usageIds = new Long[rated.size()];
+        Timestamp[] timestamps = new Timestamp[rated.size()];
+        for (int i = 0; i < rated.size(); i++) {
+            usageIds[i] = rated.get(i).usageId();
+            timestamps[i] = Timestamp.from(rated.get(i).timestamp());
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            for (String sql : List.of(HOURLY_ROLLUP_SQL, DAILY_ROLLUP_SQL)) {
+                try (PreparedStatement ps = con.prepareStatement(sql)) {
+                    ps.setArray(1, con.createArrayOf("bigint", usageIds));
+                    ps.setArray(2, con.createArrayOf("timestamp", timestamps));
+                    ps.setLong(3, organizationId);
+                    ps.executeUpdate();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Moves the cost of re-priced rows, which are already in the rollups, to their new cost;
+     * meant to run in the transaction that writes the new cost, before it is written.
+     */
+    public void reprice(Long organizationId, List<RatedUsage> repriced) {
+        if (repriced.isEmpty()) {
+            return;
+        }
+        int n = repriced.size();
+        Long[] usageIds = new Long[n];
+        Timestamp[] timestamps = new Timestamp[n];
+        Double[] totalCosts = new Double[n];
+        for (int i = 0; i < n; i++) {
+            usageIds[i] = repriced.get(i).usageId();
+            timestamps[i] = Timestamp.from(repriced.get(i).timestamp());
+            totalCosts[i] = repriced.get(i).totalCost();
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            for (String sql : List.of(HOURLY_REPRICE_SQL, DAILY_REPRICE_SQL)) {
+                try (PreparedStatement ps = con.prepareStatement(sql)) {
+                    ps.setArray(1, con.createArrayOf("bigint", usageIds));
+                    ps.setArray(2, con.createArrayOf("timestamp", timestamps));
+                    ps.setArray(3, con.createArrayOf("float8", totalCosts));
+                    ps.setLong(4, organizationId);
+                    ps.setLong(5, organizationId);
+                    ps.executeUpdate();
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Timestamp of the organization's oldest row not rated yet, or null if every row is in the
+     * rollups.
+     */
+    public Instant findWatermark(Long organizationId) {
+        Timestamp oldest = jdbcTemplate.queryForObject(
+                "SELECT min(\"timestamp\") FROM usage_record WHERE organization_id = ? AND processed = false",
+                Timestamp.class, organizationId);
+        return oldest != null ? oldest.toInstant() : null;
+    }
+
+    /**
+     * Totals of [start, end), of one consumer or, if {@code consumerId} is null, of the organization.
+     */
+    public UsageTotals findTotals(Long organizationId, String consumerId, Instant start, Instant end) {
+        List<Object> args = new ArrayList<>();
+        String sql = "SELECT COALESCE(SUM(request_count), 0), COALESCE(SUM(total_cost), 0), "
+                + "COALESCE(SUM(bandwidth_bytes), 0), "
+                + "COALESCE(SUM(CASE WHEN response_status > 0 AND response_status < 400 THEN request_count END), 0), "
+                + "COALESCE(SUM(latency_sum), 0), COALESCE(SUM(latency_count), 0) "
+                + "FROM (" + source(organizationId, consumerId, start, end, args) + ") s";
+        return jdbcTemplate.queryForObject(sql, (rs, rowNum) -> {
+            long latencyCount = rs.getLong(6);
+            return new UsageTotals(rs.getLong(1), rs.getDouble(2), rs.getLong(3), rs.getLong(4),
+                    latencyCount > 0 ? (double) rs.getLong(5) / latencyCount : 0.0);
+        }, args.toArray());
+    }
+
+    /**
+     * Request counts in [start, end) per value of the dimension, highest first; {@code limit}
+     * of 0 returns all values. Rows are [value, count] like the JPQL aggregates they replace.
+     */
+    public List<Object[]> countBy(Long organizationId, String consumerId, Dimension dimension,
+                                  Instant start, Instant end, int limit) {
+        List<Object> args = new ArrayList<>();
+        String sql = "SELECT " + dimension.column + ", SUM(request_count) AS requests "
+                + "FROM (" + source(organizationId, consumerId, start, end, args) + ") s "
+                + "WHERE " + dimension.filter + " GROUP BY 1 ORDER BY 2 DESC"
+                + (limit > 0 ? " LIMIT " + limit : "");
+        return jdbcTemplate.query(sql, (rs, rowNum) -> new Object[] {rs.getObject(1), rs.getLong(2)}, args.toArray());
+    }
+
+    /**
+     * UNION ALL of the daily and hourly rollups and the raw rows that together cover [start, end)
+     * exactly once.
+     */
+    private String source(Long organizationId, String consumerId, Instant start, Instant end, List<Object> args) {
+        Instant hourStart = ceil(start, ChronoUnit.HOURS);
+        Instant hourEnd = end.truncatedTo(ChronoUnit.HOURS);
+        String consumerFilter = consumerId != null ? " AND consumer_id = ?" : "";
+        List<String> arms = new ArrayList<>();
+
+        if (!hourStart.isBefore(hourEnd)) {
+            arms.add("SELECT " + RAW_COLUMNS + " FROM usage_record WHERE organization_id = ?" + consumerFilter
+                    + " AND \"timestamp\" >= ? AND \"timestamp\" < ?");
+            addArgs(args, organizationId, consumerId, start, end);
+            return String.join(" UNION ALL ", arms);
+        }
+
+        Instant dayStart = ceil(hourStart, ChronoUnit.DAYS);
+        Instant dayEnd = hourEnd.truncatedTo(ChronoUnit.DAYS);
+        String hourly = "SELECT " + ROLLUP_COLUMNS + " FROM usage_rollup_hourly WHERE organization_id = ?"
+                + consumerFilter + " AND bucket_start >= ? AND bucket_start < ?";
+        if (dayStart.isBefore(dayEnd)) {
+            arms.add("SELECT " + ROLLUP_COLUMNS + " FROM usage_rollup_daily WHERE organization_id = ?"
+                    + consumerFilter + " AND bucket_start >= ? AND bucket_start < ?");
+            addArgs(args, organizationId, consumerId, dayStart, dayEnd);
+            if (hourStart.isBefore(dayStart)) {
+                arms.add(hourly);
+                addArgs(args, organizationId, consumerId, hourStart, dayStart);
+            }
+            if (dayEnd.isBefore(hourEnd)) {
+                arms.add(hourly);
+                addArgs(args, organizationId, consumerId, dayEnd, hourEnd);
+            }
+        } else {
+            arms.add(hourly);
+            addArgs(args, organizationId, consumerId, hourStart, hourEnd);
+        }
+
+        // Partial hours at the edges
+        if (start.isBefore(hourStart)) {
+            arms.add("SELECT " + RAW_COLUMNS + " FROM usage_record WHERE organization_id = ?" + consumerFilter
+                    + " AND \"timestamp\" >= ? AND \"timestamp\" < ?");
+            addArgs(args, organizationId, consumerId, start, hourStart);
+        }
+        if (hourEnd.isBefore(end)) {
+            arms.add("SELECT " + RAW_COLUMNS + " FROM usage_record WHERE organization_id = ?" + consumerFilter
+                    + " AND \"timestamp\" >= ? AND \"timestamp\" < ?");
+            addArgs(args, organizationId, consumerId, hourEnd, end);
+        }
+
+        // Rows in the rolled-up hours that are not rated yet
+        Instant watermark = findWatermark(organizationId);
+        if (watermark != null && watermark.isBefore(hourEnd)) {
+            arms.add("SELECT " + RAW_COLUMNS + " FROM usage_record WHERE organization_id = ?" + consumerFilter
+                    + " AND processed = false AND \"timestamp\" >= ? AND \"timestamp\" < ?");
+            addArgs(args, organizationId, consumerId, watermark.isAfter(hourStart) ? watermark : hourStart, hourEnd);
+        }
+        return String.join(" UNION ALL ", arms);
+    }
+
+    private static void addArgs(List<Object> args, Long organizationId, String consumerId, Instant from, Instant to) {
+        args.add(organizationId);
+        if (consumerId != null) {
+            args.add(consumerId);
+        }
+        args.add(Timestamp.from(from));
+        args.add(Timestamp.from(to));
+    }
+
+    private static Instant ceil(Instant instant, ChronoUnit unit) {
+        Instant floor = instant.truncatedTo(unit);
+        return floor.equals(instant) ? instant : floor.plus(Duration.of(1, unit));
+    }
+}
@@ -0,0 +1,143 @@
+package aforo.kong.repository;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wallet balance reads and batched balance writes for the wallet ledger.
+ *
+ * Debits committed together with rated usage go to wallet_debit_journal first (a plain
+ * INSERT, no lock on the consumer row) and are folded into kong_consumer.wallet_balance
+ * later, so the effective balance of a consumer is its wallet_balance minus its journal rows.
+ */
+@Repository
+public class WalletLedgerRepository {
+
+    private static final String EFFECTIVE_BALANCE_SQL =
+            "SELECT c.wallet_balance - COALESCE((SELECT SUM(j.amount) FROM wallet_debit_journal j "
+            + "WHERE j.organization_id = c.organization_id AND j.consumer_id = c.external_id), 0) "
+            + "FROM kong_consumer c WHERE c.organization_id = ? AND c.external_id = ?";
+
+    private static final String APPLY_DELTAS_SQL =
+            "UPDATE kong_consumer c SET wallet_balance = c.wallet_balance + v.delta "
+            + "FROM unnest(?::bigint[], ?::varchar[], ?::float8[]) AS v(organization_id, consumer_id, delta) "
+            + "WHERE c.organization_id = v.organization_id AND c.external_id = v.consumer_id "
+            + "AND c.wallet_balance IS NOT NULL";
+
+    private static final String JOURNAL_DEBITS_SQL =
+            "INSERT INTO wallet_debit_journal (organization_id, consumer_id, amount, created_at) "
+            + "SELECT ?, v.consumer_id, v.amount, now() FROM unnest(?::varchar[], ?::float8[]) AS v(consumer_id, amount)";
+
+    // Moves every journal row into the balances in one statement
+    private static final String FOLD_JOURNAL_SQL =
+            "WITH folded AS (DELETE FROM wallet_debit_journal RETURNING organization_id, consumer_id, amount), "
+            + "totals AS (SELECT organization_id, consumer_id, SUM(amount) AS amount FROM folded "
+            + "GROUP BY organization_id, consumer_id) "
+            + "UPDATE kong_consumer c SET wallet_balance = c.wallet_balance - t.amount FROM totals t "
+            + "WHERE c.organization_id = t.organization_id AND c.external_id = t.consumer_id";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    /**
+     * Balance change of one consumer that is not yet in kong_consumer.
+     */
+    public record WalletDelta(Long organizationId, String consumerId, double delta) {
+    }
+
+    public WalletLedgerRepository(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Current balance including journaled debits, or null when the consumer does not exist
+     * or has no wallet.
+     */
+    public Double findEffectiveBalance(Long organizationId, String consumerId) {
+        List<Double> balances = jdbcTemplate.query(EFFECTIVE_BALANCE_SQL, (rs, rowNum) -> {
+            double balance = rs.getDouble(1);
+            return rs.wasNull() ? null : balance;
+        }, organizationId, consumerId);
+        return balances.isEmpty() ? null : balances.get(0);
+    }
+
+    /**
+     * Adds the deltas to the consumers' balances in one statement.
+     */
+    public int applyDeltas(List<WalletDelta> deltas) {
+        if (deltas.isEmpty()) {
+            return 0;
+        }
+        int n = deltas.size();
+        Long[] organizationIds = new Long[n];
+        String[] consumerIds = new String[n];
+        Double[] values = new Double[n];
+        for (int i = 0; i < n; i++) {
+            WalletDelta d = deltas.get(i);
+            organizationIds[i] = d.organizationId();
+            consumerIds[i] = d.consumerId();
+            values[i] = d.delta();
+        }
+        Integer updated = jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(APPLY_DELTAS_SQL)) {
+                ps.setArray(1, array(con, "bigint", organizationIds));
+                ps.setArray(2, array(con, "varchar", consumerIds));
+                ps.setArray(3, array(con, "float8", values));
+                return ps.executeUpdate();
+            }
+        });
+        return updated != null ? updated : 0;
+    }
+
+    /**
+     * Appends debits to the journal; meant to run in the transaction that commits the usage
+     * they are charged for.
+     */
+    public void journalDebits(Long organizationId, Map<String, Double> amounts) {
+        if (amounts.isEmpty()) {
+            return;
+        }
+        String[] consumerIds = amounts.keySet().toArray(new String[0]);
+        Double[] values = new Double[consumerIds.length];
+        for (int i = 0; i < consumerIds.length; i++) {
+            values[i] = amounts.get(consumerIds[i]);
+        }
+        jdbcTemplate.execute((Connection con) -> {
+            try (PreparedStatement ps = con.prepareStatement(JOURNAL_DEBITS_SQL)) {
+                ps.setLong(1, organizationId);
+                ps.setArray(2, array(con, "varchar", consumerIds));
+                ps.setArray(3, array(con, "float8", values));
+                return ps.executeUpdate();
+            }
+        });
+    }
+
+    /**
+     * Folds all journaled debits into the balances.
+     *
+     * @return the number of consumers updated
+     */
+    public int foldJournal() {
+        return jdbcTemplate.update(FOLD_JOURNAL_SQL);
+    }
+
+    /**
+     * Reactivates a consumer that was suspended.
+     */
+    public int resume(Long organizationId, String consumerId) {
+        return jdbcTemplate.update(
+                "UPDATE kong_consumer SET status = 'active' "
+                + "WHERE organization_id = ? AND external_id = ? AND status = 'suspended'",
+                organizationId, consumerId);
+    }
+
+    private static Array array(Connection con, String type, Object[] values) throws SQLException {
+        return con.createArrayOf(type, values);
+    }
+}
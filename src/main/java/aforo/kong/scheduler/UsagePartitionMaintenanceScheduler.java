@@ -0,0 +1,87 @@
+package aforo.kong.scheduler;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.repository.UsagePartitionRepository;
+import aforo.kong.repository.UsagePartitionRepository.UsageTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+
+/**
+ * Keeps the monthly partitions of usage_record and kong_usage_record ahead of incoming data and
+ * applies retention by dropping whole expired partitions instead of deleting rows. A month past
+ * the retention horizon that still holds unbilled (usage_record) or unprocessed (kong_usage_record)
+ * rows is kept for up to pending-grace-months more, then dropped anyway: rows that can never be
+ * priced, or billed while invoice close is off, must not hold retention back forever.
+ */
+@Component
+public class UsagePartitionMaintenanceScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(UsagePartitionMaintenanceScheduler.class);
+
+    private final UsagePartitionRepository partitionRepository;
+    private final KongIngestProperties.Partitions config;
+
+    public UsagePartitionMaintenanceScheduler(UsagePartitionRepository partitionRepository,
+                                              KongIngestProperties properties) {
+        this.partitionRepository = partitionRepository;
+        this.config = properties.getPartitions();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        maintainPartitions();
+    }
+
+    @Scheduled(cron = "0 15 3 * * *")
+    public void maintainPartitions() {
+        if (!config.isEnabled()) {
+            return;
+        }
+        YearMonth current = YearMonth.now(ZoneOffset.UTC);
+        for (UsageTable table : UsageTable.values()) {
+            try {
+                createAhead(table, current);
+                if (config.getRetentionMonths() > 0) {
+                    YearMonth oldestKept = current.minusMonths(config.getRetentionMonths());
+                    dropExpired(table, oldestKept, oldestKept.minusMonths(Math.max(0, config.getPendingGraceMonths())));
+                }
+            } catch (Exception e) {
+                logger.error("Partition maintenance failed for {}", table.getTableName(), e);
+            }
+        }
+    }
+
+    private void createAhead(UsageTable table, YearMonth current) {
+        for (int i = 0; i <= config.getMonthsAhead(); i++) {
+            YearMonth month = current.plusMonths(i);
+            if (partitionRepository.createMonthlyPartition(table, month, config.getOrgHashPartitions())) {
+                logger.info("Created partition {}", table.partitionFor(month));
+            }
+        }
+    }
+
+    private void dropExpired(UsageTable table, YearMonth oldestKept, YearMonth oldestPendingKept) {
+        for (YearMonth month : partitionRepository.findPartitionMonths(table)) {
+            if (!month.isBefore(oldestKept)) {
+                break;
+            }
+            if (partitionRepository.hasPendingRows(table, month)) {
+                if (!month.isBefore(oldestPendingKept)) {
+                    logger.warn("Keeping expired partition {}: it still has pending rows", table.partitionFor(month));
+                    continue;
+                }
+                logger.warn("Dropping partition {} with pending rows: past the retention grace period",
+                        table.partitionFor(month));
+            }
+            partitionRepository.dropPartition(table, month);
+            logger.info("Dropped expired partition {}", table.partitionFor(month));
+        }
+    }
+}
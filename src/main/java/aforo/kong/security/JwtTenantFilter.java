@@ -43,22 +43,9 @@ public class JwtTenantFilter extends OncePerRequestFilter {
             }
         } else if (auth != null && auth.getPrincipal() instanceof Jwt jwt) {
             // 2) Extract from JWT using multiple possible claim keys
-            Map<String, Object> claims = jwt.getClaims();
-            Object found = null;
-            for (String key : CLAIM_KEYS) {
-                if (claims.containsKey(key)) {
-                    found = claims.get(key);
-                    if (found != null) {
-                        try {
-                            Long parsed = Long.parseLong(found.toString());
-                            TenantContext.set(parsed);
-                            logger.debug("Tenant set from JWT claim '{}': {}", key, found);
-                            break;
-                        } catch (NumberFormatException e) {
-                            logger.warn("Invalid numeric value for JWT claim '{}': {}", key, found);
-                        }
-                    }
-                }
+            Long fromJwt = organizationFrom(jwt);
+            if (fromJwt != null) {
+                TenantContext.set(fromJwt);
             }
             if (TenantContext.get() == null) {
                 logger.debug("No tenant claim found in JWT. Checked keys: {}", CLAIM_KEYS);
@@ -73,4 +60,24 @@ public class JwtTenantFilter extends OncePerRequestFilter {
             TenantContext.clear();
         }
     }
+
+    /**
+     * The organization in the token's first numeric tenant claim, or null if it has none.
+     */
+    public static Long organizationFrom(Jwt jwt) {
+        Map<String, Object> claims = jwt.getClaims();
+        for (String key : CLAIM_KEYS) {
+            Object found = claims.get(key);
+            if (found != null) {
+                try {
+                    Long parsed = Long.parseLong(found.toString());
+                    logger.debug("Tenant found in JWT claim '{}': {}", key, found);
+                    return parsed;
+                } catch (NumberFormatException e) {
+                    logger.warn("Invalid numeric value for JWT claim '{}': {}", key, found);
+                }
+            }
+        }
+        return null;
+    }
 }
@@ -1,9 +1,11 @@
 package aforo.kong.service;
 
+import aforo.kong.dto.kong.KongIngestResultDTO;
 import aforo.kong.dto.konnect.KonnectRuntimeSyncPreviewDTO;
 import aforo.kong.dto.konnect.KonnectServiceDTO;
 import aforo.kong.dto.konnect.KonnectRouteDTO;
 
+import java.io.InputStream;
 import java.util.List;
 
 public interface KongRuntimeService {
@@ -13,6 +15,13 @@ public interface KongRuntimeService {
     KonnectRuntimeSyncPreviewDTO previewRuntimeSync(Long orgId);
     void applyRuntimeSync(Long orgId);
     
+    /**
+     * Syncs services and routes for auto-refresh: only what changed since the last sync, or
+     * everything when a full reconciliation is due. Returns whether the sync was full. Past the
+     * deadline it throws {@link SyncDeadline.SyncTimeoutException} and writes nothing.
+     */
+    boolean refreshRuntimeSync(Long orgId, SyncDeadline deadline);
+    
     // Routes  
     List<KonnectRouteDTO> fetchRoutes(Long orgId);
     
@@ -23,7 +32,9 @@ public interface KongRuntimeService {
     void syncConsumers(Long orgId);
     
     // Usage Ingestion
-    void ingestUsageData(Long orgId, Object usagePayload);
+    KongIngestResultDTO ingestUsageData(Long orgId, InputStream usagePayload);
+    
+    KongIngestResultDTO ingestUsageNdjson(Long orgId, InputStream ndjsonPayload);
     
     // Enforcement
     void enforceRateLimits(Long orgId, String planId, String groupId, Object limits);
@@ -3,6 +3,7 @@ package aforo.kong.service;
 import aforo.kong.dto.konnect.*;
 
 import java.util.List;
+import java.util.Map;
 
 public interface KonnectService {
     KonnectConnectionResponseDTO createOrUpdateConnection(Long orgId, KonnectConnectionRequestDTO request);
@@ -13,4 +14,5 @@ public interface KonnectService {
     KonnectSyncPreviewDTO previewSync(Long orgId);
     KonnectImportResponseDTO applySync(Long orgId);
     void autoRefresh();
+    Map<String, Object> getAutoRefreshStats();
 }
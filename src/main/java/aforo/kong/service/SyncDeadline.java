@@ -0,0 +1,60 @@
+package aforo.kong.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a sync has to finish in. Syncs check it between Konnect pages and between write
+ * chunks, so an overrun stops between statements and its transaction rolls back cleanly; nothing
+ * is interrupted in the middle of JDBC or HTTP I/O.
+ */
+public final class SyncDeadline {
+
+    /**
+     * A deadline that never passes
+     */
+    public static final SyncDeadline NONE = new SyncDeadline(0, 0);
+
+    private final long expiresAtNanos;
+    private final long timeoutMillis;
+
+    private SyncDeadline(long expiresAtNanos, long timeoutMillis) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public static SyncDeadline after(long timeoutMillis) {
+        return new SyncDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis), timeoutMillis);
+    }
+
+    public boolean expired() {
+        return this != NONE && System.nanoTime() - expiresAtNanos >= 0;
+    }
+
+    /**
+     * Throws {@link SyncTimeoutException} once the deadline has passed.
+     */
+    public void check() {
+        if (expired()) {
+            throw new SyncTimeoutException("Sync ran past its " + timeoutMillis + " ms deadline");
+        }
+    }
+
+    /**
+     * Whether {@code e} or one of its causes is a {@link SyncTimeoutException}.
+     */
+    public static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SyncTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static class SyncTimeoutException extends RuntimeException {
+
+        public SyncTimeoutException(String message) {
+            super(message);
+        }
+    }
+}
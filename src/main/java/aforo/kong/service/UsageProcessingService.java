@@ -37,6 +37,12 @@ public interface UsageProcessingService {
      */
     List<Map<String, Object>> getTopServicesByUsage(int limit, Instant startTime, Instant endTime);
     
+    /**
+     * Get response, kong and upstream latency percentiles; null filters match everything
+     */
+    Map<String, Object> getLatencyPercentiles(String serviceId, String routeId, String consumerId,
+                                              Instant startTime, Instant endTime);
+    
     /**
      * Check if consumer is approaching quota limits
      */
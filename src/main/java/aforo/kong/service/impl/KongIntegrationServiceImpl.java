@@ -1,10 +1,14 @@
 package aforo.kong.service.impl;
 
 import aforo.kong.dto.*;
+import aforo.kong.ingest.CorrelationIdFilter;
+import aforo.kong.latency.LatencyTracker;
+import aforo.kong.quota.QuotaCounters;
 import aforo.kong.entity.*;
 import aforo.kong.repository.*;
 import aforo.kong.service.KongIntegrationService;
 import aforo.kong.tenant.TenantContext;
+import aforo.kong.topk.TopKTracker;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +39,10 @@ public class KongIntegrationServiceImpl implements KongIntegrationService {
     private final UsageRecordRepository usageRecordRepository;
     @SuppressWarnings("unused") // Will be used in TODO implementations
     private final PricingPlanRepository pricingPlanRepository;
+    private final CorrelationIdFilter correlationIdFilter;
+    private final QuotaCounters quotaCounters;
+    private final TopKTracker topKTracker;
+    private final LatencyTracker latencyTracker;
     
     @Value("${aforo.base-url:http://localhost:8080}")
     private String aforoBaseUrl;
@@ -47,7 +55,11 @@ public class KongIntegrationServiceImpl implements KongIntegrationService {
             KongRouteRepository routeRepository,
             KongConsumerRepository consumerRepository,
             UsageRecordRepository usageRecordRepository,
-            PricingPlanRepository pricingPlanRepository) {
+            PricingPlanRepository pricingPlanRepository,
+            CorrelationIdFilter correlationIdFilter,
+            QuotaCounters quotaCounters,
+            TopKTracker topKTracker,
+            LatencyTracker latencyTracker) {
         this.restTemplate = restTemplate;
         this.objectMapper = objectMapper;
         this.clientApiDetailsRepository = clientApiDetailsRepository;
@@ -56,6 +68,10 @@ public class KongIntegrationServiceImpl implements KongIntegrationService {
         this.consumerRepository = consumerRepository;
         this.usageRecordRepository = usageRecordRepository;
         this.pricingPlanRepository = pricingPlanRepository;
+        this.correlationIdFilter = correlationIdFilter;
+        this.quotaCounters = quotaCounters;
+        this.topKTracker = topKTracker;
+        this.latencyTracker = latencyTracker;
     }
     
     @Override
@@ -426,6 +442,9 @@ public class KongIntegrationServiceImpl implements KongIntegrationService {
         UsageRecord record = processUsageEvent(event);
         if (record != null) {
             usageRecordRepository.save(record);
+            quotaCounters.recordAfterCommit(List.of(record));
+            topKTracker.recordAfterCommit(List.of(record));
+            latencyTracker.recordAfterCommit(List.of(record));
             logger.debug("Ingested usage event: {}", record.getCorrelationId());
         }
     }
@@ -450,6 +469,9 @@ public class KongIntegrationServiceImpl implements KongIntegrationService {
         
         if (!records.isEmpty()) {
             usageRecordRepository.saveAll(records);
+            quotaCounters.recordAfterCommit(records);
+            topKTracker.recordAfterCommit(records);
+            latencyTracker.recordAfterCommit(records);
             logger.info("Ingested {} usage events", records.size());
         }
     }
@@ -469,9 +491,12 @@ public class KongIntegrationServiceImpl implements KongIntegrationService {
     public UsageRecord processUsageEvent(KongEventDTO event) {
         Long organizationId = TenantContext.require();
         
-        // Check for duplicate by correlation ID
+        // Check for duplicate by correlation ID; the filter answers most checks without a query.
+        // A replay that slips past (another instance, a concurrent request) fails its insert on the
+        // usage_correlation key, whatever timestamp it carries.
         if (event.getCorrelationId() != null) {
-            if (usageRecordRepository.existsByCorrelationIdAndOrganizationId(event.getCorrelationId(), organizationId)) {
+            if (correlationIdFilter.isDuplicate(organizationId, event.getCorrelationId(), event.getTimestamp(),
+                    () -> usageRecordRepository.existsByCorrelationId(event.getCorrelationId(), organizationId))) {
                 logger.debug("Skipping duplicate event with correlation ID: {}", event.getCorrelationId());
                 return null;
             }
@@ -1,16 +1,26 @@
 package aforo.kong.service.impl;
 
+import aforo.kong.client.KonnectFingerprint;
+import aforo.kong.client.KonnectPageIterator;
 import aforo.kong.client.KonnectWebClient;
+import aforo.kong.config.KonnectSyncProperties;
+import aforo.kong.dto.kong.KongIngestResultDTO;
 import aforo.kong.dto.konnect.KonnectRuntimeSyncPreviewDTO;
 import aforo.kong.dto.konnect.KonnectServiceDTO;
 import aforo.kong.dto.konnect.KonnectRouteDTO;
 import aforo.kong.entity.ClientApiDetails;
-import aforo.kong.entity.KonnectServiceMap;
-import aforo.kong.entity.KonnectRouteMap;
+import aforo.kong.entity.KongUsageRecord;
+import aforo.kong.ingest.KongMappingIndex;
+import aforo.kong.ingest.KongUsageIngestQueue;
+import aforo.kong.ingest.KongUsageSpool;
 import aforo.kong.repository.ClientApiDetailsRepository;
-import aforo.kong.repository.KonnectServiceMapRepository;
-import aforo.kong.repository.KonnectRouteMapRepository;
+import aforo.kong.repository.KonnectMapSyncRepository;
+import aforo.kong.repository.KonnectMapSyncRepository.RouteMapping;
+import aforo.kong.repository.KonnectMapSyncRepository.ServiceMapping;
+import aforo.kong.repository.KonnectMapSyncRepository.SyncState;
+import aforo.kong.repository.KonnectMapSyncRepository.SyncedMapping;
 import aforo.kong.service.KongRuntimeService;
+import aforo.kong.service.SyncDeadline;
 import aforo.kong.util.EncryptionUtil;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
@@ -19,9 +29,12 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import java.io.InputStream;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 @Service
 public class KongRuntimeServiceImpl implements KongRuntimeService {
@@ -35,19 +48,28 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
     private ClientApiDetailsRepository connectionRepository;
     
     @Autowired
-    private KonnectServiceMapRepository serviceMapRepository;
+    private EncryptionUtil encryptionUtil;
     
     @Autowired
-    private KonnectRouteMapRepository routeMapRepository;
+    private ObjectMapper objectMapper;
     
     @Autowired
-    private EncryptionUtil encryptionUtil;
+    private KongUsageIngestionService usageIngestionService;
     
     @Autowired
-    private ObjectMapper objectMapper;
+    private KongUsageIngestQueue usageIngestQueue;
     
     @Autowired
-    private KongUsageIngestionService usageIngestionService;
+    private KongUsageSpool usageSpool;
+    
+    @Autowired
+    private KongMappingIndex mappingIndex;
+    
+    @Autowired
+    private KonnectSyncProperties syncProperties;
+    
+    @Autowired
+    private KonnectMapSyncRepository mapSyncRepository;
     
     @Override
     public List<KonnectServiceDTO> fetchServices(Long orgId) {
@@ -61,14 +83,12 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
             String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
             String controlPlaneId = extractControlPlaneId(connection);
             
-            List<Map<String, Object>> services = konnectClient.listServices(
-                    connection.getBaseUrl(), 
-                    controlPlaneId, 
-                    decryptedToken,
-                    1, 100
-            );
-            
-            return services.stream().map(this::mapToServiceDTO).collect(Collectors.toList());
+            List<KonnectServiceDTO> services = new ArrayList<>();
+            try (KonnectPageIterator pages = konnectClient.streamServices(
+                    connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize())) {
+                pages.forEachRemaining(page -> page.forEach(service -> services.add(mapToServiceDTO(service))));
+            }
+            return services;
         } catch (Exception e) {
             logger.error("Failed to fetch services for org: {}", orgId, e);
             return List.of();
@@ -87,14 +107,12 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
             String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
             String controlPlaneId = extractControlPlaneId(connection);
             
-            List<Map<String, Object>> routes = konnectClient.listRoutes(
-                    connection.getBaseUrl(), 
-                    controlPlaneId, 
-                    decryptedToken,
-                    1, 100
-            );
-            
-            return routes.stream().map(this::mapToRouteDTO).collect(Collectors.toList());
+            List<KonnectRouteDTO> routes = new ArrayList<>();
+            try (KonnectPageIterator pages = konnectClient.streamRoutes(
+                    connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize())) {
+                pages.forEachRemaining(page -> page.forEach(route -> routes.add(mapToRouteDTO(route))));
+            }
+            return routes;
         } catch (Exception e) {
             logger.error("Failed to fetch routes for org: {}", orgId, e);
             return List.of();
@@ -114,21 +132,17 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
             String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
             String controlPlaneId = extractControlPlaneId(connection);
             
-            // Fetch current state from Konnect
-            List<Map<String, Object>> konnectServices = konnectClient.listServices(
-                    connection.getBaseUrl(), controlPlaneId, decryptedToken, 1, 100);
-            List<Map<String, Object>> konnectRoutes = konnectClient.listRoutes(
-                    connection.getBaseUrl(), controlPlaneId, decryptedToken, 1, 100);
-            
             // Get existing mappings
-            List<KonnectServiceMap> existingServices = serviceMapRepository
-                    .findByOrganizationIdAndControlPlaneId(orgId, controlPlaneId);
-            List<KonnectRouteMap> existingRoutes = routeMapRepository
-                    .findByOrganizationIdAndControlPlaneId(orgId, controlPlaneId);
-            
-            // Calculate diffs
-            return calculateRuntimeDiff(konnectServices, konnectRoutes, 
-                                       existingServices, existingRoutes);
+            Map<String, ServiceMapping> existingServices = mapSyncRepository.loadServices(orgId, controlPlaneId);
+            Map<String, RouteMapping> existingRoutes = mapSyncRepository.loadRoutes(orgId, controlPlaneId);
+            
+            // Diff the current state in Konnect page by page
+            try (KonnectPageIterator servicePages = konnectClient.streamServices(
+                         connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize());
+                 KonnectPageIterator routePages = konnectClient.streamRoutes(
+                         connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize())) {
+                return calculateRuntimeDiff(servicePages, routePages, existingServices, existingRoutes);
+            }
             
         } catch (Exception e) {
             logger.error("Failed to preview runtime sync for org: {}", orgId, e);
@@ -146,20 +160,10 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
                 .orElseThrow(() -> new RuntimeException("Konnect connection not found"));
         
         try {
-            String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
-            String controlPlaneId = extractControlPlaneId(connection);
+            fullSync(orgId, connection, SyncDeadline.NONE);
             
-            // Fetch current state from Konnect
-            List<Map<String, Object>> konnectServices = konnectClient.listServices(
-                    connection.getBaseUrl(), controlPlaneId, decryptedToken, 1, 100);
-            List<Map<String, Object>> konnectRoutes = konnectClient.listRoutes(
-                    connection.getBaseUrl(), controlPlaneId, decryptedToken, 1, 100);
-            
-            // Sync services
-            syncServices(orgId, controlPlaneId, konnectServices);
-            
-            // Sync routes
-            syncRoutes(orgId, controlPlaneId, konnectRoutes);
+            // Usage enrichment picks up the new mappings once this transaction commits
+            mappingIndex.refreshAfterCommit(orgId);
             
             logger.info("Runtime sync completed for org: {}", orgId);
             
@@ -169,174 +173,362 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
         }
     }
     
-    private void syncServices(Long orgId, String controlPlaneId, List<Map<String, Object>> konnectServices) {
-        Set<String> seenServiceIds = new HashSet<>();
+    @Override
+    @Transactional
+    public boolean refreshRuntimeSync(Long orgId, SyncDeadline deadline) {
+        ClientApiDetails connection = connectionRepository
+                .findByOrganizationIdAndEnvironment(orgId, "konnect")
+                .orElseThrow(() -> new RuntimeException("Konnect connection not found"));
         
-        for (Map<String, Object> service : konnectServices) {
-            String serviceId = (String) service.get("id");
-            seenServiceIds.add(serviceId);
-            
-            KonnectServiceMap serviceMap = serviceMapRepository
-                    .findByOrganizationIdAndControlPlaneIdAndKongServiceId(orgId, controlPlaneId, serviceId)
-                    .orElse(new KonnectServiceMap());
-            
-            serviceMap.setOrganizationId(orgId);
-            serviceMap.setControlPlaneId(controlPlaneId);
-            serviceMap.setKongServiceId(serviceId);
-            serviceMap.setNameSnapshot((String) service.get("name"));
-            serviceMap.setHost((String) service.get("host"));
-            serviceMap.setPort((Integer) service.get("port"));
-            serviceMap.setPath((String) service.get("path"));
-            serviceMap.setProtocol((String) service.get("protocol"));
-            
-            if (service.get("tags") != null) {
-                serviceMap.setTagsSnapshot(objectMapper.valueToTree(service.get("tags")).toString());
+        try {
+            String controlPlaneId = extractControlPlaneId(connection);
+            SyncState state = mapSyncRepository.findSyncState(orgId, controlPlaneId);
+            boolean full = !syncProperties.isIncremental()
+                    || state == null
+                    || state.lastFullSyncAt() == null
+                    || state.servicesWatermark() == null
+                    || state.routesWatermark() == null
+                    || state.lastFullSyncAt().plusMillis(syncProperties.getFullSyncIntervalMs()).isBefore(Instant.now());
+            int written = full ? fullSync(orgId, connection, deadline) : incrementalSync(orgId, connection, state, deadline);
+            if (written > 0) {
+                mappingIndex.refreshAfterCommit(orgId);
             }
+            return full;
             
-            serviceMap.setStatus("ACTIVE");
-            serviceMap.setLastSeenAt(Instant.now());
-            
-            serviceMapRepository.save(serviceMap);
+        } catch (SyncDeadline.SyncTimeoutException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.error("Failed to refresh runtime sync for org: {}", orgId, e);
+            throw new RuntimeException("Failed to refresh runtime sync", e);
         }
-        
-        // Mark removed services as DISABLED
-        List<KonnectServiceMap> allServices = serviceMapRepository
-                .findByOrganizationIdAndControlPlaneId(orgId, controlPlaneId);
-        
-        for (KonnectServiceMap service : allServices) {
-            if (!seenServiceIds.contains(service.getKongServiceId()) && "ACTIVE".equals(service.getStatus())) {
-                service.setStatus("DISABLED");
-                serviceMapRepository.save(service);
+    }
+    
+    /**
+     * Syncs every service and route of the control plane and disables the mappings Konnect no
+     * longer lists. The deadline is checked before each page and each write.
+     *
+     * @return the number of mappings written
+     */
+    private int fullSync(Long orgId, ClientApiDetails connection, SyncDeadline deadline) {
+        String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
+        String controlPlaneId = extractControlPlaneId(connection);
+        
+        Instant syncStart = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        int servicePageCount;
+        int routePageCount;
+        
+        // Sync services, one Konnect page per chunk; a failed page rolls the whole sync back
+        Map<String, ServiceMapping> services = mapSyncRepository.loadServices(orgId, controlPlaneId);
+        Set<String> unseenServiceIds = activeIds(services);
+        int servicesSeen = 0;
+        int upsertedServices = 0;
+        Long servicesWatermark = null;
+        try (KonnectPageIterator pages = konnectClient.streamServices(
+                connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize())) {
+            while (pages.hasNext()) {
+                List<Map<String, Object>> page = pages.next();
+                deadline.check();
+                servicesSeen += page.size();
+                servicesWatermark = newestUpdate(page, servicesWatermark);
+                upsertedServices += syncServices(orgId, controlPlaneId, page, services, unseenServiceIds, syncStart);
             }
+            servicePageCount = pages.pages();
         }
+        deadline.check();
+        int disabledServices = mapSyncRepository.disableServices(unseenServiceIds.stream()
+                .map(id -> services.get(id).id()).toList(), syncStart);
+        
+        // Sync routes
+        Map<String, RouteMapping> routes = mapSyncRepository.loadRoutes(orgId, controlPlaneId);
+        Set<String> unseenRouteIds = activeIds(routes);
+        int routesSeen = 0;
+        int upsertedRoutes = 0;
+        Long routesWatermark = null;
+        try (KonnectPageIterator pages = konnectClient.streamRoutes(
+                connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize())) {
+            while (pages.hasNext()) {
+                List<Map<String, Object>> page = pages.next();
+                deadline.check();
+                routesSeen += page.size();
+                routesWatermark = newestUpdate(page, routesWatermark);
+                upsertedRoutes += syncRoutes(orgId, controlPlaneId, page, routes, unseenRouteIds, syncStart);
+            }
+            routePageCount = pages.pages();
+        }
+        deadline.check();
+        int disabledRoutes = mapSyncRepository.disableRoutes(unseenRouteIds.stream()
+                .map(id -> routes.get(id).id()).toList(), syncStart);
+        // Unchanged mappings are not written; this one row records that they were all seen
+        mapSyncRepository.markFullSync(orgId, controlPlaneId, syncStart, servicesSeen, routesSeen,
+                servicesWatermark, routesWatermark);
+        logger.info("Synced {} service pages and {} route pages for org: {}, upserted {} services and {} routes, "
+                + "disabled {} services and {} routes", servicePageCount, routePageCount, orgId,
+                upsertedServices, upsertedRoutes, disabledServices, disabledRoutes);
+        return upsertedServices + upsertedRoutes + disabledServices + disabledRoutes;
     }
     
-    private void syncRoutes(Long orgId, String controlPlaneId, List<Map<String, Object>> konnectRoutes) {
-        Set<String> seenRouteIds = new HashSet<>();
+    /**
+     * Syncs only the services and routes Konnect reports updated since the watermarks. Deleted
+     * entities are left to the next full sync. Each page's updated entities are written as the
+     * page arrives, checking the deadline before each page.
+     *
+     * @return the number of mappings written
+     */
+    private int incrementalSync(Long orgId, ClientApiDetails connection, SyncState state, SyncDeadline deadline) {
+        String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
+        String controlPlaneId = extractControlPlaneId(connection);
+        Instant syncStart = Instant.now().truncatedTo(ChronoUnit.MICROS);
+        
+        // Only the updated entities' mappings are loaded; nothing is unseen, so nothing is disabled
+        UpdatedSince services;
+        try (KonnectPageIterator pages = konnectClient.streamServices(
+                connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize(), true)) {
+            services = syncUpdatedSince(pages, state.servicesWatermark(), deadline, updated ->
+                    syncServices(orgId, controlPlaneId, updated,
+                            mapSyncRepository.loadServices(orgId, controlPlaneId, ids(updated)), new HashSet<>(), syncStart));
+        }
+        UpdatedSince routes;
+        try (KonnectPageIterator pages = konnectClient.streamRoutes(
+                connection.getBaseUrl(), controlPlaneId, decryptedToken, syncProperties.getPageSize(), true)) {
+            routes = syncUpdatedSince(pages, state.routesWatermark(), deadline, updated ->
+                    syncRoutes(orgId, controlPlaneId, updated,
+                            mapSyncRepository.loadRoutes(orgId, controlPlaneId, ids(updated)), new HashSet<>(), syncStart));
+        }
         
-        for (Map<String, Object> route : konnectRoutes) {
-            String routeId = (String) route.get("id");
-            seenRouteIds.add(routeId);
-            
-            KonnectRouteMap routeMap = routeMapRepository
-                    .findByOrganizationIdAndControlPlaneIdAndKongRouteId(orgId, controlPlaneId, routeId)
-                    .orElse(new KonnectRouteMap());
-            
-            routeMap.setOrganizationId(orgId);
-            routeMap.setControlPlaneId(controlPlaneId);
-            routeMap.setKongRouteId(routeId);
-            routeMap.setKongServiceId((String) route.get("service_id"));
-            routeMap.setName((String) route.get("name"));
-            
-            if (route.get("methods") != null) {
-                routeMap.setMethods(objectMapper.valueToTree(route.get("methods")).toString());
+        deadline.check();
+        mapSyncRepository.markIncrementalSync(orgId, controlPlaneId, syncStart, services.newest(), routes.newest());
+        logger.info("Incrementally synced org: {}, {} services and {} routes updated since the watermarks, "
+                + "upserted {} services and {} routes", orgId, services.updated(), routes.updated(),
+                services.written(), routes.written());
+        return services.written() + routes.written();
+    }
+    
+    /**
+     * What one incremental walk found and wrote, and the newest update it saw.
+     */
+    private record UpdatedSince(int updated, int written, Long newest) {
+    }
+    
+    /**
+     * Hands each page's entities updated at or after the watermark to {@code syncPage} while
+     * walking a newest-first list. The watermark is inclusive because Konnect's updated_at has
+     * whole-second resolution. The walk stops after the first page holding an older entity; if
+     * the order shows Konnect ignored the sort, every page is read.
+     */
+    private UpdatedSince syncUpdatedSince(KonnectPageIterator pages, long watermark, SyncDeadline deadline,
+                                          ToIntFunction<List<Map<String, Object>>> syncPage) {
+        int updatedCount = 0;
+        int written = 0;
+        Long newest = watermark;
+        Long previous = null;
+        boolean newestFirst = true;
+        while (pages.hasNext()) {
+            List<Map<String, Object>> page = pages.next();
+            deadline.check();
+            List<Map<String, Object>> updated = new ArrayList<>(page.size());
+            boolean reachedOlder = false;
+            for (Map<String, Object> entity : page) {
+                Long updatedAt = (Long) entity.get("updated_at");
+                if (updatedAt == null || updatedAt >= watermark) {
+                    updated.add(entity);
+                } else {
+                    reachedOlder = true;
+                }
+                if (updatedAt != null) {
+                    if (previous != null && updatedAt > previous && newestFirst) {
+                        logger.debug("Konnect list is not sorted by updated_at; reading all of it");
+                        newestFirst = false;
+                    }
+                    previous = updatedAt;
+                }
             }
-            if (route.get("paths") != null) {
-                routeMap.setPaths(objectMapper.valueToTree(route.get("paths")).toString());
+            if (!updated.isEmpty()) {
+                updatedCount += updated.size();
+                newest = newestUpdate(updated, newest);
+                written += syncPage.applyAsInt(updated);
             }
-            if (route.get("hosts") != null) {
-                routeMap.setHosts(objectMapper.valueToTree(route.get("hosts")).toString());
+            if (reachedOlder && newestFirst) {
+                break;
             }
-            if (route.get("protocols") != null) {
-                routeMap.setProtocols(objectMapper.valueToTree(route.get("protocols")).toString());
+        }
+        return new UpdatedSince(updatedCount, written, newest);
+    }
+    
+    private static List<String> ids(List<Map<String, Object>> entities) {
+        return entities.stream().map(entity -> (String) entity.get("id")).toList();
+    }
+    
+    private static Long newestUpdate(List<Map<String, Object>> entities, Long watermark) {
+        Long newest = watermark;
+        for (Map<String, Object> entity : entities) {
+            Long updatedAt = (Long) entity.get("updated_at");
+            if (updatedAt != null && (newest == null || updatedAt > newest)) {
+                newest = updatedAt;
             }
-            if (route.get("tags") != null) {
-                routeMap.setTags(objectMapper.valueToTree(route.get("tags")).toString());
+        }
+        return newest;
+    }
+    
+    /**
+     * Writes the services of one chunk whose content hash differs from their stored mapping, in
+     * one statement, and records them in the index; disabling the ones no chunk contained is left
+     * to the caller.
+     *
+     * @return the number of rows written
+     */
+    private int syncServices(Long orgId, String controlPlaneId, List<Map<String, Object>> konnectServices,
+                             Map<String, ServiceMapping> index, Set<String> unseenIds, Instant syncStart) {
+        Map<String, ServiceMapping> changed = new LinkedHashMap<>();
+        for (Map<String, Object> service : konnectServices) {
+            String serviceId = (String) service.get("id");
+            unseenIds.remove(serviceId);
+            ServiceMapping existing = index.get(serviceId);
+            String contentHash = KonnectFingerprint.service(service);
+            if (isUnchanged(existing, contentHash)) {
+                continue;
             }
-            
-            routeMap.setStatus("ACTIVE");
-            routeMap.setLastSeenAt(Instant.now());
-            
-            routeMapRepository.save(routeMap);
+            ServiceMapping synced = new ServiceMapping(
+                    existing != null ? existing.id() : null,
+                    serviceId,
+                    (String) service.get("name"),
+                    toJson(service.get("tags")),
+                    (String) service.get("host"),
+                    (Integer) service.get("port"),
+                    (String) service.get("path"),
+                    (String) service.get("protocol"),
+                    contentHash,
+                    KonnectMapSyncRepository.STATUS_ACTIVE);
+            changed.put(serviceId, synced);
+            index.put(serviceId, synced);
         }
-        
-        // Mark removed routes as DISABLED
-        List<KonnectRouteMap> allRoutes = routeMapRepository
-                .findByOrganizationIdAndControlPlaneId(orgId, controlPlaneId);
-        
-        for (KonnectRouteMap route : allRoutes) {
-            if (!seenRouteIds.contains(route.getKongRouteId()) && "ACTIVE".equals(route.getStatus())) {
-                route.setStatus("DISABLED");
-                routeMapRepository.save(route);
+        return mapSyncRepository.upsertServices(orgId, controlPlaneId, changed.values(), syncStart);
+    }
+    
+    /**
+     * Writes the routes of one chunk whose content hash differs from their stored mapping, in
+     * one statement, and records them in the index; disabling the ones no chunk contained is left
+     * to the caller.
+     *
+     * @return the number of rows written
+     */
+    private int syncRoutes(Long orgId, String controlPlaneId, List<Map<String, Object>> konnectRoutes,
+                           Map<String, RouteMapping> index, Set<String> unseenIds, Instant syncStart) {
+        Map<String, RouteMapping> changed = new LinkedHashMap<>();
+        for (Map<String, Object> route : konnectRoutes) {
+            String routeId = (String) route.get("id");
+            unseenIds.remove(routeId);
+            RouteMapping existing = index.get(routeId);
+            String contentHash = KonnectFingerprint.route(route);
+            if (isUnchanged(existing, contentHash)) {
+                continue;
             }
+            RouteMapping synced = new RouteMapping(
+                    existing != null ? existing.id() : null,
+                    routeId,
+                    (String) route.get("service_id"),
+                    (String) route.get("name"),
+                    toJson(route.get("methods")),
+                    toJson(route.get("paths")),
+                    toJson(route.get("hosts")),
+                    toJson(route.get("protocols")),
+                    toJson(route.get("tags")),
+                    contentHash,
+                    KonnectMapSyncRepository.STATUS_ACTIVE);
+            changed.put(routeId, synced);
+            index.put(routeId, synced);
         }
+        return mapSyncRepository.upsertRoutes(orgId, controlPlaneId, changed.values(), syncStart);
+    }
+    
+    /**
+     * A Konnect entity is unchanged if it is mapped, ACTIVE and hashes to the stored content hash.
+     */
+    private static boolean isUnchanged(SyncedMapping existing, String contentHash) {
+        return existing != null
+                && KonnectMapSyncRepository.STATUS_ACTIVE.equals(existing.status())
+                && contentHash.equals(existing.contentHash());
+    }
+    
+    private static Set<String> activeIds(Map<String, ? extends SyncedMapping> index) {
+        Set<String> ids = new HashSet<>();
+        index.forEach((kongId, mapping) -> {
+            if (KonnectMapSyncRepository.STATUS_ACTIVE.equals(mapping.status())) {
+                ids.add(kongId);
+            }
+        });
+        return ids;
     }
     
+    private String toJson(Object value) {
+        return value != null ? objectMapper.valueToTree(value).toString() : null;
+    }
+    
+    /**
+     * Diffs Konnect, read page by page, against the existing mappings. An entity changed if its
+     * content hash differs from the stored one; a mapping is removed once no page contained it,
+     * so only the mappings are held in memory, not the Konnect lists.
+     */
     private KonnectRuntimeSyncPreviewDTO calculateRuntimeDiff(
-            List<Map<String, Object>> konnectServices,
-            List<Map<String, Object>> konnectRoutes,
-            List<KonnectServiceMap> existingServices,
-            List<KonnectRouteMap> existingRoutes) {
+            Iterator<List<Map<String, Object>>> servicePages,
+            Iterator<List<Map<String, Object>>> routePages,
+            Map<String, ServiceMapping> existingServices,
+            Map<String, RouteMapping> existingRoutes) {
         
         // Service diffs
-        Map<String, KonnectServiceMap> existingServiceMap = existingServices.stream()
-                .filter(s -> "ACTIVE".equals(s.getStatus()))
-                .collect(Collectors.toMap(KonnectServiceMap::getKongServiceId, s -> s));
-        
-        Set<String> konnectServiceIds = konnectServices.stream()
-                .map(s -> (String) s.get("id"))
-                .collect(Collectors.toSet());
+        Set<String> unseenServiceIds = activeIds(existingServices);
         
         List<KonnectRuntimeSyncPreviewDTO.ServiceChange> addedServices = new ArrayList<>();
         List<KonnectRuntimeSyncPreviewDTO.ServiceChange> changedServices = new ArrayList<>();
         List<KonnectRuntimeSyncPreviewDTO.ServiceChange> removedServices = new ArrayList<>();
         
-        for (Map<String, Object> service : konnectServices) {
-            String serviceId = (String) service.get("id");
-            if (!existingServiceMap.containsKey(serviceId)) {
-                addedServices.add(buildServiceChange(service));
-            } else {
-                KonnectServiceMap existing = existingServiceMap.get(serviceId);
-                if (hasServiceChanged(service, existing)) {
+        while (servicePages.hasNext()) {
+            for (Map<String, Object> service : servicePages.next()) {
+                String serviceId = (String) service.get("id");
+                ServiceMapping existing = existingServices.get(serviceId);
+                if (!unseenServiceIds.remove(serviceId)) {
+                    addedServices.add(buildServiceChange(service));
+                } else if (!isUnchanged(existing, KonnectFingerprint.service(service))) {
                     changedServices.add(buildServiceChange(service));
                 }
             }
         }
         
-        for (KonnectServiceMap existing : existingServiceMap.values()) {
-            if (!konnectServiceIds.contains(existing.getKongServiceId())) {
-                removedServices.add(KonnectRuntimeSyncPreviewDTO.ServiceChange.builder()
-                        .kongServiceId(existing.getKongServiceId())
-                        .name(existing.getNameSnapshot())
-                        .host(existing.getHost())
-                        .protocol(existing.getProtocol())
-                        .build());
-            }
+        for (String serviceId : unseenServiceIds) {
+            ServiceMapping existing = existingServices.get(serviceId);
+            removedServices.add(KonnectRuntimeSyncPreviewDTO.ServiceChange.builder()
+                    .kongServiceId(existing.kongServiceId())
+                    .name(existing.name())
+                    .host(existing.host())
+                    .protocol(existing.protocol())
+                    .build());
         }
         
         // Route diffs
-        Map<String, KonnectRouteMap> existingRouteMap = existingRoutes.stream()
-                .filter(r -> "ACTIVE".equals(r.getStatus()))
-                .collect(Collectors.toMap(KonnectRouteMap::getKongRouteId, r -> r));
-        
-        Set<String> konnectRouteIds = konnectRoutes.stream()
-                .map(r -> (String) r.get("id"))
-                .collect(Collectors.toSet());
+        Set<String> unseenRouteIds = activeIds(existingRoutes);
         
         List<KonnectRuntimeSyncPreviewDTO.RouteChange> addedRoutes = new ArrayList<>();
         List<KonnectRuntimeSyncPreviewDTO.RouteChange> changedRoutes = new ArrayList<>();
         List<KonnectRuntimeSyncPreviewDTO.RouteChange> removedRoutes = new ArrayList<>();
         
-        for (Map<String, Object> route : konnectRoutes) {
-            String routeId = (String) route.get("id");
-            if (!existingRouteMap.containsKey(routeId)) {
-                addedRoutes.add(buildRouteChange(route));
-            } else {
-                KonnectRouteMap existing = existingRouteMap.get(routeId);
-                if (hasRouteChanged(route, existing)) {
+        while (routePages.hasNext()) {
+            for (Map<String, Object> route : routePages.next()) {
+                String routeId = (String) route.get("id");
+                RouteMapping existing = existingRoutes.get(routeId);
+                if (!unseenRouteIds.remove(routeId)) {
+                    addedRoutes.add(buildRouteChange(route));
+                } else if (!isUnchanged(existing, KonnectFingerprint.route(route))) {
                     changedRoutes.add(buildRouteChange(route));
                 }
             }
         }
         
-        for (KonnectRouteMap existing : existingRouteMap.values()) {
-            if (!konnectRouteIds.contains(existing.getKongRouteId())) {
-                removedRoutes.add(KonnectRuntimeSyncPreviewDTO.RouteChange.builder()
-                        .kongRouteId(existing.getKongRouteId())
-                        .kongServiceId(existing.getKongServiceId())
-                        .name(existing.getName())
-                        .build());
-            }
+        for (String routeId : unseenRouteIds) {
+            RouteMapping existing = existingRoutes.get(routeId);
+            removedRoutes.add(KonnectRuntimeSyncPreviewDTO.RouteChange.builder()
+                    .kongRouteId(existing.kongRouteId())
+                    .kongServiceId(existing.kongServiceId())
+                    .name(existing.name())
+                    .build());
         }
         
         return KonnectRuntimeSyncPreviewDTO.builder()
@@ -370,17 +562,6 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
                 .build();
     }
     
-    private boolean hasServiceChanged(Map<String, Object> service, KonnectServiceMap existing) {
-        return !Objects.equals(service.get("name"), existing.getNameSnapshot()) ||
-               !Objects.equals(service.get("host"), existing.getHost()) ||
-               !Objects.equals(service.get("protocol"), existing.getProtocol());
-    }
-    
-    private boolean hasRouteChanged(Map<String, Object> route, KonnectRouteMap existing) {
-        return !Objects.equals(route.get("name"), existing.getName()) ||
-               !Objects.equals(route.get("service_id"), existing.getKongServiceId());
-    }
-    
     private String extractControlPlaneId(ClientApiDetails connection) {
         try {
             if (connection.getAdditionalConfig() != null) {
@@ -494,8 +675,48 @@ public class KongRuntimeServiceImpl implements KongRuntimeService {
     }
     
     @Override
-    public void ingestUsageData(Long orgId, Object usagePayload) {
-        usageIngestionService.ingestHttpLogPayload(orgId, usagePayload);
+    public KongIngestResultDTO ingestUsageData(Long orgId, InputStream usagePayload) {
+        return usageIngestionService.ingestHttpLogStream(orgId, usagePayload, usageSink(orgId));
+    }
+    
+    @Override
+    public KongIngestResultDTO ingestUsageNdjson(Long orgId, InputStream ndjsonPayload) {
+        return usageIngestionService.ingestNdjsonStream(orgId, ndjsonPayload, usageSink(orgId));
+    }
+    
+    /**
+     * Where parsed records go in the configured ingest mode.
+     */
+    private Function<List<KongUsageRecord>, KongIngestResultDTO> usageSink(Long orgId) {
+        if (usageSpool.isEnabled()) {
+            // Spool mode: acknowledge once the records are on local disk, the replayer writes them
+            return records -> {
+                KongIngestResultDTO chunk = KongIngestResultDTO.empty();
+                if (usageSpool.append(records)) {
+                    chunk.setQueued(records.size());
+                } else {
+                    logger.warn("Kong usage spool full, rejecting {} events for org: {}", records.size(), orgId);
+                    chunk.setRejected(true);
+                }
+                return chunk;
+            };
+        }
+        if (!usageIngestQueue.isEnabled()) {
+            return usageIngestionService::writeBatch;
+        }
+        
+        // Async mode: parse on the request thread, let the writer pool do the database work
+        return records -> {
+            KongIngestResultDTO chunk = KongIngestResultDTO.empty();
+            if (usageIngestQueue.offer(records)) {
+                chunk.setQueued(records.size());
+            } else {
+                // Chunks queued before this one are deduplicated when Kong resends the batch
+                logger.warn("Kong ingest queue full, rejecting {} events for org: {}", records.size(), orgId);
+                chunk.setRejected(true);
+            }
+            return chunk;
+        };
     }
     
     @Override
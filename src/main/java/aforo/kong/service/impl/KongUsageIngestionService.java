@@ -1,25 +1,26 @@
 package aforo.kong.service.impl;
 
+import aforo.kong.config.KongIngestProperties;
 import aforo.kong.dto.kong.HttpLogPayload;
+import aforo.kong.dto.kong.KongIngestResultDTO;
 import aforo.kong.entity.KongUsageRecord;
-import aforo.kong.entity.KonnectServiceMap;
-import aforo.kong.entity.KonnectRouteMap;
-import aforo.kong.repository.KongUsageRecordRepository;
-import aforo.kong.repository.KonnectServiceMapRepository;
-import aforo.kong.repository.KonnectRouteMapRepository;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import aforo.kong.ingest.HttpLogStreamReader;
+import aforo.kong.ingest.KongMappingIndex;
+import aforo.kong.repository.KongUsageRecordBatchRepository;
+import aforo.kong.util.CorrelationIdGenerator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import java.io.IOException;
+import java.io.InputStream;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.function.Function;
 
 @Service
 public class KongUsageIngestionService {
@@ -27,69 +28,172 @@ public class KongUsageIngestionService {
     private static final Logger logger = LoggerFactory.getLogger(KongUsageIngestionService.class);
     
     @Autowired
-    private KongUsageRecordRepository usageRecordRepository;
+    private KongMappingIndex mappingIndex;
     
     @Autowired
-    private KonnectServiceMapRepository serviceMapRepository;
+    private KongUsageRecordBatchRepository batchRepository;
     
     @Autowired
-    private KonnectRouteMapRepository routeMapRepository;
+    private HttpLogStreamReader streamReader;
     
     @Autowired
-    private ObjectMapper objectMapper;
+    private KongIngestProperties ingestProperties;
     
-    @Transactional
-    public void ingestHttpLogPayload(Long orgId, Object payload) {
+    @Autowired
+    private CorrelationIdGenerator correlationIdGenerator;
+    
+    /**
+     * Streams a Kong http-log body (a single event or an array of them) and hands the
+     * resulting records to {@code sink} in chunks of {@code kong.ingest.batch-size}.
+     * Reading stops early once the sink reports the chunk as rejected.
+     */
+    public KongIngestResultDTO ingestHttpLogStream(Long orgId, InputStream body,
+                                                   Function<List<KongUsageRecord>, KongIngestResultDTO> sink) {
+        int batchSize = ingestProperties.getBatchSize();
+        List<KongUsageRecord> chunk = new ArrayList<>(batchSize);
+        KongIngestResultDTO result = KongIngestResultDTO.empty();
         try {
-            // Handle batch or single payload
-            if (payload instanceof List) {
-                List<Object> batch = (List<Object>) payload;
-                for (Object item : batch) {
-                    processSinglePayload(orgId, item);
+            int received = streamReader.read(body, (payload, rawJson) -> {
+                KongUsageRecord record = payload != null ? toUsageRecord(orgId, payload, rawJson) : null;
+                if (record == null) {
+                    result.setSkipped(result.getSkipped() + 1);
+                    return true;
                 }
-            } else {
-                processSinglePayload(orgId, payload);
+                chunk.add(record);
+                return chunk.size() < batchSize || flushChunk(chunk, sink, result);
+            });
+            if (!chunk.isEmpty()) {
+                flushChunk(chunk, sink, result);
             }
-        } catch (Exception e) {
-            logger.error("Failed to ingest usage data for org: {}", orgId, e);
+            
+            // The sink counts records, not events
+            result.setReceived(received);
+            logger.debug("Ingested batch for org: {} - received={}, inserted={}, duplicates={}, skipped={}, queued={}",
+                    orgId, result.getReceived(), result.getInserted(), result.getDuplicates(),
+                    result.getSkipped(), result.getQueued());
+            return result;
+        } catch (IOException e) {
+            logger.error("Failed to read usage data for org: {}", orgId, e);
             throw new RuntimeException("Failed to ingest usage data", e);
         }
     }
     
-    private void processSinglePayload(Long orgId, Object payload) {
+    /**
+     * Streams an NDJSON body (one http-log event per line) the same way as
+     * {@link #ingestHttpLogStream}. Lines that cannot be parsed or lack billing fields are
+     * counted and the first {@code kong.ingest.bulk.max-reported-errors} of them are returned
+     * with their line numbers; they never fail the upload.
+     */
+    public KongIngestResultDTO ingestNdjsonStream(Long orgId, InputStream body,
+                                                  Function<List<KongUsageRecord>, KongIngestResultDTO> sink) {
+        int batchSize = ingestProperties.getBatchSize();
+        int maxErrors = ingestProperties.getBulk().getMaxReportedErrors();
+        List<KongUsageRecord> chunk = new ArrayList<>(batchSize);
+        KongIngestResultDTO result = KongIngestResultDTO.empty();
+        List<KongIngestResultDTO.LineError> errors = new ArrayList<>();
         try {
-            // Convert to HttpLogPayload
-            HttpLogPayload logPayload;
-            if (payload instanceof HttpLogPayload) {
-                logPayload = (HttpLogPayload) payload;
-            } else {
-                String json = objectMapper.writeValueAsString(payload);
-                logPayload = objectMapper.readValue(json, HttpLogPayload.class);
+            long received = streamReader.readLines(body, new HttpLogStreamReader.LineHandler() {
+                @Override
+                public boolean onEvent(long line, HttpLogPayload payload, String rawJson) {
+                    KongUsageRecord record = toUsageRecord(orgId, payload, rawJson);
+                    if (record == null) {
+                        result.setSkipped(result.getSkipped() + 1);
+                        report(line, "Missing request.id, request.method, request.uri, response.status or started_at");
+                        return true;
+                    }
+                    chunk.add(record);
+                    return chunk.size() < batchSize || flushChunk(chunk, sink, result);
+                }
+
+                @Override
+                public void onError(long line, String message) {
+                    result.setFailed(result.getFailed() + 1);
+                    report(line, message);
+                }
+
+                private void report(long line, String message) {
+                    if (errors.size() < maxErrors) {
+                        errors.add(new KongIngestResultDTO.LineError(line, message));
+                    }
+                }
+            });
+            if (!chunk.isEmpty()) {
+                flushChunk(chunk, sink, result);
             }
             
+            result.setReceived((int) Math.min(received, Integer.MAX_VALUE));
+            result.setErrors(errors);
+            logger.info("Bulk ingest for org: {} - received={}, inserted={}, duplicates={}, skipped={}, failed={}, queued={}",
+                    orgId, result.getReceived(), result.getInserted(), result.getDuplicates(),
+                    result.getSkipped(), result.getFailed(), result.getQueued());
+            return result;
+        } catch (IOException e) {
+            logger.error("Failed to read bulk usage data for org: {}", orgId, e);
+            throw new RuntimeException("Failed to ingest bulk usage data", e);
+        }
+    }
+    
+    private static boolean flushChunk(List<KongUsageRecord> chunk,
+                                      Function<List<KongUsageRecord>, KongIngestResultDTO> sink,
+                                      KongIngestResultDTO result) {
+        result.add(sink.apply(chunk));
+        chunk.clear();
+        return !result.isRejected();
+    }
+    
+    /**
+     * Writes already-built usage records. Duplicates inside the batch are dropped in memory,
+     * duplicates of rows already stored are dropped by the unique constraint, so each chunk
+     * of {@code kong.ingest.batch-size} records costs a single statement.
+     */
+    public KongIngestResultDTO writeBatch(List<KongUsageRecord> records) {
+        Map<String, KongUsageRecord> unique = new LinkedHashMap<>(records.size() * 2);
+        for (KongUsageRecord record : records) {
+            unique.putIfAbsent(record.getOrganizationId() + ":" + record.getCorrelationId(), record);
+        }
+        
+        List<KongUsageRecord> toInsert = new ArrayList<>(unique.values());
+        for (KongUsageRecord record : toInsert) {
+            // Resolve Aforo mappings up front so the record is written exactly once
+            resolveAforoMappings(record);
+        }
+        
+        int batchSize = ingestProperties.getBatchSize();
+        int inserted = 0;
+        for (int from = 0; from < toInsert.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, toInsert.size());
+            inserted += batchRepository.insertIgnoringDuplicates(toInsert.subList(from, to));
+        }
+        
+        return KongIngestResultDTO.builder()
+                .received(records.size())
+                .inserted(inserted)
+                .duplicates(records.size() - inserted)
+                .skipped(0)
+                .build();
+    }
+    
+    /**
+     * Converts one http-log event into a not yet persisted usage record.
+     * Returns {@code null} when the event lacks the fields needed for billing.
+     */
+    KongUsageRecord toUsageRecord(Long orgId, HttpLogPayload logPayload, String rawJson) {
+        try {
             // Validate required fields
             String kongRequestId = logPayload.getRequest() != null ? logPayload.getRequest().getId() : null;
             String path = logPayload.getRequest() != null ? logPayload.getRequest().getPath() : null;
             String method = logPayload.getRequest() != null ? logPayload.getRequest().getMethod() : null;
             Integer status = logPayload.getResponse() != null ? logPayload.getResponse().getStatus() : null;
 
-            if (kongRequestId == null || path == null || method == null || status == null) {
+            if (kongRequestId == null || path == null || method == null || status == null
+                    || logPayload.getStartedAt() == null) {
                 logger.warn("Skipping save — missing essential fields. reqId={}, path={}, method={}, status={}",
                         kongRequestId, path, method, status);
-                return;
+                return null;
             }
             
             // Generate correlation ID for deduplication
-            String correlationId = generateCorrelationId(orgId, logPayload);
-            
-            // Check for duplicate
-            Optional<KongUsageRecord> existing = usageRecordRepository
-                    .findByOrganizationIdAndCorrelationId(orgId, correlationId);
-            
-            if (existing.isPresent()) {
-                logger.debug("Duplicate usage record detected, skipping: {}", correlationId);
-                return;
-            }
+            String correlationId = generateCorrelationId(logPayload);
             
             // Create usage record
             KongUsageRecord record = new KongUsageRecord();
@@ -133,112 +237,52 @@ public class KongUsageIngestionService {
                 record.setLatencyMs(logPayload.getLatencies().getProxy());
             }
             
-            // Store raw payload for debugging
-            record.setRawPayload(objectMapper.writeValueAsString(payload));
-            
-            // Save record
-            usageRecordRepository.save(record);
+            // Store raw payload for debugging, exactly as Kong sent it
+            record.setRawPayload(rawJson);
+            record.setCreatedAt(Instant.now());
             
-            // Async processing for mapping resolution
-            resolveAforoMappingsAsync(record);
-            
-            logger.debug("Ingested usage record for org: {}, correlation: {}", orgId, correlationId);
+            return record;
             
         } catch (Exception e) {
             logger.error("Failed to process single payload for org: {}", orgId, e);
+            return null;
         }
     }
     
-    @Async
-    protected void resolveAforoMappingsAsync(KongUsageRecord record) {
+    private void resolveAforoMappings(KongUsageRecord record) {
         try {
-            boolean updated = false;
-            
-            // Resolve service mapping
-            if (record.getKongServiceId() != null) {
-                Optional<KonnectServiceMap> serviceMap = serviceMapRepository
-                        .findByOrganizationIdAndControlPlaneIdAndKongServiceId(
-                                record.getOrganizationId(), 
-                                "default", // TODO: Extract control plane ID properly
-                                record.getKongServiceId());
-                
-                if (serviceMap.isPresent() && serviceMap.get().getAforoProductId() != null) {
-                    record.setAforoProductId(serviceMap.get().getAforoProductId());
-                    updated = true;
-                }
-            }
-            
-            // Resolve route mapping
-            if (record.getKongRouteId() != null) {
-                Optional<KonnectRouteMap> routeMap = routeMapRepository
-                        .findByOrganizationIdAndControlPlaneIdAndKongRouteId(
-                                record.getOrganizationId(),
-                                "default", // TODO: Extract control plane ID properly
-                                record.getKongRouteId());
-                
-                if (routeMap.isPresent() && routeMap.get().getAforoEndpointId() != null) {
-                    record.setAforoEndpointId(routeMap.get().getAforoEndpointId());
-                    updated = true;
-                }
-            }
-            
-            // TODO: Resolve consumer mapping when implemented
+            KongMappingIndex.Mappings mappings = mappingIndex.forOrganization(record.getOrganizationId());
+            record.setAforoProductId(mappings.productFor(record.getKongServiceId()));
+            record.setAforoEndpointId(mappings.endpointFor(record.getKongRouteId()));
+            record.setAforoCustomerId(mappings.customerFor(record.getKongConsumerId()));
             
-            if (updated) {
+            if (record.getAforoProductId() != null || record.getAforoEndpointId() != null) {
                 record.setProcessed(true);
-                usageRecordRepository.save(record);
             }
             
         } catch (Exception e) {
-            logger.error("Failed to resolve Aforo mappings for record: {}", record.getId(), e);
+            logger.error("Failed to resolve Aforo mappings for record: {}", record.getCorrelationId(), e);
         }
     }
     
-    private String generateCorrelationId(Long orgId, HttpLogPayload payload) {
-        try {
-            String uniqueString;
-            
-            // Use request.id if available
-            if (payload.getRequest() != null && payload.getRequest().getId() != null && !payload.getRequest().getId().isEmpty()) {
-                uniqueString = payload.getRequest().getId();
-            } else {
-                // Fallback to hash of key fields
-                StringBuilder sb = new StringBuilder();
-                sb.append(payload.getStartedAt());
-                
-                if (payload.getConsumer() != null && payload.getConsumer().getId() != null) {
-                    sb.append("|").append(payload.getConsumer().getId());
-                }
-                
-                if (payload.getRoute() != null && payload.getRoute().getId() != null) {
-                    sb.append("|").append(payload.getRoute().getId());
-                }
-                
-                if (payload.getRequest() != null) {
-                    sb.append("|").append(payload.getRequest().getMethod());
-                    sb.append("|").append(payload.getRequest().getPath());
-                }
-                
-                uniqueString = sb.toString();
-            }
-            
-            // Generate SHA-256 hash
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(uniqueString.getBytes(StandardCharsets.UTF_8));
-            
-            // Convert to hex string
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hash) {
-                String hex = Integer.toHexString(0xff & b);
-                if (hex.length() == 1) hexString.append('0');
-                hexString.append(hex);
-            }
-            
-            return hexString.toString();
-            
-        } catch (Exception e) {
-            logger.error("Failed to generate correlation ID", e);
-            return String.valueOf(System.nanoTime());
+    private String generateCorrelationId(HttpLogPayload payload) {
+        // Use request.id if available
+        if (payload.getRequest() != null && payload.getRequest().getId() != null && !payload.getRequest().getId().isEmpty()) {
+            return correlationIdGenerator.generate(payload.getRequest().getId());
+        }
+        
+        // Fallback to hash of key fields
+        CorrelationIdGenerator.Key key = correlationIdGenerator.begin().append(payload.getStartedAt());
+        if (payload.getConsumer() != null && payload.getConsumer().getId() != null) {
+            key.append('|').append(payload.getConsumer().getId());
+        }
+        if (payload.getRoute() != null && payload.getRoute().getId() != null) {
+            key.append('|').append(payload.getRoute().getId());
+        }
+        if (payload.getRequest() != null) {
+            key.append('|').append(payload.getRequest().getMethod());
+            key.append('|').append(payload.getRequest().getPath());
         }
+        return key.finish();
     }
 }
@@ -1,14 +1,18 @@
 package aforo.kong.service.impl;
 
 import aforo.kong.client.KonnectWebClient;
+import aforo.kong.config.KonnectSyncProperties;
 import aforo.kong.dto.konnect.*;
 import aforo.kong.entity.ClientApiDetails;
 import aforo.kong.entity.KonnectApiProductMap;
 import aforo.kong.entity.KongProduct;
 import aforo.kong.repository.ClientApiDetailsRepository;
 import aforo.kong.repository.KonnectApiProductMapRepository;
+import aforo.kong.repository.KonnectMapSyncRepository;
 import aforo.kong.repository.KongProductRepository;
+import aforo.kong.service.KongRuntimeService;
 import aforo.kong.service.KonnectService;
+import aforo.kong.service.SyncDeadline;
 import aforo.kong.service.SyncLockService;
 import aforo.kong.util.EncryptionUtil;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -16,9 +20,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
 @Service
@@ -33,6 +46,23 @@ public class KonnectServiceImpl implements KonnectService {
     private final EncryptionUtil encryptionUtil;
     private final ObjectMapper objectMapper;
     private final SyncLockService syncLockService;
+    private final KongRuntimeService runtimeService;
+    private final KonnectMapSyncRepository mapSyncRepository;
+    private final KonnectSyncProperties syncProperties;
+    private final TransactionTemplate transactionTemplate;
+
+    private enum RefreshOutcome {
+        REFRESHED,
+        SKIPPED_LOCKED,
+        TIMED_OUT,
+        FAILED
+    }
+
+    private final AtomicLong cycles = new AtomicLong();
+    private final AtomicLong skippedLocked = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final Map<Long, Long> orgLatencyMillis = new ConcurrentHashMap<>();
+    private volatile Map<String, Object> lastCycle = Map.of();
 
     public KonnectServiceImpl(
             ClientApiDetailsRepository connectionRepository,
@@ -41,7 +71,11 @@ public class KonnectServiceImpl implements KonnectService {
             KonnectWebClient konnectClient,
             EncryptionUtil encryptionUtil,
             ObjectMapper objectMapper,
-            SyncLockService syncLockService) {
+            SyncLockService syncLockService,
+            KongRuntimeService runtimeService,
+            KonnectMapSyncRepository mapSyncRepository,
+            KonnectSyncProperties syncProperties,
+            TransactionTemplate transactionTemplate) {
         this.connectionRepository = connectionRepository;
         this.mappingRepository = mappingRepository;
         this.productRepository = productRepository;
@@ -49,6 +83,10 @@ public class KonnectServiceImpl implements KonnectService {
         this.encryptionUtil = encryptionUtil;
         this.objectMapper = objectMapper;
         this.syncLockService = syncLockService;
+        this.runtimeService = runtimeService;
+        this.mapSyncRepository = mapSyncRepository;
+        this.syncProperties = syncProperties;
+        this.transactionTemplate = transactionTemplate;
     }
 
     @Override
@@ -201,6 +239,11 @@ public class KonnectServiceImpl implements KonnectService {
     @Override
     @Transactional
     public KonnectImportResponseDTO importApiProducts(Long orgId, KonnectImportRequestDTO request) {
+        return importApiProducts(orgId, request, SyncDeadline.NONE);
+    }
+
+    private KonnectImportResponseDTO importApiProducts(Long orgId, KonnectImportRequestDTO request,
+                                                       SyncDeadline deadline) {
         ClientApiDetails connection = getConnectionByOrgId(orgId);
         String decryptedToken = encryptionUtil.decrypt(connection.getAuthToken());
 
@@ -210,6 +253,8 @@ public class KonnectServiceImpl implements KonnectService {
         List<KonnectImportResponseDTO.ImportedItemDTO> items = new ArrayList<>();
 
         for (String productId : request.getSelectedApiProductIds()) {
+            // Outside the try: past the deadline the whole import stops, not just this product
+            deadline.check();
             try {
                 Map<String, Object> productData = konnectClient.getApiProductById(
                     connection.getBaseUrl(),
@@ -329,7 +374,10 @@ public class KonnectServiceImpl implements KonnectService {
             extractControlPlaneId(connection),
             decryptedToken
         );
+        return previewSync(orgId, liveProducts);
+    }
 
+    private KonnectSyncPreviewDTO previewSync(Long orgId, List<Map<String, Object>> liveProducts) {
         List<KonnectApiProductMap> mappings = mappingRepository.findByOrgId(orgId);
         
         Set<String> liveProductIds = liveProducts.stream()
@@ -387,8 +435,11 @@ public class KonnectServiceImpl implements KonnectService {
 
     @Transactional
     private KonnectImportResponseDTO applySyncInternal(Long orgId) {
-        KonnectSyncPreviewDTO preview = previewSync(orgId);
-        
+        return applySyncInternal(orgId, previewSync(orgId), SyncDeadline.NONE);
+    }
+
+    private KonnectImportResponseDTO applySyncInternal(Long orgId, KonnectSyncPreviewDTO preview,
+                                                       SyncDeadline deadline) {
         List<String> toImport = new ArrayList<>();
         toImport.addAll(preview.getAdded().stream()
                 .map(KonnectApiProductDTO::getKonnectApiProductId)
@@ -401,7 +452,7 @@ public class KonnectServiceImpl implements KonnectService {
         if (!toImport.isEmpty()) {
             KonnectImportRequestDTO importRequest = new KonnectImportRequestDTO();
             importRequest.setSelectedApiProductIds(toImport);
-            importResult = importApiProducts(orgId, importRequest);
+            importResult = importApiProducts(orgId, importRequest, deadline);
         } else {
             importResult = KonnectImportResponseDTO.builder()
                     .imported(0)
@@ -412,6 +463,7 @@ public class KonnectServiceImpl implements KonnectService {
         }
 
         if (importResult.getFailed() == 0) {
+            deadline.check();
             for (KonnectApiProductDTO removed : preview.getRemoved()) {
                 Optional<KonnectApiProductMap> mappingOpt = 
                     mappingRepository.findByOrgIdAndKonnectApiProductId(orgId, removed.getKonnectApiProductId());
@@ -428,28 +480,157 @@ public class KonnectServiceImpl implements KonnectService {
     @Override
     public void autoRefresh() {
         List<ClientApiDetails> connections = connectionRepository.findByEnvironmentAndConnectionStatus("konnect", "connected");
+        KonnectSyncProperties.AutoRefresh config = syncProperties.getAutoRefresh();
+        long started = System.currentTimeMillis();
         
-        for (ClientApiDetails connection : connections) {
-            Long orgId = connection.getOrganizationId();
-            
-            if (!syncLockService.getLockForOrg(orgId).tryLock()) {
+        // One virtual thread per org; the semaphore bounds how many talk to Konnect at once
+        Map<RefreshOutcome, List<Long>> outcomes = new ConcurrentHashMap<>();
+        Semaphore permits = new Semaphore(Math.max(1, config.getConcurrency()));
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (ClientApiDetails connection : connections) {
+                executor.submit(() -> {
+                    RefreshOutcome outcome = refreshOrg(connection, permits, config);
+                    outcomes.computeIfAbsent(outcome, o -> new CopyOnWriteArrayList<>()).add(connection.getOrganizationId());
+                });
+            }
+        }
+        
+        long cycleMillis = System.currentTimeMillis() - started;
+        List<Long> skipped = outcomes.getOrDefault(RefreshOutcome.SKIPPED_LOCKED, List.of());
+        List<Long> timedOut = outcomes.getOrDefault(RefreshOutcome.TIMED_OUT, List.of());
+        List<Long> failed = outcomes.getOrDefault(RefreshOutcome.FAILED, List.of());
+        cycles.incrementAndGet();
+        skippedLocked.addAndGet(skipped.size());
+        timeouts.addAndGet(timedOut.size());
+        Map<String, Object> cycle = new LinkedHashMap<>();
+        cycle.put("orgs", connections.size());
+        cycle.put("refreshed", outcomes.getOrDefault(RefreshOutcome.REFRESHED, List.of()).size());
+        cycle.put("durationMs", cycleMillis);
+        cycle.put("skippedLocked", List.copyOf(skipped));
+        cycle.put("timedOut", List.copyOf(timedOut));
+        cycle.put("failed", List.copyOf(failed));
+        lastCycle = Collections.unmodifiableMap(cycle);
+        logger.info("Auto-refreshed {} orgs in {} ms: {} skipped (locked) {}, {} timed out {}, {} failed {}",
+                connections.size(), cycleMillis, skipped.size(), skipped, timedOut.size(), timedOut,
+                failed.size(), failed);
+    }
+
+    /**
+     * Refreshes one org after a random delay and once a permit is free, unless a sync of the
+     * org is already running. Past the org timeout the refresh stops at its next page or write
+     * chunk; the transaction in progress rolls back and the next cycle retries.
+     */
+    private RefreshOutcome refreshOrg(ClientApiDetails connection, Semaphore permits,
+                                      KonnectSyncProperties.AutoRefresh config) {
+        Long orgId = connection.getOrganizationId();
+        try {
+            // Spread the orgs' first Konnect requests over the jitter window
+            if (config.getMaxJitterMs() > 0) {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(config.getMaxJitterMs()));
+            }
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return RefreshOutcome.FAILED;
+        }
+        try {
+            ReentrantLock lock = syncLockService.getLockForOrg(orgId);
+            if (!lock.tryLock()) {
                 logger.debug("Skipping auto-refresh for org {} - sync already in progress", orgId);
-                continue;
+                return RefreshOutcome.SKIPPED_LOCKED;
             }
-            
+            long started = System.currentTimeMillis();
+            SyncDeadline deadline = SyncDeadline.after(config.getOrgTimeoutMs());
+            boolean refreshed = true;
+            boolean timedOut = false;
             try {
-                KonnectSyncPreviewDTO preview = previewSync(orgId);
-                
-                if (!preview.getAdded().isEmpty() || !preview.getRemoved().isEmpty() || !preview.getChanged().isEmpty()) {
-                    logger.info("Auto-syncing changes for org: {}", orgId);
-                    applySyncInternal(orgId);
+                try {
+                    // Runtime first: it creates the sync state the product ETag is kept in
+                    runtimeService.refreshRuntimeSync(orgId, deadline);
+                } catch (Exception e) {
+                    refreshed = false;
+                    timedOut = SyncDeadline.isTimeout(e);
+                    if (!timedOut) {
+                        logger.error("Failed to auto-refresh services and routes for org: {}", orgId, e);
+                    }
+                }
+                if (!timedOut) {
+                    try {
+                        refreshApiProducts(connection, deadline);
+                    } catch (Exception e) {
+                        refreshed = false;
+                        timedOut = SyncDeadline.isTimeout(e);
+                        if (!timedOut) {
+                            logger.error("Failed to auto-refresh for org: {}", orgId, e);
+                        }
+                    }
                 }
-            } catch (Exception e) {
-                logger.error("Failed to auto-refresh for org: {}", orgId, e);
             } finally {
-                syncLockService.getLockForOrg(orgId).unlock();
+                lock.unlock();
+                orgLatencyMillis.put(orgId, System.currentTimeMillis() - started);
             }
+            if (timedOut) {
+                logger.warn("Auto-refresh of org {} timed out after {} ms", orgId, config.getOrgTimeoutMs());
+                return RefreshOutcome.TIMED_OUT;
+            }
+            return refreshed ? RefreshOutcome.REFRESHED : RefreshOutcome.FAILED;
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public Map<String, Object> getAutoRefreshStats() {
+        KonnectSyncProperties.AutoRefresh config = syncProperties.getAutoRefresh();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("concurrency", config.getConcurrency());
+        stats.put("orgTimeoutMs", config.getOrgTimeoutMs());
+        stats.put("maxJitterMs", config.getMaxJitterMs());
+        stats.put("cycles", cycles.get());
+        stats.put("skippedLocked", skippedLocked.get());
+        stats.put("timedOut", timeouts.get());
+        stats.put("lastCycle", lastCycle);
+        stats.put("orgLatencyMs", new TreeMap<>(orgLatencyMillis));
+        return stats;
+    }
+
+    /**
+     * Applies the organization's API product changes, or nothing at all when Konnect answers
+     * the ETag of the last applied list with 304 Not Modified. Any change to the list, deletions
+     * included, changes its ETag, so products need no separate full reconciliation. The changes
+     * and the new ETag are written in one transaction, so a timeout leaves none of them.
+     */
+    private void refreshApiProducts(ClientApiDetails connection, SyncDeadline deadline) {
+        Long orgId = connection.getOrganizationId();
+        String controlPlaneId = extractControlPlaneId(connection);
+        KonnectMapSyncRepository.SyncState state = controlPlaneId != null && syncProperties.isIncremental()
+                ? mapSyncRepository.findSyncState(orgId, controlPlaneId) : null;
+        KonnectWebClient.ConditionalList products = konnectClient.listApiProductsIfModified(
+            connection.getBaseUrl(),
+            encryptionUtil.decrypt(connection.getAuthToken()),
+            state != null ? state.productsEtag() : null
+        );
+        if (!products.modified()) {
+            logger.debug("API products of org {} unchanged since the last sync", orgId);
+            return;
         }
+
+        deadline.check();
+
+        transactionTemplate.executeWithoutResult(status -> {
+            KonnectSyncPreviewDTO preview = previewSync(orgId, products.data());
+            if (!preview.getAdded().isEmpty() || !preview.getRemoved().isEmpty() || !preview.getChanged().isEmpty()) {
+                logger.info("Auto-syncing changes for org: {}", orgId);
+                if (applySyncInternal(orgId, preview, deadline).getFailed() > 0) {
+                    // Keep the old ETag so the next run fetches the list again
+                    return;
+                }
+            }
+            deadline.check();
+            if (controlPlaneId != null) {
+                mapSyncRepository.saveProductsEtag(orgId, controlPlaneId, products.etag());
+            }
+        });
     }
 
     private ClientApiDetails getConnectionByOrgId(Long orgId) {
@@ -1,23 +1,30 @@
 package aforo.kong.service.impl;
 
 import aforo.kong.entity.KongConsumer;
-import aforo.kong.entity.PricingPlan;
 import aforo.kong.entity.UsageRecord;
+import aforo.kong.latency.LatencyHistogram;
+import aforo.kong.latency.LatencyTracker;
+import aforo.kong.latency.LatencyTracker.Latencies;
+import aforo.kong.quota.QuotaCounters;
+import aforo.kong.rating.CompiledPricingPlan;
+import aforo.kong.rating.PricingPlanCache;
+import aforo.kong.rating.RatingEngine;
 import aforo.kong.repository.KongConsumerRepository;
-import aforo.kong.repository.PricingPlanRepository;
-import aforo.kong.repository.UsageRecordRepository;
+import aforo.kong.repository.LatencyHistogramRepository.SeriesFilter;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.UsageRollupRepository.Dimension;
+import aforo.kong.repository.UsageRollupRepository.UsageTotals;
 import aforo.kong.service.UsageProcessingService;
 import aforo.kong.tenant.TenantContext;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import aforo.kong.topk.TopKTracker;
+import aforo.kong.wallet.WalletLedger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.*;
 import java.util.stream.Collectors;
 
@@ -27,50 +34,42 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
     
     private static final Logger logger = LoggerFactory.getLogger(UsageProcessingServiceImpl.class);
     
-    private final UsageRecordRepository usageRecordRepository;
     private final KongConsumerRepository consumerRepository;
-    private final PricingPlanRepository pricingPlanRepository;
-    private final ObjectMapper objectMapper;
+    private final PricingPlanCache pricingPlanCache;
+    private final RatingEngine ratingEngine;
+    private final WalletLedger walletLedger;
+    private final QuotaCounters quotaCounters;
+    private final UsageRollupRepository rollupRepository;
+    private final TopKTracker topKTracker;
+    private final LatencyTracker latencyTracker;
     
     public UsageProcessingServiceImpl(
-            UsageRecordRepository usageRecordRepository,
             KongConsumerRepository consumerRepository,
-            PricingPlanRepository pricingPlanRepository,
-            ObjectMapper objectMapper) {
-        this.usageRecordRepository = usageRecordRepository;
+            PricingPlanCache pricingPlanCache,
+            RatingEngine ratingEngine,
+            WalletLedger walletLedger,
+            QuotaCounters quotaCounters,
+            UsageRollupRepository rollupRepository,
+            TopKTracker topKTracker,
+            LatencyTracker latencyTracker) {
         this.consumerRepository = consumerRepository;
-        this.pricingPlanRepository = pricingPlanRepository;
-        this.objectMapper = objectMapper;
+        this.pricingPlanCache = pricingPlanCache;
+        this.ratingEngine = ratingEngine;
+        this.walletLedger = walletLedger;
+        this.quotaCounters = quotaCounters;
+        this.rollupRepository = rollupRepository;
+        this.topKTracker = topKTracker;
+        this.latencyTracker = latencyTracker;
     }
     
+    /**
+     * Runs one cycle of the {@link RatingEngine} over all organizations; the engine also runs
+     * on its own schedule.
+     */
     @Override
-    @Scheduled(fixedDelay = 60000) // Process every minute
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void processUnprocessedRecords() {
-        Long organizationId = null;
-        try {
-            organizationId = TenantContext.require();
-        } catch (Exception e) {
-            // Skip if no tenant context
-            return;
-        }
-        
-        Instant endTime = Instant.now();
-        Instant startTime = endTime.minus(1, ChronoUnit.HOURS);
-        
-        List<UsageRecord> unprocessedRecords = usageRecordRepository.findUnprocessedRecords(
-            organizationId, startTime, endTime);
-        
-        logger.info("Processing {} unprocessed usage records", unprocessedRecords.size());
-        
-        for (UsageRecord record : unprocessedRecords) {
-            try {
-                calculateCost(record);
-                record.setProcessed(true);
-                usageRecordRepository.save(record);
-            } catch (Exception e) {
-                logger.error("Failed to process usage record: {}", record.getUsageId(), e);
-            }
-        }
+        ratingEngine.runCycle();
     }
     
     @Override
@@ -82,36 +81,34 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
         
         Long organizationId = record.getOrganizationId();
         
-        // Get consumer and their pricing plan
-        Optional<KongConsumer> consumerOpt = consumerRepository.findByIdAndOrganizationId(
-            record.getConsumerId(), organizationId);
+        // Get consumer and their pricing plan (both served from the compiled plan cache)
+        PricingPlanCache.ConsumerPlan consumer = pricingPlanCache.getConsumerPlan(
+            organizationId, record.getConsumerId());
         
-        if (consumerOpt.isEmpty()) {
+        if (consumer == null) {
             logger.warn("Consumer not found: {}", record.getConsumerId());
             return;
         }
         
-        KongConsumer consumer = consumerOpt.get();
-        if (consumer.getPlanId() == null) {
-            logger.debug("Consumer {} has no pricing plan, using default", consumer.getId());
+        if (consumer.planName() == null) {
+            logger.debug("Consumer {} has no pricing plan, using default", record.getConsumerId());
             record.setUnitPrice(0.0);
             record.setTotalCost(0.0);
             return;
         }
         
-        Optional<PricingPlan> planOpt = pricingPlanRepository.findByPlanNameAndOrganizationId(
-            consumer.getPlanId(), organizationId);
+        CompiledPricingPlan plan = pricingPlanCache.getPlan(organizationId, consumer.planName());
         
-        if (planOpt.isEmpty()) {
-            logger.warn("Pricing plan not found: {}", consumer.getPlanId());
+        if (plan == null) {
+            logger.warn("Pricing plan not found: {}", consumer.planName());
             return;
         }
         
-        PricingPlan plan = planOpt.get();
-        
-        // Calculate cost based on metric type
-        double cost = 0.0;
-        double unitPrice = 0.0;
+        if (!plan.isValid()) {
+            logger.error("Failed to calculate cost for record {}: plan {} has unreadable metrics",
+                record.getUsageId(), plan.getPlanName());
+            return;
+        }
         
         String metricType = record.getMetricType();
         if (metricType == null) {
@@ -119,37 +116,19 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
         }
         
         try {
-            // Parse metrics configuration
-            if (plan.getMetrics() != null) {
-                List<Map<String, Object>> metrics = objectMapper.readValue(
-                    plan.getMetrics(), 
-                    new TypeReference<List<Map<String, Object>>>() {}
-                );
-                
-                for (Map<String, Object> metric : metrics) {
-                    if (metricType.equals(metric.get("type"))) {
-                        unitPrice = calculatePriceForMetric(record, metric);
-                        break;
-                    }
-                }
-            }
+            double unitPrice = plan.unitPrice(metricType);
             
-            // Calculate total cost
+            // Calculate total cost, raised to the plan's minimum fee if applicable
             double units = record.getBillableUnits() != null ? record.getBillableUnits() : 1.0;
-            cost = units * unitPrice;
-            
-            // Apply minimum fee if applicable
-            if (plan.getMinimumFee() != null && cost < plan.getMinimumFee()) {
-                cost = plan.getMinimumFee();
-            }
+            double cost = plan.applyMinimumFee(units * unitPrice);
             
             record.setUnitPrice(unitPrice);
             record.setTotalCost(cost);
             record.setCurrency(plan.getCurrency());
             
             // Deduct from wallet if prepaid
-            if (Boolean.TRUE.equals(plan.getPrepaidCreditsEnabled()) && consumer.getWalletBalance() != null) {
-                deductFromWallet(consumer.getId(), cost);
+            if (plan.isPrepaid() && consumer.hasWallet()) {
+                deductFromWallet(record.getConsumerId(), cost);
             }
             
         } catch (Exception e) {
@@ -166,20 +145,11 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
         summary.put("startTime", startTime);
         summary.put("endTime", endTime);
         
-        // Get total calls
-        Long totalCalls = usageRecordRepository.countByConsumerInPeriod(
-            consumerId, organizationId, startTime, endTime);
-        summary.put("totalCalls", totalCalls);
-        
-        // Get total cost
-        Double totalCost = usageRecordRepository.sumCostByConsumerInPeriod(
-            consumerId, organizationId, startTime, endTime);
-        summary.put("totalCost", totalCost != null ? totalCost : 0.0);
-        
-        // Get total bandwidth
-        Long totalBandwidth = usageRecordRepository.sumBandwidthByConsumerInPeriod(
-            consumerId, organizationId, startTime, endTime);
-        summary.put("totalBandwidthBytes", totalBandwidth != null ? totalBandwidth : 0L);
+        // One read over the daily / hourly rollups instead of three scans of the raw rows
+        UsageTotals totals = rollupRepository.findTotals(organizationId, consumerId, startTime, endTime);
+        summary.put("totalCalls", totals.requests());
+        summary.put("totalCost", totals.totalCost());
+        summary.put("totalBandwidthBytes", totals.bandwidthBytes());
         
         // Get consumer details
         consumerRepository.findByIdAndOrganizationId(consumerId, organizationId)
@@ -197,44 +167,27 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
     public Map<String, Object> getUsageStatistics(String consumerId, Instant startTime, Instant endTime) {
         Long organizationId = TenantContext.require();
         
-        List<UsageRecord> records = usageRecordRepository.findByConsumerIdAndOrganizationIdAndTimestampBetween(
-            consumerId, organizationId, startTime, endTime);
+        UsageTotals totals = rollupRepository.findTotals(organizationId, consumerId, startTime, endTime);
         
         Map<String, Object> stats = new HashMap<>();
-        stats.put("totalRequests", records.size());
-        
-        // Calculate success rate
-        long successCount = records.stream()
-            .filter(r -> r.getResponseStatus() != null && r.getResponseStatus() < 400)
-            .count();
-        stats.put("successRate", records.isEmpty() ? 0 : (double) successCount / records.size() * 100);
-        
-        // Calculate average latency
-        double avgLatency = records.stream()
-            .filter(r -> r.getResponseLatency() != null)
-            .mapToLong(UsageRecord::getResponseLatency)
-            .average()
-            .orElse(0);
-        stats.put("averageLatencyMs", avgLatency);
+        stats.put("totalRequests", totals.requests());
+        stats.put("successRate", totals.requests() == 0 ? 0 : (double) totals.successfulRequests() / totals.requests() * 100);
+        stats.put("averageLatencyMs", totals.averageLatencyMs());
         
         // Group by service
-        Map<String, Long> byService = records.stream()
-            .filter(r -> r.getServiceName() != null)
-            .collect(Collectors.groupingBy(
-                UsageRecord::getServiceName,
-                Collectors.counting()
-            ));
+        Map<String, Long> byService = new HashMap<>();
+        rollupRepository.countBy(organizationId, consumerId, Dimension.SERVICE_NAME, startTime, endTime, 0)
+            .forEach(row -> byService.put((String) row[0], (Long) row[1]));
         stats.put("requestsByService", byService);
         
         // Group by status code
-        Map<Integer, Long> byStatus = records.stream()
-            .filter(r -> r.getResponseStatus() != null)
-            .collect(Collectors.groupingBy(
-                UsageRecord::getResponseStatus,
-                Collectors.counting()
-            ));
+        Map<Integer, Long> byStatus = new HashMap<>();
+        rollupRepository.countBy(organizationId, consumerId, Dimension.RESPONSE_STATUS, startTime, endTime, 0)
+            .forEach(row -> byStatus.put(((Number) row[0]).intValue(), (Long) row[1]));
         stats.put("requestsByStatus", byStatus);
         
+        stats.put("latencyPercentiles", getLatencyPercentiles(null, null, consumerId, startTime, endTime));
+        
         return stats;
     }
     
@@ -242,26 +195,11 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
     public List<Map<String, Object>> getTopConsumersByUsage(int limit, Instant startTime, Instant endTime) {
         Long organizationId = TenantContext.require();
         
-        // This would be better as a custom query, but for now we'll do it in memory
-        List<UsageRecord> records = usageRecordRepository.findByOrganizationId(
-            organizationId, 
-            org.springframework.data.domain.PageRequest.of(0, 10000)
-        ).getContent();
-        
-        Map<String, Long> consumerCounts = records.stream()
-            .filter(r -> r.getTimestamp().isAfter(startTime) && r.getTimestamp().isBefore(endTime))
-            .filter(r -> r.getConsumerUsername() != null)
-            .collect(Collectors.groupingBy(
-                UsageRecord::getConsumerUsername,
-                Collectors.counting()
-            ));
-        
-        return consumerCounts.entrySet().stream()
-            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-            .limit(limit)
+        return topKTracker.top(organizationId, Dimension.CONSUMER_USERNAME, startTime, endTime, limit).stream()
             .map(entry -> Map.<String, Object>of(
-                "consumer", entry.getKey(),
-                "requestCount", entry.getValue()
+                "consumer", entry.item(),
+                "requestCount", entry.count(),
+                "maxOverestimate", entry.maxOverestimate()
             ))
             .collect(Collectors.toList());
     }
@@ -270,84 +208,65 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
     public List<Map<String, Object>> getTopServicesByUsage(int limit, Instant startTime, Instant endTime) {
         Long organizationId = TenantContext.require();
         
-        List<UsageRecord> records = usageRecordRepository.findByOrganizationId(
-            organizationId, 
-            org.springframework.data.domain.PageRequest.of(0, 10000)
-        ).getContent();
-        
-        Map<String, Long> serviceCounts = records.stream()
-            .filter(r -> r.getTimestamp().isAfter(startTime) && r.getTimestamp().isBefore(endTime))
-            .filter(r -> r.getServiceName() != null)
-            .collect(Collectors.groupingBy(
-                UsageRecord::getServiceName,
-                Collectors.counting()
-            ));
-        
-        return serviceCounts.entrySet().stream()
-            .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
-            .limit(limit)
+        return topKTracker.top(organizationId, Dimension.SERVICE_NAME, startTime, endTime, limit).stream()
             .map(entry -> Map.<String, Object>of(
-                "service", entry.getKey(),
-                "requestCount", entry.getValue()
+                "service", entry.item(),
+                "requestCount", entry.count(),
+                "maxOverestimate", entry.maxOverestimate()
             ))
             .collect(Collectors.toList());
     }
     
     @Override
-    public boolean isApproachingQuota(String consumerId, double threshold) {
+    public Map<String, Object> getLatencyPercentiles(String serviceId, String routeId, String consumerId,
+                                                     Instant startTime, Instant endTime) {
         Long organizationId = TenantContext.require();
         
-        Optional<KongConsumer> consumerOpt = consumerRepository.findByIdAndOrganizationId(
-            consumerId, organizationId);
+        Latencies latencies = latencyTracker.latencies(
+                organizationId, new SeriesFilter(serviceId, routeId, consumerId), startTime, endTime);
+        Map<String, Object> percentiles = new LinkedHashMap<>();
+        percentiles.put("responseLatency", summarize(latencies.response()));
+        percentiles.put("kongLatency", summarize(latencies.kong()));
+        percentiles.put("upstreamLatency", summarize(latencies.upstream()));
+        return percentiles;
+    }
+    
+    private static Map<String, Object> summarize(LatencyHistogram histogram) {
+        Map<String, Object> summary = new LinkedHashMap<>();
+        summary.put("count", histogram.count());
+        summary.put("meanMs", histogram.mean());
+        summary.put("p50Ms", histogram.percentile(50));
+        summary.put("p95Ms", histogram.percentile(95));
+        summary.put("p99Ms", histogram.percentile(99));
+        summary.put("maxMs", histogram.max());
+        return summary;
+    }
+    
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public boolean isApproachingQuota(String consumerId, double threshold) {
+        Long organizationId = TenantContext.require();
         
-        if (consumerOpt.isEmpty() || consumerOpt.get().getPlanId() == null) {
+        PricingPlanCache.ConsumerPlan consumer = pricingPlanCache.getConsumerPlan(organizationId, consumerId);
+        if (consumer == null || consumer.planName() == null) {
             return false;
         }
         
-        KongConsumer consumer = consumerOpt.get();
-        Optional<PricingPlan> planOpt = pricingPlanRepository.findByPlanNameAndOrganizationId(
-            consumer.getPlanId(), organizationId);
-        
-        if (planOpt.isEmpty()) {
+        CompiledPricingPlan plan = pricingPlanCache.getPlan(organizationId, consumer.planName());
+        if (plan == null) {
             return false;
         }
         
-        PricingPlan plan = planOpt.get();
-        
-        // Check monthly quota
-        if (plan.getMaxRequestsPerMonth() != null) {
-            Instant now = Instant.now();
-            Instant monthStart = now.minus(30, ChronoUnit.DAYS);
-            
-            Long currentUsage = usageRecordRepository.countByConsumerInPeriod(
-                consumerId, organizationId, monthStart, now);
-            
-            double usagePercent = (double) currentUsage / plan.getMaxRequestsPerMonth() * 100;
-            return usagePercent >= threshold;
-        }
-        
-        return false;
+        // Every window of quotaLimits plus maxRequestsPerMonth, read from the in-memory counters
+        return quotaCounters.usagePercent(organizationId, consumerId, plan) >= threshold;
     }
     
     @Override
-    @Transactional
     public void deductFromWallet(String consumerId, double amount) {
         Long organizationId = TenantContext.require();
-        int updated = consumerRepository.updateWalletBalance(consumerId, -amount, organizationId);
-        
-        if (updated > 0) {
-            logger.debug("Deducted {} from consumer {} wallet", amount, consumerId);
-            
-            // Check if wallet is now negative and suspend if needed
-            consumerRepository.findByIdAndOrganizationId(consumerId, organizationId)
-                .ifPresent(consumer -> {
-                    if (consumer.getWalletBalance() != null && consumer.getWalletBalance() <= 0) {
-                        consumer.setStatus("suspended");
-                        consumerRepository.save(consumer);
-                        logger.warn("Consumer {} suspended due to insufficient wallet balance", consumerId);
-                    }
-                });
-        }
+        // Write-behind: the ledger batches the UPDATE and suspends when the balance crosses zero
+        walletLedger.debit(organizationId, consumerId, amount);
+        logger.debug("Deducted {} from consumer {} wallet", amount, consumerId);
     }
     
     @Override
@@ -359,47 +278,8 @@ public class UsageProcessingServiceImpl implements UsageProcessingService {
         if (updated > 0) {
             logger.info("Added {} to consumer {} wallet", amount, consumerId);
             
-            // Resume consumer if was suspended
-            consumerRepository.findByIdAndOrganizationId(consumerId, organizationId)
-                .ifPresent(consumer -> {
-                    if ("suspended".equals(consumer.getStatus()) && 
-                        consumer.getWalletBalance() != null && 
-                        consumer.getWalletBalance() > 0) {
-                        consumer.setStatus("active");
-                        consumerRepository.save(consumer);
-                        logger.info("Consumer {} resumed after wallet top-up", consumerId);
-                    }
-                });
+            // Resumes the consumer if the top-up lifts the balance above zero
+            walletLedger.applyCommitted(organizationId, consumerId, amount);
         }
     }
-    
-    private double calculatePriceForMetric(UsageRecord record, Map<String, Object> metric) {
-        // Check if it's tiered pricing
-        if (metric.containsKey("tiers")) {
-            @SuppressWarnings("unchecked")
-            List<Map<String, Object>> tiers = (List<Map<String, Object>>) metric.get("tiers");
-            
-            // Find the applicable tier based on current usage
-            // This is simplified - in production, you'd track cumulative usage
-            for (Map<String, Object> tier : tiers) {
-                @SuppressWarnings("unused") // TODO: Implement proper tiered pricing logic
-                Number from = (Number) tier.get("from");
-                @SuppressWarnings("unused") // TODO: Implement proper tiered pricing logic  
-                Number to = (Number) tier.get("to");
-                Number price = (Number) tier.get("price");
-                
-                if (price != null) {
-                    return price.doubleValue();
-                }
-            }
-        }
-        
-        // Simple flat pricing
-        if (metric.containsKey("price")) {
-            Number price = (Number) metric.get("price");
-            return price != null ? price.doubleValue() : 0.0;
-        }
-        
-        return 0.0;
-    }
 }
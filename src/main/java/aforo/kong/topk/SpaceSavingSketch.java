@@ -0,0 +1,185 @@
+package aforo.kong.topk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Space-Saving heavy-hitter sketch (Metwally et al.) with at most {@code capacity} counters.
+ * <p>
+ * Each counter's count overestimates the item's true count by at most its error, and the
+ * error of any counter is at most {@code total / capacity}. Every item whose true count
+ * exceeds {@code total / capacity} is guaranteed to be tracked. Sketches merge as in Agarwal
+ * et al., "Mergeable Summaries": an item missing from a full sketch is credited with that
+ * sketch's minimum count as both count and error, so the bounds still hold after merging.
+ * Not thread-safe.
+ */
+public final class SpaceSavingSketch {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final int capacity;
+    private final Map<String, Counter> counters = new HashMap<>();
+    private final TreeSet<Counter> byCount = new TreeSet<>(
+            Comparator.comparingLong((Counter c) -> c.count).thenComparing(c -> c.item));
+    private long total;
+
+    /**
+     * Estimated count of one item; {@code count - error} is a lower bound of its true count.
+     */
+    public record Estimate(String item, long count, long error) {
+    }
+
+    private static final class Counter {
+        private final String item;
+        private long count;
+        private long error;
+
+        private Counter(String item, long count, long error) {
+            this.item = item;
+            this.count = count;
+            this.error = error;
+        }
+    }
+
+    public SpaceSavingSketch(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    public void offer(String item, long weight) {
+        if (item == null || weight <= 0) {
+            return;
+        }
+        total += weight;
+        Counter counter = counters.get(item);
+        if (counter != null) {
+            update(counter, counter.count + weight, counter.error);
+        } else if (counters.size() < capacity) {
+            add(new Counter(item, weight, 0));
+        } else {
+            // Replace the smallest counter; the newcomer inherits its count as error
+            Counter smallest = byCount.pollFirst();
+            counters.remove(smallest.item);
+            add(new Counter(item, smallest.count + weight, smallest.count));
+        }
+    }
+
+    /**
+     * Merges {@code other} into this sketch, keeping the {@code capacity} largest counters.
+     */
+    public void merge(SpaceSavingSketch other) {
+        long thisMin = isFull() ? byCount.first().count : 0;
+        long otherMin = other.isFull() ? other.byCount.first().count : 0;
+        Set<String> items = new HashSet<>(counters.keySet());
+        items.addAll(other.counters.keySet());
+
+        List<Counter> merged = new ArrayList<>(items.size());
+        for (String item : items) {
+            Counter a = counters.get(item);
+            Counter b = other.counters.get(item);
+            long count = (a != null ? a.count : thisMin) + (b != null ? b.count : otherMin);
+            long error = (a != null ? a.error : thisMin) + (b != null ? b.error : otherMin);
+            merged.add(new Counter(item, count, error));
+        }
+        merged.sort(Comparator.comparingLong((Counter c) -> c.count).reversed().thenComparing(c -> c.item));
+
+        counters.clear();
+        byCount.clear();
+        for (int i = 0; i < Math.min(capacity, merged.size()); i++) {
+            add(merged.get(i));
+        }
+        total += other.total;
+    }
+
+    /**
+     * The {@code k} largest estimates, highest first.
+     */
+    public List<Estimate> top(int k) {
+        List<Estimate> top = new ArrayList<>(Math.min(k, counters.size()));
+        for (Counter counter : byCount.descendingSet()) {
+            if (top.size() == k) {
+                break;
+            }
+            top.add(new Estimate(counter.item, counter.count, counter.error));
+        }
+        return top;
+    }
+
+    public long total() {
+        return total;
+    }
+
+    public int size() {
+        return counters.size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + counters.size() * 24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(capacity);
+            out.writeLong(total);
+            out.writeInt(counters.size());
+            for (Counter counter : counters.values()) {
+                out.writeUTF(counter.item);
+                out.writeLong(counter.count);
+                out.writeLong(counter.error);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SpaceSavingSketch fromBytes(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown sketch format " + version);
+            }
+            SpaceSavingSketch sketch = new SpaceSavingSketch(in.readInt());
+            sketch.total = in.readLong();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                sketch.add(new Counter(in.readUTF(), in.readLong(), in.readLong()));
+            }
+            return sketch;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isFull() {
+        return counters.size() >= capacity;
+    }
+
+    private void add(Counter counter) {
+        counters.put(counter.item, counter);
+        byCount.add(counter);
+    }
+
+    private void update(Counter counter, long count, long error) {
+        byCount.remove(counter);
+        counter.count = count;
+        counter.error = error;
+        byCount.add(counter);
+    }
+}
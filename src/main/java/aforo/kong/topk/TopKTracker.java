@@ -0,0 +1,249 @@
+package aforo.kong.topk;
+
+import aforo.kong.config.TopKProperties;
+import aforo.kong.entity.UsageRecord;
+import aforo.kong.repository.TopKSketchRepository;
+import aforo.kong.repository.TopKSketchRepository.StoredSketch;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.UsageRollupRepository.Dimension;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Heaviest consumers and services per organization from daily {@link SpaceSavingSketch}es,
+ * updated at ingest.
+ * <p>
+ * Each node adds ingested records to in-memory sketches per organization, dimension and day,
+ * and merges them into usage_topk_sketch every {@code flushIntervalMs}. A query merges the
+ * stored sketches of the whole days in its range (plus what this node has not flushed yet)
+ * and counts the partial days at its edges exactly from the usage rollups. Ranges up to
+ * {@code exactMaxHours}, and days before tracking started, are counted exactly.
+ * <p>
+ * Error bounds: a sketch answer overestimates each count by at most the entry's
+ * {@code maxOverestimate}, which is at most the range's requests divided by {@code capacity};
+ * every consumer or service with more requests than that is guaranteed to be listed if it
+ * ranks within the limit. Additions not flushed when a node crashes are lost.
+ */
+@Component
+public class TopKTracker implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(TopKTracker.class);
+
+    private static final List<Dimension> DIMENSIONS = List.of(Dimension.CONSUMER_USERNAME, Dimension.SERVICE_NAME);
+
+    private final TopKSketchRepository sketchRepository;
+    private final UsageRollupRepository rollupRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final TopKProperties properties;
+
+    private final Map<SketchKey, SpaceSavingSketch> pending = new ConcurrentHashMap<>();
+
+    private final AtomicLong sketchQueries = new AtomicLong();
+    private final AtomicLong exactQueries = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private volatile Instant trackingSince;
+    private volatile boolean running;
+
+    private record SketchKey(Long organizationId, Dimension dimension, Instant day) {
+    }
+
+    /**
+     * One ranked value; {@code maxOverestimate} is 0 for exact answers.
+     */
+    public record TopKEntry(String item, long count, long maxOverestimate) {
+    }
+
+    public TopKTracker(TopKSketchRepository sketchRepository,
+                       UsageRollupRepository rollupRepository,
+                       TransactionTemplate transactionTemplate,
+                       TopKProperties properties) {
+        this.sketchRepository = sketchRepository;
+        this.rollupRepository = rollupRepository;
+        this.transactionTemplate = transactionTemplate;
+        this.properties = properties;
+    }
+
+    /**
+     * Adds the records once the current transaction commits.
+     */
+    public void recordAfterCommit(List<UsageRecord> records) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            records.forEach(this::record);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                records.forEach(TopKTracker.this::record);
+            }
+        });
+    }
+
+    private void record(UsageRecord record) {
+        Instant day = record.getTimestamp().truncatedTo(ChronoUnit.DAYS);
+        offer(new SketchKey(record.getOrganizationId(), Dimension.CONSUMER_USERNAME, day), record.getConsumerUsername());
+        offer(new SketchKey(record.getOrganizationId(), Dimension.SERVICE_NAME, day), record.getServiceName());
+    }
+
+    private void offer(SketchKey key, String item) {
+        if (item == null) {
+            return;
+        }
+        // Inside compute, so a flush cannot take the sketch away mid-update
+        pending.compute(key, (k, sketch) -> {
+            SpaceSavingSketch target = sketch != null ? sketch : new SpaceSavingSketch(properties.getCapacity());
+            target.offer(item, 1);
+            return target;
+        });
+    }
+
+    /**
+     * The {@code limit} heaviest values of the dimension in [start, end).
+     */
+    public List<TopKEntry> top(Long organizationId, Dimension dimension, Instant start, Instant end, int limit) {
+        Instant firstDay = ceilDay(start);
+        Instant tracked = trackingSince != null ? ceilDay(trackingSince) : end;
+        if (firstDay.isBefore(tracked)) {
+            firstDay = tracked;
+        }
+        Instant lastDay = end.truncatedTo(ChronoUnit.DAYS);
+        if (Duration.between(start, end).toHours() <= properties.getExactMaxHours() || !firstDay.isBefore(lastDay)) {
+            exactQueries.incrementAndGet();
+            List<TopKEntry> exact = new ArrayList<>();
+            for (Object[] row : rollupRepository.countBy(organizationId, null, dimension, start, end, limit)) {
+                exact.add(new TopKEntry(String.valueOf(row[0]), (Long) row[1], 0));
+            }
+            return exact;
+        }
+
+        sketchQueries.incrementAndGet();
+        SpaceSavingSketch merged = new SpaceSavingSketch(properties.getCapacity());
+        for (StoredSketch stored : sketchRepository.findSketches(organizationId, dimension.name(), firstDay, lastDay)) {
+            merged.merge(SpaceSavingSketch.fromBytes(stored.sketch()));
+        }
+        for (Instant day = firstDay; day.isBefore(lastDay); day = day.plus(Duration.ofDays(1))) {
+            pending.computeIfPresent(new SketchKey(organizationId, dimension, day), (k, sketch) -> {
+                merged.merge(sketch);
+                return sketch;
+            });
+        }
+        // Partial days at the edges, exactly
+        addExact(merged, organizationId, dimension, start, firstDay);
+        addExact(merged, organizationId, dimension, lastDay, end);
+
+        List<TopKEntry> top = new ArrayList<>();
+        for (SpaceSavingSketch.Estimate estimate : merged.top(limit)) {
+            top.add(new TopKEntry(estimate.item(), estimate.count(), estimate.error()));
+        }
+        return top;
+    }
+
+    private void addExact(SpaceSavingSketch sketch, Long organizationId, Dimension dimension, Instant from, Instant to) {
+        if (from.isBefore(to)) {
+            for (Object[] row : rollupRepository.countBy(organizationId, null, dimension, from, to, 0)) {
+                sketch.offer(String.valueOf(row[0]), (Long) row[1]);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${kong.analytics.top-k.flush-interval-ms:10000}")
+    public void scheduledFlush() {
+        if (running) {
+            flush();
+        }
+    }
+
+    /**
+     * Merges this node's pending additions into the stored sketches, one transaction per sketch.
+     */
+    public synchronized void flush() {
+        for (SketchKey key : new ArrayList<>(pending.keySet())) {
+            SpaceSavingSketch additions = pending.remove(key);
+            if (additions == null) {
+                continue;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> {
+                    byte[] stored = sketchRepository.lockSketch(key.organizationId(), key.dimension().name(), key.day());
+                    SpaceSavingSketch sketch = stored != null
+                            ? SpaceSavingSketch.fromBytes(stored) : new SpaceSavingSketch(properties.getCapacity());
+                    sketch.merge(additions);
+                    sketchRepository.saveSketch(key.organizationId(), key.dimension().name(), key.day(), sketch.toBytes());
+                });
+                flushes.incrementAndGet();
+            } catch (RuntimeException e) {
+                // Put the additions back for the next flush
+                pending.merge(key, additions, (current, failed) -> {
+                    current.merge(failed);
+                    return current;
+                });
+                flushFailures.incrementAndGet();
+                logger.error("Top-K sketch flush failed for org {} ({})", key.organizationId(), key.dimension(), e);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("capacity", properties.getCapacity());
+        stats.put("trackingSince", trackingSince);
+        stats.put("pendingSketches", pending.size());
+        stats.put("sketchQueries", sketchQueries.get());
+        stats.put("exactQueries", exactQueries.get());
+        stats.put("flushes", flushes.get());
+        stats.put("flushFailures", flushFailures.get());
+        return stats;
+    }
+
+    private static Instant ceilDay(Instant instant) {
+        Instant day = instant.truncatedTo(ChronoUnit.DAYS);
+        return day.equals(instant) ? day : day.plus(Duration.ofDays(1));
+    }
+
+    @Override
+    public void start() {
+        try {
+            trackingSince = sketchRepository.findOrStartTracking(Instant.now());
+        } catch (RuntimeException e) {
+            logger.error("Could not read top-K tracking start; answering exactly", e);
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        flush();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Start before the web server accepts ingest traffic, and flush after it stopped.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
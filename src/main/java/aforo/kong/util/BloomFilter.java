@@ -0,0 +1,108 @@
+package aforo.kong.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, thread-safe Bloom filter over strings.
+ *
+ * {@link #mightContain(CharSequence)} never returns false for a value that was put, so a
+ * negative answer means "definitely not seen". Bits are set with CAS, so concurrent puts
+ * never lose each other's bits. Probe positions use double hashing of two seeded 64-bit hashes.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashFunctions;
+
+    private BloomFilter(long bitCount, int hashFunctions) {
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, (bitCount + 63) >>> 6);
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words << 6;
+        this.hashFunctions = hashFunctions;
+    }
+
+    /**
+     * Sizes the filter for {@code expectedInsertions} values at the given false-positive probability.
+     */
+    public static BloomFilter create(long expectedInsertions, double fpp) {
+        if (expectedInsertions <= 0 || fpp <= 0 || fpp >= 1) {
+            throw new IllegalArgumentException("expectedInsertions must be > 0 and fpp in (0, 1)");
+        }
+        long m = (long) Math.ceil(-expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int k = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+        return new BloomFilter(Math.max(64, m), k);
+    }
+
+    public void put(CharSequence value) {
+        long h1 = hash(value, 0x9E3779B97F4A7C15L);
+        long h2 = hash(value, 0xC2B2AE3D27D4EB4FL) | 1L;
+        for (int i = 0; i < hashFunctions; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            setBit(index);
+        }
+    }
+
+    public boolean mightContain(CharSequence value) {
+        long h1 = hash(value, 0x9E3779B97F4A7C15L);
+        long h2 = hash(value, 0xC2B2AE3D27D4EB4FL) | 1L;
+        for (int i = 0; i < hashFunctions; i++) {
+            long index = Long.remainderUnsigned(h1 + i * h2, bitCount);
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Current false-positive probability, estimated from the share of bits set.
+     * Walks the whole bit array, so meant for stats rather than hot paths.
+     */
+    public double expectedFpp() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            set += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) set / bitCount, hashFunctions);
+    }
+
+    public long bitSize() {
+        return bitCount;
+    }
+
+    public int hashFunctions() {
+        return hashFunctions;
+    }
+
+    public long memoryBytes() {
+        return (long) bits.length() * Long.BYTES;
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        long current;
+        do {
+            current = bits.get(word);
+            if ((current & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, current, current | mask));
+    }
+
+    /** FNV-1a over the UTF-16 chars, finished with the murmur3 64-bit mixer. */
+    private static long hash(CharSequence value, long seed) {
+        long h = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,261 @@
+package aforo.kong.util;
+
+import aforo.kong.config.KongIngestProperties;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Hashes usage-event dedupe keys into correlation IDs.
+ *
+ * The key is encoded as UTF-8 straight into a per-thread buffer and hashed from there, so
+ * the only allocation per ID is the resulting hex string. SHA256 gives the same IDs as the
+ * original StringBuilder/getBytes implementation; MURMUR3_128 is cheaper still but produces
+ * different (shorter) IDs, so switching modes breaks deduplication against rows written
+ * before the switch. See CorrelationIdBenchmark.
+ */
+@Component
+public class CorrelationIdGenerator {
+
+    public enum Algorithm {
+        SHA256,
+        MURMUR3_128
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Algorithm algorithm;
+    private final ThreadLocal<Key> keys;
+
+    @Autowired
+    public CorrelationIdGenerator(KongIngestProperties properties) {
+        this(properties.getCorrelationIdHash());
+    }
+
+    public CorrelationIdGenerator(Algorithm algorithm) {
+        this.algorithm = algorithm;
+        this.keys = ThreadLocal.withInitial(() -> new Key(algorithm));
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Starts a new key on the calling thread. The returned builder is reused by the next
+     * call on the same thread, so finish it before starting another.
+     */
+    public Key begin() {
+        Key key = keys.get();
+        key.length = 0;
+        return key;
+    }
+
+    /** Shorthand for a key made of a single value. */
+    public String generate(CharSequence value) {
+        return begin().append(value).finish();
+    }
+
+    /**
+     * Reusable UTF-8 key buffer. The append methods mirror {@link StringBuilder}, including
+     * writing "null" for null values, so keys hash exactly as their string form would.
+     */
+    public static final class Key {
+
+        private final Algorithm algorithm;
+        private final MessageDigest digest;
+        private final byte[] hash = new byte[32];
+        private final char[] hex = new char[64];
+        private byte[] buffer = new byte[256];
+        private int length;
+
+        private Key(Algorithm algorithm) {
+            this.algorithm = algorithm;
+            try {
+                // SHA-256 is mandatory on every Java platform
+                this.digest = algorithm == Algorithm.SHA256 ? MessageDigest.getInstance("SHA-256") : null;
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 not available", e);
+            }
+        }
+
+        public Key append(CharSequence value) {
+            if (value == null) {
+                return append("null");
+            }
+            int n = value.length();
+            ensureCapacity(n * 3);
+            for (int i = 0; i < n; i++) {
+                char c = value.charAt(i);
+                if (c < 0x80) {
+                    buffer[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    buffer[length++] = (byte) (0xC0 | (c >> 6));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, value.charAt(++i));
+                    buffer[length++] = (byte) (0xF0 | (cp >> 18));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (cp & 0x3F));
+                } else if (Character.isSurrogate(c)) {
+                    // Unpaired surrogate, replaced like String.getBytes(UTF_8) does
+                    buffer[length++] = '?';
+                } else {
+                    buffer[length++] = (byte) (0xE0 | (c >> 12));
+                    buffer[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                    buffer[length++] = (byte) (0x80 | (c & 0x3F));
+                }
+            }
+            return this;
+        }
+
+        public Key append(char c) {
+            if (c < 0x80) {
+                ensureCapacity(1);
+                buffer[length++] = (byte) c;
+                return this;
+            }
+            return append(String.valueOf(c));
+        }
+
+        public Key append(Long value) {
+            return value == null ? append("null") : append(value.longValue());
+        }
+
+        public Key append(long value) {
+            if (value == Long.MIN_VALUE) {
+                return append("-9223372036854775808");
+            }
+            ensureCapacity(20);
+            if (value < 0) {
+                buffer[length++] = '-';
+                value = -value;
+            }
+            int start = length;
+            do {
+                buffer[length++] = (byte) ('0' + (value % 10));
+                value /= 10;
+            } while (value != 0);
+            // Digits were written least significant first
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte t = buffer[i];
+                buffer[i] = buffer[j];
+                buffer[j] = t;
+            }
+            return this;
+        }
+
+        /** Hashes the key and returns the lowercase hex correlation ID. */
+        public String finish() {
+            int hashLength;
+            if (algorithm == Algorithm.SHA256) {
+                digest.update(buffer, 0, length);
+                try {
+                    hashLength = digest.digest(hash, 0, hash.length);
+                } catch (DigestException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                murmur3x64_128(buffer, length, hash);
+                hashLength = 16;
+            }
+            for (int i = 0; i < hashLength; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex, 0, hashLength * 2);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+    }
+
+    /** MurmurHash3 x64 128-bit, seed 0, written big-endian (h1 then h2) into {@code out}. */
+    static void murmur3x64_128(byte[] data, int length, byte[] out) {
+        final long c1 = 0x87c37b91114253d5L;
+        final long c2 = 0x4cf5ad432745937fL;
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length >>> 4;
+
+        for (int i = 0; i < blocks; i++) {
+            int p = i << 4;
+            long k1 = getLongLE(data, p);
+            long k2 = getLongLE(data, p + 8);
+
+            k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            h1 = Long.rotateLeft(h1, 27); h1 += h2; h1 = h1 * 5 + 0x52dce729;
+            k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31); h2 += h1; h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        long k1 = 0;
+        long k2 = 0;
+        int tail = blocks << 4;
+        switch (length & 15) {
+            case 15: k2 ^= (long) (data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= (long) (data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= (long) (data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= (long) (data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= (long) (data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= (long) (data[tail + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= data[tail + 8] & 0xff;
+                k2 *= c2; k2 = Long.rotateLeft(k2, 33); k2 *= c1; h2 ^= k2;
+            case 8: k1 ^= (long) (data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= (long) (data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= (long) (data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= (long) (data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= (long) (data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= (long) (data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= (long) (data[tail + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= data[tail] & 0xff;
+                k1 *= c1; k1 = Long.rotateLeft(k1, 31); k1 *= c2; h1 ^= k1;
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+
+        for (int i = 0; i < 8; i++) {
+            out[i] = (byte) (h1 >>> (56 - 8 * i));
+            out[8 + i] = (byte) (h2 >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLongLE(byte[] b, int p) {
+        return (b[p] & 0xffL)
+                | (b[p + 1] & 0xffL) << 8
+                | (b[p + 2] & 0xffL) << 16
+                | (b[p + 3] & 0xffL) << 24
+                | (b[p + 4] & 0xffL) << 32
+                | (b[p + 5] & 0xffL) << 40
+                | (b[p + 6] & 0xffL) << 48
+                | (b[p + 7] & 0xffL) << 56;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,82 @@
+package aforo.kong.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free token bucket, split into stripes so concurrent callers rarely CAS the same word.
+ *
+ * Each stripe is a GCRA (generic cell rate algorithm) cell: a single "theoretical arrival time"
+ * in nanoseconds, equivalent to a token bucket of {@code burst / stripes} tokens refilled at
+ * {@code rate / stripes} per second. A caller starts at the stripe picked by its thread and moves
+ * on to the others only when that one is empty, so the whole bucket admits {@code rate} per second
+ * with bursts of up to {@code burst}. Stripes sit on separate cache lines.
+ */
+public final class StripedTokenBucket {
+
+    /** Longs per 64-byte cache line */
+    private static final int PAD = 8;
+
+    private final AtomicLongArray arrivalTimes;
+    private final int stripeMask;
+    private final long intervalNanos;
+    private final long[] toleranceNanos;
+
+    /**
+     * @param permitsPerSecond sustained rate
+     * @param burst            permits available at once after an idle period
+     * @param maxStripes       upper bound on stripes; fewer are used when the burst is small
+     */
+    public StripedTokenBucket(double permitsPerSecond, int burst, int maxStripes) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive");
+        }
+        int stripes = Integer.highestOneBit(Math.max(1, Math.min(maxStripes, burst)));
+        this.stripeMask = stripes - 1;
+        this.intervalNanos = Math.max(1L, (long) (stripes * 1_000_000_000d / permitsPerSecond));
+        this.toleranceNanos = new long[stripes];
+        this.arrivalTimes = new AtomicLongArray(stripes * PAD);
+        for (int i = 0; i < stripes; i++) {
+            // Spread the burst exactly; the first stripes take the remainder
+            toleranceNanos[i] = intervalNanos * (burst / stripes + (i < burst % stripes ? 1 : 0));
+            arrivalTimes.set(i * PAD, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Takes one permit if any stripe has one.
+     *
+     * @return 0 if a permit was taken, otherwise the nanoseconds until one becomes available
+     */
+    public long tryAcquire() {
+        long now = System.nanoTime();
+        int first = (int) mix(Thread.currentThread().threadId());
+        long minWait = Long.MAX_VALUE;
+        for (int i = 0; i <= stripeMask; i++) {
+            int stripe = (first + i) & stripeMask;
+            int index = stripe * PAD;
+            while (true) {
+                long arrival = arrivalTimes.get(index);
+                long next = Math.max(arrival, now) + intervalNanos;
+                long wait = next - now - toleranceNanos[stripe];
+                if (wait > 0) {
+                    minWait = Math.min(minWait, wait);
+                    break;
+                }
+                if (arrivalTimes.compareAndSet(index, arrival, next)) {
+                    return 0;
+                }
+            }
+        }
+        return minWait;
+    }
+
+    public int stripes() {
+        return stripeMask + 1;
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        return x ^ (x >>> 33);
+    }
+}
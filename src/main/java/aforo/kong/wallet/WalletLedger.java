@@ -0,0 +1,309 @@
+package aforo.kong.wallet;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.KongConsumerRepository;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.repository.WalletLedgerRepository.WalletDelta;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory prepaid wallet balances with write-behind to kong_consumer.
+ * <p>
+ * A debit is two atomic adds on the consumer's account: one to the balance the ledger
+ * decides on, one to the delta not yet written. A flusher thread writes the accumulated
+ * deltas of all dirty accounts with one batched UPDATE every {@code flushIntervalMs}, or
+ * sooner once {@code flushThreshold} accounts are dirty, so a busy consumer costs one row
+ * update per flush instead of one per API call.
+ * <p>
+ * Suspension and resume happen as soon as the in-memory balance crosses zero. Balances are
+ * loaded on first use from the database, including debits still in wallet_debit_journal;
+ * the journal is folded into the balances on startup and on every flush. Debits that only
+ * exist in memory are written on shutdown; a crash loses at most one flush interval of them.
+ */
+@Component
+public class WalletLedger implements SmartLifecycle {
+
+    private static final Logger logger = LoggerFactory.getLogger(WalletLedger.class);
+
+    private static final double MICROS = 1_000_000.0;
+
+    private final WalletLedgerRepository ledgerRepository;
+    private final KongConsumerRepository consumerRepository;
+    private final RatingProperties.Wallet config;
+
+    private final Map<AccountKey, Account> accounts = new ConcurrentHashMap<>();
+    private final Set<AccountKey> dirty = ConcurrentHashMap.newKeySet();
+    private final Object flushSignal = new Object();
+
+    private final AtomicLong debits = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedDeltas = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private final AtomicLong suspensions = new AtomicLong();
+    private final AtomicLong resumes = new AtomicLong();
+    private volatile long lastFlushMillis;
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    private record AccountKey(Long organizationId, String consumerId) {
+    }
+
+    private static final class Account {
+        /** Null when the consumer has no wallet; debits are then ignored */
+        private final AtomicLong balanceMicros;
+        private final AtomicLong pendingMicros = new AtomicLong();
+        private volatile long loadedAt = System.nanoTime();
+
+        private Account(Double balance) {
+            this.balanceMicros = balance != null ? new AtomicLong(toMicros(balance)) : null;
+        }
+    }
+
+    public WalletLedger(WalletLedgerRepository ledgerRepository,
+                        KongConsumerRepository consumerRepository,
+                        RatingProperties properties) {
+        this.ledgerRepository = ledgerRepository;
+        this.consumerRepository = consumerRepository;
+        this.config = properties.getWallet();
+    }
+
+    /**
+     * Debits the consumer's wallet in memory; the database is updated by the next flush.
+     * Does nothing if the consumer has no wallet.
+     */
+    public void debit(Long organizationId, String consumerId, double amount) {
+        AccountKey key = new AccountKey(organizationId, consumerId);
+        Account account = account(key);
+        if (account == null || account.balanceMicros == null || amount == 0) {
+            return;
+        }
+        long micros = toMicros(amount);
+        long balance = account.balanceMicros.addAndGet(-micros);
+        account.pendingMicros.addAndGet(-micros);
+        dirty.add(key);
+        debits.incrementAndGet();
+        onBalanceChange(key, balance + micros, balance);
+        if (dirty.size() >= config.getFlushThreshold()) {
+            synchronized (flushSignal) {
+                flushSignal.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Records a balance change that is already in the database (a journaled debit or a
+     * top-up written directly), so suspension and resume follow it.
+     */
+    public void applyCommitted(Long organizationId, String consumerId, double delta) {
+        AccountKey key = new AccountKey(organizationId, consumerId);
+        Account existing = accounts.get(key);
+        if (existing == null) {
+            // A fresh load already includes the change
+            Account loaded = account(key);
+            if (loaded != null && loaded.balanceMicros != null) {
+                long balance = loaded.balanceMicros.get();
+                onBalanceChange(key, balance - toMicros(delta), balance);
+            }
+            return;
+        }
+        if (existing.balanceMicros == null) {
+            return;
+        }
+        long micros = toMicros(delta);
+        long balance = existing.balanceMicros.addAndGet(micros);
+        onBalanceChange(key, balance - micros, balance);
+    }
+
+    /**
+     * Balance as the ledger sees it, or null if the consumer has no wallet.
+     */
+    public Double getBalance(Long organizationId, String consumerId) {
+        Account account = account(new AccountKey(organizationId, consumerId));
+        return account != null && account.balanceMicros != null ? account.balanceMicros.get() / MICROS : null;
+    }
+
+    /**
+     * Writes all pending deltas and folds the debit journal into the balances.
+     */
+    public synchronized void flush() {
+        List<WalletDelta> deltas = new ArrayList<>();
+        List<Account> drained = new ArrayList<>();
+        for (AccountKey key : dirty) {
+            dirty.remove(key);
+            Account account = accounts.get(key);
+            if (account == null) {
+                continue;
+            }
+            long pending = account.pendingMicros.getAndSet(0);
+            if (pending != 0) {
+                deltas.add(new WalletDelta(key.organizationId(), key.consumerId(), pending / MICROS));
+                drained.add(account);
+            }
+        }
+        long started = System.nanoTime();
+        try {
+            ledgerRepository.applyDeltas(deltas);
+            flushes.incrementAndGet();
+            flushedDeltas.addAndGet(deltas.size());
+        } catch (RuntimeException e) {
+            // Put the deltas back so the next flush retries them
+            for (int i = 0; i < deltas.size(); i++) {
+                WalletDelta delta = deltas.get(i);
+                drained.get(i).pendingMicros.addAndGet(toMicros(delta.delta()));
+                dirty.add(new AccountKey(delta.organizationId(), delta.consumerId()));
+            }
+            flushFailures.incrementAndGet();
+            logger.error("Wallet ledger flush of {} accounts failed", deltas.size(), e);
+        }
+        try {
+            ledgerRepository.foldJournal();
+        } catch (RuntimeException e) {
+            // Journal rows stay in place and are part of every balance read until folded
+            logger.error("Folding the wallet debit journal failed", e);
+        }
+        lastFlushMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        resyncIdleAccounts();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("running", running);
+        stats.put("accounts", accounts.size());
+        stats.put("dirtyAccounts", dirty.size());
+        stats.put("debits", debits.get());
+        stats.put("flushes", flushes.get());
+        stats.put("flushedDeltas", flushedDeltas.get());
+        stats.put("flushFailures", flushFailures.get());
+        stats.put("lastFlushMs", lastFlushMillis);
+        stats.put("suspensions", suspensions.get());
+        stats.put("resumes", resumes.get());
+        return stats;
+    }
+
+    private Account account(AccountKey key) {
+        Account account = accounts.get(key);
+        if (account != null) {
+            return account;
+        }
+        Double balance = ledgerRepository.findEffectiveBalance(key.organizationId(), key.consumerId());
+        return accounts.computeIfAbsent(key, k -> new Account(balance));
+    }
+
+    private void onBalanceChange(AccountKey key, long before, long after) {
+        if (before > 0 && after <= 0) {
+            consumerRepository.updateStatus(key.consumerId(), "suspended", key.organizationId());
+            suspensions.incrementAndGet();
+            logger.warn("Consumer {} suspended due to insufficient wallet balance", key.consumerId());
+        } else if (before <= 0 && after > 0 && ledgerRepository.resume(key.organizationId(), key.consumerId()) > 0) {
+            resumes.incrementAndGet();
+            logger.info("Consumer {} resumed after wallet top-up", key.consumerId());
+        }
+    }
+
+    /**
+     * Reloads accounts without pending deltas once they are older than {@code resyncSeconds},
+     * to pick up balance changes made outside the ledger. The swap only happens if no debit
+     * touched the account meanwhile.
+     */
+    private void resyncIdleAccounts() {
+        long maxAge = TimeUnit.SECONDS.toNanos(config.getResyncSeconds());
+        long now = System.nanoTime();
+        accounts.forEach((key, account) -> {
+            if (now - account.loadedAt < maxAge || account.pendingMicros.get() != 0 || dirty.contains(key)) {
+                return;
+            }
+            long seen = account.balanceMicros != null ? account.balanceMicros.get() : 0;
+            try {
+                Double balance = ledgerRepository.findEffectiveBalance(key.organizationId(), key.consumerId());
+                if (account.balanceMicros == null || balance == null) {
+                    accounts.remove(key, account);
+                } else {
+                    account.balanceMicros.compareAndSet(seen, toMicros(balance));
+                    account.loadedAt = now;
+                }
+            } catch (RuntimeException e) {
+                logger.debug("Wallet resync failed for consumer {}", key.consumerId(), e);
+            }
+        });
+    }
+
+    private void flushLoop() {
+        while (running) {
+            synchronized (flushSignal) {
+                try {
+                    flushSignal.wait(config.getFlushIntervalMs());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            try {
+                flush();
+            } catch (Exception e) {
+                logger.error("Wallet ledger flush failed", e);
+            }
+        }
+    }
+
+    private static long toMicros(double amount) {
+        return Math.round(amount * MICROS);
+    }
+
+    @Override
+    public void start() {
+        try {
+            int folded = ledgerRepository.foldJournal();
+            if (folded > 0) {
+                logger.info("Recovered journaled wallet debits of {} consumers", folded);
+            }
+        } catch (RuntimeException e) {
+            logger.error("Folding the wallet debit journal failed; balances are still read with it", e);
+        }
+        running = true;
+        flusher = new Thread(this::flushLoop, "wallet-ledger-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public void stop() {
+        running = false;
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher = null;
+        }
+        flush();
+        logger.info("Wallet ledger flushed on shutdown");
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stop after the rating engine and the web server, so their last debits are flushed.
+     */
+    @Override
+    public int getPhase() {
+        return SmartLifecycle.DEFAULT_PHASE - 4096;
+    }
+}
@@ -24,6 +24,9 @@ public class HmacFilter extends OncePerRequestFilter {
     @Value("${aforo.hmac.secret}")
     private String hmacSecret;
     
+    /** Request attribute set once the webhook signature has been verified */
+    public static final String VERIFIED_ATTRIBUTE = HmacFilter.class.getName() + ".verified";
+    
     private static final String HMAC_HEADER = "X-Aforo-Signature";
     private static final String HMAC_ALGORITHM = "HmacSHA256";
     
@@ -75,6 +78,7 @@ public class HmacFilter extends OncePerRequestFilter {
         }
         
         log.debug("HMAC verification successful");
+        cachedRequest.setAttribute(VERIFIED_ATTRIBUTE, Boolean.TRUE);
         filterChain.doFilter(cachedRequest, response);
     }
     
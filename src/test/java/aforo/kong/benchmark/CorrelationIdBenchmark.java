@@ -0,0 +1,99 @@
+package aforo.kong.benchmark;
+
+import aforo.kong.util.CorrelationIdGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Correlation ID cost per event: the original implementation (new MessageDigest, StringBuilder
+ * key, Integer.toHexString) against {@link CorrelationIdGenerator} in both hash modes, for the
+ * request.id key and for the composite fallback key. Run with -prof gc to see allocations.
+ *
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -cp "target/test-classes:target/classes:$(cat target/cp.txt)" org.openjdk.jmh.Main CorrelationIdBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class CorrelationIdBenchmark {
+
+    @Param({"SHA256", "MURMUR3_128"})
+    public CorrelationIdGenerator.Algorithm algorithm;
+
+    private CorrelationIdGenerator generator;
+    private String requestId;
+    private long startedAt;
+    private String consumerId;
+    private String routeId;
+
+    @Setup
+    public void setUp() {
+        generator = new CorrelationIdGenerator(algorithm);
+        requestId = UUID.randomUUID().toString().replace("-", "");
+        startedAt = System.currentTimeMillis();
+        consumerId = UUID.randomUUID().toString();
+        routeId = UUID.randomUUID().toString();
+    }
+
+    @Benchmark
+    public String legacyRequestId() throws Exception {
+        return legacy(requestId);
+    }
+
+    @Benchmark
+    public String legacyCompositeKey() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        sb.append(startedAt).append("|").append(consumerId).append("|").append(routeId)
+                .append("|").append("GET").append("|").append("/v1/orders/42");
+        return legacy(sb.toString());
+    }
+
+    @Benchmark
+    public String generatorRequestId() {
+        return generator.generate(requestId);
+    }
+
+    @Benchmark
+    public String generatorCompositeKey() {
+        return generator.begin().append(startedAt).append('|').append(consumerId).append('|').append(routeId)
+                .append('|').append("GET").append('|').append("/v1/orders/42").finish();
+    }
+
+    private static String legacy(String uniqueString) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hash = digest.digest(uniqueString.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hash) {
+            String hex = Integer.toHexString(0xff & b);
+            if (hex.length() == 1) hexString.append('0');
+            hexString.append(hex);
+        }
+        return hexString.toString();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(CorrelationIdBenchmark.class.getSimpleName()).build()).run();
+    }
+}
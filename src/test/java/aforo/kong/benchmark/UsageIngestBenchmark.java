@@ -0,0 +1,154 @@
+package aforo.kong.benchmark;
+
+import aforo.kong.entity.KongUsageRecord;
+import aforo.kong.repository.KongUsageRecordBatchRepository;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kong usage ingest throughput in events/s: the original per-event path (lookup + insert per
+ * event) against {@link KongUsageRecordBatchRepository}, one batch of fresh events per operation.
+ * Needs a PostgreSQL; it works in a scratch schema, which is dropped afterwards.
+ *
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ * java -Dbenchmark.jdbc.url=jdbc:postgresql://localhost:5432/postgres \
+ *   -cp "target/test-classes:target/classes:$(cat target/cp.txt)" aforo.kong.benchmark.UsageIngestBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(UsageIngestBenchmark.BATCH_SIZE)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UsageIngestBenchmark {
+
+    static final int BATCH_SIZE = 1000;
+    private static final long ORG_ID = 1L;
+
+    @Param({"PER_EVENT", "SET_BASED"})
+    public String path;
+
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private KongUsageRecordBatchRepository repository;
+    private List<KongUsageRecord> batch;
+
+    @Setup(Level.Trial)
+    public void createSchema() {
+        dataSource = new SingleConnectionDataSource(
+                System.getProperty("benchmark.jdbc.url", "jdbc:postgresql://localhost:5432/postgres"),
+                System.getProperty("benchmark.jdbc.user", "postgres"),
+                System.getProperty("benchmark.jdbc.password", ""),
+                true);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS kong_ingest_bench CASCADE");
+        jdbcTemplate.execute("CREATE SCHEMA kong_ingest_bench");
+        jdbcTemplate.execute("SET search_path TO kong_ingest_bench");
+        jdbcTemplate.execute("CREATE TABLE kong_usage_record ("
+                + "id BIGSERIAL, organization_id BIGINT NOT NULL, ts TIMESTAMP NOT NULL, "
+                + "kong_request_id VARCHAR(255), correlation_id VARCHAR(255) NOT NULL, "
+                + "kong_service_id VARCHAR(255), kong_route_id VARCHAR(255), kong_consumer_id VARCHAR(255), "
+                + "http_method VARCHAR(20), path VARCHAR(2000), status INTEGER, latency_ms INTEGER, "
+                + "req_size BIGINT, resp_size BIGINT, aforo_product_id BIGINT, aforo_endpoint_id BIGINT, "
+                + "aforo_customer_id BIGINT, raw_payload TEXT, processed BOOLEAN DEFAULT false, "
+                + "created_at TIMESTAMP DEFAULT CURRENT_TIMESTAMP, "
+                + "PRIMARY KEY (id, organization_id, ts), "
+                + "CONSTRAINT uk_kong_usage_record_org_correlation UNIQUE (organization_id, correlation_id, ts)) "
+                + "PARTITION BY RANGE (ts)");
+        jdbcTemplate.execute("CREATE TABLE kong_usage_record_default PARTITION OF kong_usage_record DEFAULT");
+        repository = new KongUsageRecordBatchRepository(jdbcTemplate);
+    }
+
+    @Setup(Level.Invocation)
+    public void nextBatch() {
+        batch = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            KongUsageRecord r = new KongUsageRecord();
+            r.setOrganizationId(ORG_ID);
+            r.setTimestamp(Instant.now());
+            r.setKongRequestId(UUID.randomUUID().toString());
+            r.setCorrelationId(UUID.randomUUID().toString());
+            r.setKongServiceId("service-" + (i % 10));
+            r.setKongRouteId("route-" + (i % 50));
+            r.setKongConsumerId("consumer-" + (i % 200));
+            r.setHttpMethod("GET");
+            r.setPath("/v1/orders/" + i);
+            r.setStatus(200);
+            r.setLatencyMs(12);
+            r.setRequestSize(256L);
+            r.setResponseSize(1024L);
+            r.setRawPayload("{\"request\":{\"id\":\"" + r.getKongRequestId() + "\"}}");
+            r.setProcessed(false);
+            r.setCreatedAt(Instant.now());
+            batch.add(r);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void dropSchema() {
+        jdbcTemplate.execute("DROP SCHEMA IF EXISTS kong_ingest_bench CASCADE");
+        dataSource.destroy();
+    }
+
+    @Benchmark
+    public int ingest() {
+        if ("SET_BASED".equals(path)) {
+            return repository.insertIgnoringDuplicates(batch);
+        }
+        int inserted = 0;
+        for (KongUsageRecord record : batch) {
+            inserted += insertPerEvent(record);
+        }
+        return inserted;
+    }
+
+    private int insertPerEvent(KongUsageRecord r) {
+        Integer existing = jdbcTemplate.queryForObject(
+                "SELECT COUNT(*) FROM kong_usage_record WHERE organization_id = ? AND correlation_id = ?",
+                Integer.class, r.getOrganizationId(), r.getCorrelationId());
+        if (existing != null && existing > 0) {
+            return 0;
+        }
+        return jdbcTemplate.update("INSERT INTO kong_usage_record (organization_id, ts, kong_request_id, correlation_id, "
+                        + "kong_service_id, kong_route_id, kong_consumer_id, http_method, path, status, latency_ms, "
+                        + "req_size, resp_size, raw_payload, processed, created_at) "
+                        + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                r.getOrganizationId(), Timestamp.from(r.getTimestamp()), r.getKongRequestId(), r.getCorrelationId(),
+                r.getKongServiceId(), r.getKongRouteId(), r.getKongConsumerId(), r.getHttpMethod(), r.getPath(),
+                r.getStatus(), r.getLatencyMs(), r.getRequestSize(), r.getResponseSize(), r.getRawPayload(),
+                r.getProcessed(), Timestamp.from(r.getCreatedAt()));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(UsageIngestBenchmark.class.getSimpleName())
+                .jvmArgsAppend("-Dbenchmark.jdbc.url=" + System.getProperty("benchmark.jdbc.url",
+                        "jdbc:postgresql://localhost:5432/postgres"))
+                .build()).run();
+    }
+}
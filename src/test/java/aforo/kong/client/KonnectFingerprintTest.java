@@ -0,0 +1,77 @@
+package aforo.kong.client;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class KonnectFingerprintTest {
+
+    @Test
+    void ignoresListOrderAndUnsyncedFields() {
+        Map<String, Object> route = route(List.of("GET", "POST"), List.of("b", "a"));
+        Map<String, Object> reordered = route(List.of("POST", "GET"), List.of("a", "b"));
+        reordered.put("updated_at", 1700000000L);
+        reordered.put("strip_path", true);
+
+        assertEquals(KonnectFingerprint.route(route), KonnectFingerprint.route(reordered));
+        assertEquals(64, KonnectFingerprint.route(route).length());
+    }
+
+    @Test
+    void detectsChangedFields() {
+        Map<String, Object> route = route(List.of("GET"), List.of());
+        Map<String, Object> renamed = route(List.of("GET"), List.of());
+        renamed.put("name", "orders-v2");
+        Map<String, Object> moved = route(List.of("GET"), List.of());
+        moved.put("service_id", "svc-2");
+
+        assertNotEquals(KonnectFingerprint.route(route), KonnectFingerprint.route(renamed));
+        assertNotEquals(KonnectFingerprint.route(route), KonnectFingerprint.route(moved));
+    }
+
+    @Test
+    void valuesCannotRunIntoTheNextField() {
+        Map<String, Object> service = service("ab", "c");
+        Map<String, Object> shifted = service("a", "bc");
+
+        assertNotEquals(KonnectFingerprint.service(service), KonnectFingerprint.service(shifted));
+    }
+
+    @Test
+    void missingListEqualsEmptyList() {
+        Map<String, Object> service = service("orders", "orders.internal");
+        Map<String, Object> untagged = service("orders", "orders.internal");
+        untagged.put("tags", List.of());
+        service.remove("tags");
+
+        assertEquals(KonnectFingerprint.service(service), KonnectFingerprint.service(untagged));
+    }
+
+    private static Map<String, Object> route(List<String> methods, List<String> tags) {
+        Map<String, Object> route = new HashMap<>();
+        route.put("id", "rt-1");
+        route.put("service_id", "svc-1");
+        route.put("name", "orders");
+        route.put("methods", methods);
+        route.put("paths", List.of("/orders"));
+        route.put("protocols", List.of("http", "https"));
+        route.put("tags", tags);
+        return route;
+    }
+
+    private static Map<String, Object> service(String name, String host) {
+        Map<String, Object> service = new HashMap<>();
+        service.put("id", "svc-1");
+        service.put("name", name);
+        service.put("host", host);
+        service.put("port", 443);
+        service.put("protocol", "https");
+        service.put("tags", List.of("billing"));
+        return service;
+    }
+}
@@ -0,0 +1,127 @@
+package aforo.kong.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class KonnectPageIteratorTest {
+
+    private static final String SERVICES = "https://konnect.test/v2/control-planes/cp-1/core-entities/services";
+
+    private MockRestServiceServer konnect;
+    private KonnectWebClient client;
+
+    @BeforeEach
+    void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        konnect = MockRestServiceServer.bindTo(restTemplate).build();
+        client = new KonnectWebClient(restTemplate, new ObjectMapper());
+    }
+
+    @Test
+    void walksEveryPageUntilKonnectStopsReturningAnOffset() {
+        expectPage(SERVICES + "?size=2", page("{\"id\":\"s1\"},{\"id\":\"s2\"}", "b2Zmc2V0+/2"));
+        // The opaque offset is sent fully encoded
+        expectPage(SERVICES + "?size=2&offset=b2Zmc2V0%2B%2F2", page("{\"id\":\"s3\"}", null));
+
+        try (KonnectPageIterator pages = client.streamServices("https://konnect.test", "cp-1", "token", 2)) {
+            assertEquals(List.of("s1", "s2"), ids(pages.next()));
+            assertEquals(List.of("s3"), ids(pages.next()));
+            assertFalse(pages.hasNext());
+            assertEquals(2, pages.pages());
+        }
+        konnect.verify();
+    }
+
+    @Test
+    void emptyPageEndsTheWalkEvenWithAnOffset() {
+        expectPage(SERVICES + "?size=2", page("{\"id\":\"s1\"}", "more"));
+        expectPage(SERVICES + "?size=2&offset=more", page("", "again"));
+
+        try (KonnectPageIterator pages = client.streamServices("https://konnect.test", "cp-1", "token", 2)) {
+            assertEquals(List.of("s1"), ids(pages.next()));
+            assertFalse(pages.hasNext());
+            assertEquals(2, pages.pages());
+        }
+        konnect.verify();
+    }
+
+    @Test
+    void emptyListHasNoPages() {
+        expectPage(SERVICES + "?size=2", page("", null));
+
+        try (KonnectPageIterator pages = client.streamServices("https://konnect.test", "cp-1", "token", 2)) {
+            assertFalse(pages.hasNext());
+        }
+        konnect.verify();
+    }
+
+    @Test
+    void nextPageIsRequestedBeforeTheCallerAsksForIt() throws InterruptedException {
+        CountDownLatch secondRequested = new CountDownLatch(1);
+        KonnectPageIterator pages = new KonnectPageIterator(offset -> {
+            if (offset == null) {
+                return new KonnectWebClient.EntityPage(List.of(Map.of("id", "s1")), "2");
+            }
+            secondRequested.countDown();
+            return new KonnectWebClient.EntityPage(List.of(Map.of("id", "s2")), null);
+        });
+
+        assertEquals(List.of("s1"), ids(pages.next()));
+        // Still working on the first page; the second is already on its way
+        assertTrue(secondRequested.await(5, TimeUnit.SECONDS));
+        assertEquals(List.of("s2"), ids(pages.next()));
+        assertFalse(pages.hasNext());
+    }
+
+    @Test
+    void failedPageIsThrownInsteadOfEndingTheWalk() {
+        expectPage(SERVICES + "?size=2", page("{\"id\":\"s1\"}", "2"));
+        konnect.expect(requestTo(SERVICES + "?size=2&offset=2")).andRespond(withStatus(HttpStatus.BAD_GATEWAY));
+
+        try (KonnectPageIterator pages = client.streamServices("https://konnect.test", "cp-1", "token", 2)) {
+            pages.next();
+            assertThrows(HttpServerErrorException.class, pages::hasNext);
+        }
+    }
+
+    @Test
+    void newestFirstAsksKonnectToSortByUpdatedAt() {
+        expectPage(SERVICES + "?size=2&sort_by=updated_at&sort_desc=true", page("", null));
+
+        try (KonnectPageIterator pages = client.streamServices("https://konnect.test", "cp-1", "token", 2, true)) {
+            assertFalse(pages.hasNext());
+        }
+        konnect.verify();
+    }
+
+    private void expectPage(String url, String body) {
+        konnect.expect(requestTo(url)).andRespond(withSuccess(body, MediaType.APPLICATION_JSON));
+    }
+
+    private static String page(String entities, String offset) {
+        return "{\"data\":[" + entities + "],\"offset\":" + (offset != null ? "\"" + offset + "\"" : "null") + "}";
+    }
+
+    private static List<Object> ids(List<Map<String, Object>> page) {
+        return page.stream().map(entity -> entity.get("id")).toList();
+    }
+}
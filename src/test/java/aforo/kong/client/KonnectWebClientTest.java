@@ -0,0 +1,67 @@
+package aforo.kong.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.header;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.headerDoesNotExist;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class KonnectWebClientTest {
+
+    private static final String PRODUCTS = "https://konnect.test/v2/api-products";
+
+    private MockRestServiceServer konnect;
+    private KonnectWebClient client;
+
+    @BeforeEach
+    void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        konnect = MockRestServiceServer.bindTo(restTemplate).build();
+        client = new KonnectWebClient(restTemplate, new ObjectMapper());
+    }
+
+    @Test
+    void notModifiedProductListIsReportedUnchanged() {
+        konnect.expect(requestTo(PRODUCTS)).andExpect(header(HttpHeaders.IF_NONE_MATCH, "\"v1\""))
+                .andRespond(withStatus(HttpStatus.NOT_MODIFIED));
+
+        KonnectWebClient.ConditionalList products =
+                client.listApiProductsIfModified("https://konnect.test", "token", "\"v1\"");
+
+        assertFalse(products.modified());
+        assertEquals(List.of(), products.data());
+        assertEquals("\"v1\"", products.etag());
+        konnect.verify();
+    }
+
+    @Test
+    void changedProductListComesWithItsNewEtag() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.setETag("\"v2\"");
+        konnect.expect(requestTo(PRODUCTS)).andExpect(headerDoesNotExist(HttpHeaders.IF_NONE_MATCH))
+                .andRespond(withSuccess("{\"data\":[{\"id\":\"p1\",\"name\":\"Orders\"}]}", MediaType.APPLICATION_JSON)
+                        .headers(headers));
+
+        KonnectWebClient.ConditionalList products =
+                client.listApiProductsIfModified("https://konnect.test", "token", null);
+
+        assertTrue(products.modified());
+        assertEquals("p1", products.data().get(0).get("id"));
+        assertEquals("\"v2\"", products.etag());
+        konnect.verify();
+    }
+}
@@ -0,0 +1,159 @@
+package aforo.kong.controller;
+
+import aforo.kong.config.IngestLimitProperties;
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.dto.kong.KongIngestResultDTO;
+import aforo.kong.ingest.IngestAdmissionControl;
+import aforo.kong.ingest.IngestAdmissionInterceptor;
+import aforo.kong.ingest.KongUsageIngestQueue;
+import aforo.kong.service.KongRuntimeService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class KongRuntimeControllerTest {
+
+    private static final String SECRET = "test-secret";
+    private static final String BULK = "/api/integrations/kong/ingest/bulk";
+    private static final String NDJSON = "{\"request\":{\"id\":\"r-1\"}}\n{\"request\":{\"id\":\"r-2\"}}\n";
+
+    private final KongRuntimeService runtimeService = mock(KongRuntimeService.class);
+    private final KongUsageIngestQueue usageIngestQueue = mock(KongUsageIngestQueue.class);
+    private final IngestLimitProperties limits = new IngestLimitProperties();
+    // What the service read from each request body
+    private final List<String> bodies = new ArrayList<>();
+    private MockMvc mockMvc;
+
+    @BeforeEach
+    void setUp() {
+        limits.getDefaults().setRequestsPerSecond(0.001);
+        limits.getDefaults().setBurst(3);
+        limits.setStripes(1);
+        IngestAdmissionControl admissionControl = new IngestAdmissionControl(limits);
+        KongIngestProperties ingestProperties = new KongIngestProperties();
+        when(runtimeService.ingestUsageNdjson(eq(27L), any())).thenAnswer(invocation -> {
+            try (InputStream in = invocation.getArgument(1)) {
+                bodies.add(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            return KongIngestResultDTO.builder().received(2).inserted(2).errors(List.of()).build();
+        });
+        when(usageIngestQueue.getRetryAfterSeconds()).thenReturn(5);
+
+        KongRuntimeController controller = new KongRuntimeController();
+        ReflectionTestUtils.setField(controller, "kongRuntimeService", runtimeService);
+        ReflectionTestUtils.setField(controller, "usageIngestQueue", usageIngestQueue);
+        ReflectionTestUtils.setField(controller, "admissionControl", admissionControl);
+        ReflectionTestUtils.setField(controller, "ingestProperties", ingestProperties);
+        ReflectionTestUtils.setField(controller, "kongIngestSecret", SECRET);
+        mockMvc = MockMvcBuilders.standaloneSetup(controller)
+                .addMappedInterceptors(new String[]{BULK},
+                        new IngestAdmissionInterceptor(admissionControl, ingestProperties, SECRET))
+                .build();
+    }
+
+    @Test
+    void gzipBodyIsDecompressedWhileParsed() throws Exception {
+        mockMvc.perform(bulk(gzip(NDJSON)).header(HttpHeaders.CONTENT_ENCODING, "gzip"))
+                .andExpect(status().isAccepted())
+                .andExpect(jsonPath("$.status").value("accepted"))
+                .andExpect(jsonPath("$.received").value(2));
+
+        assertEquals(List.of(NDJSON), bodies);
+    }
+
+    @Test
+    void uncompressedBodyIsReadAsIs() throws Exception {
+        mockMvc.perform(bulk(NDJSON.getBytes(StandardCharsets.UTF_8)).header(HttpHeaders.CONTENT_ENCODING, "identity"))
+                .andExpect(status().isAccepted());
+
+        assertEquals(List.of(NDJSON), bodies);
+    }
+
+    @Test
+    void zstdAndUnknownEncodingsAreUnsupported() throws Exception {
+        for (String encoding : List.of("zstd", "br", "x-unknown")) {
+            mockMvc.perform(bulk(NDJSON.getBytes(StandardCharsets.UTF_8)).header(HttpHeaders.CONTENT_ENCODING, encoding))
+                    .andExpect(status().isUnsupportedMediaType())
+                    .andExpect(jsonPath("$.message").value("Unsupported Content-Encoding: " + encoding));
+        }
+        verify(runtimeService, never()).ingestUsageNdjson(any(), any());
+    }
+
+    @Test
+    void organizationOverItsRateIsToldWhenToRetry() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mockMvc.perform(bulk(NDJSON.getBytes(StandardCharsets.UTF_8)))
+                    .andExpect(status().isAccepted());
+        }
+
+        mockMvc.perform(bulk(NDJSON.getBytes(StandardCharsets.UTF_8)))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "1000"))
+                .andExpect(jsonPath("$.status").value("rejected"));
+
+        verify(runtimeService, times(3)).ingestUsageNdjson(any(), any());
+    }
+
+    @Test
+    void fullIngestBufferIsToldWhenToRetry() throws Exception {
+        when(runtimeService.ingestUsageNdjson(eq(27L), any()))
+                .thenReturn(KongIngestResultDTO.builder().received(1).rejected(true).errors(List.of()).build());
+
+        mockMvc.perform(bulk(NDJSON.getBytes(StandardCharsets.UTF_8)))
+                .andExpect(status().isTooManyRequests())
+                .andExpect(header().string(HttpHeaders.RETRY_AFTER, "5"))
+                .andExpect(jsonPath("$.received").value(1));
+    }
+
+    @Test
+    void wrongSecretIsUnauthorizedAndNotCharged() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            mockMvc.perform(post(BULK).header("X-Organization-Id", 27L).header("X-Integration-Secret", "wrong")
+                            .contentType("application/x-ndjson").content(NDJSON))
+                    .andExpect(status().isUnauthorized());
+        }
+        mockMvc.perform(bulk(NDJSON.getBytes(StandardCharsets.UTF_8)))
+                .andExpect(status().isAccepted());
+    }
+
+    private static MockHttpServletRequestBuilder bulk(byte[] body) {
+        return post(BULK)
+                .header("X-Organization-Id", 27L)
+                .header("X-Integration-Secret", SECRET)
+                .contentType("application/x-ndjson")
+                .content(body);
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,188 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CorrelationIdFilterTest {
+
+    private static final Instant NOW = Instant.parse("2026-03-10T12:30:00Z");
+    private static final Duration HOUR = Duration.ofHours(1);
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final KongIngestProperties properties = new KongIngestProperties();
+    private final AtomicLong clock = new AtomicLong(NOW.toEpochMilli());
+    private final AtomicInteger lookups = new AtomicInteger();
+    private CorrelationIdFilter filter;
+
+    @BeforeEach
+    void setUp() {
+        properties.getDedupe().setWindowHours(2);
+        properties.getDedupe().setBucketMinutes(60);
+        properties.getDedupe().setExpectedPerBucket(10_000);
+        filter = new CorrelationIdFilter(jdbcTemplate, properties, clock::get);
+    }
+
+    @Test
+    void everyCheckGoesToTheDatabaseUntilTheFilterIsRebuilt() {
+        assertFalse(check(1L, "corr-1", NOW, false));
+        assertFalse(check(1L, "corr-2", NOW, false));
+
+        assertEquals(2, lookups.get());
+        assertEquals(false, filter.getStats().get("ready"));
+        assertEquals(2L, filter.getStats().get("fellThrough"));
+    }
+
+    @Test
+    void checksWhileTheStartupRebuildRunsGoToTheDatabase() throws Exception {
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            loading.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+
+        filter.rebuildOnStartup();
+        assertTrue(loading.await(5, TimeUnit.SECONDS));
+        assertFalse(check(1L, "corr-1", NOW, false));
+        assertEquals(1, lookups.get());
+
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!Boolean.TRUE.equals(filter.getStats().get("ready")) && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(check(1L, "corr-2", NOW, false));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void rebuildLoadsTheWindowAndThenAnswersNewIdsFromMemory() throws Exception {
+        ResultSet rs = mock(ResultSet.class);
+        when(rs.getLong(1)).thenReturn(1L, 1L);
+        when(rs.getString(2)).thenReturn("stored-1", "stored-2");
+        when(rs.getTimestamp(3)).thenReturn(Timestamp.from(NOW), Timestamp.from(NOW.minus(HOUR)));
+        doAnswer(invocation -> {
+            RowCallbackHandler handler = invocation.getArgument(1);
+            handler.processRow(rs);
+            handler.processRow(rs);
+            return null;
+        }).when(jdbcTemplate).query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+
+        filter.rebuild();
+
+        assertTrue(check(1L, "stored-1", NOW, true));
+        assertTrue(check(1L, "stored-2", NOW.minus(HOUR), true));
+        assertEquals(2, lookups.get());
+        assertFalse(check(1L, "fresh", NOW, false));
+        assertEquals(2, lookups.get());
+        assertEquals(1L, filter.getStats().get("definitelyNew"));
+    }
+
+    @Test
+    void failedRebuildKeepsFallingThrough() {
+        doThrow(new RuntimeException("database down")).when(jdbcTemplate)
+                .query(any(PreparedStatementCreator.class), any(RowCallbackHandler.class));
+
+        filter.rebuild();
+
+        check(1L, "corr-1", NOW, false);
+        assertEquals(1, lookups.get());
+        assertEquals(false, filter.getStats().get("ready"));
+    }
+
+    @Test
+    void seenIdIsNeverDefinitelyNew() {
+        filter.rebuild();
+        for (int i = 0; i < 5_000; i++) {
+            check(1L, "corr-" + i, NOW.minus(Duration.ofMinutes(i % 90)), false);
+        }
+        lookups.set(0);
+
+        for (int i = 0; i < 5_000; i++) {
+            check(1L, "corr-" + i, NOW.minus(Duration.ofMinutes(i % 90)), true);
+        }
+
+        assertEquals(5_000, lookups.get());
+    }
+
+    @Test
+    void bucketLeavingTheWindowIsDroppedAndItsSlotReused() {
+        filter.rebuild();
+        check(1L, "old", NOW, false);
+
+        clock.addAndGet(2 * HOUR.toMillis());
+        lookups.set(0);
+
+        // Its bucket is out of the window now, so only the database can tell
+        assertFalse(check(1L, "old", NOW, false));
+        assertEquals(1, lookups.get());
+        assertEquals(1L, filter.getStats().get("fellThrough"));
+
+        // The current hour takes the expired bucket's slot
+        check(1L, "new", NOW.plus(Duration.ofHours(2)), false);
+        assertEquals(1L, filter.getStats().get("buckets"));
+        lookups.set(0);
+        check(1L, "new", NOW.plus(Duration.ofHours(2)), true);
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void futureEventDoesNotEvictABucketStillInTheWindow() {
+        filter.rebuild();
+        check(1L, "earlier", NOW.minus(HOUR), false);
+
+        // Same slot as the previous hour in a two-bucket ring
+        check(1L, "ahead", NOW.plus(HOUR), false);
+        lookups.set(0);
+
+        assertTrue(check(1L, "earlier", NOW.minus(HOUR), true));
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    void eachOrganizationHasItsOwnRingOfWindowOverBucketSlots() {
+        filter.rebuild();
+        for (int hour = 0; hour < 5; hour++) {
+            check(1L, "corr-" + hour, NOW.minus(Duration.ofHours(hour)), false);
+        }
+        check(2L, "corr-0", NOW, false);
+        lookups.set(0);
+
+        // Two-hour window of one-hour buckets: two slots, hours beyond the window are never stored
+        assertEquals(2, filter.getStats().get("organizations"));
+        assertEquals(3L, filter.getStats().get("buckets"));
+        // Another organization's IDs say nothing about this one
+        assertFalse(check(2L, "corr-1", NOW, false));
+        assertEquals(0, lookups.get());
+    }
+
+    private boolean check(Long orgId, String correlationId, Instant timestamp, boolean stored) {
+        return filter.isDuplicate(orgId, correlationId, timestamp, () -> {
+            lookups.incrementAndGet();
+            return stored;
+        });
+    }
+}
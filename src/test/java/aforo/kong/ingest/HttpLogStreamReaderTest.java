@@ -0,0 +1,100 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.dto.kong.HttpLogPayload;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class HttpLogStreamReaderTest {
+
+    private final HttpLogStreamReader reader = new HttpLogStreamReader(new ObjectMapper(), new KongIngestProperties());
+
+    @Test
+    void keepsRawBytesOfEachArrayElement() throws IOException {
+        String first = "{\"started_at\":1700000000000,\"request\":{\"id\":\"r-1\",\"method\":\"GET\",\"uri\":\"/café\","
+                + "\"headers\":{\"x-big\":[\"a\",\"b\"]},\"querystring\":{\"q\":[\"1\"]}},"
+                + "\"response\":{\"status\":200},\"tries\":[{\"ip\":\"10.0.0.1\"}]}";
+        String second = "{\"started_at\":1700000000001,\"request\":{\"id\":\"r-2\"}}";
+        String body = " [ " + first + " ,\n 42, " + second + " ] ";
+
+        List<HttpLogPayload> payloads = new ArrayList<>();
+        List<String> raw = new ArrayList<>();
+        int count = reader.read(trickle(body), (payload, rawJson) -> {
+            payloads.add(payload);
+            raw.add(rawJson);
+            return true;
+        });
+
+        assertEquals(3, count);
+        assertEquals(List.of(first, "42", second), raw);
+        assertEquals("/café", payloads.get(0).getRequest().getPath());
+        assertNull(payloads.get(0).getRequest().getHeaders());
+        assertNull(payloads.get(1));
+        assertEquals("r-2", payloads.get(2).getRequest().getId());
+    }
+
+    @Test
+    void readsSingleObjectAndStopsWhenAsked() throws IOException {
+        String single = "{\"request\":{\"id\":\"only\"}}";
+        List<String> raw = new ArrayList<>();
+        assertEquals(1, reader.read(trickle(single), (payload, rawJson) -> raw.add(rawJson)));
+        assertEquals(List.of(single), raw);
+
+        List<HttpLogPayload> seen = new ArrayList<>();
+        int count = reader.read(trickle("[" + single + "," + single + "," + single + "]"), (payload, rawJson) -> {
+            seen.add(payload);
+            return seen.size() < 2;
+        });
+        assertEquals(2, count);
+        assertNotNull(seen.get(1));
+    }
+
+    @Test
+    void readsNdjsonLinesAndReportsBadOnes() throws IOException {
+        String first = "{\"started_at\":1700000000000,\"request\":{\"id\":\"r-1\",\"uri\":\"/café\"}}";
+        String third = "{\"request\":{\"id\":\"r-3\"}}";
+        String body = first + "\r\n{\"request\":\n\n" + third + "\nnull\n[1]\n" + "x".repeat(HttpLogStreamReader.MAX_LINE_BYTES + 10)
+                + "\n" + third;
+
+        List<String> events = new ArrayList<>();
+        List<Long> errorLines = new ArrayList<>();
+        long count = reader.readLines(trickle(body), new HttpLogStreamReader.LineHandler() {
+            @Override
+            public boolean onEvent(long line, HttpLogPayload payload, String rawJson) {
+                events.add(line + ":" + payload.getRequest().getId() + ":" + rawJson);
+                return true;
+            }
+
+            @Override
+            public void onError(long line, String message) {
+                errorLines.add(line);
+            }
+        });
+
+        assertEquals(7, count);
+        assertEquals(List.of("1:r-1:" + first, "4:r-3:" + third, "8:r-3:" + third), events);
+        assertEquals(List.of(2L, 5L, 6L, 7L), errorLines);
+    }
+
+    /** Hands out a few bytes per read so elements straddle the parser's input buffers. */
+    private static InputStream trickle(String body) {
+        return new FilterInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+    }
+}
@@ -0,0 +1,99 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.IngestLimitProperties;
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.tenant.TenantContext;
+import com.aforo.apigee.security.HmacFilter;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.security.oauth2.jwt.Jwt;
+import org.springframework.security.oauth2.server.resource.authentication.JwtAuthenticationToken;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IngestAdmissionInterceptorTest {
+
+    private static final String SECRET = "test-secret";
+
+    private IngestAdmissionControl admissionControl;
+    private IngestAdmissionInterceptor interceptor;
+
+    @BeforeEach
+    void setUp() {
+        IngestLimitProperties limits = new IngestLimitProperties();
+        limits.getDefaults().setRequestsPerSecond(0.001);
+        limits.getDefaults().setBurst(1);
+        limits.setStripes(1);
+        admissionControl = new IngestAdmissionControl(limits);
+        KongIngestProperties ingest = new KongIngestProperties();
+        ingest.setDefaultOrganizationId(27L);
+        interceptor = new IngestAdmissionInterceptor(admissionControl, ingest, SECRET);
+    }
+
+    @AfterEach
+    void tearDown() {
+        TenantContext.clear();
+        SecurityContextHolder.clearContext();
+    }
+
+    @Test
+    void unauthenticatedRequestsAreNotCharged() throws Exception {
+        TenantContext.set(901L);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(interceptor.preHandle(post(null), new MockHttpServletResponse(), new Object()));
+            assertTrue(interceptor.preHandle(post("wrong"), new MockHttpServletResponse(), new Object()));
+        }
+
+        assertEquals(Map.of(), admissionControl.getStats().get("organizations"));
+        // The tenant's own burst is still there
+        assertTrue(interceptor.preHandle(post(SECRET), new MockHttpServletResponse(), new Object()));
+    }
+
+    @Test
+    void secretCallerIsChargedToHeaderOrDefaultOrganization() throws Exception {
+        TenantContext.set(901L);
+        assertTrue(interceptor.preHandle(post(SECRET), new MockHttpServletResponse(), new Object()));
+        MockHttpServletResponse limited = new MockHttpServletResponse();
+        assertFalse(interceptor.preHandle(post(SECRET), limited, new Object()));
+        assertEquals(429, limited.getStatus());
+
+        TenantContext.clear();
+        assertEquals(27L, interceptor.authenticatedOrganization(post(SECRET)));
+    }
+
+    @Test
+    void jwtCallerIsChargedToTokenOrganizationNotHeader() {
+        Jwt jwt = Jwt.withTokenValue("t").header("alg", "HS256").claim("orgId", 42)
+                .issuedAt(Instant.now()).expiresAt(Instant.now().plusSeconds(60)).build();
+        SecurityContextHolder.getContext().setAuthentication(new JwtAuthenticationToken(jwt, List.of()));
+        TenantContext.set(901L);
+
+        assertEquals(42L, interceptor.authenticatedOrganization(post(null)));
+    }
+
+    @Test
+    void verifiedWebhookIsCharged() {
+        MockHttpServletRequest request = post(null);
+        request.setAttribute(HmacFilter.VERIFIED_ATTRIBUTE, Boolean.TRUE);
+
+        assertEquals(27L, interceptor.authenticatedOrganization(request));
+    }
+
+    private static MockHttpServletRequest post(String secret) {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/integrations/kong/ingest");
+        if (secret != null) {
+            request.addHeader(IngestAdmissionInterceptor.INTEGRATION_SECRET_HEADER, secret);
+        }
+        return request;
+    }
+}
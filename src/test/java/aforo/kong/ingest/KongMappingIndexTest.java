@@ -0,0 +1,185 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.repository.KonnectConsumerMapRepository;
+import aforo.kong.repository.KonnectRouteMapRepository;
+import aforo.kong.repository.KonnectServiceMapRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class KongMappingIndexTest {
+
+    private static final Long ORG = 7L;
+
+    private final KonnectServiceMapRepository serviceMapRepository = mock(KonnectServiceMapRepository.class);
+    private final KonnectRouteMapRepository routeMapRepository = mock(KonnectRouteMapRepository.class);
+    private final KonnectConsumerMapRepository consumerMapRepository = mock(KonnectConsumerMapRepository.class);
+    private final KongIngestProperties properties = new KongIngestProperties();
+    private KongMappingIndex index;
+
+    @BeforeEach
+    void setUp() {
+        when(serviceMapRepository.findProductMappings(ORG)).thenReturn(rows("svc-1", 101L, "*", 199L));
+        when(routeMapRepository.findEndpointMappings(ORG)).thenReturn(rows("route-1", 201L));
+        when(consumerMapRepository.findCustomerMappings(ORG)).thenReturn(rows("consumer-1", 301L));
+        index = new KongMappingIndex(serviceMapRepository, routeMapRepository, consumerMapRepository, properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void idsResolveToTheMappedAforoIds() {
+        KongMappingIndex.Mappings mappings = index.forOrganization(ORG);
+
+        assertEquals(101L, mappings.productFor("svc-1"));
+        assertEquals(201L, mappings.endpointFor("route-1"));
+        assertEquals(301L, mappings.customerFor("consumer-1"));
+    }
+
+    @Test
+    void idsMatchExactlyAndNothingIsAWildcard() {
+        KongMappingIndex.Mappings mappings = index.forOrganization(ORG);
+
+        // Kong IDs are UUIDs: no prefix, case or pattern matching
+        assertNull(mappings.productFor("svc-10"));
+        assertNull(mappings.productFor("SVC-1"));
+        assertNull(mappings.productFor("svc-"));
+        // A "*" row is just an ID nobody sends, not a catch-all
+        assertNull(mappings.productFor("svc-2"));
+        assertEquals(199L, mappings.productFor("*"));
+    }
+
+    @Test
+    void unmappedOrMissingIdsFallBackToNoMapping() {
+        KongMappingIndex.Mappings mappings = index.forOrganization(ORG);
+
+        assertNull(mappings.productFor(null));
+        assertNull(mappings.endpointFor(null));
+        assertNull(mappings.customerFor(null));
+        // Each lookup stands alone: an unmapped route does not borrow its service's product
+        assertNull(mappings.endpointFor("svc-1"));
+        assertNull(mappings.customerFor("route-1"));
+        // Other organizations' mappings are never consulted
+        assertNull(index.forOrganization(8L).productFor("svc-1"));
+    }
+
+    @Test
+    void snapshotIsReusedWithinTheTtl() {
+        KongMappingIndex.Mappings first = index.forOrganization(ORG);
+
+        assertSame(first, index.forOrganization(ORG));
+        verify(serviceMapRepository, times(1)).findProductMappings(ORG);
+    }
+
+    @Test
+    void expiredSnapshotIsReloaded() {
+        properties.setMappingTtlSeconds(0);
+        index.forOrganization(ORG);
+        doReturn(rows("svc-1", 102L)).when(serviceMapRepository).findProductMappings(ORG);
+
+        assertEquals(102L, index.forOrganization(ORG).productFor("svc-1"));
+        verify(serviceMapRepository, times(2)).findProductMappings(ORG);
+    }
+
+    @Test
+    void refreshSwapsInTheChangedMappingsWhole() {
+        KongMappingIndex.Mappings before = index.forOrganization(ORG);
+        doReturn(rows("svc-2", 102L)).when(serviceMapRepository).findProductMappings(ORG);
+        doReturn(List.of()).when(routeMapRepository).findEndpointMappings(ORG);
+
+        KongMappingIndex.Mappings after = index.refresh(ORG);
+
+        assertSame(after, index.forOrganization(ORG));
+        assertNull(after.productFor("svc-1"));
+        assertEquals(102L, after.productFor("svc-2"));
+        assertNull(after.endpointFor("route-1"));
+        // Readers holding the old snapshot still see a consistent one
+        assertEquals(101L, before.productFor("svc-1"));
+        assertEquals(201L, before.endpointFor("route-1"));
+    }
+
+    @Test
+    void refreshWithoutATransactionHappensRightAway() {
+        index.forOrganization(ORG);
+        doReturn(rows("svc-1", 102L)).when(serviceMapRepository).findProductMappings(ORG);
+
+        index.refreshAfterCommit(ORG);
+
+        assertEquals(102L, index.forOrganization(ORG).productFor("svc-1"));
+    }
+
+    @Test
+    void refreshWaitsForTheCommit() {
+        index.forOrganization(ORG);
+        doReturn(rows("svc-1", 102L)).when(serviceMapRepository).findProductMappings(ORG);
+        TransactionSynchronizationManager.initSynchronization();
+
+        index.refreshAfterCommit(ORG);
+
+        assertEquals(101L, index.forOrganization(ORG).productFor("svc-1"));
+        synchronizations().forEach(TransactionSynchronization::afterCommit);
+        assertEquals(102L, index.forOrganization(ORG).productFor("svc-1"));
+    }
+
+    @Test
+    void rolledBackMappingChangesAreNeverLoaded() {
+        index.forOrganization(ORG);
+        TransactionSynchronizationManager.initSynchronization();
+
+        index.refreshAfterCommit(ORG);
+        synchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+
+        assertEquals(101L, index.forOrganization(ORG).productFor("svc-1"));
+        verify(serviceMapRepository, times(1)).findProductMappings(ORG);
+    }
+
+    @Test
+    void failedRefreshAfterCommitInvalidatesTheSnapshot() {
+        index.forOrganization(ORG);
+        TransactionSynchronizationManager.initSynchronization();
+        index.refreshAfterCommit(ORG);
+        doThrow(new RuntimeException("database down")).when(routeMapRepository).findEndpointMappings(ORG);
+
+        synchronizations().forEach(TransactionSynchronization::afterCommit);
+
+        // The stale snapshot is gone, so the next lookup loads the committed mappings
+        doReturn(rows("route-1", 202L)).when(routeMapRepository).findEndpointMappings(ORG);
+        assertEquals(202L, index.forOrganization(ORG).endpointFor("route-1"));
+        verify(consumerMapRepository, times(2)).findCustomerMappings(ORG);
+    }
+
+    private static List<TransactionSynchronization> synchronizations() {
+        List<TransactionSynchronization> registered = TransactionSynchronizationManager.getSynchronizations();
+        TransactionSynchronizationManager.clearSynchronization();
+        return registered;
+    }
+
+    private static List<Object[]> rows(Object... pairs) {
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < pairs.length; i += 2) {
+            rows.add(new Object[]{pairs[i], pairs[i + 1]});
+        }
+        return rows;
+    }
+}
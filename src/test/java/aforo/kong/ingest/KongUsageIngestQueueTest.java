@@ -0,0 +1,99 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.dto.kong.KongIngestResultDTO;
+import aforo.kong.entity.KongUsageRecord;
+import aforo.kong.service.impl.KongUsageIngestionService;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class KongUsageIngestQueueTest {
+
+    @Test
+    void flushesEveryAcceptedEventOnStop() throws Exception {
+        KongIngestProperties properties = new KongIngestProperties();
+        properties.setMode(KongIngestProperties.Mode.ASYNC);
+        properties.getQueue().setWorkers(2);
+        properties.getQueue().setFlushIntervalMs(5);
+        AtomicLong written = new AtomicLong();
+        KongUsageIngestionService ingestionService = mock(KongUsageIngestionService.class);
+        when(ingestionService.writeBatch(anyList())).thenAnswer(invocation -> {
+            List<?> batch = invocation.getArgument(0);
+            written.addAndGet(batch.size());
+            return KongIngestResultDTO.empty();
+        });
+        KongUsageIngestQueue queue = new KongUsageIngestQueue(ingestionService, properties);
+        queue.start();
+
+        // Producers keep offering until after stop() returns, so some offers race the drain
+        AtomicBoolean stopped = new AtomicBoolean();
+        CountDownLatch producing = new CountDownLatch(4);
+        List<Thread> producers = new ArrayList<>();
+        for (int p = 0; p < 4; p++) {
+            Thread producer = new Thread(() -> {
+                producing.countDown();
+                List<KongUsageRecord> payload = List.of(new KongUsageRecord(), new KongUsageRecord());
+                while (!stopped.get()) {
+                    queue.offer(payload);
+                }
+            });
+            producers.add(producer);
+            producer.start();
+        }
+        producing.await();
+        Thread.sleep(20);
+        queue.stop();
+        stopped.set(true);
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertFalse(queue.offer(List.of(new KongUsageRecord())));
+        assertTrue(written.get() > 0);
+        assertEquals(queue.getStats().get("acceptedEvents"), written.get());
+        assertEquals(0, queue.getStats().get("inFlight"));
+    }
+
+    @Test
+    void eventsLeftWhenTheShutdownTimesOutCountAsDropped() throws Exception {
+        KongIngestProperties properties = new KongIngestProperties();
+        properties.setMode(KongIngestProperties.Mode.ASYNC);
+        properties.setBatchSize(2);
+        properties.getQueue().setWorkers(1);
+        properties.getQueue().setFlushIntervalMs(5);
+        properties.getQueue().setMaxFlushAttempts(100);
+        properties.getQueue().setShutdownTimeoutSeconds(0);
+        KongUsageIngestionService ingestionService = mock(KongUsageIngestionService.class);
+        when(ingestionService.writeBatch(anyList())).thenThrow(new RuntimeException("database down"));
+        KongUsageIngestQueue queue = new KongUsageIngestQueue(ingestionService, properties);
+        queue.start();
+
+        assertTrue(queue.offer(List.of(new KongUsageRecord(), new KongUsageRecord(), new KongUsageRecord())));
+        // The writer holds the first two and is backing off between attempts; the third is queued
+        verify(ingestionService, timeout(5000)).writeBatch(anyList());
+        queue.stop();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while ((int) queue.getStats().get("inFlight") != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(3L, queue.getStats().get("droppedEvents"));
+        assertEquals(0, queue.getStats().get("depth"));
+        assertEquals(0, queue.getStats().get("inFlight"));
+    }
+}
@@ -0,0 +1,202 @@
+package aforo.kong.ingest;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.dto.kong.KongIngestResultDTO;
+import aforo.kong.entity.KongUsageRecord;
+import aforo.kong.service.impl.KongUsageIngestionService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class KongUsageSpoolTest {
+
+    @TempDir
+    Path directory;
+
+    private final KongUsageIngestionService ingestionService = mock(KongUsageIngestionService.class);
+    private final KongIngestProperties properties = new KongIngestProperties();
+    private final List<String> written = Collections.synchronizedList(new ArrayList<>());
+    private KongUsageSpool spool;
+
+    @BeforeEach
+    void setUp() {
+        properties.setMode(KongIngestProperties.Mode.SPOOL);
+        properties.getSpool().setDirectory(directory.toString());
+        properties.getSpool().setReplayIdleMs(10);
+        properties.getSpool().setReplayMaxBackoffMs(50);
+        when(ingestionService.writeBatch(any())).thenAnswer(invocation -> {
+            List<KongUsageRecord> batch = invocation.getArgument(0);
+            batch.forEach(record -> written.add(record.getKongRequestId()));
+            return KongIngestResultDTO.builder().received(batch.size()).inserted(batch.size()).build();
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (spool != null) {
+            spool.stop();
+        }
+    }
+
+    @Test
+    void appendedRecordsAreReplayedThroughWriteBatch() {
+        spool = started();
+
+        assertTrue(spool.append(List.of(record("r-1"), record("r-2"))));
+        assertTrue(spool.append(List.of(record("r-3"))));
+
+        await(() -> written.size() == 3);
+        assertEquals(List.of("r-1", "r-2", "r-3"), written);
+        await(() -> (long) spool.getStats().get("pendingEvents") == 0);
+        assertEquals(3L, spool.getStats().get("insertedEvents"));
+    }
+
+    @Test
+    void fullSegmentRotatesAndReplayedSegmentsAreDeleted() {
+        // Each segment holds exactly one frame
+        properties.getSpool().setSegmentSizeMb(0);
+        spool = started();
+
+        assertTrue(spool.append(List.of(record("r-1"))));
+        assertTrue(spool.append(List.of(record("r-2"))));
+        assertTrue(spool.append(List.of(record("r-3"))));
+
+        await(() -> written.size() == 3);
+        assertEquals(List.of("r-1", "r-2", "r-3"), written);
+        // Sealed segments go once replayed; the active one stays for the next append
+        await(() -> segmentFiles().size() == 1);
+        assertEquals(List.of(SpoolSegment.fileName(2)), segmentFiles());
+        assertEquals(1, spool.getStats().get("segments"));
+    }
+
+    @Test
+    void failedReplayIsRetriedUntilTheDatabaseTakesIt() {
+        doThrow(new RuntimeException("database down"))
+                .doAnswer(invocation -> {
+                    List<KongUsageRecord> batch = invocation.getArgument(0);
+                    batch.forEach(record -> written.add(record.getKongRequestId()));
+                    return KongIngestResultDTO.builder().inserted(batch.size()).build();
+                })
+                .when(ingestionService).writeBatch(any());
+        spool = started();
+
+        assertTrue(spool.append(List.of(record("r-1"))));
+
+        await(() -> written.size() == 1);
+        assertEquals(1L, spool.getStats().get("replayFailures"));
+    }
+
+    @Test
+    void restartReplaysTheIntactFramesOfAPartlyWrittenSegment() throws IOException {
+        // Left behind by a crash: two whole frames, then a torn one
+        SpoolSegment segment = SpoolSegment.create(directory, 7, 4096);
+        segment.tryAppend(KongUsageRecordCodec.encode(List.of(record("r-1"), record("r-2"))));
+        segment.tryAppend(KongUsageRecordCodec.encode(List.of(record("r-3"))));
+        int torn = segment.writePosition();
+        segment.tryAppend(KongUsageRecordCodec.encode(List.of(record("r-4"))));
+        segment.force();
+        segment.close();
+        try (FileChannel channel = FileChannel.open(directory.resolve(SpoolSegment.fileName(7)), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(16), torn + SpoolSegment.HEADER_BYTES);
+        }
+
+        spool = new KongUsageSpool(ingestionService, properties);
+        spool.start();
+
+        await(() -> written.size() == 3);
+        assertEquals(List.of("r-1", "r-2", "r-3"), written);
+        // The recovered segment is sealed, so new appends go to the next one
+        await(() -> segmentFiles().isEmpty());
+        assertTrue(spool.append(List.of(record("r-5"))));
+        assertEquals(List.of(SpoolSegment.fileName(8)), segmentFiles());
+    }
+
+    @Test
+    void unreplayedFramesSurviveAStop() {
+        doThrow(new RuntimeException("database down")).when(ingestionService).writeBatch(any());
+        spool = started();
+        assertTrue(spool.append(List.of(record("r-1"))));
+        spool.stop();
+
+        KongUsageSpool restarted = started();
+        try {
+            assertEquals(1L, restarted.getStats().get("pendingEvents"));
+            assertFalse(segmentFiles().isEmpty());
+        } finally {
+            restarted.stop();
+        }
+    }
+
+    @Test
+    void appendIsRefusedWhenTheSpoolIsFull() {
+        properties.getSpool().setMaxSizeMb(0);
+        spool = started();
+
+        assertFalse(spool.append(List.of(record("r-1"))));
+        assertEquals(1L, spool.getStats().get("rejectedBatches"));
+    }
+
+    private KongUsageSpool started() {
+        KongUsageSpool started = new KongUsageSpool(ingestionService, properties);
+        started.start();
+        return started;
+    }
+
+    private List<String> segmentFiles() {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(SpoolSegment::isSegmentFile).map(file -> file.getFileName().toString()).sorted().toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static KongUsageRecord record(String requestId) {
+        KongUsageRecord record = new KongUsageRecord();
+        record.setOrganizationId(1L);
+        record.setTimestamp(Instant.parse("2026-03-10T12:00:00Z"));
+        record.setKongRequestId(requestId);
+        record.setCorrelationId(requestId);
+        record.setStatus(200);
+        record.setCreatedAt(Instant.parse("2026-03-10T12:00:01Z"));
+        return record;
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                throw new AssertionError("Timed out waiting for the spool");
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
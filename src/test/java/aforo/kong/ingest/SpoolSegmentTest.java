@@ -0,0 +1,135 @@
+package aforo.kong.ingest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpoolSegmentTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void framesAreReadBackInOrder() throws IOException {
+        SpoolSegment segment = SpoolSegment.create(directory, 3, 1024);
+        assertTrue(segment.tryAppend(bytes("first")));
+        assertTrue(segment.tryAppend(bytes("second")));
+
+        assertEquals("first", text(segment.frameAt(0, segment.writePosition())));
+        assertEquals("second", text(segment.frameAt(SpoolSegment.HEADER_BYTES + 5, segment.writePosition())));
+        assertNull(segment.frameAt(segment.writePosition(), segment.writePosition()));
+        segment.close();
+    }
+
+    @Test
+    void fullOrSealedSegmentRefusesTheAppend() throws IOException {
+        SpoolSegment segment = SpoolSegment.create(directory, 1, SpoolSegment.HEADER_BYTES + 4);
+        assertFalse(segment.tryAppend(bytes("abcde")));
+        assertTrue(segment.tryAppend(bytes("abcd")));
+        assertFalse(segment.tryAppend(bytes("a")));
+
+        SpoolSegment other = SpoolSegment.create(directory, 2, 1024);
+        other.seal();
+        assertFalse(other.tryAppend(bytes("a")));
+        segment.close();
+        other.close();
+    }
+
+    @Test
+    void checksumMismatchEndsTheValidFrames() throws IOException {
+        Path file = written(1, "first", "second");
+        // Flip a payload byte of the second frame
+        patch(file, 2 * SpoolSegment.HEADER_BYTES + 5, new byte[]{'S'});
+
+        SpoolSegment segment = SpoolSegment.recover(file);
+
+        assertEquals(SpoolSegment.HEADER_BYTES + 5, segment.writePosition());
+        assertEquals("first", text(segment.frameAt(0, segment.writePosition())));
+        assertTrue(segment.isSealed());
+        segment.close();
+    }
+
+    @Test
+    void tornFrameAtTheEndIsDropped() throws IOException {
+        Path file = written(1, "first", "second");
+        // The second frame's header made it to disk, its payload did not
+        patch(file, 2 * SpoolSegment.HEADER_BYTES + 5, new byte[6]);
+
+        SpoolSegment segment = SpoolSegment.recover(file);
+
+        assertEquals(SpoolSegment.HEADER_BYTES + 5, segment.writePosition());
+        segment.close();
+    }
+
+    @Test
+    void garbageLengthIsTheEndOfFramesNotAnOverflow() throws IOException {
+        Path file = written(1, "first");
+        int next = SpoolSegment.HEADER_BYTES + 5;
+        patch(file, next, ByteBuffer.allocate(4).putInt(Integer.MAX_VALUE - 2).array());
+
+        SpoolSegment segment = SpoolSegment.recover(file);
+
+        assertEquals(next, segment.writePosition());
+        assertNull(segment.frameAt(next, Integer.MAX_VALUE));
+        assertNull(segment.frameAt(Integer.MAX_VALUE - 1, Integer.MAX_VALUE));
+        assertNull(segment.frameAt(-1, Integer.MAX_VALUE));
+        segment.close();
+    }
+
+    @Test
+    void deleteRemovesTheFileAndLaterFlushesAreIgnored() throws IOException {
+        Path file = written(4, "first");
+        SpoolSegment segment = SpoolSegment.recover(file);
+
+        segment.delete();
+        segment.force();
+
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    void segmentFilesAreRecognisedBySequence() {
+        Path file = directory.resolve(SpoolSegment.fileName(42));
+        assertTrue(SpoolSegment.isSegmentFile(file));
+        assertFalse(SpoolSegment.isSegmentFile(directory.resolve("spool-42.tmp")));
+        assertEquals(42, SpoolSegment.sequenceOf(file));
+    }
+
+    private Path written(long sequence, String... payloads) throws IOException {
+        SpoolSegment segment = SpoolSegment.create(directory, sequence, 256);
+        for (String payload : payloads) {
+            assertTrue(segment.tryAppend(bytes(payload)));
+        }
+        segment.force();
+        segment.close();
+        return directory.resolve(SpoolSegment.fileName(sequence));
+    }
+
+    private static void patch(Path file, int position, byte[] content) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(content), position);
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(ByteBuffer frame) {
+        byte[] content = new byte[frame.remaining()];
+        frame.duplicate().get(content);
+        return new String(content, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,65 @@
+package aforo.kong.latency;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(50, histogram.percentile(50));
+        assertEquals(95, histogram.percentile(95));
+        assertEquals(100, histogram.percentile(100));
+        assertEquals(50.5, histogram.mean(), 1e-9);
+    }
+
+    @Test
+    void largeValuesAreWithinRelativeError() {
+        for (long value : new long[] {128, 1000, 12_345, 3_600_000}) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value - 1);
+            histogram.record(value);
+            histogram.record(value * 2);
+            long p50 = histogram.percentile(50);
+            assertTrue(Math.abs(p50 - value) <= value / 128.0 + 1, value + " -> " + p50);
+        }
+    }
+
+    @Test
+    void mergeAddsCounts() {
+        LatencyHistogram fast = new LatencyHistogram();
+        LatencyHistogram slow = new LatencyHistogram();
+        fast.record(10, 90);
+        slow.record(5000, 10);
+
+        fast.merge(slow);
+
+        assertEquals(100, fast.count());
+        assertEquals(10, fast.percentile(90));
+        assertTrue(Math.abs(fast.percentile(95) - 5000) <= 40);
+        assertEquals(5000, fast.max());
+    }
+
+    @Test
+    void bytesRoundTrip() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3, 7);
+        histogram.record(250);
+        histogram.record(90_000, 2);
+
+        LatencyHistogram copy = LatencyHistogram.fromBytes(histogram.toBytes());
+        assertEquals(histogram.count(), copy.count());
+        assertEquals(histogram.mean(), copy.mean(), 1e-9);
+        for (double p : new double[] {10, 50, 80, 99, 100}) {
+            assertEquals(histogram.percentile(p), copy.percentile(p));
+        }
+        assertEquals(0, LatencyHistogram.fromBytes(new LatencyHistogram().toBytes()).count());
+    }
+}
@@ -0,0 +1,215 @@
+package aforo.kong.latency;
+
+import aforo.kong.config.LatencyProperties;
+import aforo.kong.entity.UsageRecord;
+import aforo.kong.repository.LatencyHistogramRepository;
+import aforo.kong.repository.LatencyHistogramRepository.Granularity;
+import aforo.kong.repository.LatencyHistogramRepository.SeriesKey;
+import aforo.kong.repository.LatencyHistogramRepository.StoredHistograms;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class LatencyTrackerTest {
+
+    private static final Long ORG = 7L;
+    private static final Instant SINCE = Instant.parse("2026-03-01T00:00:00Z");
+    private static final Instant HOUR = Instant.parse("2026-03-10T01:00:00Z");
+    private static final Instant DAY = Instant.parse("2026-03-10T00:00:00Z");
+
+    private final LatencyHistogramRepository histogramRepository = mock(LatencyHistogramRepository.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    // The minute, hourly and daily rows
+    private final Map<Granularity, Map<SeriesKey, StoredHistograms>> stored = new EnumMap<>(Granularity.class);
+    private final Map<Granularity, List<List<SeriesKey>>> locked = new EnumMap<>(Granularity.class);
+    private LatencyTracker tracker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        for (Granularity granularity : Granularity.values()) {
+            stored.put(granularity, new HashMap<>());
+            locked.put(granularity, new ArrayList<>());
+        }
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null));
+        when(histogramRepository.lockHistograms(any(), eq(ORG), any())).thenAnswer(invocation -> {
+            Granularity granularity = invocation.getArgument(0);
+            List<SeriesKey> keys = invocation.getArgument(2);
+            locked.get(granularity).add(keys);
+            return keys.stream().map(key -> stored.get(granularity)
+                    .getOrDefault(key, new StoredHistograms(key, null, null, null))).toList();
+        });
+        doAnswer(invocation -> {
+            List<StoredHistograms> rows = invocation.getArgument(2);
+            rows.forEach(row -> stored.get(invocation.<Granularity>getArgument(0)).put(row.key(), row));
+            return null;
+        }).when(histogramRepository).saveHistograms(any(), eq(ORG), any());
+        when(histogramRepository.findOrStartTracking(any())).thenReturn(SINCE);
+        tracker = new LatencyTracker(histogramRepository, transactionTemplate, new LatencyProperties());
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void flushMergesMinutesIntoEveryGranularityUnderRowLocks() {
+        tracker.start();
+        LatencyHistogram earlier = new LatencyHistogram();
+        earlier.record(100, 10);
+        SeriesKey hourA = key(HOUR, "svc-a");
+        stored.get(Granularity.HOUR).put(hourA, new StoredHistograms(hourA, earlier.toBytes(), null, null));
+
+        tracker.recordAfterCommit(List.of(record("01:02:10", "svc-a", 20), record("01:02:50", "svc-a", 30),
+                record("01:05:00", "svc-a", 40), record("01:02:00", "svc-b", 50)));
+        tracker.flush();
+
+        assertEquals(List.of(key(at("01:02:00"), "svc-a"), key(at("01:02:00"), "svc-b"), key(at("01:05:00"), "svc-a")),
+                locked.get(Granularity.MINUTE).get(0));
+        assertEquals(2, response(Granularity.MINUTE, key(at("01:02:00"), "svc-a")).count());
+        assertEquals(13, response(Granularity.HOUR, hourA).count());
+        assertEquals(1, response(Granularity.HOUR, key(HOUR, "svc-b")).count());
+        assertEquals(3, response(Granularity.DAY, key(DAY, "svc-a")).count());
+        // Locks are taken in key order before each write-back, all in one transaction for the org
+        InOrder order = inOrder(histogramRepository);
+        for (Granularity granularity : Granularity.values()) {
+            order.verify(histogramRepository).lockHistograms(eq(granularity), eq(ORG), any());
+            order.verify(histogramRepository).saveHistograms(eq(granularity), eq(ORG), any());
+        }
+        verify(transactionTemplate, times(1)).execute(any());
+        assertEquals(7L, tracker.getStats().get("flushedRows"));
+        assertEquals(0, tracker.getStats().get("pendingSeries"));
+    }
+
+    @Test
+    void latenciesAreRecordedOnlyOnceTheTransactionCommits() {
+        tracker.start();
+        TransactionSynchronizationManager.initSynchronization();
+
+        tracker.recordAfterCommit(List.of(record("01:02:00", "svc-a", 20)));
+
+        assertEquals(0, tracker.getStats().get("pendingSeries"));
+        synchronizations().forEach(TransactionSynchronization::afterCommit);
+        assertEquals(1, tracker.getStats().get("pendingSeries"));
+    }
+
+    @Test
+    void rolledBackRecordsAreNeverRecorded() {
+        tracker.start();
+        TransactionSynchronizationManager.initSynchronization();
+
+        tracker.recordAfterCommit(List.of(record("01:02:00", "svc-a", 20)));
+        synchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+        tracker.flush();
+
+        assertEquals(0, tracker.getStats().get("pendingSeries"));
+        verify(transactionTemplate, never()).execute(any());
+    }
+
+    @Test
+    void usageBeforeRecordingStartedIsLeftToRawReads() {
+        tracker.recordAfterCommit(List.of(record("01:02:00", "svc-a", 20)));
+        assertEquals(0, tracker.getStats().get("pendingSeries"));
+
+        tracker.start();
+        UsageRecord old = record("01:02:00", "svc-a", 20);
+        old.setTimestamp(SINCE.minusSeconds(1));
+        tracker.recordAfterCommit(List.of(old));
+
+        assertEquals(0, tracker.getStats().get("pendingSeries"));
+    }
+
+    @Test
+    void failedFlushKeepsTheHistogramsForTheNextOne() {
+        tracker.start();
+        tracker.recordAfterCommit(List.of(record("01:02:00", "svc-a", 20)));
+        doThrow(new RuntimeException("database down")).when(transactionTemplate).execute(any());
+
+        tracker.flush();
+
+        assertEquals(1L, tracker.getStats().get("flushFailures"));
+        assertEquals(1, tracker.getStats().get("pendingSeries"));
+        assertNull(stored.get(Granularity.DAY).get(key(DAY, "svc-a")));
+
+        tracker.recordAfterCommit(List.of(record("01:02:30", "svc-a", 30)));
+        doAnswer(invocation -> invocation.<TransactionCallback<Object>>getArgument(0).doInTransaction(null))
+                .when(transactionTemplate).execute(any());
+        tracker.flush();
+
+        assertEquals(2, response(Granularity.DAY, key(DAY, "svc-a")).count());
+    }
+
+    @Test
+    void periodicFlushRunsOnlyWhileStartedAndStopFlushesTheRest() {
+        tracker.scheduledFlush();
+        verify(transactionTemplate, never()).execute(any());
+
+        tracker.start();
+        tracker.recordAfterCommit(List.of(record("01:02:00", "svc-a", 20)));
+        tracker.scheduledFlush();
+        assertEquals(1, response(Granularity.MINUTE, key(at("01:02:00"), "svc-a")).count());
+
+        tracker.recordAfterCommit(List.of(record("01:03:00", "svc-a", 20)));
+        tracker.stop();
+        assertEquals(1, response(Granularity.MINUTE, key(at("01:03:00"), "svc-a")).count());
+        tracker.recordAfterCommit(List.of(record("01:04:00", "svc-a", 20)));
+        tracker.scheduledFlush();
+        assertEquals(1, tracker.getStats().get("pendingSeries"));
+    }
+
+    private LatencyHistogram response(Granularity granularity, SeriesKey key) {
+        return LatencyHistogram.fromBytes(stored.get(granularity).get(key).response());
+    }
+
+    private static List<TransactionSynchronization> synchronizations() {
+        List<TransactionSynchronization> registered = new ArrayList<>(TransactionSynchronizationManager.getSynchronizations());
+        TransactionSynchronizationManager.clearSynchronization();
+        return registered;
+    }
+
+    private static SeriesKey key(Instant bucketStart, String serviceId) {
+        return new SeriesKey(bucketStart, serviceId, "", "");
+    }
+
+    private static Instant at(String time) {
+        return Instant.parse("2026-03-10T" + time + "Z");
+    }
+
+    private static UsageRecord record(String time, String serviceId, long latency) {
+        UsageRecord record = new UsageRecord();
+        record.setOrganizationId(ORG);
+        record.setTimestamp(at(time));
+        record.setServiceId(serviceId);
+        record.setResponseLatency(latency);
+        return record;
+    }
+}
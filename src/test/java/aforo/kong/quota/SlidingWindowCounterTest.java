@@ -0,0 +1,62 @@
+package aforo.kong.quota;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class SlidingWindowCounterTest {
+
+    private static final long T0 = 1_700_006_400L; // a UTC day boundary
+
+    private static long millis(long epochSecond) {
+        return epochSecond * 1000;
+    }
+
+    @Test
+    void minuteWindowWeighsThePreviousMinuteByOverlap() {
+        SlidingWindowCounter counter = new SlidingWindowCounter();
+        counter.add(T0 + 10, 100);
+        counter.add(T0 + 70, 20);
+
+        // 15 seconds into the second minute, 45/60 of the first still overlaps
+        assertEquals(20 + 75, counter.estimate(QuotaWindow.MINUTE, millis(T0 + 75)), 1e-9);
+        assertEquals(120, counter.estimate(QuotaWindow.HOUR, millis(T0 + 75)), 1e-9);
+    }
+
+    @Test
+    void oldBucketsLeaveFinerWindowsFirst() {
+        SlidingWindowCounter counter = new SlidingWindowCounter();
+        counter.add(T0, 5);
+        counter.add(T0 + 3 * 3600, 7);
+
+        long now = millis(T0 + 3 * 3600 + 30);
+        assertEquals(7, counter.estimate(QuotaWindow.HOUR, now), 1e-9);
+        assertEquals(12, counter.estimate(QuotaWindow.DAY, now), 1e-9);
+        assertEquals(12, counter.estimate(QuotaWindow.MONTH, now), 1e-9);
+        assertEquals(0, counter.estimate(QuotaWindow.MONTH, millis(T0 + 32 * 86400)), 1e-9);
+    }
+
+    @Test
+    void eventsTooOldForARingOnlyCountInCoarserRings() {
+        SlidingWindowCounter counter = new SlidingWindowCounter();
+        counter.add(T0 + 2 * 3600, 1);
+        // Same minute slot as T0 + 2h, but an hour and a minute older
+        counter.add(T0 + 2 * 3600 - 61 * 60, 4);
+
+        long now = millis(T0 + 2 * 3600 + 1);
+        assertEquals(1, counter.estimate(QuotaWindow.HOUR, now), 1e-9);
+        assertEquals(5, counter.estimate(QuotaWindow.DAY, now), 1e-9);
+    }
+
+    @Test
+    void setReplacesASnapshotBucketAndAddCorrectsIt() {
+        SlidingWindowCounter counter = new SlidingWindowCounter();
+        counter.set(SlidingWindowCounter.Granularity.DAY, T0, 40);
+        counter.set(SlidingWindowCounter.Granularity.HOUR, T0, 40);
+        counter.add(T0 + 60, -10);
+
+        long now = millis(T0 + 1800);
+        assertEquals(30, counter.estimate(QuotaWindow.DAY, now), 1e-9);
+        assertEquals(30, counter.estimate(QuotaWindow.MONTH, now), 1e-9);
+    }
+}
@@ -0,0 +1,63 @@
+package aforo.kong.rating;
+
+import aforo.kong.entity.PricingPlan;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompiledPricingPlanTest {
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private PricingPlan plan(String metrics) {
+        PricingPlan plan = new PricingPlan();
+        plan.setPlanId(1L);
+        plan.setPlanName("Gold");
+        plan.setCurrency("USD");
+        plan.setMinimumFee(0.5);
+        plan.setMetrics(metrics);
+        plan.setUpdatedAt(Instant.parse("2026-01-01T00:00:00Z"));
+        return plan;
+    }
+
+    @Test
+    void compilesFlatAndTieredMetrics() {
+        CompiledPricingPlan compiled = CompiledPricingPlan.compile(plan("""
+                [{"type":"calls","tiers":[
+                    {"from":1001,"price":0.001},
+                    {"from":0,"to":1000,"price":0.002}]},
+                 {"type":"bandwidth","price":0.1}]
+                """), objectMapper);
+
+        assertTrue(compiled.isValid());
+        assertEquals(0.1, compiled.unitPrice("bandwidth"));
+        assertEquals(0.0, compiled.unitPrice("storage"));
+        assertNull(compiled.metric("storage"));
+
+        // Per-record price is the first priced tier in plan order; tiers are sorted by bound
+        CompiledPricingPlan.MetricRate calls = compiled.metric("calls");
+        assertEquals(0.001, calls.unitPrice());
+        assertEquals(0L, calls.tierFrom(0));
+        assertEquals(1000L, calls.tierTo(0));
+        assertEquals(Long.MAX_VALUE, calls.tierTo(1));
+        assertEquals(0, calls.tierIndex(1000));
+        assertEquals(1, calls.tierIndex(1001));
+        assertEquals(-1, calls.tierIndex(-1));
+
+        assertEquals(0.5, compiled.applyMinimumFee(0.2));
+        assertEquals(3.0, compiled.applyMinimumFee(3.0));
+    }
+
+    @Test
+    void unreadableMetricsCompileToInvalidPlan() {
+        CompiledPricingPlan compiled = CompiledPricingPlan.compile(plan("{not json"), objectMapper);
+        assertFalse(compiled.isValid());
+        assertEquals(0.0, compiled.unitPrice("calls"));
+    }
+}
@@ -0,0 +1,71 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.InvoiceRepository;
+import aforo.kong.repository.InvoiceRepository.InvoiceState;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.YearMonth;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InvoiceCloseServiceTest {
+
+    private static final Long ORG = 7L;
+    private static final YearMonth PERIOD = YearMonth.of(2026, 3);
+    private static final Instant START = Instant.parse("2026-03-01T00:00:00Z");
+    private static final Instant END = Instant.parse("2026-04-01T00:00:00Z");
+    private static final String INVOICE_ID = InvoiceCloseService.invoiceId(ORG, PERIOD);
+
+    private final InvoiceRepository invoiceRepository = mock(InvoiceRepository.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private InvoiceCloseService service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null));
+        service = new InvoiceCloseService(invoiceRepository, transactionTemplate, new RatingProperties());
+    }
+
+    @Test
+    void closeAddsThePeriodAdjustmentsToTheTotal() {
+        InvoiceState closing = invoice(InvoiceRepository.STATUS_CLOSING);
+        when(invoiceRepository.findInvoice(INVOICE_ID)).thenReturn(null, invoice(InvoiceRepository.STATUS_CLOSED));
+        when(invoiceRepository.lockInvoice(INVOICE_ID)).thenReturn(closing);
+        when(invoiceRepository.addPeriodAdjustments(closing)).thenReturn(-2.5);
+
+        assertEquals(InvoiceRepository.STATUS_CLOSED, service.close(ORG, PERIOD).status());
+
+        verify(invoiceRepository).close(INVOICE_ID, -2.5);
+    }
+
+    @Test
+    void closeWaitsForOutOfDatePeriodCharges() {
+        when(invoiceRepository.hasStaleCharges(ORG, START)).thenReturn(true);
+
+        assertEquals(InvoiceRepository.STATUS_CLOSING, service.close(ORG, PERIOD).status());
+
+        verify(invoiceRepository, never()).createInvoice(anyString(), any(), any(), any());
+        verify(invoiceRepository, never()).billChunk(any(), any(), anyLong(), anyInt(), anyInt(), any());
+        verify(invoiceRepository, never()).close(anyString(), anyDouble());
+    }
+
+    private static InvoiceState invoice(String status) {
+        return new InvoiceState(INVOICE_ID, ORG, START, END, status, null, null, 0, 0, null);
+    }
+}
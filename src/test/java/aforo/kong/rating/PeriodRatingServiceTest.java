@@ -0,0 +1,176 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.entity.PricingPlan;
+import aforo.kong.repository.UsagePeriodRepository;
+import aforo.kong.repository.UsagePeriodRepository.PeriodCharge;
+import aforo.kong.repository.UsagePeriodRepository.PeriodTotal;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.wallet.WalletLedger;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PeriodRatingServiceTest {
+
+    private static final Long ORG = 7L;
+    private static final Instant PERIOD = Instant.parse("2026-03-01T00:00:00Z");
+    private static final Instant UPDATED = Instant.parse("2026-03-20T10:00:00Z");
+    private static final String TIERS = """
+            [{"type":"calls","tiers":[{"from":0,"to":1000,"price":0.01},{"from":1001,"price":0.008}]}]
+            """;
+
+    private final UsagePeriodRepository periodRepository = mock(UsagePeriodRepository.class);
+    private final PricingPlanCache pricingPlanCache = mock(PricingPlanCache.class);
+    private final WalletLedgerRepository walletLedgerRepository = mock(WalletLedgerRepository.class);
+    private final WalletLedger walletLedger = mock(WalletLedger.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private PeriodRatingService service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null));
+        when(pricingPlanCache.getConsumerPlan(ORG, "c1")).thenReturn(new PricingPlanCache.ConsumerPlan("Gold", true));
+        service = new PeriodRatingService(periodRepository, pricingPlanCache, walletLedgerRepository, walletLedger,
+                transactionTemplate, new RatingProperties());
+    }
+
+    @Test
+    void walletIsTrueUpToTheTieredCharge() {
+        plan("tiered");
+        // 2000 calls were debited per record at the first tier's 0.01; the tiers charge 10 + 8
+        total(2000, 20.0, 0.0);
+
+        service.rateOrganization(ORG, PERIOD);
+
+        PeriodCharge charge = savedCharge();
+        assertEquals(18.0, charge.amount(), 1e-9);
+        assertEquals(20.0, charge.recordCost(), 1e-9);
+        assertEquals(-2.0, charge.walletSettled(), 1e-9);
+        var order = inOrder(periodRepository, walletLedgerRepository, walletLedger);
+        order.verify(periodRepository).lockOrganization(ORG);
+        order.verify(walletLedgerRepository).journalDebits(ORG, Map.of("c1", -2.0));
+        order.verify(walletLedger).applyCommitted(ORG, "c1", 2.0);
+    }
+
+    @Test
+    void reratingPostsOnlyTheChangeSinceTheLastTrueUp() {
+        plan("tiered");
+        // 1000 more calls since the previous rating, which already credited 2
+        total(3000, 30.0, -2.0);
+
+        service.rateOrganization(ORG, PERIOD);
+
+        assertEquals(-4.0, savedCharge().walletSettled(), 1e-9);
+        verify(walletLedgerRepository).journalDebits(ORG, Map.of("c1", -2.0));
+        verify(walletLedger).applyCommitted(ORG, "c1", 2.0);
+    }
+
+    @Test
+    void perUnitPlansAreSettledPerRecordAndEarlierTrueUpsReversed() {
+        plan("per_unit");
+        total(2000, 20.0, -2.0);
+
+        service.rateOrganization(ORG, PERIOD);
+
+        assertEquals(0.0, savedCharge().walletSettled(), 1e-9);
+        verify(walletLedgerRepository).journalDebits(ORG, Map.of("c1", 2.0));
+        verify(walletLedger).applyCommitted(ORG, "c1", -2.0);
+    }
+
+    @Test
+    void unchangedChargeIsNotReratedOrSettledAgain() {
+        plan("tiered");
+        when(periodRepository.findTotalsToRate(ORG, PERIOD)).thenReturn(List.of(new PeriodTotal(
+                PERIOD, "c1", "calls", 2000, UPDATED, "Gold", null, UPDATED, -2.0, 20.0)));
+
+        service.rateOrganization(ORG, PERIOD);
+
+        verify(walletLedgerRepository).journalDebits(ORG, Map.of());
+        verify(walletLedger, never()).applyCommitted(any(), anyString(), anyDouble());
+        verify(periodRepository).saveCharges(ORG, List.of());
+    }
+
+    @Test
+    void periodChargeIsRaisedToThePlansMinimumFee() {
+        plan("tiered", 25.0);
+        total(2000, 20.0, 0.0);
+
+        service.rateOrganization(ORG, PERIOD);
+
+        PeriodCharge charge = savedCharge();
+        assertEquals(25.0, charge.amount(), 1e-9);
+        assertEquals(5.0, charge.walletSettled(), 1e-9);
+        verify(walletLedgerRepository).journalDebits(ORG, Map.of("c1", 5.0));
+    }
+
+    @Test
+    void periodChargeAboveTheMinimumFeeIsKept() {
+        plan("volume", 10.0);
+        // All 2000 calls at the second tier's 0.008
+        total(2000, 20.0, 0.0);
+
+        service.rateOrganization(ORG, PERIOD);
+
+        assertEquals(16.0, savedCharge().amount(), 1e-9);
+    }
+
+    @Test
+    void minimumFeeIsNotChargedForAMetricThePlanDoesNotPrice() {
+        plan("stairstep", 25.0);
+        when(periodRepository.findTotalsToRate(ORG, PERIOD)).thenReturn(List.of(new PeriodTotal(
+                PERIOD, "c1", "bytes", 500, UPDATED, "Gold", null, UPDATED.minusSeconds(60), 0.0, 0.0)));
+
+        service.rateOrganization(ORG, PERIOD);
+
+        assertEquals(0.0, savedCharge().amount(), 1e-9);
+    }
+
+    private void plan(String pricingModel) {
+        plan(pricingModel, null);
+    }
+
+    private void plan(String pricingModel, Double minimumFee) {
+        PricingPlan entity = new PricingPlan();
+        entity.setMinimumFee(minimumFee);
+        entity.setPlanName("Gold");
+        entity.setPricingModel(pricingModel);
+        entity.setPrepaidCreditsEnabled(true);
+        entity.setMetrics(TIERS);
+        when(pricingPlanCache.getPlan(ORG, "Gold")).thenReturn(CompiledPricingPlan.compile(entity, new ObjectMapper()));
+    }
+
+    private void total(double quantity, double recordCost, double walletSettled) {
+        when(periodRepository.findTotalsToRate(ORG, PERIOD)).thenReturn(List.of(new PeriodTotal(
+                PERIOD, "c1", "calls", quantity, UPDATED, "Gold", null, UPDATED.minusSeconds(60),
+                walletSettled, recordCost)));
+    }
+
+    @SuppressWarnings("unchecked")
+    private PeriodCharge savedCharge() {
+        ArgumentCaptor<List<PeriodCharge>> charges = ArgumentCaptor.forClass(List.class);
+        verify(periodRepository).saveCharges(eq(ORG), charges.capture());
+        assertEquals(1, charges.getValue().size());
+        return charges.getValue().get(0);
+    }
+}
@@ -0,0 +1,239 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.UsagePeriodRepository;
+import aforo.kong.repository.UsagePeriodRepository.PeriodQuantity;
+import aforo.kong.repository.UsageRatingRepository;
+import aforo.kong.repository.UsageRatingRepository.RatedUsage;
+import aforo.kong.repository.UsageRatingRepository.UnratedUsage;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.wallet.WalletLedger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RatingEngineTest {
+
+    private static final Long ORG = 7L;
+    private static final Instant T0 = Instant.parse("2026-03-10T12:00:00Z");
+
+    private final UsageRatingRepository ratingRepository = mock(UsageRatingRepository.class);
+    private final UsagePeriodRepository periodRepository = mock(UsagePeriodRepository.class);
+    private final UsageRollupRepository rollupRepository = mock(UsageRollupRepository.class);
+    private final WalletLedgerRepository walletLedgerRepository = mock(WalletLedgerRepository.class);
+    private final WalletLedger walletLedger = mock(WalletLedger.class);
+    private final UsagePricer usagePricer = mock(UsagePricer.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private final RatingProperties properties = new RatingProperties();
+    private RatingEngine engine;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null));
+        when(ratingRepository.findOrganizationsWithUnrated()).thenReturn(List.of(ORG));
+        // Wallet-funded, one unit of price 2 per row
+        when(usagePricer.price(eq(ORG), anyString(), any(), any()))
+                .thenReturn(new UsagePricer.Price(2.0, 2.0, "USD", true));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (engine != null) {
+            engine.stop();
+        }
+    }
+
+    @Test
+    void eachConsumerStaysInOneLaneInRecordOrder() {
+        properties.getEngine().setLanes(3);
+        properties.getEngine().setPageSize(100);
+        List<UnratedUsage> page = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            page.add(usage(i, "consumer-" + (i % 7)));
+        }
+        when(ratingRepository.findUnratedPage(eq(ORG), any(), anyLong(), any(), anyInt())).thenReturn(page);
+        List<List<RatedUsage>> claims = Collections.synchronizedList(new ArrayList<>());
+        when(ratingRepository.claimRatings(eq(ORG), anyList())).thenAnswer(invocation -> {
+            List<RatedUsage> ratings = invocation.getArgument(1);
+            claims.add(ratings);
+            return ids(ratings);
+        });
+
+        assertEquals(40, start().runCycle());
+
+        assertTrue(claims.size() > 1 && claims.size() <= 3);
+        Set<Long> seen = new HashSet<>();
+        for (List<RatedUsage> lane : claims) {
+            Set<String> consumers = new HashSet<>();
+            long previous = -1;
+            for (RatedUsage rated : lane) {
+                assertTrue(seen.add(rated.usageId()));
+                assertTrue(rated.usageId() > previous);
+                previous = rated.usageId();
+                consumers.add(page.get((int) rated.usageId()).consumerId());
+            }
+            for (List<RatedUsage> other : claims) {
+                if (other != lane) {
+                    for (RatedUsage rated : other) {
+                        assertTrue(!consumers.contains(page.get((int) rated.usageId()).consumerId()));
+                    }
+                }
+            }
+        }
+        assertEquals(40, seen.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void onlyClaimedRowsAreCountedAndDebited() {
+        properties.getEngine().setLanes(1);
+        properties.getEngine().setPageSize(100);
+        List<UnratedUsage> page = List.of(usage(1, "a"), usage(2, "a"), usage(3, "b"), usage(4, "b"));
+        when(ratingRepository.findUnratedPage(eq(ORG), any(), anyLong(), any(), anyInt())).thenReturn(page);
+        // Another runner already rated rows 2 and 4
+        when(ratingRepository.claimRatings(eq(ORG), anyList())).thenReturn(Set.of(1L, 3L));
+
+        assertEquals(2, start().runCycle());
+
+        ArgumentCaptor<Map<String, Double>> debits = ArgumentCaptor.forClass(Map.class);
+        verify(walletLedgerRepository).journalDebits(eq(ORG), debits.capture());
+        assertEquals(Map.of("a", 2.0, "b", 2.0), debits.getValue());
+        verify(walletLedger).applyCommitted(ORG, "a", -2.0);
+        verify(walletLedger).applyCommitted(ORG, "b", -2.0);
+
+        ArgumentCaptor<List<RatedUsage>> rollups = ArgumentCaptor.forClass(List.class);
+        verify(rollupRepository).addRated(eq(ORG), rollups.capture());
+        assertEquals(Set.of(1L, 3L), ids(rollups.getValue()));
+
+        ArgumentCaptor<List<PeriodQuantity>> totals = ArgumentCaptor.forClass(List.class);
+        verify(periodRepository).addTotals(eq(ORG), totals.capture());
+        assertEquals(2, totals.getValue().size());
+        totals.getValue().forEach(q -> assertEquals(1.0, q.quantity()));
+        assertEquals(2L, engine.getStats().get("ratedTotal"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void walletSeesDebitsOnlyAfterTheTransactionCommits() {
+        properties.getEngine().setLanes(1);
+        properties.getEngine().setPageSize(100);
+        when(ratingRepository.findUnratedPage(eq(ORG), any(), anyLong(), any(), anyInt()))
+                .thenReturn(List.of(usage(1, "a")));
+        when(ratingRepository.claimRatings(eq(ORG), anyList())).thenReturn(Set.of(1L));
+        AtomicBoolean committed = new AtomicBoolean();
+        doAnswer(invocation -> {
+            Object result = ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null);
+            committed.set(true);
+            return result;
+        }).when(transactionTemplate).execute(any());
+        List<Boolean> seenCommitted = new ArrayList<>();
+        doAnswer(invocation -> seenCommitted.add(committed.get()))
+                .when(walletLedger).applyCommitted(ORG, "a", -2.0);
+
+        start().runCycle();
+
+        assertEquals(List.of(true), seenCommitted);
+        verify(walletLedger, never()).debit(any(), anyString(), anyDouble());
+    }
+
+    @Test
+    void nothingClaimedMeansNothingCountedOrDebited() {
+        properties.getEngine().setLanes(1);
+        properties.getEngine().setPageSize(100);
+        when(ratingRepository.findUnratedPage(eq(ORG), any(), anyLong(), any(), anyInt()))
+                .thenReturn(List.of(usage(1, "a")));
+        when(ratingRepository.claimRatings(eq(ORG), anyList())).thenReturn(Set.of());
+
+        assertEquals(0, start().runCycle());
+
+        verify(walletLedgerRepository).journalDebits(ORG, Map.of());
+        verify(walletLedger, never()).applyCommitted(any(), anyString(), anyDouble());
+        verify(periodRepository).addTotals(ORG, List.of());
+        verify(rollupRepository).addRated(ORG, List.of());
+    }
+
+    @Test
+    void pagesFromTheLastRowAndCheckpointsEachPage() {
+        properties.getEngine().setLanes(2);
+        properties.getEngine().setPageSize(2);
+        UnratedUsage first = usage(10, "a");
+        UnratedUsage second = usage(11, "b");
+        UnratedUsage third = usage(12, "a");
+        when(ratingRepository.findUnratedPage(eq(ORG), eq(Instant.EPOCH), eq(-1L), any(), eq(2)))
+                .thenReturn(List.of(first, second));
+        when(ratingRepository.findUnratedPage(eq(ORG), eq(second.timestamp()), eq(11L), any(), eq(2)))
+                .thenReturn(List.of(third));
+        when(ratingRepository.claimRatings(eq(ORG), anyList()))
+                .thenAnswer(invocation -> ids(invocation.getArgument(1)));
+
+        assertEquals(3, start().runCycle());
+
+        verify(ratingRepository).saveCheckpoint(eq(ORG), eq(second.timestamp()), eq(11L), eq(2L), anyLong());
+        verify(ratingRepository).saveCheckpoint(ORG, third.timestamp(), 12L, 1L, 0L);
+        verify(ratingRepository, never()).saveCheckpoint(eq(ORG), isNull(), any(), anyLong(), anyLong());
+    }
+
+    @Test
+    void failedLaneLeavesItsRowsForTheNextCycleAndStillCheckpoints() {
+        properties.getEngine().setLanes(1);
+        properties.getEngine().setPageSize(100);
+        when(ratingRepository.findUnratedPage(eq(ORG), any(), anyLong(), any(), anyInt()))
+                .thenReturn(List.of(usage(1, "a")));
+        when(ratingRepository.claimRatings(eq(ORG), anyList())).thenThrow(new IllegalStateException("db down"));
+
+        assertEquals(0, start().runCycle());
+
+        verify(walletLedger, never()).applyCommitted(any(), anyString(), anyDouble());
+        verify(ratingRepository, atLeastOnce()).saveCheckpoint(eq(ORG), any(), any(), eq(0L), anyLong());
+        assertEquals(1L, engine.getStats().get("failedTotal"));
+    }
+
+    private RatingEngine start() {
+        engine = new RatingEngine(ratingRepository, periodRepository, rollupRepository, walletLedgerRepository,
+                walletLedger, usagePricer, transactionTemplate, properties);
+        engine.start();
+        return engine;
+    }
+
+    private static UnratedUsage usage(long usageId, String consumerId) {
+        return new UnratedUsage(usageId, T0.plusSeconds(usageId), consumerId, "calls", 1.0);
+    }
+
+    private static Set<Long> ids(List<RatedUsage> ratings) {
+        Set<Long> ids = new HashSet<>();
+        ratings.forEach(r -> ids.add(r.usageId()));
+        return ids;
+    }
+}
@@ -0,0 +1,199 @@
+package aforo.kong.rating;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.KongConsumerRepository;
+import aforo.kong.repository.RerateRepository;
+import aforo.kong.repository.RerateRepository.DiffLine;
+import aforo.kong.repository.RerateRepository.RatedRow;
+import aforo.kong.repository.RerateRepository.RerateJob;
+import aforo.kong.repository.RerateRepository.ReratePartition;
+import aforo.kong.repository.UsageRatingRepository;
+import aforo.kong.repository.UsageRatingRepository.RatedUsage;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.wallet.WalletLedger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RerateServiceTest {
+
+    private static final Long ORG = 7L;
+    private static final long JOB = 11L;
+    private static final Instant MARCH = Instant.parse("2026-03-01T00:00:00Z");
+    private static final Instant APRIL = Instant.parse("2026-04-01T00:00:00Z");
+
+    private final RerateRepository rerateRepository = mock(RerateRepository.class);
+    private final UsageRatingRepository ratingRepository = mock(UsageRatingRepository.class);
+    private final UsageRollupRepository rollupRepository = mock(UsageRollupRepository.class);
+    private final WalletLedgerRepository walletLedgerRepository = mock(WalletLedgerRepository.class);
+    private final WalletLedger walletLedger = mock(WalletLedger.class);
+    private final KongConsumerRepository consumerRepository = mock(KongConsumerRepository.class);
+    private final PricingPlanCache pricingPlanCache = mock(PricingPlanCache.class);
+    private final UsagePricer usagePricer = mock(UsagePricer.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private RerateService service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        when(transactionTemplate.execute(any())).thenAnswer(invocation ->
+                ((TransactionCallback<Object>) invocation.getArgument(0)).doInTransaction(null));
+        when(usagePricer.price(eq(ORG), anyString(), eq("calls"), any()))
+                .thenReturn(new UsagePricer.Price(0.02, 0.02, "USD", false));
+        service = new RerateService(rerateRepository, ratingRepository, rollupRepository, walletLedgerRepository,
+                walletLedger, consumerRepository, pricingPlanCache, usagePricer, transactionTemplate,
+                new RatingProperties());
+    }
+
+    @Test
+    void rangeIsSplitAtMonthBoundaries() {
+        List<Instant[]> slices = RerateService.monthSlices(Instant.parse("2026-01-15T10:00:00Z"),
+                Instant.parse("2026-03-10T00:00:00Z"));
+
+        assertEquals(List.of(
+                List.of(Instant.parse("2026-01-15T10:00:00Z"), Instant.parse("2026-02-01T00:00:00Z")),
+                List.of(Instant.parse("2026-02-01T00:00:00Z"), MARCH),
+                List.of(MARCH, Instant.parse("2026-03-10T00:00:00Z"))),
+                slices.stream().map(Arrays::asList).toList());
+        assertEquals(1, RerateService.monthSlices(MARCH, APRIL).size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void jobHasOnePartitionPerMatchingConsumerAndMonth() {
+        when(consumerRepository.findPlanAssignments(ORG)).thenReturn(List.of(
+                new Object[]{"c-1", "gold", true},
+                new Object[]{"c-2", "silver", false},
+                new Object[]{"c-3", "gold", false},
+                new Object[]{"c-4", "bronze", false}));
+        when(rerateRepository.createJob(eq(ORG), any(), any(), anyBoolean(), anyBoolean())).thenReturn(JOB);
+        when(rerateRepository.findJob(JOB)).thenReturn(job(RerateRepository.STATUS_RUNNING, false));
+
+        service.start(ORG, new RerateService.RerateRequest(Instant.parse("2026-02-10T00:00:00Z"), APRIL,
+                List.of("c-2"), List.of("gold"), false, false));
+
+        ArgumentCaptor<List<ReratePartition>> partitions = ArgumentCaptor.forClass(List.class);
+        verify(rerateRepository).addPartitions(eq(JOB), partitions.capture());
+        assertEquals(List.of("c-1/2026-02-10T00:00:00Z", "c-1/2026-03-01T00:00:00Z",
+                "c-2/2026-02-10T00:00:00Z", "c-2/2026-03-01T00:00:00Z",
+                "c-3/2026-02-10T00:00:00Z", "c-3/2026-03-01T00:00:00Z"),
+                partitions.getValue().stream().map(p -> p.consumerId() + "/" + p.sliceStart()).toList());
+        verify(pricingPlanCache).invalidate(ORG);
+        verify(rerateRepository, timeout(5000)).finishJob(JOB, RerateRepository.STATUS_COMPLETED, null);
+    }
+
+    @Test
+    void dryRunReportsTheDiffWithoutRepricing() {
+        ReratePartition partition = partition("c-1", RerateRepository.STATUS_RUNNING, null, null);
+        when(rerateRepository.findJob(JOB)).thenReturn(job(RerateRepository.STATUS_RUNNING, true));
+        when(rerateRepository.findPartitions(JOB)).thenReturn(List.of(partition));
+        when(rerateRepository.lockPartition(JOB, "c-1", MARCH)).thenReturn(partition);
+        when(rerateRepository.findPage(eq(ORG), eq("c-1"), any(), anyLong(), any(), anyInt(), anyBoolean()))
+                .thenReturn(List.of(row(1, 0.01), row(2, 0.01), row(3, 0.02)));
+
+        service.resume(ORG, JOB);
+
+        verify(rerateRepository, timeout(5000)).finishJob(JOB, RerateRepository.STATUS_COMPLETED, null);
+        // Dry runs read without locking and only write the report and the cursor
+        verify(rerateRepository).findPage(ORG, "c-1", MARCH, -1L, APRIL, 5000, false);
+        verify(rerateRepository).addDiff(JOB, List.of(new DiffLine("c-1", "calls", 0.01, 0.02, "USD", 2, 0.02, 0.04)));
+        verify(rerateRepository).advance(eq(JOB), eq(partition), eq(at(3)), eq(3L), eq(3L), eq(2L), anyDouble(),
+                eq(true));
+        verify(rollupRepository, never()).reprice(any(), any());
+        verify(ratingRepository, never()).repriceRatings(any(), any());
+        verify(walletLedgerRepository, never()).journalDebits(any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void resumedJobContinuesAfterEachPartitionsCursor() {
+        ReratePartition done = partition("c-1", RerateRepository.STATUS_DONE, at(9), 9L);
+        ReratePartition halfway = partition("c-2", RerateRepository.STATUS_RUNNING, at(41), 41L);
+        when(rerateRepository.findJob(JOB)).thenReturn(job(RerateRepository.STATUS_FAILED, false),
+                job(RerateRepository.STATUS_RUNNING, false));
+        when(rerateRepository.findPartitions(JOB)).thenReturn(List.of(done, halfway));
+        when(rerateRepository.lockPartition(JOB, "c-2", MARCH)).thenReturn(halfway);
+        when(rerateRepository.findPage(eq(ORG), eq("c-2"), any(), anyLong(), any(), anyInt(), anyBoolean()))
+                .thenReturn(List.of(row(42, 0.01)));
+
+        service.resume(ORG, JOB);
+
+        verify(rerateRepository, timeout(5000)).finishJob(JOB, RerateRepository.STATUS_COMPLETED, null);
+        verify(rerateRepository).reopenJob(JOB);
+        verify(rerateRepository, never()).lockPartition(JOB, "c-1", MARCH);
+        verify(rerateRepository).findPage(ORG, "c-2", at(41), 41L, APRIL, 5000, true);
+        ArgumentCaptor<List<RatedUsage>> changed = ArgumentCaptor.forClass(List.class);
+        verify(rollupRepository).reprice(eq(ORG), changed.capture());
+        assertEquals(List.of(42L), changed.getValue().stream().map(RatedUsage::usageId).toList());
+        verify(ratingRepository).repriceRatings(ORG, changed.getValue());
+    }
+
+    @Test
+    void partitionAlreadyAdvancedByAnotherRunnerIsLeftAlone() {
+        when(rerateRepository.findJob(JOB)).thenReturn(job(RerateRepository.STATUS_RUNNING, false));
+        when(rerateRepository.findPartitions(JOB))
+                .thenReturn(List.of(partition("c-1", RerateRepository.STATUS_RUNNING, null, null)));
+        when(rerateRepository.lockPartition(JOB, "c-1", MARCH))
+                .thenReturn(partition("c-1", RerateRepository.STATUS_DONE, at(5), 5L));
+
+        service.resume(ORG, JOB);
+
+        verify(rerateRepository, timeout(5000)).finishJob(JOB, RerateRepository.STATUS_COMPLETED, null);
+        verify(rerateRepository, never()).findPage(any(), anyString(), any(), anyLong(), any(), anyInt(), anyBoolean());
+    }
+
+    @Test
+    void rowsThatCannotBePricedNowKeepTheirPrice() {
+        ReratePartition partition = partition("c-1", RerateRepository.STATUS_RUNNING, null, null);
+        when(rerateRepository.findJob(JOB)).thenReturn(job(RerateRepository.STATUS_RUNNING, false));
+        when(rerateRepository.findPartitions(JOB)).thenReturn(List.of(partition));
+        when(rerateRepository.lockPartition(JOB, "c-1", MARCH)).thenReturn(partition);
+        when(rerateRepository.findPage(eq(ORG), eq("c-1"), any(), anyLong(), any(), anyInt(), anyBoolean()))
+                .thenReturn(List.of(row(1, 0.01)));
+        when(usagePricer.price(eq(ORG), eq("c-1"), eq("calls"), any()))
+                .thenReturn(new UsagePricer.Price(null, null, null, false));
+
+        service.resume(ORG, JOB);
+
+        verify(rerateRepository, timeout(5000)).finishJob(JOB, RerateRepository.STATUS_COMPLETED, null);
+        verify(rerateRepository).advance(JOB, partition, at(1), 1L, 1L, 0L, 0.0, true);
+        verify(rollupRepository, never()).reprice(any(), any());
+    }
+
+    private static RerateJob job(String status, boolean dryRun) {
+        return new RerateJob(JOB, ORG, MARCH, APRIL, dryRun, false, status, null, MARCH, null);
+    }
+
+    private static ReratePartition partition(String consumerId, String status, Instant cursor, Long cursorUsageId) {
+        return new ReratePartition(consumerId, MARCH, APRIL, status, cursor, cursorUsageId, 0, 0, 0);
+    }
+
+    private static RatedRow row(long usageId, double unitPrice) {
+        return new RatedRow(usageId, at(usageId), "calls", 1.0, unitPrice, unitPrice, "USD");
+    }
+
+    private static Instant at(long usageId) {
+        return MARCH.plusSeconds(usageId);
+    }
+}
@@ -0,0 +1,62 @@
+package aforo.kong.rating;
+
+import aforo.kong.entity.PricingPlan;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TierPricingTest {
+
+    private static final String TIERS = """
+            [{"type":"calls","tiers":[
+                {"from":0,"to":1000,"price":0.01},
+                {"from":1001,"to":5000,"price":0.008},
+                {"from":5001,"price":0.005}]},
+             {"type":"bandwidth","price":0.1}]
+            """;
+
+    private final CompiledPricingPlan plan;
+
+    TierPricingTest() {
+        PricingPlan entity = new PricingPlan();
+        entity.setPlanName("Gold");
+        entity.setMetrics(TIERS);
+        plan = CompiledPricingPlan.compile(entity, new ObjectMapper());
+    }
+
+    private double charge(String model, double quantity) {
+        return TierPricing.charge(model, plan.metric("calls"), quantity);
+    }
+
+    @Test
+    void tieredPricesEachSliceInItsOwnTier() {
+        assertEquals(5.0, charge("tiered", 500), 1e-9);
+        assertEquals(10.0, charge("tiered", 1000), 1e-9);
+        assertEquals(10.0 + 4000 * 0.008, charge("tiered", 5000), 1e-9);
+        assertEquals(10.0 + 32.0 + 1000 * 0.005, charge("tiered", 6000), 1e-9);
+        assertEquals(10.0 + 0.5 * 0.008, charge("tiered", 1000.5), 1e-9);
+    }
+
+    @Test
+    void volumePricesAllUnitsAtTheReachedTier() {
+        assertEquals(10.0, charge("volume", 1000), 1e-9);
+        assertEquals(1001 * 0.008, charge("volume", 1001), 1e-9);
+        assertEquals(6000 * 0.005, charge("Volume", 6000), 1e-9);
+    }
+
+    @Test
+    void stairstepChargesTheReachedTierAsAFlatFee() {
+        assertEquals(0.01, charge("stairstep", 1), 1e-9);
+        assertEquals(0.008, charge("stairstep", 4999), 1e-9);
+        assertEquals(0.005, charge("stairstep", 1_000_000), 1e-9);
+    }
+
+    @Test
+    void otherModelsAndFlatMetricsArePerUnit() {
+        assertEquals(6000 * 0.01, charge("per_unit", 6000), 1e-9);
+        assertEquals(2.5, TierPricing.charge("tiered", plan.metric("bandwidth"), 25), 1e-9);
+        assertEquals(0.0, TierPricing.charge("tiered", plan.metric("storage"), 25), 1e-9);
+        assertEquals(0.0, charge("tiered", 0), 1e-9);
+    }
+}
@@ -0,0 +1,77 @@
+package aforo.kong.repository;
+
+import aforo.kong.repository.KonnectMapSyncRepository.ServiceMapping;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+class KonnectMapSyncRepositoryTest {
+
+    private static final Instant SYNCED = Instant.parse("2026-03-10T12:00:00Z");
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement statement = mock(PreparedStatement.class);
+    private final KonnectMapSyncRepository repository = new KonnectMapSyncRepository(jdbcTemplate);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenAnswer(invocation ->
+                ((ConnectionCallback<?>) invocation.getArgument(0)).doInConnection(connection));
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+    }
+
+    @Test
+    void chunkOfServicesIsOneStatementOverArrays() throws Exception {
+        when(statement.executeUpdate()).thenReturn(2);
+
+        int written = repository.upsertServices(7L, "cp-1", List.of(service(null, "s1"), service(12L, "s2")), SYNCED);
+
+        assertEquals(2, written);
+        verify(connection, times(1)).prepareStatement(anyString());
+        verify(statement, times(1)).executeUpdate();
+        verify(connection).createArrayOf("varchar", new Object[]{"s1", "s2"});
+        verify(connection).createArrayOf("integer", new Object[]{80, 80});
+    }
+
+    @Test
+    void disabledMappingsAreOneStatementOverTheirIds() throws Exception {
+        when(statement.executeUpdate()).thenReturn(3);
+
+        assertEquals(3, repository.disableRoutes(List.of(1L, 2L, 3L), SYNCED));
+
+        verify(connection).prepareStatement(eq("UPDATE konnect_route_map SET status = 'DISABLED', updated_at = ? "
+                + "WHERE id = ANY(?::bigint[]) AND status = 'ACTIVE'"));
+        verify(connection).createArrayOf("bigint", new Object[]{1L, 2L, 3L});
+    }
+
+    @Test
+    void nothingToWriteIssuesNoStatement() {
+        assertEquals(0, repository.upsertServices(7L, "cp-1", List.of(), SYNCED));
+        assertEquals(0, repository.upsertRoutes(7L, "cp-1", List.of(), SYNCED));
+        assertEquals(0, repository.disableServices(List.of(), SYNCED));
+
+        verifyNoInteractions(connection);
+    }
+
+    private static ServiceMapping service(Long id, String kongServiceId) {
+        return new ServiceMapping(id, kongServiceId, "orders-" + kongServiceId, "[]", "orders.internal", 80, "/",
+                "http", "hash-" + kongServiceId, KonnectMapSyncRepository.STATUS_ACTIVE);
+    }
+}
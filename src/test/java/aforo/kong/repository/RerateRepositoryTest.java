@@ -0,0 +1,94 @@
+package aforo.kong.repository;
+
+import aforo.kong.repository.RerateRepository.ReratePartition;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RerateRepositoryTest {
+
+    private static final Instant MARCH = Instant.parse("2026-03-01T00:00:00Z");
+    private static final Instant APRIL = Instant.parse("2026-04-01T00:00:00Z");
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement statement = mock(PreparedStatement.class);
+    private final RerateRepository repository = new RerateRepository(jdbcTemplate);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenAnswer(invocation ->
+                ((ConnectionCallback<?>) invocation.getArgument(0)).doInConnection(connection));
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void pageSkipsBilledRowsAndLocksOnlyWhenRewriting() {
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+
+        repository.findPage(7L, "c-1", MARCH, 41L, APRIL, 500, true);
+        repository.findPage(7L, "c-1", MARCH, 41L, APRIL, 500, false);
+
+        verify(jdbcTemplate, times(2)).query(sql.capture(), any(RowMapper.class), eq(7L), eq("c-1"),
+                eq(Timestamp.from(APRIL)), eq(Timestamp.from(MARCH)), eq(41L), eq(500));
+        String rewrite = sql.getAllValues().get(0);
+        String dryRun = sql.getAllValues().get(1);
+        // Rows of a closed period are billed by the invoice close, so neither run sees them
+        assertTrue(rewrite.contains("processed = true AND billed = false"));
+        assertTrue(dryRun.contains("processed = true AND billed = false"));
+        assertTrue(rewrite.contains("(\"timestamp\", usage_id) > (?, ?)"));
+        assertTrue(rewrite.endsWith(" FOR UPDATE"));
+        assertFalse(dryRun.contains("FOR UPDATE"));
+    }
+
+    @Test
+    void partitionsAreOneStatementOverArrays() throws Exception {
+        repository.addPartitions(11L, List.of(
+                new ReratePartition("c-1", MARCH, APRIL, RerateRepository.STATUS_RUNNING, null, null, 0, 0, 0),
+                new ReratePartition("c-2", MARCH, APRIL, RerateRepository.STATUS_RUNNING, null, null, 0, 0, 0)));
+
+        verify(connection, times(1)).prepareStatement(anyString());
+        verify(statement, times(1)).executeUpdate();
+        verify(connection).createArrayOf("varchar", new Object[]{"c-1", "c-2"});
+        verify(connection, times(1)).createArrayOf("timestamp",
+                new Object[]{Timestamp.from(MARCH), Timestamp.from(MARCH)});
+        verify(connection, times(1)).createArrayOf("timestamp",
+                new Object[]{Timestamp.from(APRIL), Timestamp.from(APRIL)});
+    }
+
+    @Test
+    void finishedPageMovesTheCursorAndClosesThePartition() {
+        ReratePartition partition = new ReratePartition("c-1", MARCH, APRIL, RerateRepository.STATUS_RUNNING,
+                null, null, 0, 0, 0);
+        Instant cursor = MARCH.plusSeconds(60);
+
+        repository.advance(11L, partition, cursor, 42L, 3, 2, 0.5, true);
+        repository.advance(11L, partition, null, -1L, 0, 0, 0, false);
+
+        verify(jdbcTemplate).update(anyString(), eq(Timestamp.from(cursor)), eq(42L), eq(3L), eq(2L), eq(0.5),
+                eq(RerateRepository.STATUS_DONE), eq(11L), eq("c-1"), eq(Timestamp.from(MARCH)));
+        // An empty first page leaves the partition unstarted rather than at usage id -1
+        verify(jdbcTemplate).update(anyString(), eq(null), eq(null), eq(0L), eq(0L), eq(0.0),
+                eq(RerateRepository.STATUS_RUNNING), eq(11L), eq("c-1"), eq(Timestamp.from(MARCH)));
+    }
+}
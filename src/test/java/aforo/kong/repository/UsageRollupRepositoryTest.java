@@ -0,0 +1,139 @@
+package aforo.kong.repository;
+
+import aforo.kong.repository.UsageRatingRepository.RatedUsage;
+import aforo.kong.repository.UsageRollupRepository.UsageTotals;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UsageRollupRepositoryTest {
+
+    private static final Long ORG = 7L;
+
+    private final JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+    private final Connection connection = mock(Connection.class);
+    private final PreparedStatement statement = mock(PreparedStatement.class);
+    private final UsageRollupRepository repository = new UsageRollupRepository(jdbcTemplate);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(jdbcTemplate.execute(any(ConnectionCallback.class))).thenAnswer(invocation ->
+                ((ConnectionCallback<?>) invocation.getArgument(0)).doInConnection(connection));
+        when(connection.prepareStatement(anyString())).thenReturn(statement);
+    }
+
+    @Test
+    void rangeIsSplitIntoWholeDaysWholeHoursAndRawEdges() {
+        List<String> arms = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        totals(at("2026-03-09T22:30:00Z"), at("2026-03-12T01:15:00Z"), null, arms, args);
+
+        assertEquals(List.of("usage_rollup_daily", "usage_rollup_hourly", "usage_rollup_hourly",
+                "usage_record", "usage_record"), arms);
+        assertEquals(List.of(
+                ORG, ts("2026-03-10T00:00:00Z"), ts("2026-03-12T00:00:00Z"),
+                ORG, ts("2026-03-09T23:00:00Z"), ts("2026-03-10T00:00:00Z"),
+                ORG, ts("2026-03-12T00:00:00Z"), ts("2026-03-12T01:00:00Z"),
+                ORG, ts("2026-03-09T22:30:00Z"), ts("2026-03-09T23:00:00Z"),
+                ORG, ts("2026-03-12T01:00:00Z"), ts("2026-03-12T01:15:00Z")), args);
+    }
+
+    @Test
+    void rangeWithinOneHourIsReadRaw() {
+        List<String> arms = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        totals(at("2026-03-09T22:05:00Z"), at("2026-03-09T22:55:00Z"), null, arms, args);
+
+        assertEquals(List.of("usage_record"), arms);
+        assertEquals(List.of(ORG, ts("2026-03-09T22:05:00Z"), ts("2026-03-09T22:55:00Z")), args);
+    }
+
+    @Test
+    void unratedRowsInsideTheRolledUpHoursAreReadRaw() {
+        List<String> arms = new ArrayList<>();
+        List<Object> args = new ArrayList<>();
+        totals(at("2026-03-10T00:00:00Z"), at("2026-03-10T06:00:00Z"), at("2026-03-10T04:20:00Z"), arms, args);
+
+        assertEquals(List.of("usage_rollup_hourly", "usage_record"), arms);
+        assertEquals(List.of(
+                ORG, ts("2026-03-10T00:00:00Z"), ts("2026-03-10T06:00:00Z"),
+                ORG, ts("2026-03-10T04:20:00Z"), ts("2026-03-10T06:00:00Z")), args);
+    }
+
+    @Test
+    void ratedRowsAreAddedToBothRollupsAtTheBoundariesRangesAreSplitAt() throws Exception {
+        ArgumentCaptor<String> sql = ArgumentCaptor.forClass(String.class);
+        Instant timestamp = at("2026-03-09T23:59:59Z");
+
+        repository.addRated(ORG, List.of(new RatedUsage(41L, timestamp, 0.01, 0.01, "USD")));
+
+        verify(connection, times(2)).prepareStatement(sql.capture());
+        // Hourly and daily buckets are the units source() splits ranges into
+        assertTrue(sql.getAllValues().get(0).contains("INSERT INTO usage_rollup_hourly AS r"));
+        assertTrue(sql.getAllValues().get(0).contains("date_trunc('hour', u.\"timestamp\")"));
+        assertTrue(sql.getAllValues().get(1).contains("INSERT INTO usage_rollup_daily AS r"));
+        assertTrue(sql.getAllValues().get(1).contains("date_trunc('day', u.\"timestamp\")"));
+        // Totals of a bucket that already exists are added to, not replaced
+        assertTrue(sql.getAllValues().get(0).contains("request_count = r.request_count + EXCLUDED.request_count"));
+        assertTrue(sql.getAllValues().get(0).contains("total_cost = r.total_cost + EXCLUDED.total_cost"));
+        verify(connection, times(2)).createArrayOf("bigint", new Object[]{41L});
+        verify(connection, times(2)).createArrayOf("timestamp", new Object[]{Timestamp.from(timestamp)});
+        verify(statement, times(2)).setLong(3, ORG);
+        verify(statement, times(2)).executeUpdate();
+    }
+
+    @Test
+    void nothingRatedWritesNothing() {
+        repository.addRated(ORG, List.of());
+        repository.reprice(ORG, List.of());
+
+        verify(jdbcTemplate, times(0)).execute(any(ConnectionCallback.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void totals(Instant start, Instant end, Instant watermark, List<String> arms, List<Object> args) {
+        when(jdbcTemplate.queryForObject(anyString(), eq(Timestamp.class), eq(ORG)))
+                .thenReturn(watermark != null ? Timestamp.from(watermark) : null);
+        when(jdbcTemplate.queryForObject(anyString(), any(RowMapper.class), any(Object[].class)))
+                .thenAnswer(invocation -> {
+                    String sql = invocation.getArgument(0);
+                    for (String arm : sql.substring(sql.indexOf("FROM (")).split(" UNION ALL ")) {
+                        arms.add(arm.replaceAll("(?s).* FROM (\\w+) WHERE .*", "$1"));
+                    }
+                    Object[] raw = invocation.getRawArguments();
+                    args.addAll(Arrays.asList((Object[]) raw[2]));
+                    return new UsageTotals(0, 0, 0, 0, 0);
+                });
+
+        repository.findTotals(ORG, null, start, end);
+    }
+
+    private static Instant at(String instant) {
+        return Instant.parse(instant);
+    }
+
+    private static Timestamp ts(String instant) {
+        return Timestamp.from(Instant.parse(instant));
+    }
+}
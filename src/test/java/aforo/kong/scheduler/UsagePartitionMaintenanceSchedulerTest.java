@@ -0,0 +1,59 @@
+package aforo.kong.scheduler;
+
+import aforo.kong.config.KongIngestProperties;
+import aforo.kong.repository.UsagePartitionRepository;
+import aforo.kong.repository.UsagePartitionRepository.UsageTable;
+import org.junit.jupiter.api.Test;
+
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.List;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class UsagePartitionMaintenanceSchedulerTest {
+
+    private final UsagePartitionRepository repository = mock(UsagePartitionRepository.class);
+    private final YearMonth current = YearMonth.now(ZoneOffset.UTC);
+
+    @Test
+    void pendingRowsDelayDropsOnlyForTheGracePeriod() {
+        KongIngestProperties properties = new KongIngestProperties();
+        properties.getPartitions().setRetentionMonths(2);
+        properties.getPartitions().setPendingGraceMonths(1);
+        List<YearMonth> months = List.of(current.minusMonths(5), current.minusMonths(4), current.minusMonths(3),
+                current.minusMonths(2), current.minusMonths(1), current);
+        when(repository.createMonthlyPartition(any(), any(), anyInt())).thenReturn(false);
+        when(repository.findPartitionMonths(any())).thenReturn(months);
+        when(repository.hasPendingRows(any(), any())).thenReturn(true);
+
+        new UsagePartitionMaintenanceScheduler(repository, properties).maintainPartitions();
+
+        for (UsageTable table : UsageTable.values()) {
+            verify(repository).dropPartition(table, current.minusMonths(5));
+            verify(repository).dropPartition(table, current.minusMonths(4));
+            // Expired, but still inside the grace period
+            verify(repository, never()).dropPartition(table, current.minusMonths(3));
+            verify(repository, never()).dropPartition(table, current.minusMonths(2));
+        }
+    }
+
+    @Test
+    void dropsExpiredMonthsWithoutPendingRowsAtTheHorizon() {
+        KongIngestProperties properties = new KongIngestProperties();
+        properties.getPartitions().setRetentionMonths(1);
+        when(repository.createMonthlyPartition(any(), any(), anyInt())).thenReturn(false);
+        when(repository.findPartitionMonths(any())).thenReturn(List.of(current.minusMonths(2), current.minusMonths(1)));
+        when(repository.hasPendingRows(any(), any())).thenReturn(false);
+
+        new UsagePartitionMaintenanceScheduler(repository, properties).maintainPartitions();
+
+        verify(repository).dropPartition(UsageTable.USAGE_RECORD, current.minusMonths(2));
+        verify(repository, never()).dropPartition(UsageTable.USAGE_RECORD, current.minusMonths(1));
+    }
+}
@@ -0,0 +1,250 @@
+package aforo.kong.service.impl;
+
+import aforo.kong.client.KonnectFingerprint;
+import aforo.kong.client.KonnectWebClient;
+import aforo.kong.config.KonnectSyncProperties;
+import aforo.kong.entity.ClientApiDetails;
+import aforo.kong.ingest.KongMappingIndex;
+import aforo.kong.repository.ClientApiDetailsRepository;
+import aforo.kong.repository.KonnectMapSyncRepository;
+import aforo.kong.repository.KonnectMapSyncRepository.ServiceMapping;
+import aforo.kong.repository.KonnectMapSyncRepository.SyncState;
+import aforo.kong.service.SyncDeadline;
+import aforo.kong.util.EncryptionUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.ExpectedCount;
+import org.springframework.test.web.client.MockRestServiceServer;
+import org.springframework.web.client.RestTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.requestTo;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withStatus;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.withSuccess;
+
+class KongRuntimeServiceImplTest {
+
+    private static final Long ORG = 7L;
+    private static final String CONTROL_PLANE = "https://konnect.test/v2/control-planes/cp-1/core-entities/";
+    private static final String NEWEST_FIRST = "?size=2&sort_by=updated_at&sort_desc=true";
+
+    private final ClientApiDetailsRepository connectionRepository = mock(ClientApiDetailsRepository.class);
+    private final EncryptionUtil encryptionUtil = mock(EncryptionUtil.class);
+    private final KongMappingIndex mappingIndex = mock(KongMappingIndex.class);
+    private final KonnectMapSyncRepository mapSyncRepository = mock(KonnectMapSyncRepository.class);
+    private final KonnectSyncProperties properties = new KonnectSyncProperties();
+    private MockRestServiceServer konnect;
+    private KongRuntimeServiceImpl service;
+
+    @BeforeEach
+    void setUp() {
+        RestTemplate restTemplate = new RestTemplate();
+        // Pages are prefetched, so a request may go out before the caller is done with the previous page
+        konnect = MockRestServiceServer.bindTo(restTemplate).ignoreExpectOrder(true).build();
+        properties.setPageSize(100);
+        ClientApiDetails connection = new ClientApiDetails();
+        connection.setOrganizationId(ORG);
+        connection.setBaseUrl("https://konnect.test");
+        connection.setAdditionalConfig("{\"controlPlaneId\":\"cp-1\"}");
+        when(connectionRepository.findByOrganizationIdAndEnvironment(ORG, "konnect")).thenReturn(Optional.of(connection));
+        when(encryptionUtil.decrypt(any())).thenReturn("token");
+
+        service = new KongRuntimeServiceImpl();
+        ReflectionTestUtils.setField(service, "konnectClient", new KonnectWebClient(restTemplate, new ObjectMapper()));
+        ReflectionTestUtils.setField(service, "connectionRepository", connectionRepository);
+        ReflectionTestUtils.setField(service, "encryptionUtil", encryptionUtil);
+        ReflectionTestUtils.setField(service, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(service, "mappingIndex", mappingIndex);
+        ReflectionTestUtils.setField(service, "syncProperties", properties);
+        ReflectionTestUtils.setField(service, "mapSyncRepository", mapSyncRepository);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void fullSyncUpsertsOnlyNewAndChangedServicesAndDisablesTheUnlisted() {
+        Map<String, ServiceMapping> stored = new HashMap<>();
+        stored.put("s1", mapping(11L, "s1", hash("s1"), KonnectMapSyncRepository.STATUS_ACTIVE));
+        stored.put("s2", mapping(12L, "s2", "stale", KonnectMapSyncRepository.STATUS_ACTIVE));
+        stored.put("s3", mapping(13L, "s3", hash("s3"), KonnectMapSyncRepository.STATUS_ACTIVE));
+        stored.put("s4", mapping(14L, "s4", hash("s4"), KonnectMapSyncRepository.STATUS_DISABLED));
+        when(mapSyncRepository.loadServices(ORG, "cp-1")).thenReturn(stored);
+        when(mapSyncRepository.loadRoutes(ORG, "cp-1")).thenReturn(new HashMap<>());
+        when(mapSyncRepository.upsertServices(eq(ORG), eq("cp-1"), any(), any())).thenReturn(2);
+        expect("services?size=100", services("s1", "s2", "s5"), null);
+        expect("routes?size=100", "", null);
+
+        service.refreshRuntimeSync(ORG, SyncDeadline.NONE);
+
+        ArgumentCaptor<Collection<ServiceMapping>> upserted = ArgumentCaptor.forClass(Collection.class);
+        verify(mapSyncRepository).upsertServices(eq(ORG), eq("cp-1"), upserted.capture(), any());
+        assertEquals(List.of("s2", "s5"), upserted.getValue().stream().map(ServiceMapping::kongServiceId).toList());
+        assertEquals(12L, upserted.getValue().iterator().next().id());
+        verify(mapSyncRepository).disableServices(eq(List.of(13L)), any());
+        verify(mapSyncRepository, times(1)).loadServices(ORG, "cp-1");
+        verify(mappingIndex).refreshAfterCommit(ORG);
+        konnect.verify();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void unchangedControlPlaneWritesNothing() {
+        Map<String, ServiceMapping> stored = new HashMap<>();
+        stored.put("s1", mapping(11L, "s1", hash("s1"), KonnectMapSyncRepository.STATUS_ACTIVE));
+        when(mapSyncRepository.loadServices(ORG, "cp-1")).thenReturn(stored);
+        when(mapSyncRepository.loadRoutes(ORG, "cp-1")).thenReturn(new HashMap<>());
+        expect("services?size=100", services("s1"), null);
+        expect("routes?size=100", "", null);
+
+        service.refreshRuntimeSync(ORG, SyncDeadline.NONE);
+
+        ArgumentCaptor<Collection<ServiceMapping>> upserted = ArgumentCaptor.forClass(Collection.class);
+        verify(mapSyncRepository).upsertServices(eq(ORG), eq("cp-1"), upserted.capture(), any());
+        assertEquals(0, upserted.getValue().size());
+        verify(mapSyncRepository).disableServices(eq(List.of()), any());
+        verify(mappingIndex, never()).refreshAfterCommit(any());
+    }
+
+    @Test
+    void eachPageIsWrittenAsOneChunk() {
+        properties.setPageSize(2);
+        when(mapSyncRepository.loadServices(ORG, "cp-1")).thenReturn(new HashMap<>());
+        when(mapSyncRepository.loadRoutes(ORG, "cp-1")).thenReturn(new HashMap<>());
+        expect("services?size=2", services("s1", "s2"), "2");
+        expect("services?size=2&offset=2", services("s3"), null);
+        expect("routes?size=2", "", null);
+
+        service.refreshRuntimeSync(ORG, SyncDeadline.NONE);
+
+        verify(mapSyncRepository, times(2)).upsertServices(eq(ORG), eq("cp-1"), any(), any());
+        verify(mapSyncRepository).disableServices(anyList(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void incrementalSyncWritesOnlyWhatChangedSinceTheWatermark() {
+        properties.setPageSize(2);
+        recentFullSync(100L, 100L);
+        when(mapSyncRepository.loadServices(eq(ORG), eq("cp-1"), any())).thenReturn(new HashMap<>());
+        when(mapSyncRepository.loadRoutes(eq(ORG), eq("cp-1"), any())).thenReturn(new HashMap<>());
+        expect("services" + NEWEST_FIRST, services(300, "s1") + "," + services(200, "s2"), "2");
+        // Equal to the watermark still counts: updated_at has whole-second resolution
+        expect("services" + NEWEST_FIRST + "&offset=2", services(100, "s3") + "," + services(50, "s4"), "3");
+        // Past the first older entity the walk stops; only the prefetch may ask for this page
+        konnect.expect(ExpectedCount.between(0, 1), requestTo(CONTROL_PLANE + "services" + NEWEST_FIRST + "&offset=3"))
+                .andRespond(withSuccess("{\"data\":[{\"id\":\"s9\"}],\"offset\":null}", MediaType.APPLICATION_JSON));
+        expect("routes" + NEWEST_FIRST, "", null);
+
+        assertEquals(false, service.refreshRuntimeSync(ORG, SyncDeadline.NONE));
+
+        // Each page's updated entities are loaded and written as the page arrives
+        ArgumentCaptor<Collection<ServiceMapping>> upserted = ArgumentCaptor.forClass(Collection.class);
+        verify(mapSyncRepository, times(2)).upsertServices(eq(ORG), eq("cp-1"), upserted.capture(), any());
+        assertEquals(List.of(List.of("s1", "s2"), List.of("s3")), upserted.getAllValues().stream()
+                .map(page -> page.stream().map(ServiceMapping::kongServiceId).toList()).toList());
+        verify(mapSyncRepository).loadServices(ORG, "cp-1", List.of("s1", "s2"));
+        verify(mapSyncRepository).loadServices(ORG, "cp-1", List.of("s3"));
+        verify(mapSyncRepository, never()).loadRoutes(eq(ORG), eq("cp-1"), any());
+        verify(mapSyncRepository).markIncrementalSync(eq(ORG), eq("cp-1"), any(), eq(300L), eq(100L));
+        verify(mapSyncRepository, never()).disableServices(anyList(), any());
+    }
+
+    @Test
+    void failedPageLeavesTheWatermarkWhereItWas() {
+        properties.setPageSize(2);
+        recentFullSync(100L, 100L);
+        expect("services" + NEWEST_FIRST, services(300, "s1") + "," + services(200, "s2"), "2");
+        konnect.expect(requestTo(CONTROL_PLANE + "services" + NEWEST_FIRST + "&offset=2"))
+                .andRespond(withStatus(HttpStatus.BAD_GATEWAY));
+
+        assertThrows(RuntimeException.class, () -> service.refreshRuntimeSync(ORG, SyncDeadline.NONE));
+
+        // The first page may already be written; the failure rolls it back with the transaction
+        verify(mapSyncRepository, never()).markIncrementalSync(any(), any(), any(), any(), any());
+        verify(mapSyncRepository, never()).markFullSync(any(), any(), any(), anyInt(), anyInt(), any(), any());
+    }
+
+    @Test
+    void fullSyncResetsTheWatermarksToWhatKonnectStillLists() {
+        // The newest services were deleted since; the next incremental sync must not skip past 200
+        when(mapSyncRepository.findSyncState(ORG, "cp-1")).thenReturn(new SyncState(Instant.now(),
+                Instant.now().minusMillis(properties.getFullSyncIntervalMs() + 1000), 500L, 500L, null));
+        Map<String, ServiceMapping> stored = new HashMap<>();
+        stored.put("s5", mapping(15L, "s5", hash("s5"), KonnectMapSyncRepository.STATUS_ACTIVE));
+        when(mapSyncRepository.loadServices(ORG, "cp-1")).thenReturn(stored);
+        when(mapSyncRepository.loadRoutes(ORG, "cp-1")).thenReturn(new HashMap<>());
+        expect("services?size=100", services(200, "s1"), null);
+        expect("routes?size=100", "", null);
+
+        assertEquals(true, service.refreshRuntimeSync(ORG, SyncDeadline.NONE));
+
+        verify(mapSyncRepository).disableServices(eq(List.of(15L)), any());
+        // No routes left: a null watermark makes the next routes sync full again
+        verify(mapSyncRepository).markFullSync(eq(ORG), eq("cp-1"), any(), eq(1), eq(0), eq(200L), eq(null));
+        verify(mapSyncRepository, never()).markIncrementalSync(any(), any(), any(), anyLong(), anyLong());
+    }
+
+    private void recentFullSync(Long servicesWatermark, Long routesWatermark) {
+        when(mapSyncRepository.findSyncState(ORG, "cp-1")).thenReturn(new SyncState(Instant.now(),
+                Instant.now().minusSeconds(60), servicesWatermark, routesWatermark, null));
+    }
+
+    private void expect(String path, String entities, String offset) {
+        konnect.expect(requestTo(CONTROL_PLANE + path)).andRespond(withSuccess(
+                "{\"data\":[" + entities + "],\"offset\":" + (offset != null ? "\"" + offset + "\"" : "null") + "}",
+                MediaType.APPLICATION_JSON));
+    }
+
+    private static String services(String... ids) {
+        return services(100, ids);
+    }
+
+    private static String services(long updatedAt, String... ids) {
+        List<String> services = new ArrayList<>();
+        for (String id : ids) {
+            services.add("{\"id\":\"" + id + "\",\"name\":\"" + id + "\",\"host\":\"" + id
+                    + ".internal\",\"port\":80,\"path\":\"/\",\"protocol\":\"http\",\"tags\":[],\"updated_at\":"
+                    + updatedAt + "}");
+        }
+        return String.join(",", services);
+    }
+
+    private static String hash(String id) {
+        Map<String, Object> service = new HashMap<>();
+        service.put("name", id);
+        service.put("host", id + ".internal");
+        service.put("port", 80);
+        service.put("path", "/");
+        service.put("protocol", "http");
+        service.put("tags", List.of());
+        return KonnectFingerprint.service(service);
+    }
+
+    private static ServiceMapping mapping(Long id, String kongServiceId, String contentHash, String status) {
+        return new ServiceMapping(id, kongServiceId, kongServiceId, "[]", kongServiceId + ".internal", 80, "/",
+                "http", contentHash, status);
+    }
+}
@@ -0,0 +1,241 @@
+package aforo.kong.service.impl;
+
+import aforo.kong.client.KonnectWebClient;
+import aforo.kong.client.KonnectWebClient.ConditionalList;
+import aforo.kong.config.KonnectSyncProperties;
+import aforo.kong.entity.ClientApiDetails;
+import aforo.kong.repository.ClientApiDetailsRepository;
+import aforo.kong.repository.KonnectApiProductMapRepository;
+import aforo.kong.repository.KonnectMapSyncRepository;
+import aforo.kong.repository.KonnectMapSyncRepository.SyncState;
+import aforo.kong.repository.KongProductRepository;
+import aforo.kong.service.KongRuntimeService;
+import aforo.kong.service.SyncDeadline;
+import aforo.kong.service.SyncLockService;
+import aforo.kong.util.EncryptionUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class KonnectServiceImplTest {
+
+    private final ClientApiDetailsRepository connectionRepository = mock(ClientApiDetailsRepository.class);
+    private final KonnectApiProductMapRepository mappingRepository = mock(KonnectApiProductMapRepository.class);
+    private final KongProductRepository productRepository = mock(KongProductRepository.class);
+    private final KonnectWebClient konnectClient = mock(KonnectWebClient.class);
+    private final EncryptionUtil encryptionUtil = mock(EncryptionUtil.class);
+    private final SyncLockService syncLockService = new SyncLockService();
+    private final KongRuntimeService runtimeService = mock(KongRuntimeService.class);
+    private final KonnectMapSyncRepository mapSyncRepository = mock(KonnectMapSyncRepository.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private final KonnectSyncProperties properties = new KonnectSyncProperties();
+    private KonnectServiceImpl service;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        doAnswer(invocation -> {
+            ((Consumer<TransactionStatus>) invocation.getArgument(0)).accept(null);
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+        when(konnectClient.listApiProductsIfModified(anyString(), any(), any()))
+                .thenReturn(new ConditionalList(List.of(), null, false));
+        properties.getAutoRefresh().setMaxJitterMs(0);
+        service = new KonnectServiceImpl(connectionRepository, mappingRepository, productRepository, konnectClient,
+                encryptionUtil, new ObjectMapper(), syncLockService, runtimeService, mapSyncRepository, properties,
+                transactionTemplate);
+    }
+
+    @Test
+    void noMoreOrgsThanTheConcurrencyRefreshAtOnce() {
+        properties.getAutoRefresh().setConcurrency(2);
+        connections(1L, 2L, 3L, 4L, 5L, 6L);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger mostRunning = new AtomicInteger();
+        when(runtimeService.refreshRuntimeSync(any(), any())).thenAnswer(invocation -> {
+            mostRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(50);
+            running.decrementAndGet();
+            return false;
+        });
+
+        service.autoRefresh();
+
+        assertEquals(2, mostRunning.get());
+        assertEquals(6, lastCycle().get("refreshed"));
+    }
+
+    @Test
+    void orgPastItsTimeoutStopsCooperativelyAndSkipsProducts() {
+        properties.getAutoRefresh().setOrgTimeoutMs(50);
+        connections(1L, 2L);
+        List<Boolean> interrupted = new ArrayList<>();
+        when(runtimeService.refreshRuntimeSync(eq(1L), any())).thenAnswer(invocation -> {
+            SyncDeadline deadline = invocation.getArgument(1);
+            // A page that takes longer than the whole org timeout; the check after it stops the sync
+            Thread.sleep(100);
+            interrupted.add(Thread.currentThread().isInterrupted());
+            deadline.check();
+            return false;
+        });
+
+        service.autoRefresh();
+
+        assertEquals(List.of(false), interrupted);
+        assertEquals(List.of(1L), lastCycle().get("timedOut"));
+        assertEquals(List.of(), lastCycle().get("failed"));
+        assertEquals(1, lastCycle().get("refreshed"));
+        assertEquals(1L, service.getAutoRefreshStats().get("timedOut"));
+        verify(konnectClient, never()).listApiProductsIfModified(eq("https://org-1"), any(), any());
+        verify(konnectClient).listApiProductsIfModified(eq("https://org-2"), any(), isNull());
+    }
+
+    @Test
+    void productImportPastTheTimeoutRollsBackWithoutSavingTheEtag() {
+        properties.getAutoRefresh().setOrgTimeoutMs(300);
+        ClientApiDetails connection = connection(1L);
+        connection.setAdditionalConfig("{\"controlPlaneId\":\"cp-1\"}");
+        when(connectionRepository.findByEnvironmentAndConnectionStatus("konnect", "connected"))
+                .thenReturn(List.of(connection));
+        when(connectionRepository.findByOrganizationIdAndEnvironment(1L, "konnect")).thenReturn(Optional.of(connection));
+        when(konnectClient.listApiProductsIfModified(eq("https://org-1"), any(), any()))
+                .thenReturn(new ConditionalList(List.of(product("p1"), product("p2")), "\"v2\"", true));
+        when(konnectClient.getApiProductById(anyString(), eq("p1"), any())).thenAnswer(invocation -> {
+            Thread.sleep(400);
+            return Map.of();
+        });
+
+        service.autoRefresh();
+
+        assertEquals(List.of(1L), lastCycle().get("timedOut"));
+        verify(transactionTemplate).executeWithoutResult(any());
+        verify(konnectClient, never()).getApiProductById(anyString(), eq("p2"), any());
+        verify(mapSyncRepository, never()).saveProductsEtag(any(), anyString(), any());
+    }
+
+    @Test
+    void failedOrgDoesNotStopTheOthers() {
+        connections(1L, 2L, 3L);
+        when(runtimeService.refreshRuntimeSync(eq(2L), any())).thenThrow(new RuntimeException("Konnect down"));
+
+        service.autoRefresh();
+
+        assertEquals(List.of(2L), lastCycle().get("failed"));
+        assertEquals(2, lastCycle().get("refreshed"));
+        verify(runtimeService).refreshRuntimeSync(eq(1L), any());
+        verify(runtimeService).refreshRuntimeSync(eq(3L), any());
+    }
+
+    @Test
+    void orgAlreadySyncingIsSkipped() {
+        connections(1L, 2L);
+        ReentrantLock lock = syncLockService.getLockForOrg(1L);
+        lock.lock();
+        try {
+            service.autoRefresh();
+        } finally {
+            lock.unlock();
+        }
+
+        assertEquals(List.of(1L), lastCycle().get("skippedLocked"));
+        assertEquals(1, lastCycle().get("refreshed"));
+        verify(runtimeService, never()).refreshRuntimeSync(eq(1L), any());
+        assertFalse(lock.isLocked());
+    }
+
+    @Test
+    void unchangedProductListAppliesNothing() {
+        productConnection("\"v1\"");
+        when(konnectClient.listApiProductsIfModified(eq("https://org-1"), any(), eq("\"v1\"")))
+                .thenReturn(new ConditionalList(List.of(), "\"v1\"", false));
+
+        service.autoRefresh();
+
+        assertEquals(1, lastCycle().get("refreshed"));
+        verify(mappingRepository, never()).findByOrgId(any());
+        verify(transactionTemplate, never()).executeWithoutResult(any());
+        verify(mapSyncRepository, never()).saveProductsEtag(any(), anyString(), any());
+    }
+
+    @Test
+    void appliedProductListRemembersItsEtag() {
+        productConnection("\"v1\"");
+        when(konnectClient.listApiProductsIfModified(eq("https://org-1"), any(), eq("\"v1\"")))
+                .thenReturn(new ConditionalList(List.of(), "\"v2\"", true));
+
+        service.autoRefresh();
+
+        verify(mapSyncRepository).saveProductsEtag(1L, "cp-1", "\"v2\"");
+    }
+
+    @Test
+    void failedProductImportKeepsTheOldEtag() {
+        productConnection("\"v1\"");
+        when(konnectClient.listApiProductsIfModified(eq("https://org-1"), any(), eq("\"v1\"")))
+                .thenReturn(new ConditionalList(List.of(product("p1")), "\"v2\"", true));
+        when(konnectClient.getApiProductById(anyString(), eq("p1"), any())).thenReturn(Map.of());
+
+        service.autoRefresh();
+
+        verify(konnectClient).getApiProductById(anyString(), eq("p1"), any());
+        verify(mapSyncRepository, never()).saveProductsEtag(any(), anyString(), any());
+    }
+
+    private ClientApiDetails productConnection(String etag) {
+        ClientApiDetails connection = connection(1L);
+        connection.setAdditionalConfig("{\"controlPlaneId\":\"cp-1\"}");
+        when(connectionRepository.findByEnvironmentAndConnectionStatus("konnect", "connected"))
+                .thenReturn(List.of(connection));
+        when(connectionRepository.findByOrganizationIdAndEnvironment(1L, "konnect")).thenReturn(Optional.of(connection));
+        when(mapSyncRepository.findSyncState(1L, "cp-1"))
+                .thenReturn(new SyncState(Instant.now(), Instant.now(), 100L, 100L, etag));
+        return connection;
+    }
+
+    private void connections(Long... orgIds) {
+        List<ClientApiDetails> connections = new ArrayList<>();
+        for (Long orgId : orgIds) {
+            connections.add(connection(orgId));
+        }
+        when(connectionRepository.findByEnvironmentAndConnectionStatus("konnect", "connected")).thenReturn(connections);
+    }
+
+    private static ClientApiDetails connection(Long orgId) {
+        ClientApiDetails connection = new ClientApiDetails();
+        connection.setOrganizationId(orgId);
+        connection.setBaseUrl("https://org-" + orgId);
+        return connection;
+    }
+
+    private static Map<String, Object> product(String id) {
+        return Map.of("id", id, "name", id, "description", "");
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> lastCycle() {
+        return (Map<String, Object>) service.getAutoRefreshStats().get("lastCycle");
+    }
+}
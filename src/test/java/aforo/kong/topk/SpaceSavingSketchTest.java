@@ -0,0 +1,70 @@
+package aforo.kong.topk;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpaceSavingSketchTest {
+
+    @Test
+    void countsAreExactUntilTheSketchIsFull() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(3);
+        sketch.offer("a", 5);
+        sketch.offer("b", 2);
+        sketch.offer("a", 1);
+
+        assertEquals(List.of(new SpaceSavingSketch.Estimate("a", 6, 0), new SpaceSavingSketch.Estimate("b", 2, 0)),
+                sketch.top(5));
+    }
+
+    @Test
+    void evictionOverestimatesByAtMostTotalOverCapacity() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(4);
+        for (int i = 0; i < 1000; i++) {
+            sketch.offer("heavy", 1);
+            sketch.offer("tail-" + i, 1);
+        }
+
+        SpaceSavingSketch.Estimate top = sketch.top(1).get(0);
+        assertEquals("heavy", top.item());
+        assertTrue(top.count() >= 1000 && top.count() - top.error() <= 1000);
+        assertTrue(top.error() <= sketch.total() / sketch.capacity());
+        assertEquals(2000, sketch.total());
+    }
+
+    @Test
+    void mergedSketchesKeepTheHeavyHittersOfBoth() {
+        SpaceSavingSketch a = new SpaceSavingSketch(2);
+        SpaceSavingSketch b = new SpaceSavingSketch(2);
+        a.offer("x", 10);
+        a.offer("y", 1);
+        b.offer("z", 8);
+        b.offer("y", 1);
+
+        a.merge(b);
+
+        List<SpaceSavingSketch.Estimate> top = a.top(2);
+        assertEquals("x", top.get(0).item());
+        assertEquals(11, top.get(0).count());
+        assertEquals(1, top.get(0).error());
+        assertEquals("z", top.get(1).item());
+        assertEquals(9, top.get(1).count());
+        assertEquals(20, a.total());
+    }
+
+    @Test
+    void bytesRoundTrip() {
+        SpaceSavingSketch sketch = new SpaceSavingSketch(2);
+        sketch.offer("a", 3);
+        sketch.offer("b", 2);
+        sketch.offer("c", 1);
+
+        SpaceSavingSketch copy = SpaceSavingSketch.fromBytes(sketch.toBytes());
+        assertEquals(sketch.top(2), copy.top(2));
+        assertEquals(sketch.total(), copy.total());
+        assertEquals(2, copy.capacity());
+    }
+}
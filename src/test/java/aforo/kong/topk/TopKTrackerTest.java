@@ -0,0 +1,190 @@
+package aforo.kong.topk;
+
+import aforo.kong.config.TopKProperties;
+import aforo.kong.entity.UsageRecord;
+import aforo.kong.repository.TopKSketchRepository;
+import aforo.kong.repository.TopKSketchRepository.StoredSketch;
+import aforo.kong.repository.UsageRollupRepository;
+import aforo.kong.repository.UsageRollupRepository.Dimension;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TopKTrackerTest {
+
+    private static final Long ORG = 7L;
+    private static final Instant DAY = Instant.parse("2026-03-10T00:00:00Z");
+
+    private final TopKSketchRepository sketchRepository = mock(TopKSketchRepository.class);
+    private final UsageRollupRepository rollupRepository = mock(UsageRollupRepository.class);
+    private final TransactionTemplate transactionTemplate = mock(TransactionTemplate.class);
+    private final TopKProperties properties = new TopKProperties();
+    // The usage_topk_sketch rows, by dimension
+    private final Map<String, byte[]> stored = new ConcurrentHashMap<>();
+    private TopKTracker tracker;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        doAnswer(invocation -> {
+            ((Consumer<TransactionStatus>) invocation.getArgument(0)).accept(null);
+            return null;
+        }).when(transactionTemplate).executeWithoutResult(any());
+        when(sketchRepository.lockSketch(eq(ORG), anyString(), eq(DAY)))
+                .thenAnswer(invocation -> stored.get(invocation.<String>getArgument(1)));
+        doAnswer(invocation -> stored.put(invocation.getArgument(1), invocation.getArgument(3)))
+                .when(sketchRepository).saveSketch(eq(ORG), anyString(), eq(DAY), any());
+        when(sketchRepository.findOrStartTracking(any())).thenReturn(Instant.parse("2026-03-01T00:00:00Z"));
+        tracker = new TopKTracker(sketchRepository, rollupRepository, transactionTemplate, properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.clearSynchronization();
+        }
+    }
+
+    @Test
+    void flushMergesAdditionsIntoTheStoredSketchUnderTheRowLock() {
+        SpaceSavingSketch earlier = new SpaceSavingSketch(properties.getCapacity());
+        earlier.offer("alice", 5);
+        stored.put(Dimension.CONSUMER_USERNAME.name(), earlier.toBytes());
+
+        tracker.recordAfterCommit(List.of(record("alice", "orders"), record("alice", "orders"), record("bob", "billing")));
+        tracker.flush();
+
+        assertEquals(Map.of("alice", 7L, "bob", 1L), counts(Dimension.CONSUMER_USERNAME));
+        assertEquals(Map.of("orders", 2L, "billing", 1L), counts(Dimension.SERVICE_NAME));
+        // One transaction per sketch, each locking its row before writing it back
+        verify(transactionTemplate, times(2)).executeWithoutResult(any());
+        InOrder order = inOrder(sketchRepository);
+        order.verify(sketchRepository).lockSketch(eq(ORG), anyString(), eq(DAY));
+        order.verify(sketchRepository).saveSketch(eq(ORG), anyString(), eq(DAY), any());
+        assertEquals(0, tracker.getStats().get("pendingSketches"));
+        assertEquals(2L, tracker.getStats().get("flushes"));
+    }
+
+    @Test
+    void recordsAreAddedOnlyOnceTheTransactionCommits() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        tracker.recordAfterCommit(List.of(record("alice", "orders")));
+
+        assertEquals(0, tracker.getStats().get("pendingSketches"));
+        synchronizations().forEach(TransactionSynchronization::afterCommit);
+        assertEquals(2, tracker.getStats().get("pendingSketches"));
+    }
+
+    @Test
+    void rolledBackRecordsAreNeverCounted() {
+        TransactionSynchronizationManager.initSynchronization();
+
+        tracker.recordAfterCommit(List.of(record("alice", "orders")));
+        synchronizations().forEach(sync -> sync.afterCompletion(TransactionSynchronization.STATUS_ROLLED_BACK));
+        tracker.flush();
+
+        assertEquals(0, tracker.getStats().get("pendingSketches"));
+        verify(transactionTemplate, never()).executeWithoutResult(any());
+        verify(sketchRepository, never()).saveSketch(any(), anyString(), any(), any());
+    }
+
+    @Test
+    void failedFlushKeepsTheAdditionsForTheNextOne() {
+        tracker.recordAfterCommit(List.of(record("alice", null)));
+        doThrow(new RuntimeException("database down"))
+                .doAnswer(invocation -> stored.get(invocation.<String>getArgument(1)))
+                .when(sketchRepository).lockSketch(eq(ORG), anyString(), eq(DAY));
+
+        tracker.flush();
+        // More traffic arrives before the retry
+        tracker.recordAfterCommit(List.of(record("alice", null)));
+        tracker.flush();
+
+        assertEquals(1L, tracker.getStats().get("flushFailures"));
+        assertEquals(Map.of("alice", 2L), counts(Dimension.CONSUMER_USERNAME));
+    }
+
+    @Test
+    void periodicFlushRunsOnlyWhileStartedAndStopFlushesTheRest() {
+        tracker.recordAfterCommit(List.of(record("alice", null)));
+
+        tracker.scheduledFlush();
+        verify(transactionTemplate, never()).executeWithoutResult(any());
+
+        tracker.start();
+        tracker.scheduledFlush();
+        assertEquals(Map.of("alice", 1L), counts(Dimension.CONSUMER_USERNAME));
+
+        tracker.recordAfterCommit(List.of(record("bob", null)));
+        tracker.stop();
+        assertEquals(Map.of("alice", 1L, "bob", 1L), counts(Dimension.CONSUMER_USERNAME));
+        tracker.recordAfterCommit(List.of(record("carol", null)));
+        tracker.scheduledFlush();
+        assertEquals(1, tracker.getStats().get("pendingSketches"));
+    }
+
+    @Test
+    void unflushedAdditionsAreIncludedInAnswers() {
+        tracker.start();
+        SpaceSavingSketch flushed = new SpaceSavingSketch(properties.getCapacity());
+        flushed.offer("alice", 4);
+        when(sketchRepository.findSketches(ORG, Dimension.CONSUMER_USERNAME.name(), DAY, DAY.plusSeconds(86400 * 3)))
+                .thenReturn(List.of(new StoredSketch(DAY, flushed.toBytes())));
+        tracker.recordAfterCommit(List.of(record("bob", null), record("bob", null), record("bob", null),
+                record("bob", null), record("bob", null)));
+
+        List<TopKTracker.TopKEntry> top = tracker.top(ORG, Dimension.CONSUMER_USERNAME, DAY,
+                DAY.plusSeconds(86400 * 3), 2);
+
+        assertEquals(List.of(new TopKTracker.TopKEntry("bob", 5, 0), new TopKTracker.TopKEntry("alice", 4, 0)), top);
+    }
+
+    private Map<String, Long> counts(Dimension dimension) {
+        Map<String, Long> counts = new ConcurrentHashMap<>();
+        for (SpaceSavingSketch.Estimate estimate : SpaceSavingSketch.fromBytes(stored.get(dimension.name())).top(10)) {
+            counts.put(estimate.item(), estimate.count());
+        }
+        return counts;
+    }
+
+    private static List<TransactionSynchronization> synchronizations() {
+        List<TransactionSynchronization> registered = new ArrayList<>(TransactionSynchronizationManager.getSynchronizations());
+        TransactionSynchronizationManager.clearSynchronization();
+        return registered;
+    }
+
+    private static UsageRecord record(String consumer, String service) {
+        UsageRecord record = new UsageRecord();
+        record.setOrganizationId(ORG);
+        record.setTimestamp(DAY.plusSeconds(3600));
+        record.setConsumerUsername(consumer);
+        record.setServiceName(service);
+        return record;
+    }
+}
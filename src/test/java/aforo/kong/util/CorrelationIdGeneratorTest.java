@@ -0,0 +1,41 @@
+package aforo.kong.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CorrelationIdGeneratorTest {
+
+    private final CorrelationIdGenerator sha256 = new CorrelationIdGenerator(CorrelationIdGenerator.Algorithm.SHA256);
+    private final CorrelationIdGenerator murmur = new CorrelationIdGenerator(CorrelationIdGenerator.Algorithm.MURMUR3_128);
+
+    @Test
+    void sha256MatchesStringKeyDigest() throws Exception {
+        // IDs already stored must keep deduplicating after the rewrite
+        assertEquals(sha256Hex("8a1f-req"), sha256.generate("8a1f-req"));
+        assertEquals(sha256Hex("1700000000000|c-1|r-1|GET|/café/😀"),
+                sha256.begin().append(1700000000000L).append('|').append("c-1").append('|').append("r-1")
+                        .append('|').append("GET").append('|').append("/café/😀").finish());
+        assertEquals(sha256Hex("null|null"), sha256.begin().append((Long) null).append('|').append((String) null).finish());
+        assertEquals(sha256Hex("-42"), sha256.begin().append(-42L).finish());
+    }
+
+    @Test
+    void murmur3MatchesReferenceVectors() {
+        assertEquals("00000000000000000000000000000000", murmur.generate(""));
+        // Reference values from the canonical MurmurHash3_x64_128, seed 0, h1 then h2
+        assertEquals("cbd8a7b341bd9b025b1e906a48ae1d19", murmur.generate("hello"));
+        assertNotEquals(murmur.generate("hello"), murmur.generate("hellp"));
+        assertEquals(32, murmur.generate("a key longer than sixteen bytes").length());
+    }
+
+    private static String sha256Hex(String value) throws Exception {
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        return HexFormat.of().formatHex(hash);
+    }
+}
@@ -0,0 +1,61 @@
+package aforo.kong.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StripedTokenBucketTest {
+
+    @Test
+    void admitsExactlyTheBurstAcrossThreads() throws InterruptedException {
+        // Refill is negligible during the test, so only the burst may get through
+        StripedTokenBucket bucket = new StripedTokenBucket(0.001, 61, 8);
+        assertEquals(8, bucket.stripes());
+
+        AtomicInteger admitted = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < 1000; i++) {
+                    if (bucket.tryAcquire() == 0) {
+                        admitted.incrementAndGet();
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(61, admitted.get());
+        assertTrue(bucket.tryAcquire() > 0);
+    }
+
+    @Test
+    void refillsAtTheConfiguredRate() throws InterruptedException {
+        // 100 ms per permit, so a scheduling hiccup between the two calls cannot refill it
+        StripedTokenBucket bucket = new StripedTokenBucket(10, 1, 8);
+        assertEquals(1, bucket.stripes());
+        assertEquals(0, bucket.tryAcquire());
+
+        long wait = bucket.tryAcquire();
+        assertTrue(wait > 0 && wait <= 100_000_000L, "wait was " + wait);
+        Thread.sleep(110);
+        assertEquals(0, bucket.tryAcquire());
+    }
+}
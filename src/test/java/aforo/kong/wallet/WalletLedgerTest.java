@@ -0,0 +1,117 @@
+package aforo.kong.wallet;
+
+import aforo.kong.config.RatingProperties;
+import aforo.kong.repository.KongConsumerRepository;
+import aforo.kong.repository.WalletLedgerRepository;
+import aforo.kong.repository.WalletLedgerRepository.WalletDelta;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WalletLedgerTest {
+
+    private static final Long ORG = 7L;
+
+    private final WalletLedgerRepository ledgerRepository = mock(WalletLedgerRepository.class);
+    private final KongConsumerRepository consumerRepository = mock(KongConsumerRepository.class);
+    private WalletLedger ledger;
+
+    @BeforeEach
+    void setUp() {
+        when(ledgerRepository.findEffectiveBalance(ORG, "c1")).thenReturn(10.0);
+        ledger = new WalletLedger(ledgerRepository, consumerRepository, new RatingProperties());
+    }
+
+    @Test
+    void committedDebitsMoveTheBalanceButAreNotWrittenAgain() {
+        ledger.debit(ORG, "c1", 1.0);
+        // Already in wallet_debit_journal; only the ledger's view follows it
+        ledger.applyCommitted(ORG, "c1", -4.0);
+
+        assertEquals(5.0, ledger.getBalance(ORG, "c1"), 1e-9);
+        ledger.flush();
+        verify(ledgerRepository).applyDeltas(List.of(new WalletDelta(ORG, "c1", -1.0)));
+        verify(ledgerRepository).foldJournal();
+    }
+
+    @Test
+    void committedDebitOfAnAccountNotLoadedYetIsNotCountedTwice() {
+        // The effective balance read on first use already has the journaled debit
+        when(ledgerRepository.findEffectiveBalance(ORG, "c1")).thenReturn(6.0);
+
+        ledger.applyCommitted(ORG, "c1", -4.0);
+
+        assertEquals(6.0, ledger.getBalance(ORG, "c1"), 1e-9);
+        verify(consumerRepository, never()).updateStatus(anyString(), anyString(), anyLong());
+    }
+
+    @Test
+    void walletlessConsumersAreIgnored() {
+        when(ledgerRepository.findEffectiveBalance(ORG, "c2")).thenReturn(null);
+
+        ledger.debit(ORG, "c2", 3.0);
+        ledger.applyCommitted(ORG, "c2", -3.0);
+        ledger.flush();
+
+        assertNull(ledger.getBalance(ORG, "c2"));
+        verify(ledgerRepository).applyDeltas(List.of());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void failedFlushIsRetriedOnceWithLaterDebitsAdded() {
+        when(ledgerRepository.applyDeltas(anyList()))
+                .thenThrow(new IllegalStateException("connection lost"))
+                .thenReturn(1);
+
+        ledger.debit(ORG, "c1", 2.0);
+        ledger.flush();
+        ledger.debit(ORG, "c1", 0.5);
+        ledger.flush();
+        ledger.flush();
+
+        ArgumentCaptor<List<WalletDelta>> flushed = ArgumentCaptor.forClass(List.class);
+        verify(ledgerRepository, times(3)).applyDeltas(flushed.capture());
+        assertEquals(List.of(new WalletDelta(ORG, "c1", -2.0)), flushed.getAllValues().get(0));
+        assertEquals(List.of(new WalletDelta(ORG, "c1", -2.5)), flushed.getAllValues().get(1));
+        assertEquals(List.of(), flushed.getAllValues().get(2));
+        assertEquals(7.5, ledger.getBalance(ORG, "c1"), 1e-9);
+        assertEquals(1L, ledger.getStats().get("flushFailures"));
+        // The journal is folded even when the balance write fails
+        verify(ledgerRepository, times(3)).foldJournal();
+    }
+
+    @Test
+    void crossingZeroSuspendsOnceAndATopUpResumes() {
+        when(ledgerRepository.resume(ORG, "c1")).thenReturn(1);
+
+        ledger.debit(ORG, "c1", 6.0);
+        verify(consumerRepository, never()).updateStatus(anyString(), anyString(), anyLong());
+
+        ledger.debit(ORG, "c1", 4.0);
+        ledger.debit(ORG, "c1", 1.0);
+        verify(consumerRepository, times(1)).updateStatus("c1", "suspended", ORG);
+
+        ledger.applyCommitted(ORG, "c1", 0.5);
+        verify(ledgerRepository, never()).resume(anyLong(), anyString());
+        ledger.applyCommitted(ORG, "c1", 20.0);
+        verify(ledgerRepository).resume(ORG, "c1");
+
+        assertEquals(19.5, ledger.getBalance(ORG, "c1"), 1e-9);
+        assertEquals(1L, ledger.getStats().get("suspensions"));
+        assertEquals(1L, ledger.getStats().get("resumes"));
+    }
+}